@@ -0,0 +1,459 @@
+package jp.ameba.mongo;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.Insert;
+import jp.ameba.mongo.protocol.LazyBSONObject;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * 挿入をキューに溜め、バックグラウンドのスレッドでまとめて送信するコレクションです。
+ * 
+ * 挿入するドキュメントは呼び出し元のスレッドでエンコードしてキューに追加し、
+ * 件数・バイト数・最も古いドキュメントの経過時間のいずれかが上限に達した時点で、
+ * 1つの OP_INSERT メッセージとして送信します。
+ * キューが上限に達している場合、挿入は空きが出るまで待ちます。
+ * 
+ * 設定は最初の挿入の前に行う必要があります。
+ * {@link #close()} では、キューに残っているドキュメントをすべて送信し、確認まで待ちます。
+ * 
+ * @author suguru
+ */
+public class BufferedMongoCollection {
+	
+	private static final Logger log = Logger.getLogger(BufferedMongoCollection.class.getName());
+	
+	// 使用するクライアント
+	private MongoClient client;
+	
+	// 対象のデータベース名
+	private String databaseName;
+	
+	// 対象のコレクション名
+	private String collectionName;
+	
+	// 送信に使用する一貫性レベル
+	private Consistency consistency;
+	
+	// キューに保持する最大ドキュメント数
+	private int capacity = 10000;
+	
+	// 1メッセージの最大ドキュメント数
+	private int maxBatchCount = 500;
+	
+	// 1メッセージの最大バイト数
+	private int maxBatchBytes = 1024 * 1024;
+	
+	// キューに保持する最大時間（ミリ秒）
+	private long maxDelay = 50L;
+	
+	// 確認を待たずに送信するメッセージの最大数
+	private int maxInFlight = 4;
+	
+	// 送信待ちのドキュメント
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+	
+	// キューの空き
+	private Semaphore space;
+	
+	// 送信待ちのドキュメント数
+	private final AtomicInteger queuedCount = new AtomicInteger();
+	
+	// 送信待ちのバイト数
+	private final AtomicLong queuedBytes = new AtomicLong();
+	
+	// キュー内の送信要求数
+	private final AtomicInteger flushRequests = new AtomicInteger();
+	
+	// 確認待ちのメッセージ、および送信要求で原因を取得していない失敗したメッセージ
+	private final Queue<OperationFuture<Void>> inFlight = new ConcurrentLinkedQueue<OperationFuture<Void>>();
+	
+	// 送信スレッド
+	private volatile Thread flusher;
+	
+	// 送信スレッドを開始済みか
+	private final AtomicBoolean started = new AtomicBoolean();
+	
+	// クローズ済みか
+	private volatile boolean closed = false;
+	
+	public BufferedMongoCollection(MongoClient client, String databaseName, String collectionName) {
+		this.client = client;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.consistency = client.getConfiguration().getDefaultConsistency();
+	}
+	
+	/**
+	 * 送信に使用する {@link Consistency} を設定します。
+	 * @param consistency
+	 * @return
+	 */
+	public BufferedMongoCollection consistency(Consistency consistency) {
+		this.consistency = consistency;
+		return this;
+	}
+	
+	/**
+	 * キューに保持する最大ドキュメント数を設定します。
+	 * @param capacity
+	 * @return
+	 */
+	public BufferedMongoCollection capacity(int capacity) {
+		this.capacity = capacity;
+		return this;
+	}
+	
+	/**
+	 * 1メッセージの最大ドキュメント数を設定します。
+	 * @param maxBatchCount
+	 * @return
+	 */
+	public BufferedMongoCollection maxBatchCount(int maxBatchCount) {
+		this.maxBatchCount = maxBatchCount;
+		return this;
+	}
+	
+	/**
+	 * 1メッセージの最大バイト数を設定します。
+	 * @param maxBatchBytes
+	 * @return
+	 */
+	public BufferedMongoCollection maxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+	
+	/**
+	 * ドキュメントをキューに保持する最大時間を設定します。
+	 * @param maxDelay ミリ秒
+	 * @return
+	 */
+	public BufferedMongoCollection maxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+		return this;
+	}
+	
+	/**
+	 * 確認を待たずに送信するメッセージの最大数を設定します。
+	 * @param maxInFlight
+	 * @return
+	 */
+	public BufferedMongoCollection maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+	
+	/**
+	 * ドキュメントをキューに追加します。
+	 * キューが上限に達している場合は、操作タイムアウト時間まで空きを待ちます。
+	 * @param document
+	 * @return 送信したメッセージの確認で完了する future
+	 * @throws MongoException クローズ済み、もしくはキューに空きがない場合
+	 */
+	public OperationFuture<Void> insert(BSONObject document) {
+		if (closed) {
+			throw new MongoException("BufferedMongoCollection is closed.");
+		}
+		start();
+		if (!document.containsField("_id")) {
+			document.put("_id", new ObjectId());
+		}
+		byte[] bytes = new BSONEncoder().encode(document);
+		if (!space.tryAcquire()) {
+			long timeout = client.getConfiguration().getOperationTimeout();
+			try {
+				if (!space.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+					throw new MongoException("Write buffer is full for " + timeout + " ms.");
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new MongoException(ex);
+			}
+		}
+		Entry entry = new Entry(
+				new LazyBSONObject(ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, bytes)),
+				bytes.length,
+				client.getConfiguration().getCallbackExecutor());
+		queue.offer(entry);
+		int count = queuedCount.incrementAndGet();
+		long size = queuedBytes.addAndGet(bytes.length);
+		// 空のキューへの追加時と上限到達時に、送信スレッドを起こす
+		if (count == 1 || count == maxBatchCount
+				|| (size >= maxBatchBytes && size - bytes.length < maxBatchBytes)) {
+			LockSupport.unpark(flusher);
+		}
+		return entry.future;
+	}
+	
+	/**
+	 * キューに追加済みのドキュメントを直ちに送信します。
+	 * @return 追加済みのドキュメントがすべて確認された時点で完了する future
+	 */
+	public OperationFuture<Void> flush() {
+		start();
+		Entry marker = new Entry(null, 0, client.getConfiguration().getCallbackExecutor());
+		flushRequests.incrementAndGet();
+		queue.offer(marker);
+		LockSupport.unpark(flusher);
+		return marker.future;
+	}
+	
+	/**
+	 * キューに残っているドキュメントをすべて送信し、確認まで待ってから送信スレッドを停止します。
+	 * @throws MongoException 送信が失敗した、もしくは操作タイムアウト時間内に完了しない場合
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		OperationFuture<Void> future = flush();
+		closed = true;
+		long timeout = client.getConfiguration().getOperationTimeout();
+		try {
+			future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException ex) {
+			throw MongoConnectionImpl.toMongoException(ex);
+		} catch (TimeoutException ex) {
+			throw new MongoException("Flushing buffered writes timed out after " + timeout + " ms.", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MongoException(ex);
+		} finally {
+			LockSupport.unpark(flusher);
+		}
+	}
+	
+	/**
+	 * 送信待ちのドキュメント数を取得します。
+	 * @return
+	 */
+	public int getQueuedCount() {
+		return queuedCount.get();
+	}
+	
+	/**
+	 * 最初の呼び出し時に送信スレッドを開始します。
+	 */
+	private void start() {
+		if (flusher != null || !started.compareAndSet(false, true)) {
+			// 開始中のスレッドがあれば、生成されるまで待つ
+			while (flusher == null) {
+				Thread.yield();
+			}
+			return;
+		}
+		space = new Semaphore(Math.max(1, capacity));
+		Thread thread = new Thread(new Flusher());
+		thread.setDaemon(true);
+		thread.setName("mongo-buffer-" + databaseName + "." + collectionName);
+		thread.start();
+		flusher = thread;
+	}
+	
+	/**
+	 * キューの内容を送信するスレッドの処理
+	 */
+	private class Flusher implements Runnable {
+		
+		// 確認待ちのメッセージ数の枠
+		private Semaphore sending = new Semaphore(Math.max(1, maxInFlight));
+		
+		// 1メッセージの最大バイト数
+		private int batchBytes;
+		
+		@Override
+		public void run() {
+			long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+			for (;;) {
+				Entry head = queue.peek();
+				if (head == null) {
+					if (closed) {
+						return;
+					}
+					LockSupport.park(this);
+					continue;
+				}
+				long age = System.nanoTime() - head.queuedAt;
+				boolean due = closed
+						|| flushRequests.get() > 0
+						|| queuedCount.get() >= maxBatchCount
+						|| queuedBytes.get() >= maxBatchBytes
+						|| age >= maxDelayNanos;
+				if (!due) {
+					LockSupport.parkNanos(this, maxDelayNanos - age);
+					continue;
+				}
+				try {
+					drain();
+				} catch (Throwable ex) {
+					log.log(Level.WARNING, "Failed to flush buffered writes.", ex);
+				}
+			}
+		}
+		
+		/**
+		 * キューの先頭から1メッセージ分のドキュメントを取り出して送信します。
+		 * 先頭が送信要求の場合は、それまでの送信の確認を待つ future を設定します。
+		 */
+		private void drain() {
+			Entry head = queue.peek();
+			if (head.document == null) {
+				queue.poll();
+				flushRequests.decrementAndGet();
+				awaitInFlight(head.future);
+				return;
+			}
+			if (batchBytes == 0) {
+				batchBytes = Math.min(maxBatchBytes, client.getConnection().getMaxMessageSize());
+			}
+			List<Entry> batch = new ArrayList<Entry>();
+			long bytes = 0;
+			Entry entry;
+			while ((entry = queue.peek()) != null && entry.document != null) {
+				if (!batch.isEmpty()
+						&& (batch.size() >= maxBatchCount || bytes + entry.size > batchBytes)) {
+					break;
+				}
+				queue.poll();
+				batch.add(entry);
+				bytes += entry.size;
+			}
+			queuedCount.addAndGet(-batch.size());
+			queuedBytes.addAndGet(-bytes);
+			space.release(batch.size());
+			send(batch);
+		}
+		
+		/**
+		 * 1メッセージ分のドキュメントを送信し、確認結果を各ドキュメントの future へ反映します。
+		 */
+		private void send(final List<Entry> batch) {
+			sending.acquireUninterruptibly();
+			final OperationFuture<Void> batchFuture = new OperationFuture<Void>();
+			inFlight.offer(batchFuture);
+			List<BSONObject> documents = new ArrayList<BSONObject>(batch.size());
+			for (Entry entry : batch) {
+				documents.add(entry.document);
+			}
+			OperationFuture<Response> future;
+			try {
+				future = client.getConnection().insertAsync(
+						new Insert(databaseName, collectionName, documents).consistency(consistency));
+			} catch (RuntimeException ex) {
+				complete(batch, batchFuture, ex);
+				return;
+			}
+			future.addListener(new OperationListener<Response>() {
+				@Override
+				public void operationComplete(OperationFuture<Response> future) {
+					Throwable cause = future.getCause();
+					if (cause == null) {
+						try {
+							MongoConnectionImpl.checkLastError(future.get());
+						} catch (Exception ex) {
+							cause = ex;
+						}
+					}
+					complete(batch, batchFuture, cause);
+				}
+			});
+		}
+		
+		private void complete(List<Entry> batch, OperationFuture<Void> batchFuture, Throwable cause) {
+			sending.release();
+			// 失敗したメッセージは、次の送信要求で原因を取得するまで残す
+			if (cause == null) {
+				inFlight.remove(batchFuture);
+			}
+			for (Entry entry : batch) {
+				if (cause == null) {
+					entry.future.setSuccess(null);
+				} else {
+					entry.future.setFailure(cause);
+				}
+			}
+			if (cause == null) {
+				batchFuture.setSuccess(null);
+			} else {
+				batchFuture.setFailure(cause);
+			}
+		}
+		
+		/**
+		 * 送信済みのメッセージがすべて確認された時点で、指定の future を完了させます。
+		 * いずれかのメッセージが失敗した場合は、その原因で失敗させます。
+		 */
+		private void awaitInFlight(final OperationFuture<Void> flushFuture) {
+			List<OperationFuture<Void>> pending = new ArrayList<OperationFuture<Void>>();
+			OperationFuture<Void> sent;
+			while ((sent = inFlight.poll()) != null) {
+				pending.add(sent);
+			}
+			final AtomicInteger remaining = new AtomicInteger(pending.size() + 1);
+			final AtomicBoolean failed = new AtomicBoolean();
+			OperationListener<Void> listener = new OperationListener<Void>() {
+				@Override
+				public void operationComplete(OperationFuture<Void> future) {
+					if (!future.isSuccess() && failed.compareAndSet(false, true)) {
+						flushFuture.setFailure(future.getCause());
+					}
+					if (remaining.decrementAndGet() == 0) {
+						flushFuture.setSuccess(null);
+					}
+				}
+			};
+			for (OperationFuture<Void> future : pending) {
+				future.addListener(listener);
+			}
+			if (remaining.decrementAndGet() == 0) {
+				flushFuture.setSuccess(null);
+			}
+		}
+	}
+	
+	/**
+	 * キューに追加されたドキュメント、もしくは送信要求
+	 */
+	private static class Entry {
+		
+		// エンコード済みのドキュメント（送信要求の場合は null）
+		private final BSONObject document;
+		
+		// エンコード後のバイト数
+		private final int size;
+		
+		// 追加された時刻
+		private final long queuedAt = System.nanoTime();
+		
+		// 確認で完了する future
+		private final OperationFuture<Void> future;
+		
+		Entry(BSONObject document, int size, Executor executor) {
+			this.document = document;
+			this.size = size;
+			this.future = new OperationFuture<Void>(executor);
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.Delete;
+import jp.ameba.mongo.protocol.Insert;
+import jp.ameba.mongo.protocol.Request;
+import jp.ameba.mongo.protocol.Response;
+import jp.ameba.mongo.protocol.Update;
+
+import org.bson.BSONObject;
+
+/**
+ * 挿入・更新・削除を混在させてまとめて実行するための
+ * メソッドチェーンを持つクラスです。
+ * 
+ * 順序なし（デフォルト）の場合は、確認を待たずに利用可能な接続へ
+ * 分散して送信します。順序ありの場合は、1つの接続で追加した順に実行し、
+ * 最初のエラーで中断します。
+ * 
+ * インスタンスはスレッドセーフではなく、1回のみ実行できます。
+ * 
+ * @author suguru
+ */
+public class BulkWrite {
+	
+	// 使用するクライアント
+	private MongoClient client;
+	
+	// 対象のデータベース名
+	private String databaseName;
+	
+	// 対象のコレクション名
+	private String collectionName;
+	
+	// 追加された操作
+	private List<Request> requests = new ArrayList<Request>();
+	
+	// 使用する一貫性レベル
+	private Consistency consistency;
+	
+	// 追加した順に実行するか
+	private boolean ordered = false;
+	
+	// 確認待ちの操作の最大数
+	private int maxInFlight = 256;
+	
+	// 実行済みか
+	private boolean executed = false;
+	
+	// 実行した操作の対象のキャッシュを破棄する
+	private CacheInvalidator invalidator;
+	
+	BulkWrite(
+			MongoClient client,
+			String databaseName,
+			String collectionName,
+			Consistency consistency) {
+		this.client = client;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.consistency = consistency;
+	}
+	
+	/**
+	 * ドキュメントの挿入を追加します。
+	 * @param document
+	 * @return
+	 */
+	public BulkWrite insert(BSONObject document) {
+		requests.add(new Insert(databaseName, collectionName, document));
+		return this;
+	}
+	
+	/**
+	 * 指定条件のドキュメントの更新を追加します。
+	 * @param selector
+	 * @param document
+	 * @return
+	 */
+	public BulkWrite update(BSONObject selector, BSONObject document) {
+		requests.add(new Update(databaseName, collectionName, selector, document));
+		return this;
+	}
+	
+	/**
+	 * 指定条件のすべてのドキュメントの更新を追加します。
+	 * @param selector
+	 * @param document
+	 * @return
+	 */
+	public BulkWrite updateMulti(BSONObject selector, BSONObject document) {
+		requests.add(new Update(databaseName, collectionName, selector, document).multiUpdate());
+		return this;
+	}
+	
+	/**
+	 * 指定条件のドキュメントの更新、もしくは挿入を追加します。
+	 * @param selector
+	 * @param document
+	 * @return
+	 */
+	public BulkWrite upsert(BSONObject selector, BSONObject document) {
+		requests.add(new Update(databaseName, collectionName, selector, document).upsert());
+		return this;
+	}
+	
+	/**
+	 * 指定条件のドキュメントの削除を追加します。
+	 * @param selector
+	 * @return
+	 */
+	public BulkWrite remove(BSONObject selector) {
+		requests.add(new Delete(databaseName, collectionName, selector));
+		return this;
+	}
+	
+	/**
+	 * 追加された操作の件数を取得します。
+	 * @return
+	 */
+	public int size() {
+		return requests.size();
+	}
+	
+	/**
+	 * 使用する {@link Consistency} を設定します。
+	 * {@link Consistency#NONE} の場合、操作ごとのエラーは検出されません。
+	 * @param consistency
+	 * @return
+	 */
+	public BulkWrite consistency(Consistency consistency) {
+		this.consistency = consistency;
+		return this;
+	}
+	
+	/**
+	 * 追加した順に実行し、最初のエラーで中断するかを設定します。
+	 * @param ordered
+	 * @return
+	 */
+	public BulkWrite ordered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+	
+	/**
+	 * 順序なしの場合に、確認を待たずに送信する操作の最大数を設定します。
+	 * @param maxInFlight
+	 * @return
+	 */
+	public BulkWrite maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+	
+	/**
+	 * 実行の完了後に、対象のキャッシュを破棄する {@link CacheInvalidator} を設定します。
+	 * @param invalidator
+	 * @return
+	 */
+	BulkWrite invalidator(CacheInvalidator invalidator) {
+		this.invalidator = invalidator;
+		return this;
+	}
+	
+	/**
+	 * 追加された操作を実行し、すべての確認を受け取るまで待ちます。
+	 * 各操作のエラーは例外とせず、 {@link BulkWriteResult} に格納します。
+	 * @return
+	 */
+	public BulkWriteResult execute() {
+		if (executed) {
+			throw new IllegalStateException("BulkWrite is already executed.");
+		}
+		executed = true;
+		for (Request request : requests) {
+			request.setConsistency(consistency);
+		}
+		BulkWriteResult result = new BulkWriteResult(requests.size());
+		try {
+			if (ordered) {
+				executeOrdered(result);
+			} else {
+				executeUnordered(result);
+			}
+		} finally {
+			if (invalidator != null) {
+				// 中断した場合も、送信済みの可能性があるため破棄する
+				for (Request request : requests) {
+					invalidator.invalidate(request);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * 1つの接続で順に実行し、最初のエラーで中断します。
+	 * 後続の操作が先に実行されないよう、各操作の確認を待ってから次を送信します。
+	 */
+	private void executeOrdered(BulkWriteResult result) {
+		MongoConnection conn = client.getConnection();
+		long timeout = conn.getConfiguration().getOperationTimeout();
+		for (int i = 0; i < requests.size(); i++) {
+			OperationFuture<Response> future = send(conn, requests.get(i));
+			try {
+				future.get(timeout, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException ex) {
+			} catch (TimeoutException ex) {
+				result.setError(i, null, new MongoException(
+						"Operation timed out after " + timeout + " ms.", ex));
+				return;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new MongoException(ex);
+			}
+			if (!complete(result, i, future)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * 確認を待たずに、利用可能な接続へ分散して送信します。
+	 */
+	private void executeUnordered(final BulkWriteResult result) {
+		int permits = Math.max(1, maxInFlight);
+		final Semaphore inFlight = new Semaphore(permits);
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				acquire(inFlight, 1);
+				final int index = i;
+				OperationFuture<Response> future = send(client.getConnection(), requests.get(i));
+				future.addListener(new OperationListener<Response>() {
+					@Override
+					public void operationComplete(OperationFuture<Response> future) {
+						try {
+							complete(result, index, future);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		} finally {
+			// 送信済みの操作の確認を待つ
+			acquire(inFlight, permits);
+		}
+	}
+	
+	/**
+	 * 操作の種類に応じて、非同期に送信します。
+	 */
+	private OperationFuture<Response> send(MongoConnection conn, Request request) {
+		if (request instanceof Insert) {
+			return conn.insertAsync((Insert) request);
+		} else if (request instanceof Update) {
+			return conn.updateAsync((Update) request);
+		} else {
+			return conn.deleteAsync((Delete) request);
+		}
+	}
+	
+	/**
+	 * 完了した操作の確認結果を反映します。
+	 * @return 操作が成功した場合は true
+	 */
+	private boolean complete(BulkWriteResult result, int index, OperationFuture<Response> future) {
+		if (!future.isSuccess()) {
+			Throwable cause = future.getCause();
+			result.setError(index, null, cause instanceof MongoException
+					? (MongoException) cause : new MongoException(cause));
+			return false;
+		}
+		Response response = null;
+		try {
+			response = future.get();
+			MongoConnectionImpl.checkLastError(response);
+			result.setResponse(index, response);
+			return true;
+		} catch (MongoException ex) {
+			result.setError(index, response, ex);
+		} catch (Exception ex) {
+			result.setError(index, response, new MongoException(ex));
+		}
+		return false;
+	}
+	
+	/**
+	 * 操作タイムアウト時間まで、指定数の送信枠を確保します。
+	 */
+	private void acquire(Semaphore inFlight, int permits) {
+		long timeout = client.getConfiguration().getOperationTimeout();
+		try {
+			if (!inFlight.tryAcquire(permits, timeout, TimeUnit.MILLISECONDS)) {
+				throw new MongoException("Bulk write timed out after " + timeout + " ms.");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MongoException(ex);
+		}
+	}
+}
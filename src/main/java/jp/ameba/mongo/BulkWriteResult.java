@@ -0,0 +1,122 @@
+package jp.ameba.mongo;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONObject;
+
+/**
+ * {@link BulkWrite} の実行結果です。
+ * 操作ごとの確認結果、もしくはエラーを、追加した順のインデクスで保持します。
+ * 
+ * @author suguru
+ */
+public class BulkWriteResult {
+	
+	// 操作ごとの確認結果
+	private Response[] responses;
+	
+	// 操作ごとのエラー
+	private MongoException[] errors;
+	
+	// 完了した操作
+	private boolean[] completed;
+	
+	BulkWriteResult(int size) {
+		this.responses = new Response[size];
+		this.errors = new MongoException[size];
+		this.completed = new boolean[size];
+	}
+	
+	void setResponse(int index, Response response) {
+		responses[index] = response;
+		completed[index] = true;
+	}
+	
+	void setError(int index, Response response, MongoException error) {
+		responses[index] = response;
+		errors[index] = error;
+		completed[index] = true;
+	}
+	
+	/**
+	 * 操作の件数を取得します。
+	 * @return
+	 */
+	public int size() {
+		return responses.length;
+	}
+	
+	/**
+	 * すべての操作が成功したかを確認します。
+	 * @return
+	 */
+	public boolean isSuccess() {
+		for (int i = 0; i < completed.length; i++) {
+			if (!completed[i] || errors[i] != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 指定の操作が実行されたかを確認します。
+	 * 順序ありの実行でエラーにより中断した場合、後続の操作は実行されません。
+	 * @param index
+	 * @return
+	 */
+	public boolean isExecuted(int index) {
+		return completed[index];
+	}
+	
+	/**
+	 * 指定の操作のエラーを取得します。
+	 * @param index
+	 * @return 成功、もしくは未実行の場合は null
+	 */
+	public MongoException getError(int index) {
+		return errors[index];
+	}
+	
+	/**
+	 * 指定の操作の getLastError の結果を取得します。
+	 * 確認を行わない {@link jp.ameba.mongo.protocol.Consistency} の場合は null となります。
+	 * @param index
+	 * @return
+	 */
+	public Response getResponse(int index) {
+		return responses[index];
+	}
+	
+	/**
+	 * 指定の操作で影響を受けたドキュメント数を取得します。
+	 * @param index
+	 * @return 確認結果がない場合は -1
+	 */
+	public int getAffectedCount(int index) {
+		Response response = responses[index];
+		if (response == null) {
+			return -1;
+		}
+		BSONObject document = response.getDocument();
+		Object n = document == null ? null : document.get("n");
+		return n instanceof Number ? ((Number) n).intValue() : -1;
+	}
+	
+	/**
+	 * エラーとなった操作のインデクスとエラーの一覧を取得します。
+	 * @return
+	 */
+	public Map<Integer, MongoException> getErrors() {
+		Map<Integer, MongoException> map = new TreeMap<Integer, MongoException>();
+		for (int i = 0; i < errors.length; i++) {
+			if (errors[i] != null) {
+				map.put(i, errors[i]);
+			}
+		}
+		return map;
+	}
+}
@@ -0,0 +1,213 @@
+package jp.ameba.mongo;
+
+import java.util.Arrays;
+
+import jp.ameba.mongo.protocol.Delete;
+import jp.ameba.mongo.protocol.FindAndModify;
+import jp.ameba.mongo.protocol.Insert;
+import jp.ameba.mongo.protocol.Request;
+import jp.ameba.mongo.protocol.Update;
+
+import org.bson.BSONObject;
+
+/**
+ * コレクションへの書き込みに応じて、 {@link DocumentCache} および
+ * {@link OplogNearCache} のエントリを破棄します。
+ *
+ * 同じ名前空間の {@link MongoCollection} と {@link MongoAsyncCollection} 、
+ * およびそれらが作成する bulkWrite などの書き込みで共有します。
+ * 検索中に書き込みが完了した場合に古い結果をキャッシュしないよう、
+ * 破棄は書き込みの完了後に行います。
+ *
+ * @author suguru
+ */
+class CacheInvalidator {
+
+	// 対象の名前空間を表すフルネーム
+	private final String fullName;
+
+	// 検索結果のキャッシュ
+	private volatile DocumentCache documentCache;
+
+	// _id による検索結果のキャッシュ
+	private volatile OplogNearCache nearCache;
+
+	CacheInvalidator(String fullName) {
+		this.fullName = fullName;
+	}
+
+	DocumentCache getDocumentCache() {
+		return documentCache;
+	}
+
+	void setDocumentCache(DocumentCache documentCache) {
+		this.documentCache = documentCache;
+	}
+
+	OplogNearCache getNearCache() {
+		return nearCache;
+	}
+
+	void setNearCache(OplogNearCache nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	/**
+	 * 書き込みリクエストの対象のキャッシュを破棄します。
+	 * @param request
+	 */
+	void invalidate(Request request) {
+		if (request instanceof Insert) {
+			for (BSONObject document : ((Insert) request).getDocuments()) {
+				invalidateDocument(document);
+			}
+		} else if (request instanceof Update) {
+			invalidate(((Update) request).getSelector());
+		} else if (request instanceof Delete) {
+			invalidate(((Delete) request).getSelector());
+		}
+	}
+
+	/**
+	 * 挿入したドキュメントのキャッシュを破棄します。
+	 * @param document
+	 */
+	void invalidateDocument(BSONObject document) {
+		if (document == null || !document.containsField("_id")) {
+			return;
+		}
+		invalidateId(document.get("_id"));
+	}
+
+	/**
+	 * 指定の _id のドキュメントのキャッシュを破棄します。
+	 * @param id
+	 */
+	void invalidateId(Object id) {
+		DocumentCache cache = documentCache;
+		if (cache != null) {
+			cache.invalidate(fullName, id);
+		}
+		OplogNearCache near = nearCache;
+		if (near != null) {
+			near.getCache().invalidate(fullName, id);
+		}
+	}
+
+	/**
+	 * 書き込みの条件に一致するドキュメントのキャッシュを破棄します。
+	 * {@link OplogNearCache} は、 _id を特定できない更新を oplog により破棄します。
+	 * @param selector
+	 */
+	void invalidate(BSONObject selector) {
+		DocumentCache cache = documentCache;
+		if (cache != null) {
+			invalidate(cache, selector, true);
+		}
+		OplogNearCache near = nearCache;
+		if (near != null) {
+			invalidate(near.getCache(), selector, false);
+		}
+	}
+
+	/**
+	 * {@link DocumentCache} のエントリをすべて破棄します。
+	 */
+	void clear() {
+		DocumentCache cache = documentCache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * 実行の完了後に、対象のキャッシュを破棄する {@link FindAndModify} を作成します。
+	 * @param connection
+	 * @param databaseName
+	 * @param collectionName
+	 * @return
+	 */
+	FindAndModify findAndModify(MongoConnection connection, String databaseName, String collectionName) {
+		return new InvalidatingFindAndModify(connection, databaseName, collectionName);
+	}
+
+	/**
+	 * 書き込みの条件に一致するドキュメントのキャッシュを破棄します。
+	 * @param cache
+	 * @param selector
+	 * @param clear 条件が _id の一致もしくは $in を含まない場合に、キャッシュをすべて破棄するか
+	 */
+	private void invalidate(DocumentCache cache, BSONObject selector, boolean clear) {
+		if (selector == null || !selector.containsField("_id")) {
+			if (clear) {
+				cache.clear();
+			}
+			return;
+		}
+		Object id = selector.get("_id");
+		if (id instanceof BSONObject) {
+			BSONObject condition = (BSONObject) id;
+			Object in = condition.get("$in");
+			if (in instanceof Object[]) {
+				in = Arrays.asList((Object[]) in);
+			}
+			if (in instanceof Iterable) {
+				for (Object value : (Iterable<?>) in) {
+					cache.invalidate(fullName, value);
+				}
+				return;
+			}
+			boolean operator = false;
+			for (String key : condition.keySet()) {
+				operator |= key.startsWith("$");
+			}
+			if (operator) {
+				if (clear) {
+					cache.clear();
+				}
+				return;
+			}
+		}
+		cache.invalidate(fullName, id);
+	}
+
+	/**
+	 * 実行の完了後に、検索条件に一致するドキュメントのキャッシュを破棄します。
+	 */
+	private class InvalidatingFindAndModify extends FindAndModify {
+
+		// 検索クエリ
+		private BSONObject query;
+
+		InvalidatingFindAndModify(MongoConnection connection, String databaseName, String collectionName) {
+			super(connection, databaseName, collectionName);
+		}
+
+		@Override
+		public FindAndModify query(BSONObject query) {
+			this.query = query;
+			return super.query(query);
+		}
+
+		@Override
+		public BSONObject execute() {
+			try {
+				return super.execute();
+			} finally {
+				invalidate(query);
+			}
+		}
+
+		@Override
+		public OperationFuture<BSONObject> executeAsync() {
+			OperationFuture<BSONObject> future = super.executeAsync();
+			future.addListener(new OperationListener<BSONObject>() {
+				@Override
+				public void operationComplete(OperationFuture<BSONObject> future) {
+					invalidate(query);
+				}
+			});
+			return future;
+		}
+	}
+}
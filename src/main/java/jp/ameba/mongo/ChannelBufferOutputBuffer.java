@@ -0,0 +1,187 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+
+import jp.ameba.mongo.protocol.MongoEncoder;
+
+import org.bson.BSONEncoder;
+import org.bson.io.OutputBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+/**
+ * リトルエンディアンの {@link ChannelBuffer} に直接書き込む
+ * {@link OutputBuffer} 実装です。
+ * エンコード結果をコピーせずに、そのままチャネルへ送信できます。
+ *
+ * {@link OutputBufferPool} から取得したインスタンスは、
+ * 送信完了時に {@link ChannelFutureListener} としてプールへ返却されます。
+ *
+ * @author suguru
+ */
+public class ChannelBufferOutputBuffer extends OutputBuffer implements ChannelFutureListener {
+
+	// 書き込み先のバッファ
+	private ChannelBuffer buffer;
+
+	// 書き込み済みの最大位置
+	private int size;
+
+	// このバッファに出力するエンコーダー
+	private BSONEncoder encoder;
+
+	// 返却先のプール
+	private OutputBufferPool pool;
+
+	/**
+	 * {@link ChannelBufferOutputBuffer} を構成します。
+	 * @param buffer
+	 */
+	public ChannelBufferOutputBuffer(ChannelBuffer buffer) {
+		this(buffer, null);
+	}
+
+	/**
+	 * 返却先のプールを指定して {@link ChannelBufferOutputBuffer} を構成します。
+	 * @param buffer
+	 * @param pool
+	 */
+	ChannelBufferOutputBuffer(ChannelBuffer buffer, OutputBufferPool pool) {
+		if (buffer.order() != ByteOrder.LITTLE_ENDIAN) {
+			throw new IllegalArgumentException("ChannelBuffer must be little endian.");
+		}
+		this.buffer = buffer;
+		this.pool = pool;
+		this.encoder = new MongoEncoder();
+		this.encoder.set(this);
+	}
+
+	/**
+	 * このバッファに出力する {@link BSONEncoder} を取得します。
+	 * @return
+	 */
+	public BSONEncoder getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * 書き込み先の {@link ChannelBuffer} を取得します。
+	 * @return
+	 */
+	public ChannelBuffer getChannelBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * 内容を破棄し、再利用可能な状態に戻します。
+	 */
+	public void reset() {
+		buffer.clear();
+		size = 0;
+	}
+
+	/**
+	 * 確保済みの容量を取得します。
+	 * @return
+	 */
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	@Override
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		buffer.writeBytes(b, off, len);
+		updateSize();
+	}
+
+	@Override
+	public void write(int b) {
+		buffer.writeByte(b);
+		updateSize();
+	}
+
+	@Override
+	public void writeInt(int x) {
+		buffer.writeInt(x);
+		updateSize();
+	}
+
+	@Override
+	public void writeInt(int pos, int x) {
+		buffer.setInt(pos, x);
+	}
+
+	@Override
+	public void writeLong(long x) {
+		buffer.writeLong(x);
+		updateSize();
+	}
+
+	@Override
+	public void writeDouble(double x) {
+		writeLong(Double.doubleToRawLongBits(x));
+	}
+
+	@Override
+	public int getPosition() {
+		return buffer.writerIndex();
+	}
+
+	@Override
+	public void setPosition(int position) {
+		int writerIndex = buffer.writerIndex();
+		if (position > writerIndex) {
+			buffer.ensureWritableBytes(position - writerIndex);
+		}
+		buffer.writerIndex(position);
+	}
+
+	@Override
+	public void seekEnd() {
+		setPosition(size);
+	}
+
+	@Override
+	public void seekStart() {
+		setPosition(0);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int pipe(OutputStream out) throws IOException {
+		buffer.getBytes(0, out, size);
+		return size;
+	}
+
+	/**
+	 * 送信完了時にプールへ返却します。
+	 */
+	@Override
+	public void operationComplete(ChannelFuture future) throws Exception {
+		if (pool != null) {
+			pool.release(this);
+		}
+	}
+
+	/**
+	 * 書き込み済みの最大位置を更新します。
+	 */
+	private void updateSize() {
+		int position = buffer.writerIndex();
+		if (position > size) {
+			size = position;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package jp.ameba.mongo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.Response;
+import jp.ameba.mongo.protocol.Update;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * _id ごとの $inc による加算をまとめて送信するためのクラスです。
+ * 
+ * 加算値は _id とフィールドごとにメモリ上で合算し、一定時間ごと、
+ * もしくは合算中の _id が上限数に達した時点で、 _id ごとに1回の
+ * upsert として確認を待たずに送信します。
+ * {@link #close()} では、合算中の値をすべて送信し、確認まで待ちます。
+ * 
+ * 加算はロックを使用せずに行います。送信時には合算用のテーブルを
+ * 新しいものに切り替え、古いテーブルへの加算が終わるのを待ってから送信します。
+ * 加算はテーブルへの登録後にクローズ済みかを確認するため、
+ * クローズ前に開始した加算は、クローズ時の最後の送信に含まれます。
+ * 
+ * @author suguru
+ */
+public class CounterAccumulator {
+	
+	private static final Logger log = Logger.getLogger(CounterAccumulator.class.getName());
+	
+	// 使用するクライアント
+	private MongoClient client;
+	
+	// 対象のデータベース名
+	private String databaseName;
+	
+	// 対象のコレクション名
+	private String collectionName;
+	
+	// 送信に使用する一貫性レベル
+	private Consistency consistency;
+	
+	// 送信間隔（ミリ秒）
+	private long flushInterval;
+	
+	// 送信する _id の数
+	private int maxKeys;
+	
+	// 合算中のテーブル
+	private AtomicReference<Table> table = new AtomicReference<Table>(new Table());
+	
+	// 確認待ちの更新数
+	private AtomicInteger pending = new AtomicInteger();
+	
+	// 失敗した更新数
+	private AtomicLong failures = new AtomicLong();
+	
+	// 定期送信のタイムアウト
+	private volatile Timeout timeout;
+	
+	// 更新した _id のキャッシュを破棄する
+	private CacheInvalidator invalidator;
+	
+	// クローズ済みか
+	private volatile boolean closed = false;
+	
+	CounterAccumulator(
+			MongoClient client,
+			String databaseName,
+			String collectionName,
+			Consistency consistency,
+			long flushInterval,
+			int maxKeys,
+			CacheInvalidator invalidator) {
+		this.client = client;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.consistency = consistency;
+		this.flushInterval = flushInterval;
+		this.maxKeys = Math.max(1, maxKeys);
+		this.invalidator = invalidator;
+		schedule();
+	}
+	
+	/**
+	 * 送信に使用する {@link Consistency} を設定します。
+	 * @param consistency
+	 * @return
+	 */
+	public CounterAccumulator consistency(Consistency consistency) {
+		this.consistency = consistency;
+		return this;
+	}
+	
+	/**
+	 * 指定の _id のフィールドに 1 を加算します。
+	 * @param id
+	 * @param field
+	 */
+	public void increment(Object id, String field) {
+		increment(id, field, 1L);
+	}
+	
+	/**
+	 * 指定の _id のフィールドに値を加算します。
+	 * @param id
+	 * @param field
+	 * @param delta
+	 */
+	public void increment(Object id, String field, long delta) {
+		Table current;
+		for (;;) {
+			current = table.get();
+			// 送信のために切り替え済みのテーブルには加算しない
+			current.writers.incrementAndGet();
+			if (!current.closed) {
+				break;
+			}
+			current.writers.decrementAndGet();
+		}
+		// 登録後に確認し、クローズが最後のテーブルの加算を待てるようにする
+		if (closed) {
+			current.writers.decrementAndGet();
+			throw new MongoException("CounterAccumulator is closed.");
+		}
+		int keys;
+		try {
+			current.add(id, field, delta);
+			keys = current.counters.size();
+		} finally {
+			current.writers.decrementAndGet();
+		}
+		if (keys >= maxKeys) {
+			flush();
+		}
+	}
+	
+	/**
+	 * 合算中の値を、確認を待たずに送信します。
+	 */
+	public void flush() {
+		// テーブルを切り替えてから送信を終えるまで、クローズを待たせる
+		pending.incrementAndGet();
+		try {
+			Table flushing = table.get();
+			if (flushing.counters.isEmpty() || !table.compareAndSet(flushing, new Table())) {
+				return;
+			}
+			send(flushing);
+		} finally {
+			release();
+		}
+	}
+	
+	/**
+	 * 切り替えたテーブルへの加算が終わるのを待ち、 _id ごとに送信します。
+	 */
+	private void send(Table flushing) {
+		flushing.closed = true;
+		// 切り替え前に開始した加算が終わるのを待つ
+		while (flushing.writers.get() > 0) {
+			Thread.yield();
+		}
+		for (Map.Entry<Object, ConcurrentMap<String, AtomicLong>> entry : flushing.counters.entrySet()) {
+			BSONObject inc = new BasicBSONObject();
+			for (Map.Entry<String, AtomicLong> field : entry.getValue().entrySet()) {
+				long delta = field.getValue().get();
+				if (delta == 0) {
+					continue;
+				}
+				// int の範囲であれば、フィールドの型を変えないよう int で送信
+				if (delta >= Integer.MIN_VALUE && delta <= Integer.MAX_VALUE) {
+					inc.put(field.getKey(), (int) delta);
+				} else {
+					inc.put(field.getKey(), delta);
+				}
+			}
+			if (!inc.keySet().isEmpty()) {
+				send(entry.getKey(), inc);
+			}
+		}
+	}
+	
+	/**
+	 * 合算中の値をすべて送信し、確認まで待ってから定期送信を停止します。
+	 * @throws MongoException 操作タイムアウト時間内に確認が完了しない場合
+	 */
+	public void close() {
+		closed = true;
+		Timeout timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		// クローズ前に加算を開始したテーブルは、空であっても切り替えて加算の終了を待つ
+		pending.incrementAndGet();
+		try {
+			send(table.getAndSet(new Table()));
+		} finally {
+			release();
+		}
+		long timeoutMillis = client.getConfiguration().getOperationTimeout();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (pending) {
+			while (pending.get() > 0) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new MongoException("Flushing counters timed out after " + timeoutMillis + " ms.");
+				}
+				try {
+					pending.wait(wait);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new MongoException(ex);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 送信に失敗した更新数を取得します。
+	 * @return
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+	
+	/**
+	 * 1つの _id の加算値を upsert として送信します。
+	 */
+	private void send(Object id, BSONObject inc) {
+		pending.incrementAndGet();
+		OperationFuture<Response> future;
+		try {
+			future = client.getConnection().updateAsync(new Update(
+					databaseName,
+					collectionName,
+					new BasicBSONObject("_id", id),
+					new BasicBSONObject("$inc", inc)
+			).consistency(consistency).upsert());
+		} catch (RuntimeException ex) {
+			complete(id, ex);
+			return;
+		}
+		final Object key = id;
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				Throwable cause = future.getCause();
+				if (cause == null) {
+					try {
+						MongoConnectionImpl.checkLastError(future.get());
+					} catch (Exception ex) {
+						cause = ex;
+					}
+				}
+				complete(key, cause);
+			}
+		});
+	}
+	
+	/**
+	 * 更新の完了を記録し、クローズ待ちのスレッドへ通知します。
+	 */
+	private void complete(Object id, Throwable cause) {
+		if (invalidator != null) {
+			invalidator.invalidateId(id);
+		}
+		if (cause != null) {
+			failures.incrementAndGet();
+			log.log(Level.WARNING, "Failed to flush counters of _id " + id, cause);
+		}
+		release();
+	}
+	
+	/**
+	 * 確認待ちの数を減らし、クローズ待ちのスレッドへ通知します。
+	 */
+	private void release() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (pending) {
+				pending.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * 次の定期送信を設定します。
+	 */
+	private void schedule() {
+		Timer timer = client.getTimer();
+		if (closed || timer == null || flushInterval <= 0) {
+			return;
+		}
+		timeout = timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				if (timeout.isCancelled() || closed) {
+					return;
+				}
+				// 送信は接続の選択を待つ場合があるため、タイマースレッドでは行わない
+				try {
+					client.getTaskExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								flush();
+							} catch (Exception ex) {
+								log.log(Level.WARNING, "Failed to flush counters.", ex);
+							} finally {
+								schedule();
+							}
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					// クライアントのクローズ後は、定期送信を停止する
+				}
+			}
+		}, flushInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * 合算中の値を保持するテーブル
+	 */
+	private static class Table {
+		
+		// _id ごとのフィールドの加算値
+		private final ConcurrentMap<Object, ConcurrentMap<String, AtomicLong>> counters =
+				new ConcurrentHashMap<Object, ConcurrentMap<String, AtomicLong>>();
+		
+		// 加算中のスレッド数
+		private final AtomicInteger writers = new AtomicInteger();
+		
+		// 送信のために切り替え済みか
+		private volatile boolean closed = false;
+		
+		void add(Object id, String field, long delta) {
+			ConcurrentMap<String, AtomicLong> fields = counters.get(id);
+			if (fields == null) {
+				fields = new ConcurrentHashMap<String, AtomicLong>(4, 0.75f, 2);
+				ConcurrentMap<String, AtomicLong> old = counters.putIfAbsent(id, fields);
+				if (old != null) {
+					fields = old;
+				}
+			}
+			AtomicLong value = fields.get(field);
+			if (value == null) {
+				value = new AtomicLong();
+				AtomicLong old = fields.putIfAbsent(field, value);
+				if (old != null) {
+					value = old;
+				}
+			}
+			value.addAndGet(delta);
+		}
+	}
+}
@@ -0,0 +1,683 @@
+package jp.ameba.mongo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.ameba.mongo.protocol.LazyBSONObject;
+
+import org.bson.BSONDecoder;
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * {@link MongoCollection#find(BSONObject)} の結果を保持するキャッシュです。
+ *
+ * ドキュメントはエンコード済みのバイト列として、ヒープ外のダイレクトバッファに保持します。
+ * ダイレクトバッファは固定サイズのページ単位で確保し、ページはドキュメントのサイズに応じた
+ * 2のべき乗サイズのスロットに分割して使用します。
+ * 容量に達した場合は、スロットのサイズごとに最も長く参照されていないエントリを比較し、
+ * 最も古いエントリが同じサイズであればそのエントリを破棄します。
+ * 他のサイズであれば、そのエントリを含むページのエントリをすべて破棄し、
+ * ページを必要なサイズのスロットに分割し直して使用します。
+ *
+ * キーは名前空間、検索条件、取得フィールドをエンコードしたバイト列です。
+ * {@link MongoCollection} を通した更新では、対象の _id のエントリを破棄します。
+ * _id 以外の条件による更新・削除では、すべてのエントリを破棄します。
+ * 複数のコレクションで共有することができます。
+ *
+ * @author suguru
+ */
+public class DocumentCache {
+
+	// 最小のスロットサイズ
+	private static final int MIN_SLOT_SIZE = 64;
+
+	// 破棄した _id の記録を保持する最大数
+	private static final int MAX_INVALIDATIONS = 4096;
+
+	// ページのサイズ
+	private final int pageSize;
+
+	// 確保するページの最大数
+	private final int maxPages;
+
+	// 確保済みのページ数
+	private int pages;
+
+	// スロットサイズごとの領域
+	private final SlotClass[] slotClasses;
+
+	// キーとエントリ
+	private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+
+	// _id とエントリのキー
+	private final Map<IdKey, Set<Key>> idIndex = new HashMap<IdKey, Set<Key>>();
+
+	// エントリの有効期間（ミリ秒）
+	private long ttl = 60000L;
+
+	// 破棄の世代
+	private long generation;
+
+	// _id ごとに最後に破棄した世代
+	private final Map<IdKey, Long> invalidations = new HashMap<IdKey, Long>();
+
+	// すべてのエントリを最後に破棄した世代
+	private long clearedGeneration;
+
+	// ヒット数
+	private long hitCount;
+
+	// ミス数
+	private long missCount;
+
+	// 容量のために破棄した数
+	private long evictionCount;
+
+	// 有効期限切れで破棄した数
+	private long expirationCount;
+
+	// 参照の順序
+	private long tick;
+
+	/**
+	 * 最大容量を指定して {@link DocumentCache} を構成します。
+	 * ページのサイズは 1MB となります。
+	 * @param capacity 最大容量（バイト）
+	 */
+	public DocumentCache(long capacity) {
+		this(capacity, 1024 * 1024);
+	}
+
+	/**
+	 * 最大容量とページのサイズを指定して {@link DocumentCache} を構成します。
+	 * ページのサイズを超えるドキュメントはキャッシュしません。
+	 * @param capacity 最大容量（バイト）
+	 * @param pageSize ページのサイズ（バイト）
+	 */
+	public DocumentCache(long capacity, int pageSize) {
+		if (pageSize < MIN_SLOT_SIZE) {
+			throw new IllegalArgumentException("pageSize must be at least " + MIN_SLOT_SIZE);
+		}
+		this.pageSize = pageSize;
+		this.maxPages = (int) Math.max(1, capacity / pageSize);
+		List<SlotClass> classes = new ArrayList<SlotClass>();
+		for (int size = MIN_SLOT_SIZE; size <= pageSize; size <<= 1) {
+			classes.add(new SlotClass(size, pageSize / size));
+		}
+		this.slotClasses = classes.toArray(new SlotClass[classes.size()]);
+	}
+
+	/**
+	 * エントリの有効期間を設定します。
+	 * 設定以降に追加したエントリに適用されます。
+	 * @param ttl 有効期間（ミリ秒）。 0 以下の場合は無期限
+	 * @return
+	 */
+	public synchronized DocumentCache ttl(long ttl) {
+		this.ttl = ttl;
+		return this;
+	}
+
+	/**
+	 * 検索条件と取得フィールドからキーを作成します。
+	 * @param namespace
+	 * @param selector
+	 * @param fields
+	 * @return
+	 */
+	Key key(String namespace, BSONObject selector, BSONObject fields) {
+		BSONEncoder encoder = new BSONEncoder();
+		byte[] query = encoder.encode(selector);
+		byte[] projection = fields == null ? new byte[0] : encoder.encode(fields);
+		return new Key(namespace, query, projection);
+	}
+
+	/**
+	 * 検索の開始時点の世代を取得します。
+	 * {@link #put(Key, BSONObject, long)} に渡し、検索中の更新を検出するために使用します。
+	 * @return
+	 */
+	synchronized long stamp() {
+		return generation;
+	}
+
+	/**
+	 * キャッシュしたドキュメントを取得します。
+	 * @param key
+	 * @param lazy {@link LazyBSONObject} として取得するか
+	 * @return キャッシュにない場合は null
+	 */
+	BSONObject get(Key key, boolean lazy) {
+		byte[] bytes;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				missCount++;
+				return null;
+			}
+			if (entry.expireAt > 0 && entry.expireAt < System.currentTimeMillis()) {
+				remove(entry);
+				expirationCount++;
+				missCount++;
+				return null;
+			}
+			// LRU の順序を更新
+			slotClasses[entry.page.slotClass].lru.get(key);
+			entry.tick = ++tick;
+			bytes = new byte[entry.length];
+			entry.page.read(entry.slot, bytes);
+			hitCount++;
+		}
+		if (lazy) {
+			return new LazyBSONObject(ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, bytes));
+		}
+		return new BSONDecoder().readObject(bytes);
+	}
+
+	/**
+	 * ドキュメントをキャッシュに追加します。
+	 * stamp 以降にドキュメントの _id が破棄されている場合は追加しません。
+	 * フィールド指定により _id を含まないドキュメントは、更新時に破棄できないため追加しません。
+	 * @param key
+	 * @param document
+	 * @param stamp 検索を開始した時点の {@link #stamp()}
+	 */
+	void put(Key key, BSONObject document, long stamp) {
+		Object id = document.get("_id");
+		if (id == null) {
+			return;
+		}
+		byte[] bytes = encode(document);
+		IdKey idKey = new IdKey(key.namespace, id);
+		synchronized (this) {
+			if (stamp < clearedGeneration) {
+				return;
+			}
+			Long invalidated = invalidations.get(idKey);
+			if (invalidated != null && invalidated > stamp) {
+				return;
+			}
+			Entry old = entries.get(key);
+			if (old != null) {
+				remove(old);
+			}
+			int classIndex = slotClassOf(bytes.length);
+			if (classIndex < 0) {
+				return;
+			}
+			SlotClass slotClass = slotClasses[classIndex];
+			Page page = allocate(classIndex);
+			int slot = page.allocate();
+			page.write(slot, bytes);
+			Entry entry = new Entry(key, idKey, page, slot, bytes.length,
+					ttl > 0 ? System.currentTimeMillis() + ttl : 0L);
+			entry.tick = ++tick;
+			page.entries[slot] = entry;
+			entries.put(key, entry);
+			slotClass.lru.put(key, entry);
+			Set<Key> keys = idIndex.get(idKey);
+			if (keys == null) {
+				keys = new HashSet<Key>(2);
+				idIndex.put(idKey, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * 指定の _id のドキュメントのエントリを破棄します。
+	 * @param namespace
+	 * @param id
+	 */
+	synchronized void invalidate(String namespace, Object id) {
+		IdKey idKey = new IdKey(namespace, id);
+		generation++;
+		if (invalidations.size() >= MAX_INVALIDATIONS) {
+			// 記録が多くなった場合は、それ以前に開始した検索の結果をすべて追加しない
+			invalidations.clear();
+			clearedGeneration = generation;
+		}
+		invalidations.put(idKey, generation);
+		Set<Key> keys = idIndex.get(idKey);
+		if (keys != null) {
+			for (Key key : new ArrayList<Key>(keys)) {
+				remove(entries.get(key));
+			}
+		}
+	}
+
+	/**
+	 * すべてのエントリを破棄します。
+	 * 確保済みのページは再利用のために保持します。
+	 */
+	public synchronized void clear() {
+		generation++;
+		clearedGeneration = generation;
+		invalidations.clear();
+		for (Entry entry : new ArrayList<Entry>(entries.values())) {
+			remove(entry);
+		}
+	}
+
+	/**
+	 * キャッシュしているドキュメント数を取得します。
+	 * @return
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 確保済みのダイレクトバッファのバイト数を取得します。
+	 * @return
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) pages * pageSize;
+	}
+
+	/**
+	 * ヒット数を取得します。
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * ミス数を取得します。
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * 容量のために破棄したエントリ数を取得します。
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * 有効期限切れで破棄したエントリ数を取得します。
+	 * @return
+	 */
+	public synchronized long getExpirationCount() {
+		return expirationCount;
+	}
+
+	/**
+	 * ドキュメントのバイト列を取得します。
+	 * 変更されていない {@link LazyBSONObject} は再エンコードしません。
+	 */
+	private static byte[] encode(BSONObject document) {
+		if (document instanceof LazyBSONObject) {
+			ChannelBuffer buffer = ((LazyBSONObject) document).getBuffer();
+			if (buffer != null) {
+				byte[] bytes = new byte[((LazyBSONObject) document).getDocumentSize()];
+				buffer.getBytes(buffer.readerIndex(), bytes);
+				return bytes;
+			}
+		}
+		return new BSONEncoder().encode(document);
+	}
+
+	/**
+	 * 指定のサイズを格納できる最小のスロットサイズの番号を取得します。
+	 * @return ページに収まらない場合は -1
+	 */
+	private int slotClassOf(int length) {
+		for (int i = 0; i < slotClasses.length; i++) {
+			if (slotClasses[i].slotSize >= length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 空きスロットのあるページを取得します。
+	 * 空きがなく、ページも追加できない場合は、最も長く参照されていないエントリを破棄するか、
+	 * 他のサイズのページを取り上げて分割し直します。
+	 * @param classIndex
+	 * @return
+	 */
+	private Page allocate(int classIndex) {
+		SlotClass slotClass = slotClasses[classIndex];
+		Page page = slotClass.available();
+		if (page != null) {
+			return page;
+		}
+		if (pages < maxPages) {
+			pages++;
+			page = new Page(ByteBuffer.allocateDirect(pageSize));
+			slotClass.assign(page, classIndex);
+			return page;
+		}
+		SlotClass victim = oldest();
+		if (victim == slotClass) {
+			remove(victim.lru.values().iterator().next());
+			evictionCount++;
+			return slotClass.available();
+		}
+		// 他のサイズのページを取り上げる
+		page = victim.lru.isEmpty() ? victim.pages.get(0) : victim.lru.values().iterator().next().page;
+		for (Entry entry : page.entries) {
+			if (entry != null) {
+				remove(entry);
+				evictionCount++;
+			}
+		}
+		victim.release(page);
+		slotClass.assign(page, classIndex);
+		return page;
+	}
+
+	/**
+	 * ページを使用しているサイズのうち、最も長く参照されていないエントリのサイズを取得します。
+	 * エントリのないページを持つサイズを優先します。
+	 */
+	private SlotClass oldest() {
+		SlotClass oldest = null;
+		long oldestTick = Long.MAX_VALUE;
+		for (SlotClass slotClass : slotClasses) {
+			if (slotClass.pages.isEmpty()) {
+				continue;
+			}
+			if (slotClass.lru.isEmpty()) {
+				return slotClass;
+			}
+			long eldest = slotClass.lru.values().iterator().next().tick;
+			if (eldest < oldestTick) {
+				oldestTick = eldest;
+				oldest = slotClass;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * エントリを破棄し、スロットを解放します。
+	 */
+	private void remove(Entry entry) {
+		if (entry == null) {
+			return;
+		}
+		entries.remove(entry.key);
+		Page page = entry.page;
+		SlotClass slotClass = slotClasses[page.slotClass];
+		slotClass.lru.remove(entry.key);
+		page.entries[entry.slot] = null;
+		page.free(entry.slot);
+		slotClass.freed(page);
+		Set<Key> keys = idIndex.get(entry.idKey);
+		if (keys != null) {
+			keys.remove(entry.key);
+			if (keys.isEmpty()) {
+				idIndex.remove(entry.idKey);
+			}
+		}
+	}
+
+	/**
+	 * 同じサイズのスロットに分割したページの一覧
+	 */
+	private static class SlotClass {
+
+		// スロットのサイズ
+		private final int slotSize;
+
+		// 1ページあたりのスロット数
+		private final int slotsPerPage;
+
+		// ページ一覧
+		private final List<Page> pages = new ArrayList<Page>();
+
+		// 空きスロットのある可能性があるページ
+		private final ArrayDeque<Page> availablePages = new ArrayDeque<Page>();
+
+		// 参照順のエントリ
+		private final LinkedHashMap<Key, Entry> lru = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+		SlotClass(int slotSize, int slotsPerPage) {
+			this.slotSize = slotSize;
+			this.slotsPerPage = slotsPerPage;
+		}
+
+		/**
+		 * 空きスロットのあるページを取得します。
+		 * @return ない場合は null
+		 */
+		Page available() {
+			Page page;
+			while ((page = availablePages.peek()) != null) {
+				if (page.hasFreeSlot()) {
+					return page;
+				}
+				availablePages.poll();
+				page.available = false;
+			}
+			return null;
+		}
+
+		/**
+		 * スロットを解放したページを、空きのあるページとします。
+		 */
+		void freed(Page page) {
+			if (!page.available) {
+				page.available = true;
+				availablePages.add(page);
+			}
+		}
+
+		/**
+		 * ページをこのサイズのスロットに分割して追加します。
+		 */
+		void assign(Page page, int classIndex) {
+			page.reset(classIndex, slotSize, slotsPerPage);
+			pages.add(page);
+			page.available = true;
+			availablePages.add(page);
+		}
+
+		/**
+		 * エントリのないページを取り除きます。
+		 */
+		void release(Page page) {
+			pages.remove(page);
+			availablePages.remove(page);
+			page.available = false;
+		}
+	}
+
+	/**
+	 * スロットに分割したダイレクトバッファ
+	 */
+	private static class Page {
+
+		private final ByteBuffer buffer;
+
+		// 分割しているスロットのサイズの番号
+		private int slotClass;
+
+		// スロットのサイズ
+		private int slotSize;
+
+		// スロットごとのエントリ
+		private Entry[] entries;
+
+		// 解放されたスロット
+		private int[] freeSlots;
+
+		// 解放されたスロット数
+		private int freeCount;
+
+		// 未使用のスロットの開始位置
+		private int nextSlot;
+
+		// 空きのあるページの一覧に含まれているか
+		private boolean available;
+
+		Page(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		void reset(int slotClass, int slotSize, int slotsPerPage) {
+			this.slotClass = slotClass;
+			this.slotSize = slotSize;
+			this.entries = new Entry[slotsPerPage];
+			this.freeSlots = new int[Math.min(16, slotsPerPage)];
+			this.freeCount = 0;
+			this.nextSlot = 0;
+		}
+
+		boolean hasFreeSlot() {
+			return freeCount > 0 || nextSlot < entries.length;
+		}
+
+		int allocate() {
+			if (freeCount > 0) {
+				return freeSlots[--freeCount];
+			}
+			return nextSlot++;
+		}
+
+		void free(int slot) {
+			if (freeCount == freeSlots.length) {
+				int[] newSlots = new int[freeSlots.length * 2];
+				System.arraycopy(freeSlots, 0, newSlots, 0, freeCount);
+				freeSlots = newSlots;
+			}
+			freeSlots[freeCount++] = slot;
+		}
+
+		void write(int slot, byte[] bytes) {
+			ByteBuffer page = buffer.duplicate();
+			page.position(slot * slotSize);
+			page.put(bytes);
+		}
+
+		void read(int slot, byte[] bytes) {
+			ByteBuffer page = buffer.duplicate();
+			page.position(slot * slotSize);
+			page.get(bytes);
+		}
+	}
+
+	/**
+	 * キャッシュのエントリ
+	 */
+	private static class Entry {
+
+		private final Key key;
+
+		private final IdKey idKey;
+
+		private final Page page;
+
+		private final int slot;
+
+		private final int length;
+
+		private final long expireAt;
+
+		// 最後に参照した順序
+		private long tick;
+
+		Entry(Key key, IdKey idKey, Page page, int slot, int length, long expireAt) {
+			this.key = key;
+			this.idKey = idKey;
+			this.page = page;
+			this.slot = slot;
+			this.length = length;
+			this.expireAt = expireAt;
+		}
+	}
+
+	/**
+	 * 名前空間、検索条件、取得フィールドのバイト列によるキー
+	 */
+	static final class Key {
+
+		private final String namespace;
+
+		private final byte[] query;
+
+		private final byte[] fields;
+
+		private final int hashCode;
+
+		Key(String namespace, byte[] query, byte[] fields) {
+			this.namespace = namespace;
+			this.query = query;
+			this.fields = fields;
+			this.hashCode = (namespace.hashCode() * 31 + Arrays.hashCode(query)) * 31
+					+ Arrays.hashCode(fields);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hashCode == other.hashCode
+					&& namespace.equals(other.namespace)
+					&& Arrays.equals(query, other.query)
+					&& Arrays.equals(fields, other.fields);
+		}
+	}
+
+	/**
+	 * 名前空間と _id によるキー
+	 * 型の異なる整数の _id は同じキーとして扱います。
+	 */
+	private static final class IdKey {
+
+		private final String namespace;
+
+		private final Object id;
+
+		IdKey(String namespace, Object id) {
+			this.namespace = namespace;
+			if (id instanceof Integer || id instanceof Long || id instanceof Short || id instanceof Byte) {
+				this.id = ((Number) id).longValue();
+			} else {
+				this.id = id;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return namespace.hashCode() * 31 + (id == null ? 0 : id.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof IdKey)) {
+				return false;
+			}
+			IdKey other = (IdKey) o;
+			return namespace.equals(other.namespace)
+					&& (id == null ? other.id == null : id.equals(other.id));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.ameba.mongo.protocol.RequestFuture;
+
+/**
+ * 1つのチャネルで {@link jp.ameba.mongo.protocol.Consistency#GROUP} の
+ * 更新をまとめるウィンドウを管理します。
+ * 
+ * 確認待ちがない場合は、追加された更新の直後にウィンドウを閉じます。
+ * 確認待ちの間に追加された更新は次のウィンドウにまとめ、
+ * 確認の返信を受けた時点、もしくは上限数に達した時点で閉じます。
+ * 
+ * 送信順とウィンドウの対応を保つため、呼び出し側はこのインスタンスで
+ * 同期した上で、ウィンドウへの追加と送信キューへの追加を行います。
+ * 送信キューからの書き込みは、同期の外で行います。
+ * 
+ * エラー状態は接続ごとに1つのため、getpreverror の nPrev がウィンドウを開いてからの
+ * 送信数を超えるエラーは、ウィンドウ外の更新のものとして扱います。
+ * 送信数は同期せずに数えるため、送信の開始時と送信順の確定時の2つの値を保持し、
+ * ウィンドウ内の送信数を少なく見積もらないようにします。
+ * 
+ * @author suguru
+ */
+final class GroupCommit {
+	
+	// ウィンドウの最大リクエスト数
+	private final int maxSize;
+	
+	// 送信済みで確認を送っていない更新
+	private List<RequestFuture> window = new ArrayList<RequestFuture>();
+	
+	// 最後に閉じたウィンドウの番号
+	private long windowId;
+	
+	// 返信待ちの確認数
+	private int committing;
+	
+	// チャネルで送信を開始したリクエスト数
+	private final AtomicLong sending = new AtomicLong();
+	
+	// チャネルで送信順が確定したリクエスト数
+	private final AtomicLong queued = new AtomicLong();
+	
+	// ウィンドウを開いた時点の送信順が確定したリクエスト数
+	private long opened;
+	
+	// GROUP の更新を送信したことがあるか
+	private volatile boolean used;
+	
+	GroupCommit(int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+	}
+	
+	/**
+	 * 送信する更新をウィンドウに追加します。
+	 * @param future
+	 */
+	void add(RequestFuture future) {
+		if (window.isEmpty()) {
+			opened = queued.get();
+		}
+		window.add(future);
+		used = true;
+	}
+	
+	/**
+	 * GROUP の更新を送信したことがあるかを取得します。
+	 * 送信したことがない場合、他の送信はこのインスタンスで同期する必要はありません。
+	 * @return
+	 */
+	boolean isUsed() {
+		return used;
+	}
+	
+	/**
+	 * チャネルでのリクエストの送信の開始を記録します。
+	 */
+	void sending() {
+		sending.incrementAndGet();
+	}
+	
+	/**
+	 * チャネルでのリクエストの送信順の確定を記録します。
+	 */
+	void queued() {
+		queued.incrementAndGet();
+	}
+	
+	/**
+	 * 確認を送っていない更新があるかを取得します。
+	 * @return
+	 */
+	boolean hasWindow() {
+		return !window.isEmpty();
+	}
+	
+	/**
+	 * ウィンドウを開いてから送信を開始したリクエスト数を取得します。
+	 * @return
+	 */
+	long getSpan() {
+		return sending.get() - opened;
+	}
+	
+	/**
+	 * ウィンドウを閉じて確認を送るべきかを取得します。
+	 * @return
+	 */
+	boolean shouldClose() {
+		return !window.isEmpty() && (committing == 0 || window.size() >= maxSize);
+	}
+	
+	/**
+	 * ウィンドウを閉じ、含まれる更新を返却します。
+	 * @return
+	 */
+	List<RequestFuture> close() {
+		List<RequestFuture> closed = window;
+		window = new ArrayList<RequestFuture>();
+		windowId++;
+		committing++;
+		return closed;
+	}
+	
+	/**
+	 * 最後に閉じたウィンドウの番号を取得します。
+	 * @return
+	 */
+	long getWindowId() {
+		return windowId;
+	}
+	
+	/**
+	 * 確認の完了を記録します。
+	 */
+	void complete() {
+		committing--;
+	}
+}
@@ -0,0 +1,48 @@
+package jp.ameba.mongo;
+
+/**
+ * {@link jp.ameba.mongo.protocol.Consistency#GROUP} でまとめて確認した
+ * 更新のいずれかが失敗した場合に発生する例外です。
+ * 失敗した確認単位（ウィンドウ）を保持します。
+ * 
+ * @author suguru
+ */
+public class GroupCommitException extends MongoException {
+
+	private static final long serialVersionUID = 4081935522410468277L;
+	
+	// 失敗したウィンドウの番号
+	private long windowId;
+	
+	// ウィンドウに含まれるリクエスト数
+	private int windowSize;
+	
+	public GroupCommitException(String message, int code, long windowId, int windowSize) {
+		super(message, code);
+		this.windowId = windowId;
+		this.windowSize = windowSize;
+	}
+	
+	public GroupCommitException(String message, Throwable cause, long windowId, int windowSize) {
+		super(message, cause);
+		this.windowId = windowId;
+		this.windowSize = windowSize;
+	}
+	
+	/**
+	 * 失敗したウィンドウの番号を取得します。
+	 * 番号はチャネルごとに 1 から採番されます。
+	 * @return
+	 */
+	public long getWindowId() {
+		return windowId;
+	}
+	
+	/**
+	 * 失敗したウィンドウに含まれるリクエスト数を取得します。
+	 * @return
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+}
@@ -0,0 +1,306 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.KillCursors;
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+/**
+ * _id による検索を、コレクションごとに {_id: {$in: [...]}} の1回のクエリにまとめるクラスです。
+ *
+ * 検索は最初の検索から一定時間、もしくは _id の数が上限に達するまでまとめてから送信し、
+ * 返却されたドキュメントを _id ごとに呼び出し元の future へ振り分けます。
+ * 該当するドキュメントがない _id は null で完了します。
+ * 送信は専用のスレッドで行います。
+ *
+ * @author suguru
+ */
+final class IdLookupBatcher implements Runnable {
+
+	private static final Logger log = Logger.getLogger(IdLookupBatcher.class.getName());
+
+	// 使用するクライアント
+	private final MongoClient client;
+
+	// コレクションごとの送信待ちの検索
+	private final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+
+	// 待たずに送信する検索
+	private final List<Batch> ready = new ArrayList<Batch>();
+
+	// 送信スレッド
+	private Thread thread;
+
+	// 停止済みか
+	private boolean closed = false;
+
+	IdLookupBatcher(MongoClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * _id による検索を送信待ちに追加します。
+	 * @param databaseName
+	 * @param collectionName
+	 * @param id
+	 * @param lazy
+	 * @return
+	 */
+	OperationFuture<BSONObject> lookup(String databaseName, String collectionName, Object id, boolean lazy) {
+		MongoConfiguration config = client.getConfiguration();
+		OperationFuture<BSONObject> future = new OperationFuture<BSONObject>(config.getCallbackExecutor());
+		String key = databaseName + "." + collectionName + (lazy ? "/lazy" : "");
+		Batch full = null;
+		synchronized (this) {
+			if (closed) {
+				throw new MongoException("MongoClient is closed.");
+			}
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				batch = new Batch(databaseName, collectionName, lazy,
+						System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getIdLookupWindow()));
+				batches.put(key, batch);
+				start();
+				notifyAll();
+			}
+			batch.add(id, future);
+			if (batch.callers.size() >= config.getMaxIdLookupKeys()) {
+				batches.remove(key);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			send(full);
+		}
+		return future;
+	}
+
+	/**
+	 * 送信スレッドを停止し、送信待ちの検索を失敗させます。
+	 */
+	void close() {
+		List<Batch> remaining;
+		synchronized (this) {
+			closed = true;
+			remaining = new ArrayList<Batch>(batches.values());
+			remaining.addAll(ready);
+			batches.clear();
+			ready.clear();
+			notifyAll();
+		}
+		MongoException cause = new MongoException("MongoClient is closed.");
+		for (Batch batch : remaining) {
+			batch.fail(cause);
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Batch> due = new ArrayList<Batch>();
+		for (;;) {
+			synchronized (this) {
+				for (;;) {
+					if (closed) {
+						return;
+					}
+					due.addAll(ready);
+					ready.clear();
+					long now = System.nanoTime();
+					long next = Long.MAX_VALUE;
+					for (Iterator<Batch> it = batches.values().iterator(); it.hasNext();) {
+						Batch batch = it.next();
+						if (batch.deadline - now <= 0) {
+							due.add(batch);
+							it.remove();
+						} else {
+							next = Math.min(next, batch.deadline - now);
+						}
+					}
+					if (!due.isEmpty()) {
+						break;
+					}
+					try {
+						if (next == Long.MAX_VALUE) {
+							wait();
+						} else {
+							wait(next / 1000000L, (int) (next % 1000000L));
+						}
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+			}
+			for (Batch batch : due) {
+				send(batch);
+			}
+			due.clear();
+		}
+	}
+
+	/**
+	 * 送信スレッドが開始していなければ開始します。
+	 */
+	private void start() {
+		if (thread == null) {
+			thread = new Thread(this, "mongo-id-lookup");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * まとめた検索を1回のクエリとして送信します。
+	 */
+	private void send(final Batch batch) {
+		List<Object> ids = new ArrayList<Object>(batch.ids.values());
+		BSONObject selector;
+		if (ids.size() == 1) {
+			selector = new BasicBSONObject("_id", ids.get(0));
+		} else {
+			selector = new BasicBSONObject("_id", new BasicBSONObject("$in", ids));
+		}
+		final MongoConnection conn;
+		OperationFuture<Response> future;
+		try {
+			conn = client.getConnection();
+			future = conn.queryAsync(new Query(
+					batch.databaseName,
+					batch.collectionName,
+					0,
+					ids.size(),
+					selector).lazy(batch.lazy));
+		} catch (RuntimeException ex) {
+			batch.fail(ex);
+			return;
+		}
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				if (!future.isSuccess()) {
+					batch.fail(future.getCause());
+					return;
+				}
+				try {
+					complete(batch, conn, MongoConnectionImpl.checkQuery(future.get()));
+				} catch (Exception ex) {
+					batch.fail(ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 返却されたドキュメントを呼び出し元へ振り分けます。
+	 * @param conn クエリを送信した接続。カーソルはこの接続のサーバーにのみ存在する
+	 */
+	private void complete(Batch batch, MongoConnection conn, Response response) {
+		for (BSONObject document : response.getDocuments()) {
+			List<OperationFuture<BSONObject>> futures = batch.callers.remove(normalize(document.get("_id")));
+			if (futures != null) {
+				for (OperationFuture<BSONObject> future : futures) {
+					future.setSuccess(document);
+				}
+			}
+		}
+		if (response.getCursorId() != 0) {
+			// 1回の返信に収まらなかった場合は、残りの _id を改めて検索する
+			conn.killCursors(new KillCursors(response.getCursorId()));
+			Batch retry = new Batch(batch.databaseName, batch.collectionName, batch.lazy, 0L);
+			for (Map.Entry<Object, List<OperationFuture<BSONObject>>> entry : batch.callers.entrySet()) {
+				retry.ids.put(entry.getKey(), batch.ids.get(entry.getKey()));
+				retry.callers.put(entry.getKey(), entry.getValue());
+			}
+			if (!retry.callers.isEmpty()) {
+				synchronized (this) {
+					if (!closed) {
+						ready.add(retry);
+						notifyAll();
+						return;
+					}
+				}
+				retry.fail(new MongoException("MongoClient is closed."));
+			}
+			return;
+		}
+		// 該当するドキュメントがない _id
+		for (List<OperationFuture<BSONObject>> futures : batch.callers.values()) {
+			for (OperationFuture<BSONObject> future : futures) {
+				future.setSuccess(null);
+			}
+		}
+	}
+
+	/**
+	 * 型の異なる整数の _id を同じキーとして扱います。
+	 */
+	private static Object normalize(Object id) {
+		if (id instanceof Integer || id instanceof Long || id instanceof Short || id instanceof Byte) {
+			return ((Number) id).longValue();
+		}
+		return id;
+	}
+
+	/**
+	 * 1回のクエリにまとめる検索
+	 */
+	private static class Batch {
+
+		// 対象のデータベース名
+		private final String databaseName;
+
+		// 対象のコレクション名
+		private final String collectionName;
+
+		// 遅延デコードするか
+		private final boolean lazy;
+
+		// 送信する時刻
+		private final long deadline;
+
+		// 正規化した _id と、検索に使用する _id
+		private final Map<Object, Object> ids = new LinkedHashMap<Object, Object>();
+
+		// 正規化した _id ごとの呼び出し元
+		private final Map<Object, List<OperationFuture<BSONObject>>> callers =
+				new HashMap<Object, List<OperationFuture<BSONObject>>>();
+
+		Batch(String databaseName, String collectionName, boolean lazy, long deadline) {
+			this.databaseName = databaseName;
+			this.collectionName = collectionName;
+			this.lazy = lazy;
+			this.deadline = deadline;
+		}
+
+		void add(Object id, OperationFuture<BSONObject> future) {
+			Object key = normalize(id);
+			List<OperationFuture<BSONObject>> futures = callers.get(key);
+			if (futures == null) {
+				futures = new ArrayList<OperationFuture<BSONObject>>(1);
+				callers.put(key, futures);
+				ids.put(key, id);
+			}
+			futures.add(future);
+		}
+
+		void fail(Throwable cause) {
+			log.log(Level.FINE, "Lookup of " + callers.size() + " ids failed.", cause);
+			for (List<OperationFuture<BSONObject>> futures : callers.values()) {
+				for (OperationFuture<BSONObject> future : futures) {
+					future.setFailure(cause);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package jp.ameba.mongo;
+
+import java.util.List;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.FindAndModify;
+
+import org.bson.BSONObject;
+
+/**
+ * {@link MongoCollection} と同等の処理を、
+ * 呼び出し元のスレッドをブロックせずに実行するためのインターフェイスです。
+ * 各処理は {@link OperationFuture} を即座に返却し、
+ * 結果は {@link OperationListener} で受け取ることができます。
+ * {@link MongoDatabase} から実装を取得します。
+ * 
+ * @author suguru
+ */
+public interface MongoAsyncCollection {
+	
+	/**
+	 * このコレクションの名称を取得します。
+	 * @return
+	 */
+	String getCollectionName();
+	
+	/**
+	 * このコレクションの所属するデータベース名を取得します。
+	 * @return
+	 */
+	String getDatabaseName();
+	
+	/**
+	 * デフォルトの一貫性レベルを設定します。
+	 * @param consistency
+	 */
+	void setDefaultConsistency(Consistency consistency);
+	
+	/**
+	 * 検索結果のドキュメントを遅延デコードするかを設定します。
+	 * @param lazyDecoding
+	 */
+	void setLazyDecoding(boolean lazyDecoding);
+	
+	/**
+	 * ドキュメントを挿入します。
+	 * @param document
+	 * @return
+	 */
+	OperationFuture<Void> insert(BSONObject document);
+	
+	/**
+	 * {@link Consistency} を指定してドキュメントを挿入します。
+	 * @param document
+	 * @param consistency
+	 * @return
+	 */
+	OperationFuture<Void> insert(BSONObject document, Consistency consistency);
+	
+	/**
+	 * 複数ドキュメントのバルク挿入をします。
+	 * @param documents
+	 * @return
+	 */
+	OperationFuture<Void> insert(BSONObject ... documents);
+	
+	/**
+	 * {@link Consistency} を指定して複数ドキュメントのバルク挿入をします。
+	 * @param documents
+	 * @param consistency
+	 * @return
+	 */
+	OperationFuture<Void> insert(BSONObject[] documents, Consistency consistency);
+	
+	/**
+	 * 指定のクエリ条件に該当するオブジェクトを取得します。
+	 * 該当するオブジェクトがない場合は null で完了します。
+	 * @param selector
+	 * @return
+	 */
+	OperationFuture<BSONObject> find(BSONObject selector);
+	
+	/**
+	 * 指定のクエリ条件に該当するオブジェクトを
+	 * 指定したフィールドのみ取得します。
+	 * @param selector
+	 * @param fields
+	 * @return
+	 */
+	OperationFuture<BSONObject> find(BSONObject selector, BSONObject fields);
+	
+	/**
+	 * 指定の _id のオブジェクトを取得します。
+	 * 同時に実行された同じコレクションへの _id による検索は、
+	 * {_id: {$in: [...]}} を条件とした1回のクエリにまとめて送信されます。
+	 * 該当するオブジェクトがない場合は null で完了します。
+	 * @param id
+	 * @return
+	 */
+	OperationFuture<BSONObject> findById(Object id);
+	
+	/**
+	 * 指定の _id のオブジェクトをまとめて取得します。
+	 * _id と同じ順序のオブジェクト一覧で完了し、該当するオブジェクトがない場合は null となります。
+	 * @param ids
+	 * @return
+	 */
+	OperationFuture<List<BSONObject>> findByIds(List<?> ids);
+	
+	/**
+	 * このコレクションの件数を取得します。
+	 * @return
+	 */
+	OperationFuture<Long> count();
+	
+	/**
+	 * このコレクションの指定条件を満たす件数を取得します。
+	 * @param selector
+	 * @return
+	 */
+	OperationFuture<Long> count(BSONObject selector);
+	
+	/**
+	 * findAndModify を構成します。
+	 * {@link FindAndModify#executeAsync()} で非同期に実行します。
+	 * @return
+	 */
+	FindAndModify findAndModify();
+	
+	/**
+	 * 指定条件のドキュメントを更新します。
+	 * @param selector
+	 * @param document
+	 * @return
+	 */
+	OperationFuture<Void> update(BSONObject selector, BSONObject document);
+	
+	/**
+	 * {@link Consistency} を指定して、指定条件のドキュメントを更新します。
+	 * @param selector
+	 * @param document
+	 * @param consistency
+	 * @return
+	 */
+	OperationFuture<Void> update(BSONObject selector, BSONObject document, Consistency consistency);
+	
+	/**
+	 * 指定条件のドキュメントを更新します。
+	 * 条件を満たすドキュメントが存在しない場合は、新たに挿入します。
+	 * @param selector
+	 * @param document
+	 * @return
+	 */
+	OperationFuture<Void> upsert(BSONObject selector, BSONObject document);
+	
+	/**
+	 * {@link Consistency} を指定して、指定条件のドキュメントを更新します。
+	 * 条件を満たすドキュメントが存在しない場合は、新たに挿入します。
+	 * @param selector
+	 * @param document
+	 * @param consistency
+	 * @return
+	 */
+	OperationFuture<Void> upsert(BSONObject selector, BSONObject document, Consistency consistency);
+	
+	/**
+	 * 指定条件を満たすドキュメントを削除します。
+	 * @param selector
+	 * @return
+	 */
+	OperationFuture<Void> remove(BSONObject selector);
+	
+	/**
+	 * {@link Consistency} を指定して、条件を満たすドキュメントを削除します。
+	 * @param selector
+	 * @param consistency
+	 * @return
+	 */
+	OperationFuture<Void> remove(BSONObject selector, Consistency consistency);
+	
+	/**
+	 * インデクスを作成します。
+	 * @param indexName
+	 * @param keys
+	 * @param options
+	 * @return
+	 */
+	OperationFuture<Void> createIndex(String indexName, BSONObject keys, BSONObject options);
+	
+	/**
+	 * インデクスを作成します。
+	 * @param indexName
+	 * @param keys
+	 * @param options
+	 * @param consistency
+	 * @return
+	 */
+	OperationFuture<Void> createIndex(String indexName, BSONObject keys, BSONObject options, Consistency consistency);
+}
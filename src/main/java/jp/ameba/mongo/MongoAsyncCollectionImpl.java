@@ -0,0 +1,371 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.Delete;
+import jp.ameba.mongo.protocol.FindAndModify;
+import jp.ameba.mongo.protocol.Insert;
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Request;
+import jp.ameba.mongo.protocol.Response;
+import jp.ameba.mongo.protocol.Update;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+/**
+ * {@link MongoAsyncCollection} 実装
+ * 
+ * @author suguru
+ */
+public class MongoAsyncCollectionImpl implements MongoAsyncCollection {
+	
+	// デフォルトで使用する Consistency レベル
+	private Consistency defaultConsistency = Consistency.SAFE;
+	// 使用するクライアント
+	private MongoClient client;
+	// 対象のデータベース名
+	private String databaseName;
+	// 対象のコレクション名
+	private String collectionName;
+	// 対象の名前空間を表すフルネーム
+	private String fullName;
+	// 検索結果を遅延デコードするか
+	private boolean lazyDecoding = false;
+	// 書き込みによるキャッシュの破棄
+	private CacheInvalidator invalidator;
+	
+	/**
+	 * {@link MongoAsyncCollectionImpl} を構成します。
+	 * 
+	 * @param client
+	 * @param databaseName
+	 * @param collectionName
+	 */
+	public MongoAsyncCollectionImpl(
+			MongoClient client,
+			String databaseName,
+			String collectionName) {
+		this(client, databaseName, collectionName, null);
+	}
+	
+	/**
+	 * 同じ名前空間の {@link MongoCollection} とキャッシュを共有する
+	 * {@link CacheInvalidator} を指定して {@link MongoAsyncCollectionImpl} を構成します。
+	 * 
+	 * @param client
+	 * @param databaseName
+	 * @param collectionName
+	 * @param invalidator null の場合は新たに作成
+	 */
+	MongoAsyncCollectionImpl(
+			MongoClient client,
+			String databaseName,
+			String collectionName,
+			CacheInvalidator invalidator) {
+		this.client = client;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.fullName = new StringBuilder(databaseName.length() + collectionName.length() + 1)
+			.append(databaseName)
+			.append('.')
+			.append(collectionName)
+			.toString();
+		this.invalidator = invalidator != null ? invalidator : new CacheInvalidator(fullName);
+	}
+	
+	/**
+	 * デフォルトの一貫性レベルを設定します。
+	 * @param defaultConsistency
+	 */
+	public void setDefaultConsistency(Consistency defaultConsistency) {
+		this.defaultConsistency = defaultConsistency;
+	}
+	
+	/**
+	 * 検索結果を遅延デコードするかを設定します。
+	 * @param lazyDecoding
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+	
+	/**
+	 * {@link MongoClient} を取得します。
+	 * @return
+	 */
+	public MongoClient getClient() {
+		return client;
+	}
+	
+	/**
+	 * データベース名を取得します。
+	 * @return
+	 */
+	public String getDatabaseName() {
+		return databaseName;
+	}
+	
+	/**
+	 * コレクション名を取得します。
+	 * @return
+	 */
+	public String getCollectionName() {
+		return collectionName;
+	}
+	
+	@Override
+	public OperationFuture<Void> insert(BSONObject document) {
+		return insert(document, defaultConsistency);
+	}
+	
+	@Override
+	public OperationFuture<Void> insert(BSONObject document, Consistency consistency) {
+		Insert insert = new Insert(
+				databaseName,
+				collectionName,
+				document
+		).consistency(consistency);
+		return lastError(invalidate(client.getConnection().insertAsync(insert), insert));
+	}
+	
+	@Override
+	public OperationFuture<Void> insert(BSONObject... documents) {
+		return insert(documents, defaultConsistency);
+	}
+	
+	@Override
+	public OperationFuture<Void> insert(BSONObject[] documents, Consistency consistency) {
+		Insert insert = new Insert(
+				databaseName,
+				collectionName,
+				Arrays.asList(documents)
+		).consistency(consistency);
+		return lastError(invalidate(client.getConnection().insertAsync(insert), insert));
+	}
+	
+	@Override
+	public OperationFuture<BSONObject> find(BSONObject selector) {
+		return find(selector, null);
+	}
+	
+	@Override
+	public OperationFuture<BSONObject> find(BSONObject selector, BSONObject fields) {
+		OperationFuture<Response> future = client.queryAsync(
+				new Query(
+						databaseName,
+						collectionName,
+						0,
+						1,
+						selector,
+						fields).lazy(lazyDecoding));
+		return transform(future, new Transform<BSONObject>() {
+			@Override
+			BSONObject transform(Response response) {
+				return MongoConnectionImpl.checkQuery(response).getDocument();
+			}
+		});
+	}
+	
+	@Override
+	public OperationFuture<BSONObject> findById(Object id) {
+		return client.lookup(databaseName, collectionName, id, lazyDecoding);
+	}
+	
+	@Override
+	public OperationFuture<List<BSONObject>> findByIds(List<?> ids) {
+		final OperationFuture<List<BSONObject>> result = new OperationFuture<List<BSONObject>>(
+				client.getConfiguration().getCallbackExecutor());
+		if (ids.isEmpty()) {
+			result.setSuccess(new ArrayList<BSONObject>());
+			return result;
+		}
+		final BSONObject[] documents = new BSONObject[ids.size()];
+		final AtomicInteger remaining = new AtomicInteger(ids.size());
+		for (int i = 0; i < documents.length; i++) {
+			final int index = i;
+			client.lookup(databaseName, collectionName, ids.get(i), lazyDecoding).addListener(
+					new OperationListener<BSONObject>() {
+				@Override
+				public void operationComplete(OperationFuture<BSONObject> future) {
+					if (!future.isSuccess()) {
+						result.setFailure(future.getCause());
+						return;
+					}
+					try {
+						documents[index] = future.get();
+					} catch (Exception ex) {
+						result.setFailure(ex);
+						return;
+					}
+					if (remaining.decrementAndGet() == 0) {
+						result.setSuccess(Arrays.asList(documents));
+					}
+				}
+			});
+		}
+		return result;
+	}
+	
+	@Override
+	public OperationFuture<Long> count() {
+		return count(new BasicBSONObject());
+	}
+	
+	@Override
+	public OperationFuture<Long> count(BSONObject selector) {
+		OperationFuture<Response> future = client.queryAsync(
+				new Query(databaseName, "$cmd", 0, 1, new BasicBSONObject()
+					.append("count", collectionName)
+					.append("query", selector)
+				));
+		return transform(future, new Transform<Long>() {
+			@Override
+			Long transform(Response response) {
+				BSONObject obj = MongoConnectionImpl.checkQuery(response).getDocument();
+				return ((Number) obj.get("n")).longValue();
+			}
+		});
+	}
+	
+	@Override
+	public FindAndModify findAndModify() {
+		return invalidator.findAndModify(client.getConnection(), databaseName, collectionName);
+	}
+	
+	@Override
+	public OperationFuture<Void> update(BSONObject selector, BSONObject document) {
+		return update(selector, document, defaultConsistency);
+	}
+	
+	@Override
+	public OperationFuture<Void> update(BSONObject selector, BSONObject document,
+			Consistency consistency) {
+		Update update = new Update(
+				databaseName,
+				collectionName,
+				selector,
+				document
+		).consistency(consistency);
+		return lastError(invalidate(client.getConnection().updateAsync(update), update));
+	}
+	
+	@Override
+	public OperationFuture<Void> upsert(BSONObject selector, BSONObject document) {
+		return upsert(selector, document, defaultConsistency);
+	}
+	
+	@Override
+	public OperationFuture<Void> upsert(BSONObject selector, BSONObject document,
+			Consistency consistency) {
+		Update update = new Update(
+				databaseName,
+				collectionName,
+				selector,
+				document
+		).consistency(consistency).upsert();
+		return lastError(invalidate(client.getConnection().updateAsync(update), update));
+	}
+	
+	@Override
+	public OperationFuture<Void> remove(BSONObject selector) {
+		return remove(selector, defaultConsistency);
+	}
+	
+	@Override
+	public OperationFuture<Void> remove(BSONObject selector, Consistency consistency) {
+		Delete delete = new Delete(
+				databaseName,
+				collectionName,
+				selector
+		).consistency(consistency);
+		return lastError(invalidate(client.getConnection().deleteAsync(delete), delete));
+	}
+	
+	@Override
+	public OperationFuture<Void> createIndex(String indexName, BSONObject keys, BSONObject options) {
+		return createIndex(indexName, keys, options, defaultConsistency);
+	}
+	
+	@Override
+	public OperationFuture<Void> createIndex(String indexName, BSONObject keys, BSONObject options, Consistency consistency) {
+		return lastError(client.getConnection().insertAsync(
+				new Insert(
+						databaseName,
+						"system.indexes",
+						MongoCollectionImpl.indexDocument(fullName, indexName, keys, options)
+				).consistency(consistency)
+		));
+	}
+	
+	/**
+	 * 書き込みの完了後に、対象のキャッシュを破棄します。
+	 * 後に追加するリスナーより先に実行されるよう、変換前の future に登録します。
+	 * @param future
+	 * @param request
+	 * @return
+	 */
+	private OperationFuture<Response> invalidate(OperationFuture<Response> future, final Request request) {
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				invalidator.invalidate(request);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * 更新系リクエストの getLastError の結果を確認する {@link OperationFuture} を作成します。
+	 * @param future
+	 * @return
+	 */
+	private OperationFuture<Void> lastError(OperationFuture<Response> future) {
+		return transform(future, new Transform<Void>() {
+			@Override
+			Void transform(Response response) {
+				MongoConnectionImpl.checkLastError(response);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * {@link Response} を変換した結果で完了する {@link OperationFuture} を作成します。
+	 * 変換は I/O スレッドで行い、作成した future のリスナーは
+	 * 設定された callbackExecutor で実行します。
+	 * @param future
+	 * @param transform
+	 * @return
+	 */
+	private <V> OperationFuture<V> transform(OperationFuture<Response> future, final Transform<V> transform) {
+		final OperationFuture<V> result = new OperationFuture<V>(
+				client.getConfiguration().getCallbackExecutor());
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				if (!future.isSuccess()) {
+					result.setFailure(future.getCause());
+					return;
+				}
+				try {
+					result.setSuccess(transform.transform(future.get()));
+				} catch (Exception ex) {
+					result.setFailure(ex);
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * {@link Response} を処理結果に変換します。
+	 */
+	private static abstract class Transform<V> {
+		abstract V transform(Response response);
+	}
+}
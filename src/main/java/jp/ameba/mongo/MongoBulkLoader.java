@@ -0,0 +1,247 @@
+package jp.ameba.mongo;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.Insert;
+import jp.ameba.mongo.protocol.LazyBSONObject;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * 大量のドキュメントを1つの接続へ挿入します。
+ * 
+ * ドキュメントを順にエンコードし、エンコード後のバイト数と件数で
+ * OP_INSERT メッセージに分割します。上限は isMaster で取得した
+ * サーバーの制限値と、このローダーに設定した値の小さい方を使用します。
+ * 分割したメッセージは確認を待たずに送信し、確認待ちのメッセージ数が
+ * 上限に達した場合のみ、完了を待ちます。
+ * 
+ * エンコード結果はそのまま送信するため、ドキュメントは1回のみエンコードされます。
+ * ローダーそのものはスレッドセーフではありません。
+ * 
+ * @author suguru
+ */
+public class MongoBulkLoader {
+	
+	// OP_INSERT のヘッダとフラグのバイト数
+	private static final int INSERT_OVERHEAD = 16 + 4;
+	
+	// 使用する接続
+	private MongoConnection conn;
+	
+	// 対象のデータベース名
+	private String databaseName;
+	
+	// 対象のコレクション名
+	private String collectionName;
+	
+	// 挿入に使用する一貫性レベル
+	private Consistency consistency;
+	
+	// 1メッセージの最大バイト数
+	private int maxBatchBytes = 1024 * 1024;
+	
+	// 1メッセージの最大ドキュメント数
+	private int maxBatchCount = 1000;
+	
+	// 確認待ちのメッセージの最大数
+	private int maxInFlight = 4;
+	
+	// 挿入したドキュメントのキャッシュを破棄する
+	private CacheInvalidator invalidator;
+	
+	MongoBulkLoader(
+			MongoConnection conn,
+			String databaseName,
+			String collectionName) {
+		this.conn = conn;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.consistency = conn.getConfiguration().getDefaultConsistency();
+	}
+	
+	/**
+	 * 挿入に使用する {@link Consistency} を設定します。
+	 * @param consistency
+	 * @return
+	 */
+	public MongoBulkLoader consistency(Consistency consistency) {
+		this.consistency = consistency;
+		return this;
+	}
+	
+	/**
+	 * 1メッセージの最大バイト数を設定します。
+	 * サーバーの最大メッセージサイズを超える値は、サーバーの値に切り詰められます。
+	 * @param maxBatchBytes
+	 * @return
+	 */
+	public MongoBulkLoader maxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+	
+	/**
+	 * 1メッセージの最大ドキュメント数を設定します。
+	 * @param maxBatchCount
+	 * @return
+	 */
+	public MongoBulkLoader maxBatchCount(int maxBatchCount) {
+		this.maxBatchCount = maxBatchCount;
+		return this;
+	}
+	
+	/**
+	 * 確認を待たずに送信するメッセージの最大数を設定します。
+	 * @param maxInFlight
+	 * @return
+	 */
+	public MongoBulkLoader maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+	
+	/**
+	 * 挿入の完了後に、ドキュメントのキャッシュを破棄する {@link CacheInvalidator} を設定します。
+	 * @param invalidator
+	 * @return
+	 */
+	MongoBulkLoader invalidator(CacheInvalidator invalidator) {
+		this.invalidator = invalidator;
+		return this;
+	}
+	
+	/**
+	 * すべてのドキュメントを挿入し、完了するまで待ちます。
+	 * @param documents
+	 * @return 挿入したドキュメント数
+	 * @throws MongoException いずれかのメッセージが失敗した場合
+	 */
+	public long load(Iterable<? extends BSONObject> documents) {
+		return load(documents.iterator());
+	}
+	
+	/**
+	 * すべてのドキュメントを挿入し、完了するまで待ちます。
+	 * @param documents
+	 * @return 挿入したドキュメント数
+	 * @throws MongoException いずれかのメッセージが失敗した場合
+	 */
+	public long load(Iterator<? extends BSONObject> documents) {
+		
+		int maxDocumentSize = conn.getMaxBsonObjectSize();
+		int maxBytes = Math.min(maxBatchBytes, conn.getMaxMessageSize());
+		int maxCount = Math.max(1, Math.min(maxBatchCount, conn.getMaxWriteBatchSize()));
+		int overhead = INSERT_OVERHEAD + databaseName.length() + collectionName.length() + 2;
+		
+		int permits = Math.max(1, maxInFlight);
+		Semaphore inFlight = new Semaphore(permits);
+		AtomicReference<MongoException> failure = new AtomicReference<MongoException>();
+		
+		BSONEncoder encoder = new BSONEncoder();
+		List<BSONObject> batch = new ArrayList<BSONObject>();
+		int batchBytes = overhead;
+		long count = 0;
+		
+		try {
+			while (documents.hasNext()) {
+				BSONObject document = documents.next();
+				if (!document.containsField("_id")) {
+					document.put("_id", new ObjectId());
+				}
+				byte[] bytes = encoder.encode(document);
+				if (bytes.length > maxDocumentSize) {
+					throw new MongoException("Document too large: "
+							+ bytes.length + " bytes (max " + maxDocumentSize + ")");
+				}
+				// 上限を超える場合は、ここまでのドキュメントを送信
+				if (!batch.isEmpty()
+						&& (batchBytes + bytes.length > maxBytes || batch.size() >= maxCount)) {
+					send(batch, inFlight, failure);
+					count += batch.size();
+					batch = new ArrayList<BSONObject>();
+					batchBytes = overhead;
+				}
+				batch.add(new LazyBSONObject(ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, bytes)));
+				batchBytes += bytes.length;
+			}
+			if (!batch.isEmpty()) {
+				send(batch, inFlight, failure);
+				count += batch.size();
+			}
+		} finally {
+			// 送信済みのメッセージの完了を待つ
+			acquire(inFlight, permits);
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return count;
+	}
+	
+	/**
+	 * 1メッセージ分のドキュメントを送信します。
+	 * 確認待ちのメッセージ数が上限に達している場合は、空きが出るまで待ちます。
+	 */
+	private void send(
+			final List<BSONObject> batch,
+			final Semaphore inFlight,
+			final AtomicReference<MongoException> failure) {
+		acquire(inFlight, 1);
+		// 先行するメッセージが失敗していれば、以降は送信しない
+		if (failure.get() != null) {
+			inFlight.release();
+			throw failure.get();
+		}
+		OperationFuture<Response> future = conn.insertAsync(
+				new Insert(databaseName, collectionName, batch).consistency(consistency));
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				try {
+					MongoConnectionImpl.checkLastError(future.get());
+				} catch (ExecutionException ex) {
+					failure.compareAndSet(null, MongoConnectionImpl.toMongoException(ex));
+				} catch (MongoException ex) {
+					failure.compareAndSet(null, ex);
+				} catch (InterruptedException ex) {
+					failure.compareAndSet(null, new MongoException(ex));
+				} finally {
+					if (invalidator != null) {
+						for (BSONObject document : batch) {
+							invalidator.invalidateDocument(document);
+						}
+					}
+					inFlight.release();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * 操作タイムアウト時間まで、指定数の送信枠を確保します。
+	 */
+	private void acquire(Semaphore inFlight, int permits) {
+		long timeout = conn.getConfiguration().getOperationTimeout();
+		try {
+			if (!inFlight.tryAcquire(permits, timeout, TimeUnit.MILLISECONDS)) {
+				throw new MongoException("Bulk insert timed out after " + timeout + " ms.");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MongoException(ex);
+		}
+	}
+}
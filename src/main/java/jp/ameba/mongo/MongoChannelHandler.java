@@ -1,10 +1,16 @@
 package jp.ameba.mongo;
 
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import jp.ameba.mongo.protocol.Consistency;
 import jp.ameba.mongo.protocol.MessageHeader;
 import jp.ameba.mongo.protocol.OperationCode;
 import jp.ameba.mongo.protocol.Query;
@@ -14,19 +20,22 @@ import jp.ameba.mongo.protocol.Response;
 
 import org.bson.BSONEncoder;
 import org.bson.BSONObject;
-import org.bson.io.BasicOutputBuffer;
+import org.bson.BasicBSONObject;
 import org.bson.io.OutputBuffer;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 /**
  * MongoDB プロトコルを実装した
@@ -36,6 +45,9 @@ import org.jboss.netty.channel.SimpleChannelHandler;
  */
 public class MongoChannelHandler extends SimpleChannelHandler {
 
+	// グループコミットの確認に使用するクエリ
+	private static final BSONObject GET_PREV_ERROR = new BasicBSONObject("getpreverror", 1);
+	
 	// アクティブなチャネル一覧
 	private ConcurrentMap<Integer, Channel> liveChannelMap;
 	
@@ -45,8 +57,20 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 	// 非アクティブなチャネル一覧
 	private ConcurrentMap<Integer, Channel> deadChannelMap;
 	
-	// 返答待ち中の送信済みリクエスト一覧
-	private ConcurrentMap<Integer, Request> requestMap;
+	// アクティブなチャネル一覧に含めない専用のチャネル
+	private Set<Integer> privateChannelSet;
+	
+	// 送信バッファのプール
+	private OutputBufferPool bufferPool;
+	
+	// 設定
+	private MongoConfiguration config;
+	
+	// 返信待ちのタイムアウトを管理するタイマー
+	private Timer timer;
+	
+	// まとめて書き込む送信の残りを委譲する Executor
+	private Executor taskExecutor;
 	
 	/**
 	 * {@link MongoChannelHandler}
@@ -56,7 +80,52 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 		this.liveChannelList = new ArrayList<Channel>();
 		this.liveChannelMap = new ConcurrentHashMap<Integer, Channel>();
 		this.deadChannelMap = new ConcurrentHashMap<Integer, Channel>();
-		this.requestMap = new ConcurrentHashMap<Integer, Request>();
+		this.privateChannelSet = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		this.config = new MongoConfiguration();
+		this.bufferPool = new OutputBufferPool(config);
+	}
+	
+	/**
+	 * 送信処理で使用する設定を指定します。
+	 * @param config
+	 */
+	public void setConfiguration(MongoConfiguration config) {
+		this.config = config;
+		this.bufferPool = new OutputBufferPool(config);
+	}
+	
+	/**
+	 * 返信待ちのタイムアウトに使用するタイマーを設定します。
+	 * 設定されていない場合、返信待ちはタイムアウトしません。
+	 * @param timer
+	 */
+	public void setTimer(Timer timer) {
+		this.timer = timer;
+	}
+	
+	/**
+	 * まとめて書き込む送信の残りを委譲する {@link Executor} を設定します。
+	 * 設定されていない場合、送信中のスレッドがキューが空になるまで送信します。
+	 * @param taskExecutor
+	 */
+	public void setTaskExecutor(Executor taskExecutor) {
+		this.taskExecutor = taskExecutor;
+	}
+	
+	/**
+	 * 接続前のチャネルを、アクティブなチャネル一覧に含めない専用のチャネルとします。
+	 * @param channelId
+	 */
+	void addPrivateChannel(int channelId) {
+		privateChannelSet.add(channelId);
+	}
+	
+	/**
+	 * 再接続により置き換えたチャネルを、非アクティブなチャネル一覧から除去します。
+	 * @param channelId
+	 */
+	void removeDeadChannel(int channelId) {
+		deadChannelMap.remove(channelId);
 	}
 	
 	/**
@@ -67,10 +136,40 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 		return liveChannelList;
 	}
 	
+	@Override
+	public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e)
+			throws Exception {
+		getState(ctx);
+		super.channelOpen(ctx, e);
+	}
+	
+	/**
+	 * チャネルごとの状態を取得します。
+	 * 状態はコンテキストに添付し、チャネルのオープン時に作成します。
+	 * @param ctx
+	 * @return
+	 */
+	private MongoChannelState getState(ChannelHandlerContext ctx) {
+		MongoChannelState state = (MongoChannelState) ctx.getAttachment();
+		if (state == null) {
+			synchronized (ctx) {
+				state = (MongoChannelState) ctx.getAttachment();
+				if (state == null) {
+					state = new MongoChannelState(config, taskExecutor);
+					ctx.setAttachment(state);
+				}
+			}
+		}
+		return state;
+	}
+	
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e)
 			throws Exception {
 		Channel channel = ctx.getChannel();
+		if (privateChannelSet.contains(channel.getId())) {
+			return;
+		}
 		liveChannelMap.put(channel.getId(), channel);
 		deadChannelMap.remove(channel.getId());
 		synchronized (this) {
@@ -84,12 +183,24 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
 			throws Exception {
 		Channel channel = ctx.getChannel();
-		liveChannelMap.remove(channel.getId());
-		deadChannelMap.put(channel.getId(), channel);
-		synchronized (this) {
-			List<Channel> channelList = new ArrayList<Channel>(liveChannelMap.values());
-			this.liveChannelList = channelList;
-			notifyAll();
+		if (!privateChannelSet.remove(channel.getId())) {
+			liveChannelMap.remove(channel.getId());
+			deadChannelMap.put(channel.getId(), channel);
+			synchronized (this) {
+				List<Channel> channelList = new ArrayList<Channel>(liveChannelMap.values());
+				this.liveChannelList = channelList;
+				notifyAll();
+			}
+		}
+		// 閉じたチャネルの返信は届かないため、返信待ちのリクエストをまとめて失敗させる
+		List<Request> requests = getState(ctx).getRequests().removeAll();
+		if (!requests.isEmpty()) {
+			MongoException cause = new MongoConnectionException("Connection closed: " + channel);
+			for (Request request : requests) {
+				RequestFuture future = request.getFuture();
+				future.cancelTimeout();
+				future.setFailure(cause);
+			}
 		}
 	}
 	
@@ -99,15 +210,13 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 		
 		Response response = (Response) e.getMessage();
 		if (response != null) {
-			Request request = requestMap.remove(response.getHeader().getResponseTo());
+			Request request = getState(ctx).getRequests().remove(response.getHeader().getResponseTo());
 			if (request != null) {
 				RequestFuture future = request.getFuture();
 				if (future != null) {
-					future.setResponse(response);	
-					future.setDone(true);
-					synchronized (future) {
-						future.notifyAll();	
-					}
+					future.cancelTimeout();
+					response.setLazy(request.isLazy());
+					future.setSuccess(response);
 				}
 			}
 		}
@@ -122,16 +231,24 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 		
 		// リクエストをバッファに変換して送信
 		Request request = (Request) e.getMessage();
-		RequestFuture future = new RequestFuture(request);
-		request.setFuture(future);
+		RequestFuture future = request.getFuture();
+		if (future == null) {
+			future = new RequestFuture(request);
+			request.setFuture(future);
+		}
+		
+		MongoChannelState state = getState(ctx);
+		RequestTable requests = state.getRequests();
+		
+		// プールからバッファを確保し、直接エンコードする
+		ChannelBufferOutputBuffer outputBuffer = bufferPool.acquire();
+		boolean attached = false;
 		
 		// チャネルを通して送信
 		try {
-			// バッファを確保
-			OutputBuffer outputBuffer = new BasicOutputBuffer();
-			BSONEncoder encoder = new BSONEncoder();
-			encoder.set(outputBuffer);
-			// リクエスト内容を出力
+			BSONEncoder encoder = outputBuffer.getEncoder();
+			// このチャネルでリクエストIDを採番し、リクエスト内容を出力
+			request.getHeader().setRequestId(requests.nextRequestId());
 			writeRequest(request, encoder, outputBuffer);
 			
 			// Safeリクエストの場合は、 getLastError クエリを付加
@@ -147,49 +264,208 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 						null
 				);
 				getLastError.setFuture(future);
+				future.setGetLastError(getLastError);
+				getLastError.getHeader().setRequestId(requests.nextRequestId());
 				writeRequest(getLastError, encoder, outputBuffer);
 			}
 			
-			// ChannelBuffer を生成
-			ChannelBuffer channelBuffer = ChannelBuffers.buffer(outputBuffer.size());
-			outputBuffer.pipe(new ChannelBufferOutputStream(channelBuffer));
+			// エンコード済みの ChannelBuffer をそのまま送信する
+			ChannelBuffer channelBuffer = outputBuffer.getChannelBuffer();
 			
 			// ChannelFuture を取得し RequestFuture に設定
 			ChannelFuture channelFuture = e.getFuture();
 			future.setChannelFuture(channelFuture);
+			future.setChannel(ctx.getChannel());
 			
 			// 送信リエクスト一覧に future を追加
 			OperationCode opCode = request.getHeader().getOpCode();
 			// safeモード、もしくは返信が見込める場合は、リクエストIDを設定
-			if (opCode.hasReply() || getLastError != null) {
+			boolean expectReply = opCode.hasReply() || getLastError != null;
+			// グループコミットの場合は、ウィンドウの確認の返信で完了させる
+			boolean grouped = !opCode.hasReply() && request.getConsistency() == Consistency.GROUP;
+			if (expectReply) {
 				if (getLastError == null) {
-					requestMap.put(future.getRequetId(), request);
+					requests.put(future.getRequetId(), request);
 					request.setWaitingRequestId(request.getRequestId());
 				} else {
-					requestMap.put(getLastError.getRequestId(), request);
+					requests.put(getLastError.getRequestId(), request);
 					request.setWaitingRequestId(getLastError.getRequestId());
 				}
+				// 返信が失われた場合に備えて、タイムアウトを設定
+				if (timer != null) {
+					future.setTimeout(timer.newTimeout(
+							new RequestTimeoutTask(requests, request),
+							config.getOperationTimeout(),
+							TimeUnit.MILLISECONDS));
+				}
+			}
+			// 送信完了時にバッファをプールへ返却
+			channelFuture.addListener(outputBuffer);
+			// 送信失敗時、および返信のないリクエストの送信完了時に future を完了させる
+			channelFuture.addListener(new WriteCompletionListener(requests, future, !expectReply && !grouped));
+			attached = true;
+			GroupCommit group = state.getGroupCommit();
+			if (grouped || !opCode.hasReply() && group.isUsed()) {
+				// ウィンドウへの追加と送信キューへの追加の順序を揃え、書き込みは同期の外で行う
+				synchronized (group) {
+					if (grouped) {
+						group.add(future);
+					} else if (group.hasWindow()) {
+						// 他の一貫性レベルの更新のエラーをウィンドウに含めないよう、先に確認を送信
+						writeGroupCommit(ctx, group);
+					}
+					enqueue(ctx, channelFuture, channelBuffer);
+					if (grouped && group.shouldClose()) {
+						writeGroupCommit(ctx, group);
+					}
+				}
+				state.getWriteBatcher().flush(ctx);
+			} else {
+				write(ctx, channelFuture, channelBuffer);
 			}
-			Channels.write(ctx, channelFuture, channelBuffer);
 			
 		} catch (Exception ex) {
 			// 例外が発生してしまった場合は、リクエスト一覧から future を除去
+			future.cancelTimeout();
 			if (future.getGetLastError() == null) {
-				requestMap.remove(future.getRequetId());
+				requests.remove(future.getRequetId(), request);
 			} else {
-				requestMap.remove(future.getGetLastError().getRequestId());
+				requests.remove(future.getGetLastError().getRequestId(), request);
+			}
+			if (!attached) {
+				bufferPool.release(outputBuffer);
 			}
+			future.setFailure(ex);
 			throw ex;
 		}
 	}
 	
 	/**
+	 * エンコード済みのバッファをチャネルへ書き込みます。
+	 * @param ctx
+	 * @param channelFuture
+	 * @param channelBuffer
+	 */
+	private void write(
+			ChannelHandlerContext ctx,
+			ChannelFuture channelFuture,
+			ChannelBuffer channelBuffer) {
+		MongoChannelState state = getState(ctx);
+		GroupCommit group = state.getGroupCommit();
+		if (config.isWriteBatching() || group.isUsed()) {
+			// 他のスレッドの送信とまとめて、もしくはグループコミットの確認と順序を揃えて書き込む
+			enqueue(ctx, channelFuture, channelBuffer);
+			state.getWriteBatcher().flush(ctx);
+		} else {
+			group.sending();
+			Channels.write(ctx, channelFuture, channelBuffer);
+			group.queued();
+		}
+	}
+	
+	/**
+	 * エンコード済みのバッファを、書き込まずに送信キューへ追加します。
+	 * グループコミットの送信数は、送信キューへの追加の前後で数えます。
+	 * @param ctx
+	 * @param channelFuture
+	 * @param channelBuffer
+	 */
+	private void enqueue(
+			ChannelHandlerContext ctx,
+			ChannelFuture channelFuture,
+			ChannelBuffer channelBuffer) {
+		MongoChannelState state = getState(ctx);
+		GroupCommit group = state.getGroupCommit();
+		group.sending();
+		state.getWriteBatcher().offer(channelFuture, channelBuffer);
+		group.queued();
+	}
+	
+	/**
+	 * グループコミットのウィンドウを閉じ、確認のクエリを送信します。
+	 * getlasterror は直前の1件の結果しか返さないため、
+	 * getpreverror でウィンドウ内のエラーを確認します。
 	 * 
+	 * 確認のクエリは送信キューに追加するのみのため、呼び出し側は group で同期し、
+	 * 同期を解除した後に送信キューを書き込む必要があります。
+	 * @param ctx
+	 * @param group
+	 */
+	private void writeGroupCommit(ChannelHandlerContext ctx, GroupCommit group) {
+		
+		long span = group.getSpan();
+		List<RequestFuture> members = group.close();
+		RequestTable requests = getState(ctx).getRequests();
+		
+		// エラー状態は接続ごとに保持されるため、先頭の更新のデータベースで確認する
+		String databaseName = members.get(0).getRequest().getDatabaseName();
+		Query commit = new Query(databaseName, "$cmd", 0, 1, GET_PREV_ERROR, null);
+		RequestFuture future = new RequestFuture(commit);
+		commit.setFuture(future);
+		future.addListener(new GroupCommitListener(ctx, group, group.getWindowId(), span, members));
+		
+		// 閉じたチャネルには送信せず、ウィンドウをそのまま失敗させる
+		if (!ctx.getChannel().isConnected()) {
+			future.setFailure(new MongoConnectionException("Connection closed: " + ctx.getChannel()));
+			return;
+		}
+		
+		ChannelBufferOutputBuffer outputBuffer = bufferPool.acquire();
+		boolean attached = false;
+		try {
+			BSONEncoder encoder = outputBuffer.getEncoder();
+			commit.getHeader().setRequestId(requests.nextRequestId());
+			writeRequest(commit, encoder, outputBuffer);
+			
+			ChannelFuture channelFuture = Channels.future(ctx.getChannel());
+			future.setChannelFuture(channelFuture);
+			future.setChannel(ctx.getChannel());
+			
+			requests.put(commit.getRequestId(), commit);
+			commit.setWaitingRequestId(commit.getRequestId());
+			if (timer != null) {
+				future.setTimeout(timer.newTimeout(
+						new RequestTimeoutTask(requests, commit),
+						config.getOperationTimeout(),
+						TimeUnit.MILLISECONDS));
+			}
+			channelFuture.addListener(outputBuffer);
+			channelFuture.addListener(new WriteCompletionListener(requests, future, false));
+			attached = true;
+			// getpreverror はサーバーの送信数に含まれないため、数えない
+			getState(ctx).getWriteBatcher().offer(channelFuture, outputBuffer.getChannelBuffer());
+			
+		} catch (Exception ex) {
+			future.cancelTimeout();
+			requests.remove(commit.getRequestId(), commit);
+			if (!attached) {
+				bufferPool.release(outputBuffer);
+			}
+			future.setFailure(ex);
+		}
+	}
+	
+	/**
+	 * リクエストを送信時と同じバイト列にエンコードします。
+	 * @param request
+	 * @return
+	 */
+	static byte[] encode(Request request) {
+		ChannelBufferOutputBuffer output = new ChannelBufferOutputBuffer(
+				ChannelBuffers.dynamicBuffer(ByteOrder.LITTLE_ENDIAN, 256));
+		writeRequest(request, output.getEncoder(), output);
+		byte[] message = new byte[output.size()];
+		output.getChannelBuffer().getBytes(0, message);
+		return message;
+	}
+	
+	/**
+	 * リクエストをヘッダとともにメッセージとして出力します。
 	 * @param request
 	 * @param encoder
 	 * @param output
 	 */
-	private void writeRequest(
+	static void writeRequest(
 			Request request,
 			BSONEncoder encoder,
 			OutputBuffer output) {
@@ -213,6 +489,160 @@ public class MongoChannelHandler extends SimpleChannelHandler {
 		output.setPosition(end);
 	}
 
+	/**
+	 * リクエストの送信完了を {@link RequestFuture} へ反映するリスナー
+	 */
+	private static class WriteCompletionListener implements ChannelFutureListener {
+		
+		private RequestTable requests;
+		
+		private RequestFuture future;
+		
+		private boolean completeOnWrite;
+		
+		private WriteCompletionListener(RequestTable requests, RequestFuture future, boolean completeOnWrite) {
+			this.requests = requests;
+			this.future = future;
+			this.completeOnWrite = completeOnWrite;
+		}
+		
+		@Override
+		public void operationComplete(ChannelFuture channelFuture) throws Exception {
+			if (!channelFuture.isSuccess()) {
+				// 送信に失敗した場合は返信が来ないため、待ち受けを解除する
+				Request request = future.getRequest();
+				requests.remove(request.getWaitingRequestId(), request);
+				future.cancelTimeout();
+				future.setFailure(new MongoConnectionException("Failed to send request.", channelFuture.getCause()));
+			} else if (completeOnWrite) {
+				future.setSuccess(null);
+			}
+		}
+	}
+
+	/**
+	 * グループコミットの確認結果を、ウィンドウ内の更新へ反映するリスナー
+	 */
+	private class GroupCommitListener implements OperationListener<Response>, TimerTask {
+		
+		private ChannelHandlerContext ctx;
+		
+		private GroupCommit group;
+		
+		private long windowId;
+		
+		// ウィンドウを開いてから確認までに送信したリクエスト数
+		private long span;
+		
+		private List<RequestFuture> members;
+		
+		private GroupCommitListener(
+				ChannelHandlerContext ctx,
+				GroupCommit group,
+				long windowId,
+				long span,
+				List<RequestFuture> members) {
+			this.ctx = ctx;
+			this.group = group;
+			this.windowId = windowId;
+			this.span = span;
+			this.members = members;
+		}
+		
+		@Override
+		public void operationComplete(OperationFuture<Response> commit) {
+			int size = members.size();
+			if (commit.isSuccess()) {
+				Response response = null;
+				MongoException failure = null;
+				try {
+					response = commit.get();
+					// ウィンドウより前のリクエストのエラーは、ウィンドウの結果に含めない
+					Object prev = response.getDocuments().get(0).get("nPrev");
+					if (prev instanceof Number && ((Number) prev).longValue() > span) {
+						response = null;
+					}
+					MongoConnectionImpl.checkLastError(response);
+				} catch (MongoException ex) {
+					failure = new GroupCommitException(
+							"Group commit window " + windowId + " (" + size + " requests) failed: "
+							+ ex.getMessage(), ex.getCode(), windowId, size);
+				} catch (Exception ex) {
+					failure = new GroupCommitException(
+							"Group commit window " + windowId + " (" + size + " requests) failed.",
+							ex, windowId, size);
+				}
+				for (RequestFuture member : members) {
+					if (failure == null) {
+						member.setSuccess(response);
+					} else {
+						member.setFailure(failure);
+					}
+				}
+				next();
+			} else {
+				GroupCommitException failure = new GroupCommitException(
+						"Group commit window " + windowId + " (" + size + " requests) was not confirmed.",
+						commit.getCause(), windowId, size);
+				for (RequestFuture member : members) {
+					member.setFailure(failure);
+				}
+				// 送信失敗の通知中は I/O のロックを保持している場合があるため、
+				// 次のウィンドウの送信はタイマースレッドで行う
+				if (timer == null) {
+					next();
+				} else {
+					timer.newTimeout(this, 0, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			next();
+		}
+		
+		/**
+		 * 確認待ちを解除し、次のウィンドウに更新があれば確認を送信します。
+		 */
+		private void next() {
+			synchronized (group) {
+				group.complete();
+				if (group.shouldClose()) {
+					writeGroupCommit(ctx, group);
+				}
+			}
+			getState(ctx).getWriteBatcher().flush(ctx);
+		}
+	}
+
+	/**
+	 * 返信が届かないリクエストを、返信待ちから除去して失敗させるタスク
+	 */
+	private class RequestTimeoutTask implements TimerTask {
+		
+		private RequestTable requests;
+		
+		private Request request;
+		
+		private RequestTimeoutTask(RequestTable requests, Request request) {
+			this.requests = requests;
+			this.request = request;
+		}
+		
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			if (timeout.isCancelled()) {
+				return;
+			}
+			if (requests.remove(request.getWaitingRequestId(), request)) {
+				request.getFuture().setFailure(new MongoException(
+						"No reply for request " + request.getWaitingRequestId()
+						+ " within " + config.getOperationTimeout() + " ms."));
+			}
+		}
+	}
+
 	/*
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
@@ -0,0 +1,51 @@
+package jp.ameba.mongo;
+
+import java.util.concurrent.Executor;
+
+/**
+ * チャネルごとに保持する状態です。
+ * {@link MongoChannelHandler} のコンテキストに添付され、
+ * 他のチャネルとは共有されません。
+ * 
+ * @author suguru
+ */
+final class MongoChannelState {
+	
+	// 返信待ちのリクエスト一覧
+	private final RequestTable requests = new RequestTable();
+	
+	// 送信をまとめるためのキュー
+	private final WriteBatcher writeBatcher;
+	
+	// グループコミットのウィンドウ
+	private final GroupCommit groupCommit;
+	
+	MongoChannelState(MongoConfiguration config, Executor executor) {
+		this.writeBatcher = new WriteBatcher(config, executor);
+		this.groupCommit = new GroupCommit(config.getMaxGroupCommitSize());
+	}
+	
+	/**
+	 * 返信待ちのリクエスト一覧を取得します。
+	 * @return
+	 */
+	RequestTable getRequests() {
+		return requests;
+	}
+	
+	/**
+	 * 送信をまとめるためのキューを取得します。
+	 * @return
+	 */
+	WriteBatcher getWriteBatcher() {
+		return writeBatcher;
+	}
+	
+	/**
+	 * グループコミットのウィンドウを取得します。
+	 * @return
+	 */
+	GroupCommit getGroupCommit() {
+		return groupCommit;
+	}
+}
@@ -2,12 +2,28 @@ package jp.ameba.mongo;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONObject;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.Timer;
 
 
 /**
@@ -28,18 +44,59 @@ public class MongoClient {
 	// 接続 Round Robin
 	private AtomicInteger roundRobinKey;
 	
+	// 接続の選択に使用する乱数
+	private Random random;
+	
 	// MongoConnection の Channel ID 対応表
 	private ConcurrentMap<Integer, MongoConnection> connectionMap;
 	
 	// MongoDatabase 対応表
 	private ConcurrentMap<String, MongoDatabase> databaseMap;
+	
+	// 接続断の間の更新を保持するスプール
+	private volatile WriteSpool spool;
+	
+	// スプールに追記する接続
+	private volatile SpoolingConnection spoolingConnection;
+	
+	// 送信中の同一クエリの結果を共有する
+	private QueryDeduplicator deduplicator;
+	
+	// _id による検索をまとめる
+	private IdLookupBatcher idLookupBatcher;
+	
+	// サーバーの往復時間の計測
+	private volatile ServerMonitor monitor;
+	
+	// レプリカセットの構成
+	private Topology topology;
+	
+	// 読み込み設定ごとに絞り込んだ接続一覧
+	private ConcurrentMap<ReadPreference, Selection> selectionMap;
+	
+	// 切断された接続の再接続
+	private Reconnector reconnector;
+	
+	// 読み込みの再送の制限
+	private RetryBudget retryBudget;
+	
+	// 読み込みを再送した回数
+	private AtomicLong retryCount;
 
 	public MongoClient() {
 		this.channelHandler = new MongoChannelHandler();
 		this.driver = new MongoDriver(channelHandler);
 		this.roundRobinKey = new AtomicInteger();
+		this.random = new Random();
 		this.connectionMap = new ConcurrentHashMap<Integer, MongoConnection>();
 		this.databaseMap = new ConcurrentHashMap<String, MongoDatabase>();
+		this.deduplicator = new QueryDeduplicator();
+		this.idLookupBatcher = new IdLookupBatcher(this);
+		this.topology = new Topology(this);
+		this.selectionMap = new ConcurrentHashMap<ReadPreference, Selection>();
+		this.reconnector = new Reconnector(this);
+		this.retryBudget = new RetryBudget();
+		this.retryCount = new AtomicLong();
 	}
 	
 	/**
@@ -52,11 +109,35 @@ public class MongoClient {
 	
 	/**
 	 * 接続をクローズします。
+	 * 接続の切断を待ってから、ドライバーのタイマーと I/O スレッドを停止します。
 	 */
 	public void close() {
+		idLookupBatcher.close();
+		reconnector.close();
+		if (monitor != null) {
+			monitor.close();
+		}
+		List<MongoFuture> futures = new ArrayList<MongoFuture>(connectionMap.size());
 		for (MongoConnection connection : connectionMap.values()) {
-			connection.closeAsync();
+			// 切断済みの接続は待たない
+			if (connection.isOpen()) {
+				futures.add(connection.closeAsync());
+			}
+		}
+		synchronized (this) {
+			if (spool != null) {
+				spool.close();
+			}
 		}
+		long timeout = getConfiguration().getOperationTimeout();
+		try {
+			for (MongoFuture future : futures) {
+				future.await(timeout, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		driver.close();
 	}
 	
 	/**
@@ -91,6 +172,22 @@ public class MongoClient {
 		return driver.getConfiguration();
 	}
 	
+	/**
+	 * ドライバーのタイマーを取得します。
+	 * @return
+	 */
+	Timer getTimer() {
+		return driver.getTimer();
+	}
+	
+	/**
+	 * タイマーから委譲された処理を実行する {@link Executor} を取得します。
+	 * @return
+	 */
+	Executor getTaskExecutor() {
+		return driver.getTaskExecutor();
+	}
+	
 	/**
 	 * 使用するサーバー接続を追加します。
 	 * @param host
@@ -102,29 +199,416 @@ public class MongoClient {
 	
 	/**
 	 * 使用するサーバー接続を追加します。
+	 * 設定したサーバーごとの接続数の接続を開始します。
 	 * @param socketAddress
 	 */
 	public void addServer(SocketAddress socketAddress) {
+		int connections = Math.max(1, getConfiguration().getConnectionsPerServer());
+		for (int i = 0; i < connections; i++) {
+			openConnection(socketAddress).openAsync();
+		}
+		if (monitor == null && getConfiguration().getHeartbeatInterval() > 0) {
+			synchronized (this) {
+				if (monitor == null) {
+					ServerMonitor newMonitor = new ServerMonitor(this);
+					newMonitor.start();
+					monitor = newMonitor;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * サーバーへの接続を作成し、接続一覧に追加します。
+	 * 接続は切断された場合に再接続されます。
+	 * @param socketAddress
+	 * @return 接続を開始していない接続
+	 */
+	MongoConnection openConnection(SocketAddress socketAddress) {
 		MongoConnection connection = driver.createConnection(socketAddress);
-		connection.openAsync();
+		if (connection instanceof MongoConnectionImpl) {
+			reconnector.watch((MongoConnectionImpl) connection);
+		}
 		connectionMap.put(
 				connection.getChannelId(),
 				connection
 		);
+		return connection;
+	}
+	
+	/**
+	 * プライマリに対して、接続一覧に含めない専用の接続を開きます。
+	 * 専用の接続は送信先として選択されず、切断されても再接続しません。
+	 * 長時間返信を待つリクエストが、他のリクエストを待たせないために使用します。
+	 * @return 接続済みの接続
+	 */
+	MongoConnection openPrivateConnection() {
+		SocketAddress address = getLiveConnection().getServerAddress();
+		MongoConnection connection = driver.createConnection(address);
+		channelHandler.addPrivateChannel(connection.getChannelId());
+		connection.open();
+		return connection;
+	}
+	
+	/**
+	 * 再接続により置き換えた接続を、接続一覧から除去します。
+	 * @param connection
+	 */
+	void removeConnection(MongoConnection connection) {
+		connectionMap.remove(connection.getChannelId());
+		channelHandler.removeDeadChannel(connection.getChannelId());
+	}
+	
+	/**
+	 * 再接続した回数を取得します。
+	 * @return
+	 */
+	long getReconnectCount() {
+		return reconnector.getReconnectCount();
+	}
+	
+	/**
+	 * サーバーごとの往復時間の移動平均を取得します。
+	 * 往復時間は {@link MongoConfiguration#setHeartbeatInterval(long)} を設定した場合に計測します。
+	 * @return サーバーのアドレスと往復時間（マイクロ秒）
+	 */
+	public Map<SocketAddress, Long> getRoundTripTimes() {
+		ServerMonitor current = monitor;
+		if (current == null) {
+			return Collections.emptyMap();
+		}
+		return current.getRoundTripTimes();
+	}
+	
+	/**
+	 * 作成したすべての接続を取得します。
+	 * @return
+	 */
+	Collection<MongoConnection> getConnections() {
+		return connectionMap.values();
 	}
 	
 	/**
 	 * 接続を取得します。
+	 * スプールを設定している場合、プライマリへの有効な接続がなければ
+	 * 更新をスプールに追記する接続を返却します。スプールに送信していない更新が残っている間は、
+	 * 更新の順序を保つため、接続の回復後もスプールに追記します。
 	 * @return
 	 */
 	public MongoConnection getConnection() {
+		WriteSpool spool = getSpool();
+		if (spool == null) {
+			return getLiveConnection();
+		}
+		boolean live = hasPrimary();
+		if (!live) {
+			spool.activate();
+		}
+		if (!spool.isActive()) {
+			return getLiveConnection();
+		}
+		if (live) {
+			spool.startReplay(this);
+		}
+		return spoolingConnection;
+	}
+	
+	/**
+	 * 読み込み設定に応じたサーバーへの接続を取得します。
+	 * サーバーの役割は isMaster の定期的な送信によって取得するため、
+	 * {@link MongoConfiguration#setHeartbeatInterval(long)} を設定していない場合は
+	 * 常に {@link #getConnection()} と同じ接続を返却します。
+	 * @param readPreference
+	 * @return
+	 */
+	public MongoConnection getConnection(ReadPreference readPreference) {
+		if (readPreference == null || readPreference == ReadPreference.PRIMARY) {
+			return getConnection();
+		}
+		return getLiveConnection(readPreference);
+	}
+	
+	/**
+	 * 1件のみ取得するクエリを送信し、結果を取得します。
+	 * 設定に応じて、送信中の同一クエリの結果を共有します。
+	 * @param query
+	 * @return
+	 */
+	Response query(Query query) {
+		return query(query, getConfiguration().getReadPreference());
+	}
+	
+	/**
+	 * 1件のみ取得するクエリを送信し、結果を取得します。
+	 * slaveOk を指定したクエリは、読み込み設定に応じたサーバーに送信します。
+	 * @param query
+	 * @param readPreference
+	 * @return
+	 */
+	Response query(Query query, ReadPreference readPreference) {
+		for (int attempt = 0; ; attempt++) {
+			MongoConnection conn = getQueryConnection(query, readPreference);
+			try {
+				Response response;
+				if (getConfiguration().isDeduplicateQueries()) {
+					response = deduplicator.query(conn, query);
+				} else {
+					response = conn.query(query);
+				}
+				readSucceeded();
+				return response;
+			} catch (MongoConnectionException ex) {
+				if (!retryRead(attempt)) {
+					throw ex;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 1件のみ取得するクエリを非同期に送信します。
+	 * 設定に応じて、送信中の同一クエリの結果を共有します。
+	 * @param query
+	 * @return
+	 */
+	OperationFuture<Response> queryAsync(Query query) {
+		return queryAsync(query, getConfiguration().getReadPreference());
+	}
+	
+	/**
+	 * 1件のみ取得するクエリを非同期に送信します。
+	 * slaveOk を指定したクエリは、読み込み設定に応じたサーバーに送信します。
+	 * @param query
+	 * @param readPreference
+	 * @return
+	 */
+	OperationFuture<Response> queryAsync(Query query, ReadPreference readPreference) {
+		OperationFuture<Response> future = sendQueryAsync(query, readPreference);
+		if (getConfiguration().getReadRetries() <= 0) {
+			return future;
+		}
+		OperationFuture<Response> result = new OperationFuture<Response>();
+		future.addListener(new ReadRetryListener(query, readPreference, result));
+		return result;
+	}
+	
+	/**
+	 * 1件のみ取得するクエリを、再送せずに非同期に送信します。
+	 */
+	private OperationFuture<Response> sendQueryAsync(Query query, ReadPreference readPreference) {
+		MongoConnection conn = getQueryConnection(query, readPreference);
+		if (getConfiguration().isDeduplicateQueries()) {
+			return deduplicator.queryAsync(conn, query);
+		}
+		return conn.queryAsync(query);
+	}
+	
+	/**
+	 * 接続の切断により失敗した読み込みを再送するか判定します。
+	 * 設定した再送回数と、クライアント全体の再送の割合による制限の範囲内でのみ再送します。
+	 * @param attempt これまでに再送した回数
+	 * @return
+	 */
+	boolean retryRead(int attempt) {
+		if (attempt >= getConfiguration().getReadRetries() || !retryBudget.tryAcquire()) {
+			return false;
+		}
+		retryCount.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * 読み込みの成功を再送の制限に反映します。
+	 */
+	void readSucceeded() {
+		retryBudget.refill();
+	}
+	
+	/**
+	 * 読み込みを再送した回数を取得します。
+	 * @return
+	 */
+	long getRetryCount() {
+		return retryCount.get();
+	}
+	
+	/**
+	 * クエリを送信する接続を取得します。
+	 * slaveOk を指定していないクエリはプライマリに送信します。
+	 */
+	private MongoConnection getQueryConnection(Query query, ReadPreference readPreference) {
+		if (query.isSlaveOk()) {
+			return getConnection(readPreference);
+		}
+		return getConnection();
+	}
+	
+	/**
+	 * _id による検索を、同じコレクションへの他の検索とまとめて送信します。
+	 * @param databaseName
+	 * @param collectionName
+	 * @param id
+	 * @param lazy
+	 * @return 該当するドキュメントがない場合は null で完了する future
+	 */
+	OperationFuture<BSONObject> lookup(String databaseName, String collectionName, Object id, boolean lazy) {
+		return idLookupBatcher.lookup(databaseName, collectionName, id, lazy);
+	}
+	
+	/**
+	 * 送信中のクエリの結果を共有した回数を取得します。
+	 * @return
+	 */
+	long getSharedQueryCount() {
+		return deduplicator.getSharedCount();
+	}
+	
+	/**
+	 * スプールを使用せず、プライマリへの有効な接続を取得します。
+	 * @return
+	 */
+	MongoConnection getLiveConnection() {
+		return getLiveConnection(ReadPreference.PRIMARY);
+	}
+	
+	/**
+	 * スプールを使用せず、読み込み設定に応じたサーバーへの有効な接続を取得します。
+	 * 無作為に選んだ2つの接続のうち、完了していないリクエストの少ない接続を返却します。
+	 * @param readPreference
+	 * @return
+	 */
+	MongoConnection getLiveConnection(ReadPreference readPreference) {
 		List<Channel> connectionList = channelHandler.getLiveChannelList();
 		if (connectionList.size() == 0) {
 			awaitOpen();
+			connectionList = channelHandler.getLiveChannelList();
+		}
+		connectionList = select(connectionList, readPreference);
+		if (connectionList.isEmpty()) {
+			throw new MongoException("No active connections for " + readPreference);
+		}
+		int size = connectionList.size();
+		// 負の値にならないよう符号ビットを落とす
+		int index = (roundRobinKey.getAndIncrement() & Integer.MAX_VALUE) % size;
+		MongoConnection first = connectionMap.get(connectionList.get(index).getId());
+		if (size == 1) {
+			return first;
+		}
+		int other = (index + 1 + random.nextInt(size - 1)) % size;
+		MongoConnection second = connectionMap.get(connectionList.get(other).getId());
+		if (second != null && (first == null || second.getInFlightCount() < first.getInFlightCount())) {
+			return second;
+		}
+		return first;
+	}
+	
+	/**
+	 * 往復時間を計測している場合は、読み込み設定に応じた役割のサーバーのうち、
+	 * 最も速いサーバーから設定した範囲内のサーバーへの接続に絞り込みます。
+	 * レプリカセットの構成を取得していない間は、すべてのサーバーをプライマリとして扱います。
+	 * @param liveChannelList
+	 * @param readPreference
+	 * @return 該当するサーバーへの接続がない場合は空の一覧
+	 */
+	private List<Channel> select(List<Channel> liveChannelList, ReadPreference readPreference) {
+		ServerMonitor current = monitor;
+		if (current == null) {
+			return liveChannelList;
+		}
+		// 接続一覧、計測結果および構成が変わらない間は、絞り込んだ結果を再利用する
+		Object monitorVersion = current.getVersion();
+		Object topologyVersion = topology.getVersion();
+		Selection last = selectionMap.get(readPreference);
+		if (last != null
+				&& last.liveChannelList == liveChannelList
+				&& last.monitorVersion == monitorVersion
+				&& last.topologyVersion == topologyVersion) {
+			return last.channelList;
+		}
+		boolean known = topology.isKnown();
+		Set<SocketAddress> primaries = new HashSet<SocketAddress>();
+		Set<SocketAddress> secondaries = new HashSet<SocketAddress>();
+		for (Channel channel : liveChannelList) {
+			MongoConnection connection = connectionMap.get(channel.getId());
+			if (connection == null || connection.getServerAddress() == null) {
+				continue;
+			}
+			SocketAddress address = connection.getServerAddress();
+			Topology.Role role = known ? topology.getRole(address) : Topology.Role.PRIMARY;
+			if (role == Topology.Role.PRIMARY) {
+				primaries.add(address);
+			} else if (role == Topology.Role.SECONDARY) {
+				secondaries.add(address);
+			}
+		}
+		Set<SocketAddress> servers;
+		switch (readPreference) {
+		case PRIMARY_PREFERRED:
+			servers = current.nearest(primaries.isEmpty() ? secondaries : primaries);
+			break;
+		case SECONDARY:
+			servers = current.nearest(secondaries);
+			break;
+		case SECONDARY_PREFERRED:
+			servers = current.nearest(secondaries.isEmpty() ? primaries : secondaries);
+			break;
+		case NEAREST:
+			Set<SocketAddress> members = new HashSet<SocketAddress>(primaries);
+			members.addAll(secondaries);
+			servers = current.nearest(members);
+			break;
+		default:
+			servers = current.nearest(primaries);
+			break;
+		}
+		List<Channel> channelList = new ArrayList<Channel>(liveChannelList.size());
+		for (Channel channel : liveChannelList) {
+			MongoConnection connection = connectionMap.get(channel.getId());
+			if (connection != null && servers.contains(connection.getServerAddress())) {
+				channelList.add(channel);
+			}
+		}
+		if (channelList.isEmpty() && !known) {
+			// 構成が不明な間に応答がない場合は、すべての接続を対象とする
+			channelList = liveChannelList;
+		}
+		selectionMap.put(readPreference, new Selection(liveChannelList, monitorVersion, topologyVersion, channelList));
+		return channelList;
+	}
+	
+	/**
+	 * プライマリへの有効な接続が存在するか確認します。
+	 * @return
+	 */
+	private boolean hasPrimary() {
+		List<Channel> liveChannelList = channelHandler.getLiveChannelList();
+		return !liveChannelList.isEmpty() && !select(liveChannelList, ReadPreference.PRIMARY).isEmpty();
+	}
+	
+	/**
+	 * レプリカセットの構成を取得します。
+	 * @return
+	 */
+	Topology getTopology() {
+		return topology;
+	}
+	
+	/**
+	 * 設定に応じてスプールを取得します。
+	 * @return スプールを使用しない場合は null
+	 */
+	private WriteSpool getSpool() {
+		if (spool != null || getConfiguration().getSpoolDirectory() == null) {
+			return spool;
+		}
+		synchronized (this) {
+			if (spool == null) {
+				WriteSpool newSpool = new WriteSpool(getConfiguration());
+				spoolingConnection = new SpoolingConnection(this, newSpool);
+				spool = newSpool;
+			}
+			return spool;
 		}
-		int index = roundRobinKey.getAndIncrement() % connectionList.size();
-		Channel channel = connectionList.get(index);
-		return connectionMap.get(channel.getId());
 	}
 	
 	/**
@@ -159,6 +643,18 @@ public class MongoClient {
 		return null;
 	}
 
+	/**
+	 * コレクション名を指定して、
+	 * {@link MongoAsyncCollection} インスタンスを取得します。
+	 * 
+	 * @param databaseName
+	 * @param collectionName
+	 * @return
+	 */
+	public MongoAsyncCollection getAsyncCollection(String databaseName, String collectionName) {
+		return getDatabase(databaseName).getAsyncCollection(collectionName);
+	}
+
 	/**
 	 * 1つでも利用可能な接続があるまで待ちます。
 	 * 接続タイムアウト時間を過ぎても接続が確立されない場合は、
@@ -179,4 +675,83 @@ public class MongoClient {
 			throw new MongoException("No active connections");
 		}
 	}
+	
+	/**
+	 * 接続の切断により失敗したクエリを、他の接続に再送するリスナー
+	 * 接続の選択は接続の回復を待つ場合があるため、再送は I/O スレッドではなくタスク用の Executor で行う
+	 */
+	private class ReadRetryListener implements OperationListener<Response>, Runnable {
+		
+		private final Query query;
+		
+		private final ReadPreference readPreference;
+		
+		private final OperationFuture<Response> result;
+		
+		// これまでに再送した回数
+		private int attempt = 0;
+		
+		private ReadRetryListener(Query query, ReadPreference readPreference, OperationFuture<Response> result) {
+			this.query = query;
+			this.readPreference = readPreference;
+			this.result = result;
+		}
+		
+		@Override
+		public void operationComplete(OperationFuture<Response> future) {
+			if (future.isSuccess()) {
+				readSucceeded();
+				try {
+					result.setSuccess(future.get());
+				} catch (Exception ex) {
+					result.setFailure(ex);
+				}
+				return;
+			}
+			if (future.getCause() instanceof MongoConnectionException && retryRead(attempt)) {
+				attempt++;
+				try {
+					getTaskExecutor().execute(this);
+				} catch (RejectedExecutionException ex) {
+					result.setFailure(future.getCause());
+				}
+			} else {
+				result.setFailure(future.getCause());
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				sendQueryAsync(query, readPreference).addListener(this);
+			} catch (Exception ex) {
+				result.setFailure(ex);
+			}
+		}
+	}
+	
+	/**
+	 * 読み込み設定と往復時間によって絞り込んだ接続一覧
+	 */
+	private static class Selection {
+		
+		// 絞り込み前の接続一覧
+		private final List<Channel> liveChannelList;
+		
+		// 絞り込みに使用した往復時間の識別子
+		private final Object monitorVersion;
+		
+		// 絞り込みに使用した構成の識別子
+		private final Object topologyVersion;
+		
+		// 絞り込んだ接続一覧
+		private final List<Channel> channelList;
+		
+		private Selection(List<Channel> liveChannelList, Object monitorVersion, Object topologyVersion, List<Channel> channelList) {
+			this.liveChannelList = liveChannelList;
+			this.monitorVersion = monitorVersion;
+			this.topologyVersion = topologyVersion;
+			this.channelList = channelList;
+		}
+	}
 }
@@ -1,5 +1,7 @@
 package jp.ameba.mongo;
 
+import java.util.List;
+
 import jp.ameba.mongo.protocol.Consistency;
 import jp.ameba.mongo.protocol.FindAndModify;
 
@@ -32,6 +34,41 @@ public interface MongoCollection {
 	 * @param consistency
 	 */
 	void setDefaultConsistency(Consistency consistency);
+	
+	/**
+	 * 検索結果のドキュメントを遅延デコードするかを設定します。
+	 * 有効な場合、 find および cursor の結果は
+	 * {@link jp.ameba.mongo.protocol.LazyBSONObject} として返却されます。
+	 * @param lazyDecoding
+	 */
+	void setLazyDecoding(boolean lazyDecoding);
+
+	/**
+	 * find の結果をキャッシュする {@link DocumentCache} を設定します。
+	 * このコレクション、および同じ {@link MongoDatabase} から取得した同名の
+	 * {@link MongoAsyncCollection} を通した書き込み（ findAndModify, bulkWrite, bulkLoader,
+	 * writeCoalescer, counterAccumulator を含む）では、完了後にキャッシュを破棄しますが、
+	 * 他のクライアントによる更新は、有効期間が経過するまで反映されません。
+	 * また、 _id 以外の条件による検索結果は、新たに条件に一致するようになった
+	 * ドキュメントがあっても、有効期間が経過するまで反映されません。
+	 * @param documentCache null の場合はキャッシュしない
+	 */
+	void setDocumentCache(DocumentCache documentCache);
+
+	/**
+	 * findById および findByIds の結果をキャッシュする {@link OplogNearCache} を設定します。
+	 * 他のクライアントによる更新は oplog の追跡により反映されます。
+	 * @param nearCache null の場合はキャッシュしない
+	 */
+	void setNearCache(OplogNearCache nearCache);
+
+	/**
+	 * find, count および cursor の送信先を設定します。
+	 * 設定した場合、クエリに slaveOk を指定し、 {@link ReadPreference} に応じたサーバーに送信します。
+	 * findById および findByIds は常にプライマリに送信します。
+	 * @param readPreference null の場合はプライマリに送信する
+	 */
+	void setReadPreference(ReadPreference readPreference);
 
 	/**
 	 * ドキュメントを挿入します。
@@ -58,6 +95,38 @@ public interface MongoCollection {
 	 * @param consistency
 	 */
 	void insert(BSONObject[] documents, Consistency consistency);
+	
+	/**
+	 * 大量のドキュメントを挿入するための {@link MongoBulkLoader} を取得します。
+	 * ローダーはこのコレクションのデフォルトの一貫性レベルを使用します。
+	 * @return
+	 */
+	MongoBulkLoader bulkLoader();
+	
+	/**
+	 * 挿入・更新・削除をまとめて実行するための {@link BulkWrite} を取得します。
+	 * @return
+	 */
+	BulkWrite bulkWrite();
+	
+	/**
+	 * $inc による加算を _id ごとにまとめて送信する
+	 * {@link CounterAccumulator} を取得します。
+	 * 使用後は {@link CounterAccumulator#close()} で残りの値を送信する必要があります。
+	 * @param flushInterval 送信間隔（ミリ秒）
+	 * @param maxKeys 送信するまでに合算する _id の最大数
+	 * @return
+	 */
+	CounterAccumulator counterAccumulator(long flushInterval, int maxKeys);
+	
+	/**
+	 * _id を指定した更新と削除を $in を使用した操作にまとめて送信する
+	 * {@link WriteCoalescer} を取得します。
+	 * 使用後は {@link WriteCoalescer#close()} で残りの操作を送信する必要があります。
+	 * @param flushInterval 送信間隔（ミリ秒）
+	 * @return
+	 */
+	WriteCoalescer writeCoalescer(long flushInterval);
 
 	/**
 	 * 指定のクエリ条件に該当するオブジェクトを取得します。
@@ -76,6 +145,22 @@ public interface MongoCollection {
 	 */
 	BSONObject find(BSONObject selector, BSONObject fields);
 	
+	/**
+	 * 指定の _id のオブジェクトを取得します。
+	 * 同時に実行された同じコレクションへの _id による検索は、
+	 * {_id: {$in: [...]}} を条件とした1回のクエリにまとめて送信されます。
+	 * @param id
+	 * @return 該当するオブジェクトがない場合は null
+	 */
+	BSONObject findById(Object id);
+	
+	/**
+	 * 指定の _id のオブジェクトをまとめて取得します。
+	 * @param ids
+	 * @return _id と同じ順序のオブジェクト一覧。該当するオブジェクトがない場合は null
+	 */
+	List<BSONObject> findByIds(List<?> ids);
+	
 	/**
 	 * クエリ実行のための {@link MongoCursor} を取得します。
 	 * @return
@@ -1,6 +1,12 @@
 package jp.ameba.mongo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import jp.ameba.mongo.protocol.Consistency;
 import jp.ameba.mongo.protocol.Delete;
@@ -30,6 +36,12 @@ public class MongoCollectionImpl implements MongoCollection {
 	private String collectionName;
 	// 対象の名前空間を表すフルネーム
 	private String fullName;
+	// 検索結果を遅延デコードするか
+	private boolean lazyDecoding = false;
+	// 検索結果のキャッシュと、書き込みによる破棄
+	private CacheInvalidator invalidator;
+	// クエリの送信先
+	private ReadPreference readPreference;
 	
 	/**
 	 * {@link MongoCollectionImpl} を構成します。
@@ -42,6 +54,22 @@ public class MongoCollectionImpl implements MongoCollection {
 			MongoClient client,
 			String databaseName,
 			String collectionName) {
+		this(client, databaseName, collectionName, null);
+	}
+	
+	/**
+	 * キャッシュを共有する {@link CacheInvalidator} を指定して {@link MongoCollectionImpl} を構成します。
+	 * 
+	 * @param client
+	 * @param databaseName
+	 * @param collectionName
+	 * @param invalidator null の場合は新たに作成
+	 */
+	MongoCollectionImpl(
+			MongoClient client,
+			String databaseName,
+			String collectionName,
+			CacheInvalidator invalidator) {
 		this.client = client;
 		this.databaseName = databaseName;
 		this.collectionName = collectionName;
@@ -50,6 +78,7 @@ public class MongoCollectionImpl implements MongoCollection {
 			.append('.')
 			.append(collectionName)
 			.toString();
+		this.invalidator = invalidator != null ? invalidator : new CacheInvalidator(fullName);
 	}
 	
 	/**
@@ -60,6 +89,29 @@ public class MongoCollectionImpl implements MongoCollection {
 		this.defaultConsistency = defaultConsistency;
 	}
 	
+	/**
+	 * 検索結果を遅延デコードするかを設定します。
+	 * @param lazyDecoding
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+	
+	@Override
+	public void setDocumentCache(DocumentCache documentCache) {
+		invalidator.setDocumentCache(documentCache);
+	}
+	
+	@Override
+	public void setNearCache(OplogNearCache nearCache) {
+		invalidator.setNearCache(nearCache);
+	}
+	
+	@Override
+	public void setReadPreference(ReadPreference readPreference) {
+		this.readPreference = readPreference;
+	}
+	
 	/**
 	 * {@link MongoClient} を取得します。
 	 * @return
@@ -96,6 +148,7 @@ public class MongoCollectionImpl implements MongoCollection {
 				collectionName,
 				document
 		).consistency(consistency));
+		invalidator.invalidateDocument(document);
 	}
 
 	@Override
@@ -105,46 +158,169 @@ public class MongoCollectionImpl implements MongoCollection {
 
 	@Override
 	public void insert(BSONObject[] documents, Consistency consistency) {
-		client.getConnection().insert(new Insert(
+		// サーバーの最大メッセージサイズを超えないよう、分割して送信する
+		bulkLoader().consistency(consistency).load(Arrays.asList(documents));
+	}
+	
+	@Override
+	public MongoBulkLoader bulkLoader() {
+		return client.getConnection()
+				.bulkLoader(databaseName, collectionName)
+				.consistency(defaultConsistency)
+				.invalidator(invalidator);
+	}
+	
+	@Override
+	public BulkWrite bulkWrite() {
+		return new BulkWrite(client, databaseName, collectionName, defaultConsistency)
+				.invalidator(invalidator);
+	}
+	
+	@Override
+	public CounterAccumulator counterAccumulator(long flushInterval, int maxKeys) {
+		return new CounterAccumulator(
+				client,
 				databaseName,
 				collectionName,
-				Arrays.asList(documents)
-		).consistency(consistency));
+				defaultConsistency,
+				flushInterval,
+				maxKeys,
+				invalidator);
+	}
+	
+	@Override
+	public WriteCoalescer writeCoalescer(long flushInterval) {
+		return new WriteCoalescer(
+				client,
+				databaseName,
+				collectionName,
+				defaultConsistency,
+				flushInterval,
+				invalidator);
 	}
 	
 	@Override
 	public BSONObject find(BSONObject selector) {
-		return client.getConnection().query(
-				new Query(
-						databaseName,
-						collectionName,
-						0,
-						1,
-						selector)
-				).getDocument();
+		return find(selector, null);
 	}
 	
 	@Override
 	public BSONObject find(BSONObject selector, BSONObject fields) {
-		return client.getConnection().query(
-				new Query(
-						databaseName,
-						collectionName,
-						0,
-						1,
-						selector,
-						fields)
-				).getDocument();
+		DocumentCache cache = invalidator.getDocumentCache();
+		if (cache == null) {
+			return query(selector, fields);
+		}
+		DocumentCache.Key key = cache.key(fullName, selector, fields);
+		BSONObject document = cache.get(key, lazyDecoding);
+		if (document != null) {
+			return document;
+		}
+		long stamp = cache.stamp();
+		document = query(selector, fields);
+		if (document != null) {
+			cache.put(key, document, stamp);
+		}
+		return document;
+	}
+	
+	/**
+	 * 条件に一致する最初のドキュメントをサーバーから取得します。
+	 */
+	private BSONObject query(BSONObject selector, BSONObject fields) {
+		Query query;
+		if (fields == null) {
+			query = new Query(databaseName, collectionName, 0, 1, selector);
+		} else {
+			query = new Query(databaseName, collectionName, 0, 1, selector, fields);
+		}
+		return query(query.lazy(lazyDecoding)).getDocument();
+	}
+	
+	/**
+	 * 送信先を設定している場合は slaveOk を指定し、設定に応じたサーバーにクエリを送信します。
+	 */
+	private Response query(Query query) {
+		ReadPreference preference = readPreference;
+		if (preference == null) {
+			return client.query(query);
+		}
+		return client.query(query.slaveOk(true), preference);
+	}
+	
+	@Override
+	public BSONObject findById(Object id) {
+		return findByIds(Collections.singletonList(id)).get(0);
+	}
+	
+	@Override
+	public List<BSONObject> findByIds(List<?> ids) {
+		OplogNearCache near = invalidator.getNearCache();
+		DocumentCache cache = near != null && near.isCoherent() ? near.getCache() : null;
+		// すべての検索を送信待ちに追加してから待つ
+		List<BSONObject> documents = new ArrayList<BSONObject>(ids.size());
+		List<DocumentCache.Key> keys = new ArrayList<DocumentCache.Key>(ids.size());
+		List<OperationFuture<BSONObject>> futures = new ArrayList<OperationFuture<BSONObject>>(ids.size());
+		long stamp = cache == null ? 0L : cache.stamp();
+		for (Object id : ids) {
+			BSONObject document = null;
+			DocumentCache.Key key = null;
+			if (cache != null) {
+				key = cache.key(fullName, new BasicBSONObject("_id", id), null);
+				document = cache.get(key, lazyDecoding);
+			}
+			documents.add(document);
+			keys.add(key);
+			futures.add(document != null ? null : client.lookup(databaseName, collectionName, id, lazyDecoding));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			if (futures.get(i) == null) {
+				continue;
+			}
+			BSONObject document = await(futures.get(i));
+			if (document != null && cache != null) {
+				cache.put(keys.get(i), document, stamp);
+			}
+			documents.set(i, document);
+		}
+		return documents;
+	}
+	
+	/**
+	 * 操作タイムアウト時間まで、検索の完了を待ちます。
+	 * @param future
+	 * @return
+	 * @throws MongoException タイムアウト、もしくは検索が失敗した場合
+	 */
+	private BSONObject await(OperationFuture<BSONObject> future) {
+		long timeout = client.getConfiguration().getOperationTimeout();
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException ex) {
+			throw MongoConnectionImpl.toMongoException(ex);
+		} catch (TimeoutException ex) {
+			throw new MongoException("Operation timed out after " + timeout + " ms.", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MongoException(ex);
+		}
 	}
 	
 	@Override
 	public FindAndModify findAndModify() {
-		return new FindAndModify(client.getConnection(), databaseName, collectionName);
+		return invalidator.findAndModify(client.getConnection(), databaseName, collectionName);
 	}
 	
 	@Override
 	public MongoCursor cursor() {
-		return client.getConnection().cursor(databaseName, collectionName);
+		ReadPreference preference = readPreference;
+		MongoCursor cursor = client.getConnection(preference).cursor(databaseName, collectionName)
+			.client(client)
+			.invalidator(invalidator)
+			.lazy(lazyDecoding);
+		if (preference != null) {
+			cursor.readPreference(preference);
+		}
+		return cursor;
 	}
 
 	@Override
@@ -154,7 +330,7 @@ public class MongoCollectionImpl implements MongoCollection {
 
 	@Override
 	public long count(BSONObject selector) {
-		Response response = client.getConnection().query(
+		Response response = query(
 				new Query(databaseName, "$cmd", 0, 1, new BasicBSONObject()
 					.append("count", collectionName)
 					.append("query", selector)
@@ -180,6 +356,7 @@ public class MongoCollectionImpl implements MongoCollection {
 						document
 				).consistency(consistency)
 		);
+		invalidator.invalidate(selector);
 	}
 
 	@Override
@@ -198,6 +375,7 @@ public class MongoCollectionImpl implements MongoCollection {
 						document
 				).consistency(consistency).upsert()
 		);
+		invalidator.invalidate(selector);
 	}
 
 	@Override
@@ -214,6 +392,7 @@ public class MongoCollectionImpl implements MongoCollection {
 						selector
 				).consistency(consistency)
 		);
+		invalidator.invalidate(selector);
 	}
 	
 	@Override
@@ -223,6 +402,24 @@ public class MongoCollectionImpl implements MongoCollection {
 	
 	@Override
 	public void createIndex(String indexName, BSONObject keys, BSONObject options, Consistency consistency) {
+		client.getConnection().insert(
+				new Insert(
+						databaseName,
+						"system.indexes",
+						indexDocument(fullName, indexName, keys, options)
+				).consistency(consistency)
+		);
+	}
+	
+	/**
+	 * system.indexes に挿入するインデクス定義を作成します。
+	 * @param fullName
+	 * @param indexName
+	 * @param keys
+	 * @param options
+	 * @return
+	 */
+	static BSONObject indexDocument(String fullName, String indexName, BSONObject keys, BSONObject options) {
 		
 		BasicBSONObject doc = new BasicBSONObject();
 		if (options != null) {
@@ -243,15 +440,7 @@ public class MongoCollectionImpl implements MongoCollection {
 			.append("ns", fullName)
 			.append("name", indexName)
 		;
-
-		client.getConnection().insert(
-				new Insert(
-						databaseName,
-						"system.indexes",
-						doc
-				).consistency(consistency)
-		);
-
+		return doc;
 	}
 	
 	@Override
@@ -264,5 +453,6 @@ public class MongoCollectionImpl implements MongoCollection {
 						new BasicBSONObject("drop", collectionName)
 				)
 		);
+		invalidator.clear();
 	}
 }
@@ -1,5 +1,7 @@
 package jp.ameba.mongo;
 
+import java.util.concurrent.Executor;
+
 import jp.ameba.mongo.protocol.Consistency;
 
 /**
@@ -15,6 +17,48 @@ public class MongoConfiguration {
 	private long operationTimeout = 10000L;
 	// デフォルトの一貫性レベル
 	private Consistency defaultConsistency = Consistency.SAFE;
+	// 送信バッファにダイレクトバッファを使用するか
+	private boolean directBuffer = false;
+	// 送信バッファの初期サイズ
+	private int initialBufferSize = 1024;
+	// 送信バッファのプール数
+	private int bufferPoolSize = 64;
+	// プールに戻す送信バッファの最大サイズ
+	private int maxPooledBufferSize = 1024 * 1024;
+	// 非同期処理の完了通知を実行する Executor
+	private Executor callbackExecutor = null;
+	// 同じ接続への送信をまとめて書き込むか
+	private boolean writeBatching = false;
+	// まとめて書き込む最大バイト数
+	private int maxWriteBatchBytes = 64 * 1024;
+	// まとめて書き込む最大リクエスト数
+	private int maxWriteBatchCount = 128;
+	// グループコミットで1回の確認にまとめる最大リクエスト数
+	private int maxGroupCommitSize = 256;
+	// 接続断の間の更新を保持するスプールのディレクトリ
+	private String spoolDirectory = null;
+	// スプールのセグメントファイルのサイズ
+	private int spoolSegmentSize = 64 * 1024 * 1024;
+	// 送信中の同一クエリの結果を共有するか
+	private boolean deduplicateQueries = false;
+	// _id による検索をまとめる時間（ミリ秒）
+	private long idLookupWindow = 1L;
+	// _id による検索を1回のクエリにまとめる最大数
+	private int maxIdLookupKeys = 256;
+	// サーバーごとの接続数
+	private int connectionsPerServer = 1;
+	// サーバーの往復時間を計測する間隔（ミリ秒）
+	private long heartbeatInterval = 0L;
+	// 最も速いサーバーとの往復時間の差が、この範囲内のサーバーを使用する（ミリ秒）
+	private long latencyWindow = 15L;
+	// slaveOk を指定したクエリの送信先
+	private ReadPreference readPreference = ReadPreference.SECONDARY_PREFERRED;
+	// 切断された接続を再接続するまでの最初の間隔（ミリ秒）
+	private long reconnectInterval = 100L;
+	// 再接続するまでの間隔の上限（ミリ秒）
+	private long maxReconnectInterval = 10000L;
+	// 接続の切断により失敗した読み込みを再送する回数
+	private int readRetries = 2;
 
 	public MongoConfiguration() {
 	}
@@ -43,6 +87,174 @@ public class MongoConfiguration {
 		return defaultConsistency;
 	}
 	
+	/**
+	 * 送信バッファにダイレクトバッファを使用するかを取得します。
+	 * @return
+	 */
+	public boolean isDirectBuffer() {
+		return directBuffer;
+	}
+	
+	/**
+	 * 送信バッファの初期サイズを取得します。
+	 * @return
+	 */
+	public int getInitialBufferSize() {
+		return initialBufferSize;
+	}
+	
+	/**
+	 * 送信バッファのプール数を取得します。
+	 * @return
+	 */
+	public int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+	
+	/**
+	 * プールに戻す送信バッファの最大サイズを取得します。
+	 * @return
+	 */
+	public int getMaxPooledBufferSize() {
+		return maxPooledBufferSize;
+	}
+	
+	/**
+	 * 非同期処理の完了通知を実行する {@link Executor} を取得します。
+	 * @return
+	 */
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+	
+	/**
+	 * 同じ接続への送信をまとめて書き込むかを取得します。
+	 * @return
+	 */
+	public boolean isWriteBatching() {
+		return writeBatching;
+	}
+	
+	/**
+	 * まとめて書き込む最大バイト数を取得します。
+	 * @return
+	 */
+	public int getMaxWriteBatchBytes() {
+		return maxWriteBatchBytes;
+	}
+	
+	/**
+	 * まとめて書き込む最大リクエスト数を取得します。
+	 * @return
+	 */
+	public int getMaxWriteBatchCount() {
+		return maxWriteBatchCount;
+	}
+	
+	/**
+	 * グループコミットで1回の確認にまとめる最大リクエスト数を取得します。
+	 * @return
+	 */
+	public int getMaxGroupCommitSize() {
+		return maxGroupCommitSize;
+	}
+	
+	/**
+	 * 接続断の間の更新を保持するスプールのディレクトリを取得します。
+	 * @return
+	 */
+	public String getSpoolDirectory() {
+		return spoolDirectory;
+	}
+	
+	/**
+	 * スプールのセグメントファイルのサイズを取得します。
+	 * @return
+	 */
+	public int getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+	
+	/**
+	 * 送信中の同一クエリの結果を共有するかを取得します。
+	 * @return
+	 */
+	public boolean isDeduplicateQueries() {
+		return deduplicateQueries;
+	}
+	
+	/**
+	 * _id による検索をまとめる時間（ミリ秒）を取得します。
+	 * @return
+	 */
+	public long getIdLookupWindow() {
+		return idLookupWindow;
+	}
+	
+	/**
+	 * _id による検索を1回のクエリにまとめる最大数を取得します。
+	 * @return
+	 */
+	public int getMaxIdLookupKeys() {
+		return maxIdLookupKeys;
+	}
+	
+	/**
+	 * サーバーごとの接続数を取得します。
+	 * @return
+	 */
+	public int getConnectionsPerServer() {
+		return connectionsPerServer;
+	}
+	
+	/**
+	 * サーバーの往復時間を計測する間隔を取得します。
+	 * @return
+	 */
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+	
+	/**
+	 * 使用するサーバーの往復時間の範囲を取得します。
+	 * @return
+	 */
+	public long getLatencyWindow() {
+		return latencyWindow;
+	}
+	
+	/**
+	 * slaveOk を指定したクエリの送信先を取得します。
+	 * @return
+	 */
+	public ReadPreference getReadPreference() {
+		return readPreference;
+	}
+	
+	/**
+	 * 再接続するまでの最初の間隔を取得します。
+	 * @return
+	 */
+	public long getReconnectInterval() {
+		return reconnectInterval;
+	}
+	
+	/**
+	 * 再接続するまでの間隔の上限を取得します。
+	 * @return
+	 */
+	public long getMaxReconnectInterval() {
+		return maxReconnectInterval;
+	}
+	
+	/**
+	 * 読み込みを再送する回数を取得します。
+	 * @return
+	 */
+	public int getReadRetries() {
+		return readRetries;
+	}
+	
 	/**
 	 * 接続タイムアウトを設定します。
 	 * @param connectTimeout
@@ -66,4 +278,196 @@ public class MongoConfiguration {
 	public void setDefaultConsistency(Consistency defaultConsistency) {
 		this.defaultConsistency = defaultConsistency;
 	}
+
+	/**
+	 * 送信バッファにダイレクトバッファを使用するかを設定します。
+	 * @param directBuffer
+	 */
+	public void setDirectBuffer(boolean directBuffer) {
+		this.directBuffer = directBuffer;
+	}
+	
+	/**
+	 * 送信バッファの初期サイズを設定します。
+	 * @param initialBufferSize
+	 */
+	public void setInitialBufferSize(int initialBufferSize) {
+		this.initialBufferSize = initialBufferSize;
+	}
+	
+	/**
+	 * 送信バッファのプール数を設定します。
+	 * @param bufferPoolSize
+	 */
+	public void setBufferPoolSize(int bufferPoolSize) {
+		this.bufferPoolSize = bufferPoolSize;
+	}
+	
+	/**
+	 * プールに戻す送信バッファの最大サイズを設定します。
+	 * @param maxPooledBufferSize
+	 */
+	public void setMaxPooledBufferSize(int maxPooledBufferSize) {
+		this.maxPooledBufferSize = maxPooledBufferSize;
+	}
+	
+	/**
+	 * 非同期処理の完了通知を実行する {@link Executor} を設定します。
+	 * null の場合は、 I/O スレッド上で直接通知します。
+	 * @param callbackExecutor
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+	
+	/**
+	 * 同じ接続への送信をまとめて書き込むかを設定します。
+	 * 有効な場合、複数のスレッドから同時に送信されたリクエストを
+	 * 1回の書き込みにまとめます。
+	 * 送信中のスレッドは1回の書き込みの後、残りをドライバーの Executor に委譲するため、
+	 * 委譲した書き込みまでに送信されたリクエストも、上限の範囲内でまとめられます。
+	 * @param writeBatching
+	 */
+	public void setWriteBatching(boolean writeBatching) {
+		this.writeBatching = writeBatching;
+	}
+	
+	/**
+	 * まとめて書き込む最大バイト数を設定します。
+	 * @param maxWriteBatchBytes
+	 */
+	public void setMaxWriteBatchBytes(int maxWriteBatchBytes) {
+		this.maxWriteBatchBytes = maxWriteBatchBytes;
+	}
+	
+	/**
+	 * まとめて書き込む最大リクエスト数を設定します。
+	 * @param maxWriteBatchCount
+	 */
+	public void setMaxWriteBatchCount(int maxWriteBatchCount) {
+		this.maxWriteBatchCount = maxWriteBatchCount;
+	}
+	
+	/**
+	 * {@link Consistency#GROUP} で1回の確認にまとめる最大リクエスト数を設定します。
+	 * @param maxGroupCommitSize
+	 */
+	public void setMaxGroupCommitSize(int maxGroupCommitSize) {
+		this.maxGroupCommitSize = maxGroupCommitSize;
+	}
+	
+	/**
+	 * 接続断の間の更新を保持するスプールのディレクトリを設定します。
+	 * 設定した場合、有効な接続がない間の更新はディレクトリ内のファイルに追記され、
+	 * 再接続後に送信されます。 null の場合、スプールは使用しません。
+	 * 再送は 100 件ごとに getlasterror で確認して送信済みの位置を記録するため、
+	 * 再送中にプロセスが停止した場合、再開時に最大 100 件の更新が重複して送信されます。
+	 * @param spoolDirectory
+	 */
+	public void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+	
+	/**
+	 * スプールのセグメントファイルのサイズを設定します。
+	 * @param spoolSegmentSize
+	 */
+	public void setSpoolSegmentSize(int spoolSegmentSize) {
+		this.spoolSegmentSize = spoolSegmentSize;
+	}
+	
+	/**
+	 * 送信中の同一クエリの結果を共有するかを設定します。
+	 * 有効な場合、 find と count は同じクエリが送信中であれば新たに送信せず、
+	 * 送信中のクエリの結果を受け取ります。
+	 * 結果のドキュメントは呼び出し元の間で共有されるため、変更しないでください。
+	 * @param deduplicateQueries
+	 */
+	public void setDeduplicateQueries(boolean deduplicateQueries) {
+		this.deduplicateQueries = deduplicateQueries;
+	}
+	
+	/**
+	 * _id による検索をまとめる時間（ミリ秒）を設定します。
+	 * 最初の検索からこの時間の間に同じコレクションへの検索があれば、
+	 * 1回のクエリにまとめて送信します。
+	 * @param idLookupWindow
+	 */
+	public void setIdLookupWindow(long idLookupWindow) {
+		this.idLookupWindow = idLookupWindow;
+	}
+	
+	/**
+	 * _id による検索を1回のクエリにまとめる最大数を設定します。
+	 * @param maxIdLookupKeys
+	 */
+	public void setMaxIdLookupKeys(int maxIdLookupKeys) {
+		this.maxIdLookupKeys = maxIdLookupKeys;
+	}
+	
+	/**
+	 * サーバーごとの接続数を設定します。
+	 * サーバーの追加前に設定する必要があります。
+	 * @param connectionsPerServer
+	 */
+	public void setConnectionsPerServer(int connectionsPerServer) {
+		this.connectionsPerServer = connectionsPerServer;
+	}
+	
+	/**
+	 * サーバーの往復時間を計測する間隔を設定します。
+	 * 0 以下の場合は計測せず、すべてのサーバーを使用します。
+	 * サーバーの追加前に設定する必要があります。
+	 * @param heartbeatInterval
+	 */
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+	
+	/**
+	 * 使用するサーバーの往復時間の範囲を設定します。
+	 * 最も速いサーバーとの往復時間の差が、この範囲内のサーバーのみ使用します。
+	 * @param latencyWindow
+	 */
+	public void setLatencyWindow(long latencyWindow) {
+		this.latencyWindow = latencyWindow;
+	}
+	
+	/**
+	 * slaveOk を指定したクエリの送信先を設定します。
+	 * slaveOk を指定していないクエリは、常にプライマリに送信します。
+	 * @param readPreference
+	 */
+	public void setReadPreference(ReadPreference readPreference) {
+		this.readPreference = readPreference;
+	}
+	
+	/**
+	 * 切断された接続を再接続するまでの最初の間隔を設定します。
+	 * 接続を確立できないたびに、間隔を上限まで倍に延ばします。
+	 * 0 以下の場合は再接続しません。
+	 * @param reconnectInterval
+	 */
+	public void setReconnectInterval(long reconnectInterval) {
+		this.reconnectInterval = reconnectInterval;
+	}
+	
+	/**
+	 * 再接続するまでの間隔の上限を設定します。
+	 * @param maxReconnectInterval
+	 */
+	public void setMaxReconnectInterval(long maxReconnectInterval) {
+		this.maxReconnectInterval = maxReconnectInterval;
+	}
+	
+	/**
+	 * 接続の切断により失敗した読み込みを、他の接続に再送する回数を設定します。
+	 * 再送は1件のみ取得するクエリとカーソルの最初の検索のみを対象とし、
+	 * クライアント全体の再送の割合が増えた場合は、回数に達していなくても再送しません。
+	 * 非同期のクエリは、同期のクエリと同じ回数をドライバーのスレッドで再送します。
+	 * @param readRetries 0 の場合は再送しない
+	 */
+	public void setReadRetries(int readRetries) {
+		this.readRetries = readRetries;
+	}
 }
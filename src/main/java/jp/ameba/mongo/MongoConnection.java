@@ -1,10 +1,14 @@
 package jp.ameba.mongo;
 
+import java.net.SocketAddress;
+
+import jp.ameba.mongo.protocol.Consistency;
 import jp.ameba.mongo.protocol.Delete;
 import jp.ameba.mongo.protocol.GetMore;
 import jp.ameba.mongo.protocol.Insert;
 import jp.ameba.mongo.protocol.KillCursors;
 import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.RawRequest;
 import jp.ameba.mongo.protocol.Response;
 import jp.ameba.mongo.protocol.Update;
 
@@ -22,6 +26,24 @@ public interface MongoConnection {
 	 */
 	int getChannelId();
 	
+	/**
+	 * この接続で送信し、完了していないリクエスト数を取得します。
+	 * @return
+	 */
+	int getInFlightCount();
+	
+	/**
+	 * 接続先のサーバーのアドレスを取得します。
+	 * @return
+	 */
+	SocketAddress getServerAddress();
+	
+	/**
+	 * この接続の設定を取得します。
+	 * @return
+	 */
+	MongoConfiguration getConfiguration();
+	
 	/**
 	 * 接続をオープンします。
 	 * @throws MongoException
@@ -78,6 +100,45 @@ public interface MongoConnection {
 	 */
 	Response query(Query query);
 	
+	/**
+	 * OP_INSERT リクエストを非同期に送信します。
+	 * {@link Consistency} に応じて getLastError の結果、
+	 * もしくは送信完了時に null で完了します。
+	 * 返却する future のリスナーは I/O スレッドで実行されるため、
+	 * ブロックする処理を行ってはいけません。
+	 * @param insert
+	 * @return
+	 */
+	OperationFuture<Response> insertAsync(Insert insert);
+	
+	/**
+	 * OP_UPDATE リクエストを非同期に送信します。
+	 * @param update
+	 * @return
+	 */
+	OperationFuture<Response> updateAsync(Update update);
+	
+	/**
+	 * OP_DELETE リクエストを非同期に送信します。
+	 * @param delete
+	 * @return
+	 */
+	OperationFuture<Response> deleteAsync(Delete delete);
+	
+	/**
+	 * OP_QUERY リクエストを非同期に送信します。
+	 * @param query
+	 * @return
+	 */
+	OperationFuture<Response> queryAsync(Query query);
+	
+	/**
+	 * エンコード済みのリクエストを非同期に送信します。
+	 * @param request
+	 * @return
+	 */
+	OperationFuture<Response> writeAsync(RawRequest request);
+	
 	/**
 	 * OP_GET_MORE リクエストを送信します。
 	 * @param getMore
@@ -94,6 +155,35 @@ public interface MongoConnection {
 	 * @return
 	 */
 	MongoCursor cursor(String databaseName, String collectionName);
+	
+	/**
+	 * 大量のドキュメントを挿入するための {@link MongoBulkLoader} を
+	 * 取得します。
+	 * 
+	 * @param databaseName
+	 * @param collectionName
+	 * @return
+	 */
+	MongoBulkLoader bulkLoader(String databaseName, String collectionName);
+	
+	/**
+	 * サーバーが受け付けるドキュメントの最大バイト数を取得します。
+	 * 初回の呼び出し時に isMaster で取得します。
+	 * @return
+	 */
+	int getMaxBsonObjectSize();
+	
+	/**
+	 * サーバーが受け付けるメッセージの最大バイト数を取得します。
+	 * @return
+	 */
+	int getMaxMessageSize();
+	
+	/**
+	 * サーバーが1回の書き込みで受け付ける最大ドキュメント数を取得します。
+	 * @return
+	 */
+	int getMaxWriteBatchSize();
 
 	/**
 	 * OP_KILL_CURSORS リクエストを送信します。
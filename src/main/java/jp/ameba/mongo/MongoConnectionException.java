@@ -0,0 +1,20 @@
+package jp.ameba.mongo;
+
+/**
+ * 接続の切断、もしくは送信の失敗により、リクエストがサーバーで
+ * 処理されたかを確認できない場合に発生する例外です。
+ * 
+ * @author suguru
+ */
+public class MongoConnectionException extends MongoException {
+
+	private static final long serialVersionUID = 6245811623410372925L;
+
+	public MongoConnectionException(String message) {
+		super(message);
+	}
+
+	public MongoConnectionException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -3,6 +3,8 @@ package jp.ameba.mongo;
 import java.net.SocketAddress;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jp.ameba.mongo.protocol.Consistency;
 import jp.ameba.mongo.protocol.Delete;
@@ -10,12 +12,14 @@ import jp.ameba.mongo.protocol.GetMore;
 import jp.ameba.mongo.protocol.Insert;
 import jp.ameba.mongo.protocol.KillCursors;
 import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.RawRequest;
 import jp.ameba.mongo.protocol.Request;
 import jp.ameba.mongo.protocol.RequestFuture;
 import jp.ameba.mongo.protocol.Response;
 import jp.ameba.mongo.protocol.Update;
 
 import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -36,6 +40,26 @@ public class MongoConnectionImpl implements MongoConnection {
 	// 接続設定
 	private MongoConfiguration connectionConfig;
 	
+	// isMaster で取得したサーバーの制限値
+	private volatile BSONObject serverLimits;
+	
+	// 送信し、完了していないリクエスト数
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	// 接続を確立したか
+	private volatile boolean established = false;
+	
+	// close によって閉じたか
+	private volatile boolean closeRequested = false;
+	
+	// 完了したリクエストを送信中の数から除くリスナー
+	private final OperationListener<Response> inFlightListener = new OperationListener<Response>() {
+		@Override
+		public void operationComplete(OperationFuture<Response> future) {
+			inFlight.decrementAndGet();
+		}
+	};
+	
 	/**
 	 * {@link MongoConnectionImpl} を構成します。
 	 */
@@ -48,11 +72,58 @@ public class MongoConnectionImpl implements MongoConnection {
 		this.connectionConfig = connectionConfig;
 	}
 	
+	@Override
+	public MongoConfiguration getConfiguration() {
+		return connectionConfig;
+	}
+	
 	@Override
 	public int getChannelId() {
 		return channel.getId();
 	}
 	
+	@Override
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+	
+	@Override
+	public SocketAddress getServerAddress() {
+		return serverAddress;
+	}
+	
+	/**
+	 * 接続に使用する {@link Channel} を取得します。
+	 * @return
+	 */
+	Channel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * 一度でも接続を確立したか確認します。
+	 * @return
+	 */
+	boolean isEstablished() {
+		return established;
+	}
+	
+	/**
+	 * {@link #close()} もしくは {@link #closeAsync()} によって閉じたか確認します。
+	 * @return
+	 */
+	boolean isCloseRequested() {
+		return closeRequested;
+	}
+	
+	/**
+	 * isMaster の結果を、サーバーの制限値として設定します。
+	 * @param isMaster
+	 */
+	void setServerLimits(BSONObject isMaster) {
+		this.serverLimits = isMaster;
+	}
+	
 	/**
 	 * MongoDB へ接続します。
 	 */
@@ -97,6 +168,7 @@ public class MongoConnectionImpl implements MongoConnection {
 	 * @return
 	 */
 	public MongoFuture closeAsync() {
+		closeRequested = true;
 		MongoFuture mongoFuture = new MongoFuture();
 		CloseChannelFutureListener channelFutureListener = new CloseChannelFutureListener(mongoFuture);
 		ChannelFuture channelFuture = channel.close();
@@ -114,6 +186,7 @@ public class MongoConnectionImpl implements MongoConnection {
 		}
 		public synchronized void operationComplete(ChannelFuture channelFuture) throws Exception {
 			if (channelFuture.isSuccess()) {
+				established = true;
 				// １つでも接続に成功していれば、成功とみなす
 				mongoFuture.setSuccess(true);
 			}
@@ -193,6 +266,31 @@ public class MongoConnectionImpl implements MongoConnection {
 		sendUpdateRequest(delete);
 	}
 
+	@Override
+	public OperationFuture<Response> insertAsync(Insert insert) {
+		return sendAsync(insert);
+	}
+	
+	@Override
+	public OperationFuture<Response> updateAsync(Update update) {
+		return sendAsync(update);
+	}
+	
+	@Override
+	public OperationFuture<Response> deleteAsync(Delete delete) {
+		return sendAsync(delete);
+	}
+	
+	@Override
+	public OperationFuture<Response> queryAsync(Query query) {
+		return sendAsync(query);
+	}
+	
+	@Override
+	public OperationFuture<Response> writeAsync(RawRequest request) {
+		return sendAsync(request);
+	}
+
 	/**
 	 * クエリを送信します。
 	 * @param query
@@ -220,6 +318,52 @@ public class MongoConnectionImpl implements MongoConnection {
 		return new MongoCursor(this, databaseName, collectionName);
 	}
 	
+	@Override
+	public MongoBulkLoader bulkLoader(String databaseName, String collectionName) {
+		return new MongoBulkLoader(this, databaseName, collectionName);
+	}
+	
+	@Override
+	public int getMaxBsonObjectSize() {
+		// isMaster に含まれない古いサーバーの上限
+		return getServerLimit("maxBsonObjectSize", 4 * 1024 * 1024);
+	}
+	
+	@Override
+	public int getMaxMessageSize() {
+		return getServerLimit("maxMessageSizeBytes", getMaxBsonObjectSize());
+	}
+	
+	@Override
+	public int getMaxWriteBatchSize() {
+		return getServerLimit("maxWriteBatchSize", Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * isMaster の結果からサーバーの制限値を取得します。
+	 * isMaster は接続ごとに1回のみ実行します。
+	 * @param name
+	 * @param defaultValue 結果に含まれない場合の値
+	 * @return
+	 */
+	private int getServerLimit(String name, int defaultValue) {
+		BSONObject limits = serverLimits;
+		if (limits == null) {
+			Response response = query(new Query(
+					"admin",
+					"$cmd",
+					0,
+					1,
+					new BasicBSONObject("isMaster", 1),
+					null
+			));
+			limits = response.getDocuments().get(0);
+			serverLimits = limits;
+		}
+		Object value = limits.get(name);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+	
 	/**
 	 * カーソルクリアを送信します。
 	 * @param kilLCursors
@@ -236,10 +380,9 @@ public class MongoConnectionImpl implements MongoConnection {
 	 * @param request
 	 */
 	private void sendUpdateRequest(Request request) {
-		channel.write(request);
+		sendAsync(request);
 		Consistency consistency = request.getConsistency();
-		BSONObject getErrorQuery = consistency.getLastErrorQuery();
-		if (getErrorQuery != null) {
+		if (consistency.isAcknowledged()) {
 			waitLastError(request);
 		}
 	}
@@ -250,20 +393,28 @@ public class MongoConnectionImpl implements MongoConnection {
 	 * @return
 	 */
 	private Response sendQueryRequest(Request request) {
-		channel.write(request);
-		RequestFuture requestFuture = request.getFuture();
-		try {
-			Response response = requestFuture.get();
-			if (!response.isOk()) {
-				throw new MongoException("Query failure: " + response.getErrorMessage());
-			} else {
-				return response;
-			}
-		} catch (ExecutionException ex) {
-			throw new MongoException(ex);
-		} catch (InterruptedException ex) {
-			throw new MongoException(ex);
+		RequestFuture requestFuture = sendAsync(request);
+		return checkQuery(await(requestFuture));
+	}
+	
+	/**
+	 * リクエストを送信し、返信を待たずに {@link RequestFuture} を返却します。
+	 * {@link RequestFuture} のリスナーは I/O スレッドで実行されます。
+	 * @param request
+	 * @return
+	 */
+	private RequestFuture sendAsync(Request request) {
+		RequestFuture future = new RequestFuture(request);
+		request.setFuture(future);
+		inFlight.incrementAndGet();
+		future.addListener(inFlightListener);
+		// 閉じた接続には送信せず、すぐに失敗させる
+		if (!channel.isOpen()) {
+			future.setFailure(new MongoConnectionException("Connection closed: " + channel));
+			return future;
 		}
+		channel.write(request);
+		return future;
 	}
 	
 	/**
@@ -275,25 +426,77 @@ public class MongoConnectionImpl implements MongoConnection {
 		// ResponseFuture を取得
 		RequestFuture requestFuture = request.getFuture();
 		if (requestFuture != null) {
-			try {
-				Response response = requestFuture.get();
-				BSONObject object = response.getDocuments().get(0);
-				// OK でない場合は、例外を発する
-				if (!response.isOk()) {
-					String error = (String) object.get("errmsg");
-					throw new MongoException(error);
-				}
-				String err = (String) object.get("err");
-				if (err != null) {
-					Integer code = (Integer) object.get("code");
-					throw new MongoException(err, code);
-				}
-			} catch (ExecutionException ex) {
-				throw new MongoException(ex);
-			} catch (InterruptedException ex) {
-				throw new MongoException(ex);
-			}
+			checkLastError(await(requestFuture));
+		}
+	}
+	
+	/**
+	 * 操作タイムアウト時間まで、リクエストの返信を待ちます。
+	 * @param requestFuture
+	 * @return
+	 * @throws MongoException タイムアウト、もしくはリクエストが失敗した場合
+	 */
+	private Response await(RequestFuture requestFuture) {
+		try {
+			return requestFuture.get(connectionConfig.getOperationTimeout(), TimeUnit.MILLISECONDS);
+		} catch (ExecutionException ex) {
+			throw toMongoException(ex);
+		} catch (TimeoutException ex) {
+			throw new MongoException("Operation timed out after "
+					+ connectionConfig.getOperationTimeout() + " ms.", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MongoException(ex);
+		}
+	}
+	
+	/**
+	 * クエリ結果が失敗していないか確認します。
+	 * @param response
+	 * @return
+	 * @throws MongoException 失敗している場合
+	 */
+	static Response checkQuery(Response response) {
+		if (!response.isOk()) {
+			throw new MongoException("Query failure: " + response.getErrorMessage());
+		}
+		return response;
+	}
+	
+	/**
+	 * getLastError の結果にエラーが含まれていないか確認します。
+	 * 返信を待たないリクエストの場合、 response は null となります。
+	 * @param response
+	 * @throws MongoException エラーが含まれている場合
+	 */
+	static void checkLastError(Response response) {
+		if (response == null) {
+			return;
+		}
+		BSONObject object = response.getDocuments().get(0);
+		// OK でない場合は、例外を発する
+		if (!response.isOk()) {
+			String error = (String) object.get("errmsg");
+			throw new MongoException(error);
+		}
+		String err = (String) object.get("err");
+		if (err != null) {
+			Integer code = (Integer) object.get("code");
+			throw code == null ? new MongoException(err) : new MongoException(err, code);
+		}
+	}
+	
+	/**
+	 * 非同期処理の失敗原因を {@link MongoException} として取得します。
+	 * @param ex
+	 * @return
+	 */
+	static MongoException toMongoException(ExecutionException ex) {
+		Throwable cause = ex.getCause();
+		if (cause instanceof MongoException) {
+			return (MongoException) cause;
 		}
+		return new MongoException(cause);
 	}
 	
 	@Override
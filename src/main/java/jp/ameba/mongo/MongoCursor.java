@@ -7,6 +7,7 @@ import java.util.List;
 import jp.ameba.mongo.protocol.Delete;
 import jp.ameba.mongo.protocol.GetMore;
 import jp.ameba.mongo.protocol.KillCursors;
+import jp.ameba.mongo.protocol.LazyBSONObject;
 import jp.ameba.mongo.protocol.Query;
 import jp.ameba.mongo.protocol.Response;
 
@@ -22,9 +23,21 @@ import org.bson.BasicBSONObject;
  */
 public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	
+	// 取得件数をサーバーに任せる場合に、削除をまとめる件数
+	private static final int DEFAULT_REMOVE_BATCH_SIZE = 100;
+	
 	// MongoClient
 	private MongoConnection conn;
 	
+	// 送信先の選択に使用するクライアント
+	private MongoClient client;
+	
+	// slaveOk を指定したクエリの送信先
+	private ReadPreference readPreference;
+	
+	// クエリ、 getMore および killCursors を送信する接続
+	private MongoConnection queryConn;
+	
 	// 対象のデータベース名
 	private String databaseName;
 	
@@ -61,6 +74,27 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	// 最初にスキップする件数
 	private int firstSkip = 0;
 	
+	// 結果を遅延デコードするか
+	private boolean lazy = false;
+	
+	// slaveOk フラグ
+	private boolean slaveOk = false;
+	
+	// Tailable フラグ
+	private boolean tailable = false;
+	
+	// OplogReplay フラグ
+	private boolean oplogReplay = false;
+	
+	// カーソルタイムアウトを無効にするか
+	private boolean noCursorTimeout = false;
+	
+	// データ待機フラグ
+	private boolean awaitData = false;
+	
+	// Exhaust フラグ
+	private boolean exhaust = false;
+	
 	// カーソルから取得した最新の結果
 	private Response lastResult;
 	
@@ -79,6 +113,15 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	// 現在の取得件数
 	private int position = 0;
 	
+	// 削除をまとめて送信するか
+	private boolean batchRemove = false;
+	
+	// 送信待ちの削除対象の _id 一覧
+	private List<Object> removedIds;
+	
+	// 削除したドキュメントのキャッシュを破棄する
+	private CacheInvalidator invalidator;
+	
 	MongoCursor(
 			MongoConnection conn,
 			String databaseName,
@@ -147,7 +190,7 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	public MongoCursor hint(String field) {
 		if (hints == null) {
 			hints = new BasicBSONObject();
-			special.put("$hint", hints);
+			special("$hint", hints);
 		}
 		hints.put(field, 1);
 		return this;
@@ -165,7 +208,7 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	public MongoCursor min(String field, Object value) {
 		if (min == null) {
 			min = new BasicBSONObject();
-			special.put("$min", min);
+			special("$min", min);
 		}
 		min.put(field, value);
 		return this;
@@ -183,7 +226,7 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	public MongoCursor max(String field, Object value) {
 		if (max == null) {
 			max = new BasicBSONObject();
-			special.put("$max", max);
+			special("$max", max);
 		}
 		max.put(field, value);
 		return this;
@@ -218,6 +261,36 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 		return this;
 	}
 	
+	/**
+	 * {@link #remove()} による削除をまとめて送信するよう設定します。
+	 * 削除は結果の取得件数（負の場合はその絶対値、 0 の場合は 100 件）ごと、
+	 * およびカーソルの終了時に {_id: {$in: [...]}} を条件とした1回の削除として送信されます。
+	 * @return
+	 */
+	public MongoCursor batchRemove() {
+		this.batchRemove = true;
+		return this;
+	}
+	
+	/**
+	 * 結果のドキュメントを {@link LazyBSONObject} として取得します。
+	 * フィールドは参照された時点でデコードされます。
+	 * @return
+	 */
+	public MongoCursor lazy() {
+		return lazy(true);
+	}
+	
+	/**
+	 * 結果のドキュメントを遅延デコードするかを設定します。
+	 * @param lazy
+	 * @return
+	 */
+	public MongoCursor lazy(boolean lazy) {
+		this.lazy = lazy;
+		return this;
+	}
+	
 	/**
 	 * 指定フィールドのソートオーダーを指定します。
 	 * @param key
@@ -246,16 +319,60 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	 * @return
 	 */
 	public MongoCursor slaveOk() {
-		query.slaveOk(true);
+		this.slaveOk = true;
+		return this;
+	}
+	
+	/**
+	 * slaveOk フラグを設定し、クエリの送信先を指定します。
+	 * 送信先の接続は最初の検索時に選択し、カーソルの終了まで使用します。
+	 * @param readPreference
+	 * @return
+	 */
+	public MongoCursor readPreference(ReadPreference readPreference) {
+		this.slaveOk = true;
+		this.readPreference = readPreference;
+		return this;
+	}
+	
+	/**
+	 * クエリの送信先の選択に使用するクライアントを設定します。
+	 * @param client
+	 * @return
+	 */
+	MongoCursor client(MongoClient client) {
+		this.client = client;
+		return this;
+	}
+	
+	/**
+	 * {@link #remove()} で削除したドキュメントのキャッシュを破棄する {@link CacheInvalidator} を設定します。
+	 * @param invalidator
+	 * @return
+	 */
+	MongoCursor invalidator(CacheInvalidator invalidator) {
+		this.invalidator = invalidator;
 		return this;
 	}
 	
 	/**
 	 * クエリに対する Talable フラグを設定します。 
+	 * Tailable カーソルは、新しい結果がない場合に hasNext が false を返却しても終了せず、
+	 * 再度 hasNext を呼び出すことで、追加された結果を取得できます。
 	 * @return
 	 */
 	public MongoCursor tailable() {
-		query.tailableCursor(true);
+		this.tailable = true;
+		return this;
+	}
+	
+	/**
+	 * クエリに対する OplogReplay フラグを設定します。
+	 * oplog を ts の条件で検索する場合に、開始位置を効率よく特定します。
+	 * @return
+	 */
+	public MongoCursor oplogReplay() {
+		this.oplogReplay = true;
 		return this;
 	}
 	
@@ -264,7 +381,7 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	 * @return
 	 */
 	public MongoCursor noCursorTimeout() {
-		query.noCursorTimeout(true);
+		this.noCursorTimeout = true;
 		return this;
 	}
 	
@@ -273,7 +390,7 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	 * @return
 	 */
 	public MongoCursor awaitData() {
-		query.awaitData(true);
+		this.awaitData = true;
 		return this;
 	}
 	
@@ -282,7 +399,7 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	 * @return
 	 */
 	public MongoCursor exhaust() {
-		query.exhaust(true);
+		this.exhaust = true;
 		return this;
 	}
 	
@@ -445,26 +562,54 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 				} else {
 					queryObject = selector;
 				}
-				query = new Query(databaseName, collectionName, firstSkip, batchSize, queryObject, fields);
+				query = new Query(databaseName, collectionName, firstSkip, batchSize, queryObject, fields)
+					.slaveOk(slaveOk)
+					.tailableCursor(tailable)
+					.oplogReplay(oplogReplay)
+					.noCursorTimeout(noCursorTimeout)
+					.awaitData(awaitData)
+					.exhaust(exhaust);
 			}
-			lastResult= conn.query(query);
-			// 最終結果がなければ、次はない
+			query.lazy(lazy);
+			lastResult = sendQuery();
+			indexInResult = 0;
 			if (lastResult.getNumberReturned() == 0) {
+				if (tailable) {
+					// Tailable カーソルは、データが追加されるまで終了しない
+					// サーバーがカーソルを返却しなかった場合は、次回に検索し直す
+					if (lastResult.getCursorId() == 0) {
+						lastResult = null;
+					}
+					return false;
+				}
+				// 最終結果がなければ、次はない
 				finished = true;
+				flushRemove();
 				return false;
 			}
 		}
 		// ドキュメント一覧取得
 		List<BSONObject> documents = lastResult.getDocuments();
 		if (documents == null || indexInResult >= documents.size()) {
-			lastResult = conn.getMore(new GetMore(
+			flushRemove();
+			// サーバー側で終了済みのカーソル
+			if (lastResult.getCursorId() == 0) {
+				finished = true;
+				close();
+				return false;
+			}
+			lastResult = queryConn.getMore(new GetMore(
 					databaseName,
 					collectionName,
 					batchSize,
 					lastResult.getCursorId()
-			));
+			).lazy(lazy));
 			indexInResult = 0;
 			if (lastResult.getNumberReturned() == 0) {
+				if (tailable && !lastResult.isCursorNotFound() && lastResult.getCursorId() != 0) {
+					// Tailable カーソルは、データが追加されるまで終了しない
+					return false;
+				}
 				finished = true;
 				close();
 				return false;
@@ -473,6 +618,46 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 		return true;
 	}
 	
+	/**
+	 * 最初の検索を送信します。
+	 * 接続の切断により失敗した場合は、クライアントの設定に応じて他の接続に再送します。
+	 */
+	private Response sendQuery() {
+		for (int attempt = 0; ; attempt++) {
+			if (queryConn == null) {
+				queryConn = selectConnection();
+			}
+			try {
+				Response response = queryConn.query(query);
+				if (client != null) {
+					client.readSucceeded();
+				}
+				return response;
+			} catch (MongoConnectionException ex) {
+				if (client == null || !client.retryRead(attempt)) {
+					throw ex;
+				}
+				queryConn = null;
+				conn = client.getConnection();
+			}
+		}
+	}
+	
+	/**
+	 * クエリを送信する接続を選択します。
+	 * slaveOk を指定している場合は、読み込み設定に応じたサーバーへの接続を使用します。
+	 */
+	private MongoConnection selectConnection() {
+		if (!slaveOk || client == null) {
+			return conn;
+		}
+		ReadPreference preference = readPreference;
+		if (preference == null) {
+			preference = client.getConfiguration().getReadPreference();
+		}
+		return client.getConnection(preference);
+	}
+	
 	/**
 	 * このカーソルによって取得可能なすべてのオブジェクトを
 	 * {@link List} として取得します。
@@ -501,13 +686,73 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	
 	@Override
 	public void remove() {
-		if (currentObject != null) {
+		if (currentObject != null && batchRemove) {
+			int removeBatchSize = removeBatchSize();
+			if (removedIds == null) {
+				removedIds = new ArrayList<Object>(removeBatchSize);
+			}
+			removedIds.add(currentObject.get("_id"));
+			if (removedIds.size() >= removeBatchSize) {
+				flushRemove();
+			}
+		} else if (currentObject != null) {
+			Object id = currentObject.get("_id");
 			Delete delete = new Delete(
 					databaseName,
 					collectionName,
-					new BasicBSONObject("_id", currentObject.get("_id"))
+					new BasicBSONObject("_id", id)
 			);
-			conn.delete(delete);
+			try {
+				getWriteConnection().delete(delete);
+			} finally {
+				if (invalidator != null) {
+					invalidator.invalidateId(id);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * まとめて送信する削除の件数を取得します。
+	 * 負の取得件数は1回のみの取得を、 0 はサーバーの既定値を表すため、
+	 * それぞれ絶対値と既定の件数を使用します。
+	 */
+	private int removeBatchSize() {
+		if (batchSize == 0 || batchSize == Integer.MIN_VALUE) {
+			return DEFAULT_REMOVE_BATCH_SIZE;
+		}
+		return Math.abs(batchSize);
+	}
+	
+	/**
+	 * 削除を送信する接続を取得します。
+	 * クライアントを設定している場合は、プライマリへの接続を使用します。
+	 */
+	private MongoConnection getWriteConnection() {
+		return client == null ? conn : client.getConnection();
+	}
+	
+	/**
+	 * 送信待ちの削除を、1回の削除として送信します。
+	 */
+	private void flushRemove() {
+		if (removedIds == null || removedIds.isEmpty()) {
+			return;
+		}
+		List<Object> ids = removedIds;
+		removedIds = null;
+		try {
+			getWriteConnection().delete(new Delete(
+					databaseName,
+					collectionName,
+					new BasicBSONObject("_id", new BasicBSONObject("$in", ids))
+			));
+		} finally {
+			if (invalidator != null) {
+				for (Object id : ids) {
+					invalidator.invalidateId(id);
+				}
+			}
 		}
 	}
 	
@@ -527,9 +772,11 @@ public class MongoCursor implements Iterable<BSONObject>, Iterator<BSONObject> {
 	 * リソースの解放を実施します。
 	 */
 	public void close() {
+		flushRemove();
 		if (!closed) {
-			if (lastResult != null) {
-				conn.killCursors(new KillCursors(lastResult.getCursorId()));
+			// サーバー側で終了済みのカーソルは解放不要
+			if (lastResult != null && lastResult.getCursorId() != 0) {
+				queryConn.killCursors(new KillCursors(lastResult.getCursorId()));
 			}
 			closed = true;
 		}
@@ -20,6 +20,12 @@ public class MongoDatabase {
 	
 	// コレクション一覧
 	private ConcurrentMap<String, MongoCollection> collections;
+	
+	// 非同期コレクション一覧
+	private ConcurrentMap<String, MongoAsyncCollection> asyncCollections;
+	
+	// 同期・非同期のコレクションで共有する、キャッシュの破棄
+	private ConcurrentMap<String, CacheInvalidator> invalidators;
 
 	/**
 	 * データベースインスタンスを初期化します。
@@ -31,6 +37,8 @@ public class MongoDatabase {
 		this.client = client;
 		this.databaseName = databaseName;
 		this.collections = new ConcurrentHashMap<String, MongoCollection>();
+		this.asyncCollections = new ConcurrentHashMap<String, MongoAsyncCollection>();
+		this.invalidators = new ConcurrentHashMap<String, CacheInvalidator>();
 	}
 	
 	/**
@@ -59,7 +67,8 @@ public class MongoDatabase {
 		MongoCollection collection = collections.get(collectionName);
 		if (collection == null) {
 			// キャシュになければ、新規に作成
-			collection = new MongoCollectionImpl(client, databaseName, collectionName);
+			collection = new MongoCollectionImpl(client, databaseName, collectionName,
+					getInvalidator(collectionName));
 			MongoCollection oldOne = collections.putIfAbsent(collectionName, collection);
 			if (oldOne != null) {
 				// 作成済みのキャッシュが存在する場合は、古い方で上書き
@@ -69,4 +78,39 @@ public class MongoDatabase {
 		return collection;
 	}
 	
+	/**
+	 * このデータベースに所属する {@link MongoAsyncCollection} インスタンスを取得します。
+	 * @param collectionName
+	 * @return
+	 */
+	public MongoAsyncCollection getAsyncCollection(String collectionName) {
+		MongoAsyncCollection collection = asyncCollections.get(collectionName);
+		if (collection == null) {
+			collection = new MongoAsyncCollectionImpl(client, databaseName, collectionName,
+					getInvalidator(collectionName));
+			MongoAsyncCollection oldOne = asyncCollections.putIfAbsent(collectionName, collection);
+			if (oldOne != null) {
+				collection = oldOne;
+			}
+		}
+		return collection;
+	}
+	
+	/**
+	 * コレクションのキャッシュを破棄する {@link CacheInvalidator} を取得します。
+	 * @param collectionName
+	 * @return
+	 */
+	private CacheInvalidator getInvalidator(String collectionName) {
+		CacheInvalidator invalidator = invalidators.get(collectionName);
+		if (invalidator == null) {
+			invalidator = new CacheInvalidator(databaseName + "." + collectionName);
+			CacheInvalidator oldOne = invalidators.putIfAbsent(collectionName, invalidator);
+			if (oldOne != null) {
+				invalidator = oldOne;
+			}
+		}
+		return invalidator;
+	}
+	
 }
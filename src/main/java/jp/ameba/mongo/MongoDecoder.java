@@ -1,50 +1,147 @@
 package jp.ameba.mongo;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import jp.ameba.mongo.protocol.MessageHeader;
 import jp.ameba.mongo.protocol.OperationCode;
 import jp.ameba.mongo.protocol.Response;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.channel.Channel;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * 受信したバッファから OP_REPLY メッセージを切り出し、
+ * {@link Response} に変換するデコーダーです。
+ *
+ * 受信したバッファはコピーせず、読み取り専用のスライスとして
+ * {@link Response} に渡します。
+ * 読み込み途中のバッファは {@link ChannelHandlerContext} に保持するため、
+ * 複数のチャネルで共有することができます。
+ *
+ * @author suguru
+ */
+@Sharable
+public class MongoDecoder extends SimpleChannelUpstreamHandler {
 
-public class MongoDecoder extends FrameDecoder {
-	
 	@Override
-	protected Object decode(
+	public void messageReceived(
 			ChannelHandlerContext context,
-			Channel channel,
-			ChannelBuffer buffer) throws Exception {
-		
-		MessageHeader header = (MessageHeader) context.getAttachment();
-		if (header == null) {
-			header = new MessageHeader();
-			context.setAttachment(header);
+			MessageEvent e) throws Exception {
+
+		Object message = e.getMessage();
+		if (!(message instanceof ChannelBuffer)) {
+			context.sendUpstream(e);
+			return;
 		}
 
-		// ヘッダー情報が存在しない場合は、ヘッダー情報を読み込む
-		if (!header.isReady()) {
-			if (buffer.readableBytes() < MessageHeader.HEADER_SIZE) {
-				return null;
+		// 前回の読み込みで残ったバッファがあれば、コピーせずに連結する
+		ChannelBuffer input = (ChannelBuffer) message;
+		Cumulation cumulation = (Cumulation) context.getAttachment();
+		if (cumulation == null) {
+			cumulation = new Cumulation();
+			context.setAttachment(cumulation);
+		}
+		ChannelBuffer buffer = cumulation.add(input);
+		if (buffer == null) {
+			return;
+		}
+
+		while (buffer.readableBytes() >= MessageHeader.HEADER_SIZE) {
+
+			// バッファーが不足している場合は、次の読み込みまで待つ
+			int messageLength = buffer.getInt(buffer.readerIndex());
+			if (messageLength < MessageHeader.HEADER_SIZE) {
+				throw new MongoException("Invalid message length: " + messageLength);
+			}
+			if (buffer.readableBytes() < messageLength) {
+				break;
 			}
-			header.read(buffer);
+
+			// メッセージ全体を読み取り専用のスライスとして切り出す
+			ChannelBuffer frame = ChannelBuffers.unmodifiableBuffer(
+					buffer.slice(buffer.readerIndex(), messageLength));
+			buffer.skipBytes(messageLength);
+
+			MessageHeader header = new MessageHeader();
+			header.read(frame);
+
+			// 現時点で、 OP_REPLY 以外のメッセージは受け付けていない
+			if (header.getOpCode() != OperationCode.OP_REPLY) {
+				throw new MongoException("OP_CODE is not available in server response.");
+			}
+
+			// ボディ部分の読み取り
+			Response response = new Response(header);
+			response.readBuffer(frame);
+			Channels.fireMessageReceived(context, response, e.getRemoteAddress());
 		}
-		
-		// バッファーが不足している場合は、次の読み込みまで待つ
-		if (buffer.readableBytes() + 16 < header.getMessageLength()) {
-			return null;
+
+		// 読み切れなかった部分を次の読み込みまで保持する
+		cumulation.remain(buffer);
+	}
+
+	/**
+	 * 読み込み途中のバッファを保持します。
+	 * 受信したバッファはメッセージ長に達するまで一覧で保持し、
+	 * 揃った時点で一度だけ連結します。
+	 */
+	private static class Cumulation {
+
+		// 受信済みのバッファ一覧
+		private List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>(4);
+
+		// 受信済みのバイト数
+		private int readableBytes;
+
+		// 次のメッセージの長さ（不明な場合は -1）
+		private int messageLength = -1;
+
+		/**
+		 * 受信したバッファを追加し、メッセージを読み出せる場合は
+		 * 連結したバッファを返却します。
+		 * @param input
+		 * @return
+		 */
+		ChannelBuffer add(ChannelBuffer input) {
+			if (buffers.isEmpty()) {
+				readableBytes = 0;
+			}
+			buffers.add(input);
+			readableBytes += input.readableBytes();
+			if (readableBytes < MessageHeader.HEADER_SIZE
+					|| (messageLength > 0 && readableBytes < messageLength)) {
+				return null;
+			}
+			ChannelBuffer buffer;
+			if (buffers.size() == 1) {
+				buffer = input;
+			} else {
+				buffer = ChannelBuffers.wrappedBuffer(
+						buffers.toArray(new ChannelBuffer[buffers.size()]));
+			}
+			buffers.clear();
+			return buffer;
 		}
-		
-		// 現時点で、 OP_REPLY 以外のメッセージは受け付けていない
-		if (header.getOpCode() != OperationCode.OP_REPLY) {
-			throw new MongoException("OP_CODE is not available in server response.");
+
+		/**
+		 * 読み切れなかったバッファを保持します。
+		 * @param buffer
+		 */
+		void remain(ChannelBuffer buffer) {
+			messageLength = -1;
+			if (buffer.readable()) {
+				if (buffer.readableBytes() >= 4) {
+					messageLength = buffer.getInt(buffer.readerIndex());
+				}
+				buffers.add(buffer.slice());
+				readableBytes = buffer.readableBytes();
+			}
 		}
-		
-		// ボディ部分の読み取り
-		Response response = new Response(header);
-		response.readBuffer(buffer);
-		context.setAttachment(null);
-		return response;
 	}
-}
\ No newline at end of file
+}
@@ -2,8 +2,11 @@ package jp.ameba.mongo;
 
 import java.net.SocketAddress;
 import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.buffer.ChannelBufferFactory;
@@ -14,6 +17,8 @@ import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 /**
  * {@link MongoConnection} を生成・取得するための
@@ -34,24 +39,39 @@ public class MongoDriver {
 	private MongoChannelHandler mongoClientHandler;
 	// Configuration
 	private MongoConfiguration mongoConfig;
+	// 返信待ちのタイムアウト用タイマー
+	private Timer timer;
+	// タイマーから委譲された、待ちを伴う処理を実行する Executor
+	private ExecutorService taskExecutor;
 	
 	public MongoDriver() {
 		this(new MongoChannelHandler());
 	}
 	
 	public MongoDriver(MongoChannelHandler channelHandler) {
+		// ワーカー数をスレッドプールのサイズと揃え、スレッドを割り当てられないワーカーを作らない
+		int workerCount = Runtime.getRuntime().availableProcessors();
 		this.channelFactory = new NioClientSocketChannelFactory(
 				Executors.newFixedThreadPool(
 						Runtime.getRuntime().availableProcessors(),
 						new NamedThreadFactory("mongo-boss-")),
 				Executors.newFixedThreadPool(
-						Runtime.getRuntime().availableProcessors(),
-						new NamedThreadFactory("mongo-worker-"))
+						workerCount,
+						new NamedThreadFactory("mongo-worker-")),
+				workerCount
 		);
 		this.channelBufferFactory = new HeapChannelBufferFactory(ByteOrder.LITTLE_ENDIAN);
 		this.channelPipelineFactory = new MongoPipelineFactory();
 		this.mongoClientHandler = channelHandler;
 		this.mongoConfig = new MongoConfiguration();
+		this.mongoClientHandler.setConfiguration(mongoConfig);
+		this.timer = new HashedWheelTimer(
+				new NamedThreadFactory("mongo-timer-"),
+				10, TimeUnit.MILLISECONDS, 512);
+		this.mongoClientHandler.setTimer(timer);
+		this.taskExecutor = Executors.newCachedThreadPool(
+				new NamedThreadFactory("mongo-task-"));
+		this.mongoClientHandler.setTaskExecutor(taskExecutor);
 	}
 	
 	/**
@@ -72,6 +92,33 @@ public class MongoDriver {
 		}
 	}
 	
+	/**
+	 * タイマーを停止し、 I/O スレッドを解放します。
+	 * 作成したすべての接続を閉じてから呼び出す必要があります。
+	 */
+	public void close() {
+		timer.stop();
+		taskExecutor.shutdown();
+		channelFactory.releaseExternalResources();
+	}
+	
+	/**
+	 * ドライバーの使用するタイマーを取得します。
+	 * @return
+	 */
+	public Timer getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * タイマーから委譲された、待ちを伴う処理を実行する {@link Executor} を取得します。
+	 * タイマースレッドを止めないよう、接続の選択や送信の完了を待つ処理はこの上で実行します。
+	 * @return
+	 */
+	public Executor getTaskExecutor() {
+		return taskExecutor;
+	}
+	
 	/**
 	 * MongoDB の設定を取得します。
 	 * @return
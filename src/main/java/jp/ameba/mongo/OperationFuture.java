@@ -0,0 +1,331 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 非同期処理の結果を表す {@link Future} です。
+ * 完了時に {@link OperationListener} へ通知します。
+ * 
+ * リスナーは {@link Executor} が指定されている場合はその上で、
+ * 指定されていない場合は完了させたスレッド（通常は I/O スレッド）で
+ * 実行されます。 I/O スレッドで実行される場合、
+ * リスナー内でブロックする処理を行ってはいけません。
+ * 
+ * 状態はロックを使用せず、単一のフィールドへの CAS で管理します。
+ * 完了前はリスナーと待機スレッドのスタック、完了後は結果を保持します。
+ * 
+ * @author suguru
+ */
+public class OperationFuture<V> implements Future<V> {
+	
+	private static final Logger log = Logger.getLogger(OperationFuture.class.getName());
+	
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<OperationFuture, Object> stateUpdater =
+			AtomicReferenceFieldUpdater.newUpdater(OperationFuture.class, Object.class, "state");
+	
+	// リスナーを実行する Executor
+	private final Executor executor;
+	
+	// 完了前は待機中の Node スタック（空の場合は null）、完了後は Outcome
+	private volatile Object state;
+	
+	/**
+	 * 完了させたスレッドでリスナーを実行する {@link OperationFuture} を構成します。
+	 */
+	public OperationFuture() {
+		this(null);
+	}
+	
+	/**
+	 * 指定の {@link Executor} でリスナーを実行する {@link OperationFuture} を構成します。
+	 * @param executor
+	 */
+	public OperationFuture(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * 処理結果を設定し、完了させます。
+	 * @param result
+	 * @return 既に完了している場合は false
+	 */
+	public boolean setSuccess(V result) {
+		return complete(new Outcome(result, null));
+	}
+	
+	/**
+	 * 失敗原因を設定し、完了させます。
+	 * @param cause
+	 * @return 既に完了している場合は false
+	 */
+	public boolean setFailure(Throwable cause) {
+		if (cause == null) {
+			cause = new MongoException("Operation failed without cause.");
+		}
+		return complete(new Outcome(null, cause));
+	}
+	
+	/**
+	 * 完了時に通知するリスナーを追加します。
+	 * 既に完了している場合は、即座に通知します。
+	 * @param listener
+	 */
+	public void addListener(OperationListener<V> listener) {
+		if (!push(new Node(listener, null))) {
+			notifyListener(listener);
+		}
+	}
+	
+	/**
+	 * 処理が成功したか確認します。
+	 * @return
+	 */
+	public boolean isSuccess() {
+		Object state = this.state;
+		return state instanceof Outcome && ((Outcome) state).cause == null;
+	}
+	
+	/**
+	 * 処理が失敗した場合の原因を取得します。
+	 * @return
+	 */
+	public Throwable getCause() {
+		Object state = this.state;
+		return state instanceof Outcome ? ((Outcome) state).cause : null;
+	}
+	
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		throw new MongoException("Cancel is not available.");
+	}
+	
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+	
+	@Override
+	public boolean isDone() {
+		return state instanceof Outcome;
+	}
+	
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		if (!isDone()) {
+			Node node = new Node(null, Thread.currentThread());
+			if (push(node)) {
+				try {
+					while (!isDone()) {
+						LockSupport.park(this);
+						if (Thread.interrupted()) {
+							throw new InterruptedException();
+						}
+					}
+				} finally {
+					unlink(node);
+				}
+			}
+		}
+		return getResult();
+	}
+	
+	@Override
+	public V get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!isDone()) {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			Node node = new Node(null, Thread.currentThread());
+			if (push(node)) {
+				try {
+					while (!isDone()) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							throw new TimeoutException("MongoDB operation has been timed out.");
+						}
+						LockSupport.parkNanos(this, remaining);
+						if (Thread.interrupted()) {
+							throw new InterruptedException();
+						}
+					}
+				} finally {
+					unlink(node);
+				}
+			}
+		}
+		return getResult();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private V getResult() throws ExecutionException {
+		Outcome outcome = (Outcome) state;
+		if (outcome.cause != null) {
+			throw new ExecutionException(outcome.cause);
+		}
+		return (V) outcome.result;
+	}
+	
+	/**
+	 * 完了前であれば、スタックに Node を追加します。
+	 * @param node
+	 * @return 既に完了している場合は false
+	 */
+	private boolean push(Node node) {
+		for (;;) {
+			Object state = this.state;
+			if (state instanceof Outcome) {
+				return false;
+			}
+			node.next = node(state);
+			if (stateUpdater.compareAndSet(this, state, node)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * 結果を設定し、待機中のスレッドとリスナーへ通知します。
+	 * @param outcome
+	 * @return 既に完了している場合は false
+	 */
+	private boolean complete(Outcome outcome) {
+		Object state;
+		do {
+			state = this.state;
+			if (state instanceof Outcome) {
+				return false;
+			}
+		} while (!stateUpdater.compareAndSet(this, state, outcome));
+		
+		// 待機を終えたスレッドが同時に Node を取り除くため、スタックは書き換えずに取り出し、
+		// 登録順に通知する
+		List<Node> nodes = new ArrayList<Node>();
+		for (Node node = node(state); node != null; node = node.next) {
+			nodes.add(node);
+		}
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			Thread waiter = nodes.get(i).waiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			OperationListener<V> listener = nodes.get(i).listener;
+			if (listener != null) {
+				notifyListener(listener);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * タイムアウトや割り込みで待機を終えたスレッドの Node を、スタックから取り除きます。
+	 * 完了を待たずに get を繰り返した場合も、スタックが伸び続けないようにします。
+	 * @param node
+	 */
+	private void unlink(Node node) {
+		node.waiter = null;
+		retry:
+		for (;;) {
+			Object state = this.state;
+			if (state == null || state instanceof Outcome) {
+				return;
+			}
+			// 待機スレッドもリスナーも持たない Node をすべて取り除く
+			Node pred = null;
+			for (Node current = node(state); current != null;) {
+				Node next = current.next;
+				if (current.waiter != null || current.listener != null) {
+					pred = current;
+				} else if (pred != null) {
+					pred.next = next;
+					if (pred.waiter == null && pred.listener == null) {
+						// 直前の Node が同時に取り除かれた場合はやり直す
+						continue retry;
+					}
+				} else if (!stateUpdater.compareAndSet(this, current, next)) {
+					continue retry;
+				}
+				current = next;
+			}
+			return;
+		}
+	}
+	
+	/**
+	 * 完了前の状態を Node として取得します。
+	 */
+	@SuppressWarnings("unchecked")
+	private Node node(Object state) {
+		return (Node) state;
+	}
+	
+	private void notifyListener(final OperationListener<V> listener) {
+		if (executor != null) {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						invokeListener(listener);
+					}
+				});
+				return;
+			} catch (RejectedExecutionException ex) {
+				// Executor が停止している場合は、このスレッドで実行する
+			}
+		}
+		invokeListener(listener);
+	}
+	
+	private void invokeListener(OperationListener<V> listener) {
+		try {
+			listener.operationComplete(this);
+		} catch (Throwable ex) {
+			// リスナーの例外は他のリスナーや I/O スレッドに影響させない
+			log.log(Level.WARNING, "An exception was thrown by " + listener.getClass().getName(), ex);
+		}
+	}
+	
+	/**
+	 * 完了待ちのリスナー、もしくは待機スレッド
+	 */
+	private final class Node {
+		
+		private final OperationListener<V> listener;
+		
+		private volatile Thread waiter;
+		
+		private volatile Node next;
+		
+		private Node(OperationListener<V> listener, Thread waiter) {
+			this.listener = listener;
+			this.waiter = waiter;
+		}
+	}
+	
+	/**
+	 * 処理結果
+	 */
+	private static final class Outcome {
+		
+		private final Object result;
+		
+		private final Throwable cause;
+		
+		private Outcome(Object result, Throwable cause) {
+			this.result = result;
+			this.cause = cause;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package jp.ameba.mongo;
+
+/**
+ * {@link OperationFuture} の完了通知を受け取るリスナーです。
+ * 
+ * @author suguru
+ */
+public interface OperationListener<V> {
+	
+	/**
+	 * 処理が完了した時点で呼び出されます。
+	 * 成功・失敗は {@link OperationFuture#isSuccess()} で確認します。
+	 * @param future
+	 */
+	void operationComplete(OperationFuture<V> future);
+	
+}
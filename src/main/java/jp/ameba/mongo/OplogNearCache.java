@@ -0,0 +1,375 @@
+package jp.ameba.mongo;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.GetMore;
+import jp.ameba.mongo.protocol.KillCursors;
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BSONTimestamp;
+
+/**
+ * _id による検索結果を保持し、 oplog の追跡によって他のクライアントの更新を反映するキャッシュです。
+ *
+ * local.oplog.rs もしくは local.oplog.$main を Tailable, AwaitData カーソルで追跡し、
+ * 挿入・更新・削除されたドキュメントの _id のエントリを破棄します。
+ * コマンドなど _id を特定できない操作、および追跡が途切れて oplog に欠落が生じた場合は、
+ * すべてのエントリを破棄します。
+ * 追跡を開始するまでの間、および接続に失敗している間はキャッシュを使用しません。
+ *
+ * {@link MongoCollection#setNearCache(OplogNearCache)} により、
+ * {@link MongoCollection#findById(Object)} および {@link MongoCollection#findByIds(List)} で使用します。
+ *
+ * @author suguru
+ */
+public class OplogNearCache implements Runnable {
+
+	private static final Logger log = Logger.getLogger(OplogNearCache.class.getName());
+
+	// oplog のデータベース名
+	private static final String LOCAL = "local";
+
+	// 追跡に失敗した場合の再試行間隔（ミリ秒）
+	private static final long RETRY_INTERVAL = 1000L;
+
+	// oplog から取得するフィールド
+	private static final BSONObject FIELDS = new BasicBSONObject("ts", 1)
+		.append("op", 1)
+		.append("ns", 1)
+		.append("o._id", 1)
+		.append("o2._id", 1);
+
+	// 使用するクライアント
+	private final MongoClient client;
+
+	// ドキュメントを保持するキャッシュ
+	private final DocumentCache cache;
+
+	// 一度に取得する oplog の件数
+	private int batchSize = 1000;
+
+	// 追跡する oplog のコレクション名
+	private String oplogName;
+
+	// oplog の追跡によってキャッシュが更新に追従しているか
+	private volatile boolean coherent = false;
+
+	// 最後に取得した oplog で、未反映の操作がなくなったか
+	private volatile boolean caughtUp = false;
+
+	// 最後に反映した操作の時刻（ミリ秒）
+	private volatile long lastOpTime;
+
+	// _id により破棄した回数
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	// 欠落によりすべて破棄した回数
+	private final AtomicLong gapCount = new AtomicLong();
+
+	// 追跡スレッド
+	private Thread thread;
+
+	// 追跡に使用している専用の接続
+	private volatile MongoConnection tailConnection;
+
+	// 停止済みか
+	private volatile boolean closed = false;
+
+	/**
+	 * {@link OplogNearCache} を構成します。
+	 * 追跡は {@link #start()} により開始します。
+	 * @param client oplog を追跡するクライアント
+	 * @param cache ドキュメントを保持するキャッシュ
+	 */
+	public OplogNearCache(MongoClient client, DocumentCache cache) {
+		this.client = client;
+		this.cache = cache;
+	}
+
+	/**
+	 * 一度に取得する oplog の件数を設定します。
+	 * @param batchSize
+	 * @return
+	 */
+	public OplogNearCache batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * oplog の追跡を開始します。
+	 */
+	public synchronized void start() {
+		if (thread == null && !closed) {
+			thread = new Thread(this, "mongo-oplog-tail");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * oplog の追跡を停止し、キャッシュの使用を停止します。
+	 */
+	public void close() {
+		closed = true;
+		setCoherent(false);
+		// 返信待ちの getMore を中断する
+		MongoConnection conn = tailConnection;
+		if (conn != null) {
+			conn.closeAsync();
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * ドキュメントを保持するキャッシュを取得します。
+	 * @return
+	 */
+	public DocumentCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * キャッシュが他のクライアントの更新に追従しているか確認します。
+	 * @return
+	 */
+	public boolean isCoherent() {
+		return coherent;
+	}
+
+	/**
+	 * 更新がキャッシュに反映されるまでの遅れを取得します。
+	 * 取得済みの oplog をすべて反映している場合は 0 となります。
+	 * @return 遅れ（ミリ秒）。追従していない場合は -1
+	 */
+	public long getLag() {
+		if (!coherent) {
+			return -1L;
+		}
+		if (caughtUp) {
+			return 0L;
+		}
+		return Math.max(0L, System.currentTimeMillis() - lastOpTime);
+	}
+
+	/**
+	 * oplog により _id のエントリを破棄した回数を取得します。
+	 * @return
+	 */
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	/**
+	 * oplog の欠落によりすべてのエントリを破棄した回数を取得します。
+	 * @return
+	 */
+	public long getGapCount() {
+		return gapCount.get();
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			MongoConnection conn = null;
+			try {
+				// awaitData の getMore は返信までチャネルを占有するため、専用の接続を使用する
+				conn = client.openPrivateConnection();
+				tailConnection = conn;
+				if (!closed) {
+					tail(conn);
+				}
+			} catch (RuntimeException ex) {
+				if (closed) {
+					return;
+				}
+				log.log(Level.WARNING, "Failed to tail oplog. Retry after " + RETRY_INTERVAL + " ms.", ex);
+			} finally {
+				tailConnection = null;
+				if (conn != null) {
+					conn.closeAsync();
+				}
+			}
+			setCoherent(false);
+			pause();
+		}
+	}
+
+	/**
+	 * キャッシュを使用するかを設定します。
+	 * 使用を停止する場合は、すべてのエントリを破棄します。
+	 * @param coherent
+	 */
+	void setCoherent(boolean coherent) {
+		this.coherent = coherent;
+		if (!coherent) {
+			caughtUp = false;
+			cache.clear();
+		}
+	}
+
+	/**
+	 * 停止されるまで oplog を追跡します。
+	 * カーソルが終了した場合は、最後に反映した位置から追跡し直します。
+	 */
+	private void tail(MongoConnection conn) {
+		if (oplogName == null) {
+			oplogName = findOplog(conn);
+		}
+		BSONTimestamp lastTs = latest(conn, oplogName);
+		while (!closed) {
+			// 最後に反映した操作から取得し、欠落がないか確認する
+			BSONObject selector = new BasicBSONObject();
+			if (lastTs != null) {
+				selector.put("ts", new BasicBSONObject("$gte", lastTs));
+			}
+			Response response = MongoConnectionImpl.checkQuery(conn.query(new Query(
+					LOCAL,
+					oplogName,
+					0,
+					batchSize,
+					selector,
+					FIELDS
+			).tailableCursor(true).awaitData(true).oplogReplay(true).slaveOk(true)));
+			List<BSONObject> documents = response.getDocuments();
+			int start = 0;
+			if (lastTs != null) {
+				if (documents.isEmpty() || !sameTimestamp(lastTs, documents.get(0).get("ts"))) {
+					log.warning("Oplog entries after " + lastTs + " were lost. Clear all cached documents.");
+					gapCount.incrementAndGet();
+					cache.clear();
+				} else {
+					start = 1;
+				}
+			}
+			long cursorId = response.getCursorId();
+			if (cursorId != 0) {
+				coherent = true;
+			}
+			lastTs = apply(documents, start, lastTs, response.getNumberReturned());
+			while (cursorId != 0 && !closed) {
+				response = conn.getMore(new GetMore(LOCAL, oplogName, batchSize, cursorId));
+				if (response.isCursorNotFound()) {
+					cursorId = 0;
+					break;
+				}
+				lastTs = apply(response.getDocuments(), 0, lastTs, response.getNumberReturned());
+				cursorId = response.getCursorId();
+			}
+			if (cursorId != 0) {
+				conn.killCursors(new KillCursors(cursorId));
+			} else if (response.getNumberReturned() == 0) {
+				// 追加を待てないカーソルの場合は、間隔をあけて検索し直す
+				pause();
+			}
+		}
+	}
+
+	/**
+	 * 取得した oplog をキャッシュに反映します。
+	 * @return 最後に反映した操作の ts
+	 */
+	private BSONTimestamp apply(List<BSONObject> documents, int start, BSONTimestamp lastTs, int numberReturned) {
+		for (int i = start; i < documents.size(); i++) {
+			BSONObject entry = documents.get(i);
+			apply(entry);
+			Object ts = entry.get("ts");
+			if (ts instanceof BSONTimestamp) {
+				lastTs = (BSONTimestamp) ts;
+				lastOpTime = lastTs.getTime() * 1000L;
+			}
+		}
+		caughtUp = numberReturned < batchSize;
+		return lastTs;
+	}
+
+	/**
+	 * 1件の oplog をキャッシュに反映します。
+	 * @param entry
+	 */
+	void apply(BSONObject entry) {
+		String op = (String) entry.get("op");
+		if ("n".equals(op)) {
+			return;
+		}
+		Object target = null;
+		if ("i".equals(op) || "d".equals(op)) {
+			target = entry.get("o");
+		} else if ("u".equals(op)) {
+			target = entry.get("o2");
+		}
+		if (target instanceof BSONObject && ((BSONObject) target).containsField("_id")) {
+			cache.invalidate((String) entry.get("ns"), ((BSONObject) target).get("_id"));
+			invalidationCount.incrementAndGet();
+		} else {
+			// コマンドなど、対象の _id を特定できない操作
+			cache.clear();
+		}
+	}
+
+	/**
+	 * 追跡する oplog のコレクション名を取得します。
+	 */
+	private static String findOplog(MongoConnection conn) {
+		for (String name : new String[] { "oplog.rs", "oplog.$main" }) {
+			if (latest(conn, name) != null) {
+				return name;
+			}
+		}
+		throw new MongoException("Oplog is not found in local database.");
+	}
+
+	/**
+	 * oplog の最新の操作の ts を取得します。
+	 * @return oplog が空の場合は null
+	 */
+	private static BSONTimestamp latest(MongoConnection conn, String oplogName) {
+		BSONObject query = new BasicBSONObject("$query", new BasicBSONObject())
+			.append("$orderby", new BasicBSONObject("$natural", -1));
+		BSONObject entry = MongoConnectionImpl.checkQuery(conn.query(new Query(
+				LOCAL,
+				oplogName,
+				0,
+				-1,
+				query,
+				new BasicBSONObject("ts", 1)
+		).slaveOk(true))).getDocument();
+		if (entry == null) {
+			return null;
+		}
+		return (BSONTimestamp) entry.get("ts");
+	}
+
+	/**
+	 * {@link BSONTimestamp} は equals を実装していないため、値を比較します。
+	 */
+	private static boolean sameTimestamp(BSONTimestamp ts, Object other) {
+		if (!(other instanceof BSONTimestamp)) {
+			return false;
+		}
+		BSONTimestamp o = (BSONTimestamp) other;
+		return ts.getTime() == o.getTime() && ts.getInc() == o.getInc();
+	}
+
+	/**
+	 * 停止されるまで、再試行間隔の間待機します。
+	 */
+	private synchronized void pause() {
+		if (closed) {
+			return;
+		}
+		try {
+			wait(RETRY_INTERVAL);
+		} catch (InterruptedException ex) {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package jp.ameba.mongo;
+
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+
+/**
+ * 送信用の {@link ChannelBufferOutputBuffer} を再利用するためのプールです。
+ * 送信のたびにバッファを確保せず、送信完了後のバッファを使い回します。
+ *
+ * @author suguru
+ */
+public class OutputBufferPool {
+
+	// 設定
+	private MongoConfiguration config;
+
+	// 再利用待ちのバッファ一覧
+	private Queue<ChannelBufferOutputBuffer> buffers;
+
+	// 再利用待ちのバッファ数
+	private AtomicInteger pooledCount;
+
+	/**
+	 * {@link OutputBufferPool} を構成します。
+	 * @param config
+	 */
+	public OutputBufferPool(MongoConfiguration config) {
+		this.config = config;
+		this.buffers = new ConcurrentLinkedQueue<ChannelBufferOutputBuffer>();
+		this.pooledCount = new AtomicInteger();
+	}
+
+	/**
+	 * 空のバッファを取得します。
+	 * プールに再利用可能なバッファがなければ、新規に確保します。
+	 * @return
+	 */
+	public ChannelBufferOutputBuffer acquire() {
+		ChannelBufferOutputBuffer buffer = buffers.poll();
+		if (buffer != null) {
+			pooledCount.decrementAndGet();
+			return buffer;
+		}
+		ChannelBufferFactory factory = config.isDirectBuffer() ?
+				DirectChannelBufferFactory.getInstance(ByteOrder.LITTLE_ENDIAN) :
+				HeapChannelBufferFactory.getInstance(ByteOrder.LITTLE_ENDIAN);
+		return new ChannelBufferOutputBuffer(
+				ChannelBuffers.dynamicBuffer(
+						ByteOrder.LITTLE_ENDIAN,
+						config.getInitialBufferSize(),
+						factory),
+				this);
+	}
+
+	/**
+	 * バッファをプールへ返却します。
+	 * プールが満杯の場合や、大きくなりすぎたバッファは破棄されます。
+	 * @param buffer
+	 */
+	public void release(ChannelBufferOutputBuffer buffer) {
+		if (buffer.capacity() > config.getMaxPooledBufferSize()) {
+			return;
+		}
+		if (pooledCount.incrementAndGet() > config.getBufferPoolSize()) {
+			pooledCount.decrementAndGet();
+			return;
+		}
+		buffer.reset();
+		buffers.offer(buffer);
+	}
+}
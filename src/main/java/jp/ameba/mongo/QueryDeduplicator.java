@@ -0,0 +1,177 @@
+package jp.ameba.mongo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.ameba.mongo.protocol.MessageHeader;
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.RawRequest;
+import jp.ameba.mongo.protocol.Response;
+
+/**
+ * 送信中のクエリと同一のクエリを送信せず、送信中のクエリの結果を共有させるクラスです。
+ *
+ * クエリはヘッダを除いたメッセージのバイト列（名前空間、フラグ、条件、取得フィールド）
+ * で同一か判定します。エンコードしたメッセージはそのまま送信に使用します。
+ * 共有する返信のバッファは、呼び出し側ごとの {@link Response#view()} で参照するため、
+ * 取得したドキュメントはそれぞれの呼び出し側で個別にデコードされます。
+ *
+ * @author suguru
+ */
+final class QueryDeduplicator {
+
+	// 送信中のクエリと、その結果を共有する future
+	private final ConcurrentMap<QueryKey, OperationFuture<Response>> inFlight =
+			new ConcurrentHashMap<QueryKey, OperationFuture<Response>>();
+
+	// 送信中のクエリの結果を共有した回数
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	/**
+	 * クエリを送信し、返信を待たずに future を返却します。
+	 * 同一のクエリが送信中の場合は、その結果で完了する future を返却します。
+	 * @param conn
+	 * @param query
+	 * @return
+	 */
+	OperationFuture<Response> queryAsync(MongoConnection conn, Query query) {
+		byte[] message = MongoChannelHandler.encode(query);
+		final QueryKey key = new QueryKey(message, query.isLazy());
+		final OperationFuture<Response> shared = new OperationFuture<Response>();
+		OperationFuture<Response> existing = inFlight.putIfAbsent(key, shared);
+		if (existing != null) {
+			sharedCount.incrementAndGet();
+			return view(existing);
+		}
+		RawRequest request = new RawRequest(message);
+		request.setLazy(query.isLazy());
+		OperationFuture<Response> future;
+		try {
+			future = conn.writeAsync(request);
+		} catch (RuntimeException ex) {
+			inFlight.remove(key, shared);
+			shared.setFailure(ex);
+			return shared;
+		}
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				// 完了後のクエリは、新たに送信する
+				inFlight.remove(key, shared);
+				if (future.isSuccess()) {
+					try {
+						shared.setSuccess(future.get());
+					} catch (Exception ex) {
+						shared.setFailure(ex);
+					}
+				} else {
+					shared.setFailure(future.getCause());
+				}
+			}
+		});
+		return shared;
+	}
+
+	/**
+	 * 送信中のクエリの結果を、呼び出し側専用の {@link Response} で参照する future を作成します。
+	 * @param shared
+	 * @return
+	 */
+	private OperationFuture<Response> view(OperationFuture<Response> shared) {
+		final OperationFuture<Response> view = new OperationFuture<Response>();
+		shared.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				if (future.isSuccess()) {
+					try {
+						Response response = future.get();
+						view.setSuccess(response == null ? null : response.view());
+					} catch (Exception ex) {
+						view.setFailure(ex);
+					}
+				} else {
+					view.setFailure(future.getCause());
+				}
+			}
+		});
+		return view;
+	}
+
+	/**
+	 * クエリを送信し、結果を取得するまでブロックします。
+	 * @param conn
+	 * @param query
+	 * @return
+	 * @throws MongoException タイムアウト、もしくはクエリが失敗した場合
+	 */
+	Response query(MongoConnection conn, Query query) {
+		long timeout = conn.getConfiguration().getOperationTimeout();
+		try {
+			return MongoConnectionImpl.checkQuery(
+					queryAsync(conn, query).get(timeout, TimeUnit.MILLISECONDS));
+		} catch (ExecutionException ex) {
+			throw MongoConnectionImpl.toMongoException(ex);
+		} catch (TimeoutException ex) {
+			throw new MongoException("Operation timed out after " + timeout + " ms.", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MongoException(ex);
+		}
+	}
+
+	/**
+	 * 送信中のクエリの結果を共有した回数を取得します。
+	 * @return
+	 */
+	long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	/**
+	 * ヘッダを除いたメッセージのバイト列によるキー
+	 */
+	private static final class QueryKey {
+
+		private final byte[] message;
+
+		private final boolean lazy;
+
+		private final int hashCode;
+
+		QueryKey(byte[] message, boolean lazy) {
+			this.message = message;
+			this.lazy = lazy;
+			int hash = lazy ? 1 : 0;
+			for (int i = MessageHeader.HEADER_SIZE; i < message.length; i++) {
+				hash = 31 * hash + message[i];
+			}
+			this.hashCode = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof QueryKey)) {
+				return false;
+			}
+			QueryKey other = (QueryKey) o;
+			if (hashCode != other.hashCode || lazy != other.lazy || message.length != other.message.length) {
+				return false;
+			}
+			for (int i = MessageHeader.HEADER_SIZE; i < message.length; i++) {
+				if (message[i] != other.message[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
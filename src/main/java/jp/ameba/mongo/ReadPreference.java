@@ -0,0 +1,23 @@
+package jp.ameba.mongo;
+
+/**
+ * slaveOk を指定したクエリの送信先の選択方法です。
+ * レプリカセットの構成は、サーバーの往復時間の計測時に isMaster から取得します。
+ * 
+ * @author suguru
+ */
+public enum ReadPreference {
+	
+	// プライマリのみ
+	PRIMARY,
+	// プライマリ。プライマリがない場合はセカンダリ
+	PRIMARY_PREFERRED,
+	// セカンダリのみ
+	SECONDARY,
+	// セカンダリ。セカンダリがない場合はプライマリ
+	SECONDARY_PREFERRED,
+	// 往復時間の短いメンバー
+	NEAREST
+	
+	;
+}
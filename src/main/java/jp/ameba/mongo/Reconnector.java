@@ -0,0 +1,167 @@
+package jp.ameba.mongo;
+
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * 切断された接続を、同じサーバーへの新しい接続に置き換えるクラスです。
+ *
+ * 再接続の間隔はサーバーごとに、接続を確立できないたびに倍に延ばします。
+ * 同時に切断された接続が一斉に再接続しないよう、実際の遅延は
+ * 間隔の半分から間隔までの範囲で無作為に決めます。
+ * 確立していた接続が切断された場合は、最初の間隔から再接続します。
+ * {@link MongoConnection#close()} によって閉じた接続は再接続しません。
+ *
+ * @author suguru
+ */
+final class Reconnector {
+
+	private static final Logger log = Logger.getLogger(Reconnector.class.getName());
+
+	// 間隔を延ばす回数の上限
+	private static final int MAX_SHIFT = 16;
+
+	// 使用するクライアント
+	private final MongoClient client;
+
+	// サーバーごとの連続して接続を確立できなかった回数
+	private final ConcurrentMap<SocketAddress, AtomicInteger> failures =
+			new ConcurrentHashMap<SocketAddress, AtomicInteger>();
+
+	// 遅延に使用する乱数
+	private final Random random = new Random();
+
+	// 再接続した回数
+	private final AtomicLong reconnectCount = new AtomicLong();
+
+	// 停止済みか
+	private volatile boolean closed = false;
+
+	Reconnector(MongoClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * 接続の切断を監視します。
+	 * @param connection
+	 */
+	void watch(final MongoConnectionImpl connection) {
+		connection.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				closed(connection);
+			}
+		});
+	}
+
+	/**
+	 * 以降の再接続を停止します。
+	 */
+	void close() {
+		closed = true;
+	}
+
+	/**
+	 * 再接続した回数を取得します。
+	 * @return
+	 */
+	long getReconnectCount() {
+		return reconnectCount.get();
+	}
+
+	/**
+	 * 連続して接続を確立できなかった回数に応じた、再接続までの遅延を取得します。
+	 * @param attempt
+	 * @return 遅延（ミリ秒）
+	 */
+	long backoff(int attempt) {
+		MongoConfiguration config = client.getConfiguration();
+		long interval = Math.max(1L, config.getReconnectInterval());
+		long max = Math.max(interval, config.getMaxReconnectInterval());
+		long delay = Math.min(max, interval << Math.min(attempt, MAX_SHIFT));
+		long half = delay / 2;
+		return half + (long) (random.nextDouble() * (delay - half));
+	}
+
+	/**
+	 * 切断された接続の再接続を予約します。
+	 */
+	private void closed(MongoConnectionImpl connection) {
+		if (closed || connection.isCloseRequested() || client.getConfiguration().getReconnectInterval() <= 0) {
+			return;
+		}
+		AtomicInteger counter = getFailures(connection.getServerAddress());
+		int attempt;
+		if (connection.isEstablished()) {
+			counter.set(0);
+			attempt = 0;
+		} else {
+			attempt = counter.getAndIncrement();
+		}
+		schedule(connection, attempt);
+	}
+
+	/**
+	 * 遅延の経過後に再接続します。
+	 */
+	private void schedule(final MongoConnectionImpl connection, int attempt) {
+		Timer timer = client.getTimer();
+		if (timer == null) {
+			return;
+		}
+		long delay = backoff(attempt);
+		log.info("Reconnecting to " + connection.getServerAddress() + " in " + delay + " ms.");
+		timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				if (!timeout.isCancelled() && !closed) {
+					reconnect(connection);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 切断された接続を、同じサーバーへの新しい接続に置き換えます。
+	 * 新しい接続を確立できなかった場合は、その接続の切断として再度予約されます。
+	 */
+	private void reconnect(MongoConnectionImpl connection) {
+		SocketAddress address = connection.getServerAddress();
+		MongoConnection replacement;
+		try {
+			replacement = client.openConnection(address);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Failed to reconnect to " + address, ex);
+			schedule(connection, getFailures(address).getAndIncrement());
+			return;
+		}
+		client.removeConnection(connection);
+		reconnectCount.incrementAndGet();
+		replacement.openAsync();
+	}
+
+	private AtomicInteger getFailures(SocketAddress address) {
+		AtomicInteger counter = failures.get(address);
+		if (counter == null) {
+			AtomicInteger created = new AtomicInteger();
+			counter = failures.putIfAbsent(address, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+}
@@ -0,0 +1,197 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.ameba.mongo.protocol.Request;
+
+/**
+ * 返信待ちのリクエストを、リクエストIDをキーとして保持するテーブルです。
+ * キーを int のまま扱うオープンアドレス法のハッシュテーブルで、
+ * 登録・検索・削除の際にオブジェクトを生成しません。
+ * 
+ * チャネルごとに1つ作成し、そのチャネルの送信スレッドと
+ * I/O スレッドの間でのみ同期します。
+ * 
+ * @author suguru
+ */
+final class RequestTable {
+	
+	// 初期容量（2のべき乗）
+	private static final int INITIAL_CAPACITY = 64;
+	
+	// リクエストID
+	private int[] keys;
+	
+	// 返信待ちのリクエスト（空きスロットは null）
+	private Request[] values;
+	
+	// スロット位置を求めるためのマスク
+	private int mask;
+	
+	// 登録数
+	private int size;
+	
+	// 最後に採番したリクエストID
+	private int sequence;
+	
+	RequestTable() {
+		allocate(INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * このチャネルで使用する次のリクエストIDを採番します。
+	 * IDは 1 から 2^31-1 までを循環し、一周した際に
+	 * 返信待ちのまま残っているIDは使用しません。
+	 * @return
+	 */
+	synchronized int nextRequestId() {
+		for (;;) {
+			sequence = (sequence + 1) & Integer.MAX_VALUE;
+			if (sequence != 0 && indexOf(sequence) < 0) {
+				return sequence;
+			}
+		}
+	}
+	
+	/**
+	 * リクエストを登録します。
+	 * 同じリクエストIDが登録済みの場合は、上書きします。
+	 * @param requestId
+	 * @param request
+	 */
+	synchronized void put(int requestId, Request request) {
+		if ((size + 1) * 2 > values.length) {
+			resize(values.length * 2);
+		}
+		int index = requestId & mask;
+		while (values[index] != null) {
+			if (keys[index] == requestId) {
+				values[index] = request;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = requestId;
+		values[index] = request;
+		size++;
+	}
+	
+	/**
+	 * 指定のリクエストIDが登録されているか確認します。
+	 * @param requestId
+	 * @return
+	 */
+	synchronized boolean contains(int requestId) {
+		return indexOf(requestId) >= 0;
+	}
+	
+	/**
+	 * 指定のリクエストIDのリクエストを除去し、返却します。
+	 * @param requestId
+	 * @return 登録されていない場合は null
+	 */
+	synchronized Request remove(int requestId) {
+		int index = indexOf(requestId);
+		if (index < 0) {
+			return null;
+		}
+		Request request = values[index];
+		delete(index);
+		return request;
+	}
+	
+	/**
+	 * 指定のリクエストIDに指定のリクエストが登録されている場合のみ除去します。
+	 * @param requestId
+	 * @param request
+	 * @return 除去した場合は true
+	 */
+	synchronized boolean remove(int requestId, Request request) {
+		int index = indexOf(requestId);
+		if (index < 0 || values[index] != request) {
+			return false;
+		}
+		delete(index);
+		return true;
+	}
+	
+	/**
+	 * 登録されているすべてのリクエストを除去し、返却します。
+	 * @return
+	 */
+	synchronized List<Request> removeAll() {
+		List<Request> requests = new ArrayList<Request>(size);
+		for (Request request : values) {
+			if (request != null) {
+				requests.add(request);
+			}
+		}
+		allocate(INITIAL_CAPACITY);
+		return requests;
+	}
+	
+	/**
+	 * 登録数を取得します。
+	 * @return
+	 */
+	synchronized int size() {
+		return size;
+	}
+	
+	private int indexOf(int requestId) {
+		int index = requestId & mask;
+		while (values[index] != null) {
+			if (keys[index] == requestId) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * 指定のスロットを空け、後続の要素を詰めて探索の連続性を保ちます。
+	 * @param index
+	 */
+	private void delete(int index) {
+		values[index] = null;
+		size--;
+		int next = (index + 1) & mask;
+		while (values[next] != null) {
+			int home = keys[next] & mask;
+			// home が (index, next] の範囲外であれば、空いたスロットへ移動できる
+			if (((next - home) & mask) >= ((next - index) & mask)) {
+				keys[index] = keys[next];
+				values[index] = values[next];
+				values[next] = null;
+				index = next;
+			}
+			next = (next + 1) & mask;
+		}
+	}
+	
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Request[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = oldKeys[i] & mask;
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+				size++;
+			}
+		}
+	}
+	
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Request[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+}
@@ -0,0 +1,58 @@
+package jp.ameba.mongo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 読み込みの再送を制限するトークンバケットです。
+ *
+ * 再送ごとにトークンを1つ消費し、成功した読み込みごとに一部を補充します。
+ * 残りのトークンが上限の半分以下の場合は再送しないため、
+ * 障害が続く間に再送によって負荷が増幅することを防ぎます。
+ *
+ * @author suguru
+ */
+final class RetryBudget {
+
+	// トークンの単位（1トークンあたりの内部値）
+	private static final int TOKEN = 1000;
+
+	// トークンの上限
+	private static final int MAX_TOKENS = 10 * TOKEN;
+
+	// 成功した読み込みごとに補充する量
+	private static final int REFILL = TOKEN / 10;
+
+	// 残りのトークン
+	private final AtomicInteger tokens = new AtomicInteger(MAX_TOKENS);
+
+	/**
+	 * 再送のためにトークンを消費します。
+	 * @return 再送してよい場合は true
+	 */
+	boolean tryAcquire() {
+		for (;;) {
+			int current = tokens.get();
+			if (current <= MAX_TOKENS / 2) {
+				return false;
+			}
+			if (tokens.compareAndSet(current, current - TOKEN)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 成功した読み込みの分、トークンを補充します。
+	 */
+	void refill() {
+		for (;;) {
+			int current = tokens.get();
+			if (current >= MAX_TOKENS) {
+				return;
+			}
+			if (tokens.compareAndSet(current, Math.min(MAX_TOKENS, current + REFILL))) {
+				return;
+			}
+		}
+	}
+}
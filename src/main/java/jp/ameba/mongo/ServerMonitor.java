@@ -0,0 +1,264 @@
+package jp.ameba.mongo;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * 各サーバーに定期的に isMaster を送信し、往復時間を計測するクラスです。
+ *
+ * 往復時間は指数加重移動平均として保持し、送信先の候補のうち最も速いサーバーから
+ * 設定した範囲内の往復時間のサーバーを、接続の選択対象とします。
+ * 計測していないサーバーは選択対象に含めます。
+ * isMaster の結果は、各接続のサーバーの制限値、およびレプリカセットの構成として使用します。
+ * isMaster は返信待ちの最も少ない接続で送信し、一時的な遅延による失敗では
+ * サーバーの役割を破棄しないよう、連続して失敗した場合にのみ破棄します。
+ *
+ * @author suguru
+ */
+final class ServerMonitor implements TimerTask {
+
+	private static final Logger log = Logger.getLogger(ServerMonitor.class.getName());
+
+	// 往復時間の計測に使用するクエリ
+	private static final BSONObject IS_MASTER = new BasicBSONObject("isMaster", 1);
+
+	// 移動平均における新しい計測値の重み
+	private static final double ALPHA = 0.2;
+
+	// 応答しなかったサーバーの往復時間
+	private static final long FAILED = Long.MAX_VALUE;
+
+	// 応答しなかったものとして扱い、サーバーの役割を破棄するまでの連続した失敗数
+	private static final int MAX_FAILURES = 3;
+
+	// 使用するクライアント
+	private final MongoClient client;
+
+	// サーバーごとの往復時間（ナノ秒）
+	// 計測するたびに新しいインスタンスに置き換える
+	private volatile Map<SocketAddress, Long> roundTripTimes = Collections.emptyMap();
+
+	// サーバーごとの連続した失敗数
+	private final ConcurrentMap<SocketAddress, Integer> failures = new ConcurrentHashMap<SocketAddress, Integer>();
+
+	// 次回の計測
+	private volatile Timeout timeout;
+
+	// 停止済みか
+	private volatile boolean closed = false;
+
+	ServerMonitor(MongoClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * 定期的な計測を開始します。
+	 */
+	void start() {
+		schedule();
+	}
+
+	/**
+	 * 計測を停止します。
+	 */
+	void close() {
+		closed = true;
+		Timeout current = timeout;
+		if (current != null) {
+			current.cancel();
+		}
+	}
+
+	@Override
+	public void run(Timeout timeout) throws Exception {
+		if (timeout.isCancelled() || closed) {
+			return;
+		}
+		try {
+			ping();
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Failed to send heartbeat.", ex);
+		} finally {
+			schedule();
+		}
+	}
+
+	/**
+	 * 候補のサーバーのうち、最も速いサーバーから設定した範囲内の往復時間のサーバーを取得します。
+	 * 計測していないサーバーは含め、応答しなかったサーバーは含みません。
+	 * @param candidates
+	 * @return
+	 */
+	Set<SocketAddress> nearest(Collection<SocketAddress> candidates) {
+		Map<SocketAddress, Long> times = roundTripTimes;
+		long fastest = FAILED;
+		for (SocketAddress address : candidates) {
+			Long time = times.get(address);
+			if (time != null) {
+				fastest = Math.min(fastest, time);
+			}
+		}
+		long window = TimeUnit.MILLISECONDS.toNanos(client.getConfiguration().getLatencyWindow());
+		Set<SocketAddress> selected = new HashSet<SocketAddress>();
+		for (SocketAddress address : candidates) {
+			Long time = times.get(address);
+			if (time == null || time != FAILED && time - fastest <= window) {
+				selected.add(address);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * 往復時間を計測するたびに置き換えられる識別子を取得します。
+	 * @return
+	 */
+	Object getVersion() {
+		return roundTripTimes;
+	}
+
+	/**
+	 * サーバーごとの往復時間をマイクロ秒で取得します。
+	 * 応答しなかったサーバーは含みません。
+	 * @return
+	 */
+	Map<SocketAddress, Long> getRoundTripTimes() {
+		Map<SocketAddress, Long> times = new HashMap<SocketAddress, Long>();
+		for (Map.Entry<SocketAddress, Long> entry : roundTripTimes.entrySet()) {
+			if (entry.getValue() != FAILED) {
+				times.put(entry.getKey(), TimeUnit.NANOSECONDS.toMicros(entry.getValue()));
+			}
+		}
+		return times;
+	}
+
+	/**
+	 * 往復時間の計測値を反映します。
+	 * @param address
+	 * @param nanos 計測値（ナノ秒）。応答しなかった場合は -1
+	 */
+	synchronized void record(SocketAddress address, long nanos) {
+		Long current = roundTripTimes.get(address);
+		long value;
+		if (nanos < 0) {
+			value = FAILED;
+		} else if (current == null || current == FAILED) {
+			value = nanos;
+		} else {
+			value = (long) (ALPHA * nanos + (1.0 - ALPHA) * current);
+		}
+		Map<SocketAddress, Long> times = new HashMap<SocketAddress, Long>(roundTripTimes);
+		times.put(address, value);
+		roundTripTimes = times;
+	}
+
+	/**
+	 * isMaster の失敗を記録します。
+	 * 連続した失敗数が上限に達した場合は、サーバーを選択対象から外し、役割を破棄します。
+	 * @param address
+	 */
+	void failed(SocketAddress address) {
+		int count;
+		while (true) {
+			Integer current = failures.putIfAbsent(address, 1);
+			if (current == null) {
+				count = 1;
+				break;
+			}
+			if (failures.replace(address, current, current + 1)) {
+				count = current + 1;
+				break;
+			}
+		}
+		if (count >= MAX_FAILURES) {
+			record(address, -1L);
+			client.getTopology().remove(address);
+		}
+	}
+
+	/**
+	 * 次回の計測を予約します。
+	 */
+	private void schedule() {
+		Timer timer = client.getTimer();
+		long interval = client.getConfiguration().getHeartbeatInterval();
+		if (closed || timer == null || interval <= 0) {
+			return;
+		}
+		timeout = timer.newTimeout(this, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 各サーバーの接続のうち返信待ちの最も少ない接続を選び、 isMaster を送信します。
+	 * 返信待ちの多い接続では、往復時間に先行するリクエストの処理時間が含まれるため使用しません。
+	 */
+	private void ping() {
+		Map<SocketAddress, MongoConnection> targets = new HashMap<SocketAddress, MongoConnection>();
+		for (MongoConnection conn : client.getConnections()) {
+			SocketAddress address = conn.getServerAddress();
+			if (address == null || !conn.isConnected()) {
+				continue;
+			}
+			MongoConnection current = targets.get(address);
+			if (current == null || conn.getInFlightCount() < current.getInFlightCount()) {
+				targets.put(address, conn);
+			}
+		}
+		for (Map.Entry<SocketAddress, MongoConnection> target : targets.entrySet()) {
+			final SocketAddress address = target.getKey();
+			final long start = System.nanoTime();
+			target.getValue().queryAsync(new Query("admin", "$cmd", 0, 1, IS_MASTER, null))
+				.addListener(new OperationListener<Response>() {
+					@Override
+					public void operationComplete(OperationFuture<Response> future) {
+						long elapsed = System.nanoTime() - start;
+						if (!future.isSuccess()) {
+							failed(address);
+							return;
+						}
+						failures.remove(address);
+						record(address, elapsed);
+						try {
+							BSONObject isMaster = MongoConnectionImpl.checkQuery(future.get()).getDocument();
+							if (isMaster != null) {
+								updateServerLimits(address, isMaster);
+								client.getTopology().update(address, isMaster);
+							}
+						} catch (Exception ex) {
+							log.log(Level.FINE, "Failed to read isMaster from " + address, ex);
+						}
+					}
+				});
+		}
+	}
+
+	/**
+	 * isMaster の結果を、サーバーへのすべての接続の制限値として設定します。
+	 */
+	private void updateServerLimits(SocketAddress address, BSONObject isMaster) {
+		for (MongoConnection conn : client.getConnections()) {
+			if (conn instanceof MongoConnectionImpl && address.equals(conn.getServerAddress())) {
+				((MongoConnectionImpl) conn).setServerLimits(isMaster);
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package jp.ameba.mongo;
+
+import java.net.SocketAddress;
+
+import jp.ameba.mongo.protocol.Delete;
+import jp.ameba.mongo.protocol.GetMore;
+import jp.ameba.mongo.protocol.Insert;
+import jp.ameba.mongo.protocol.KillCursors;
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.RawRequest;
+import jp.ameba.mongo.protocol.Response;
+import jp.ameba.mongo.protocol.Update;
+
+/**
+ * 更新を {@link WriteSpool} に追記する {@link MongoConnection} 実装です。
+ * スプールが有効な間、更新はファイルへの追記が完了した時点で完了とし、
+ * サーバーでの処理結果は確認しません。
+ * スプールが無効になった後の更新と、クエリは有効な接続へ送信します。
+ *
+ * @author suguru
+ */
+final class SpoolingConnection implements MongoConnection {
+
+	// クライアント
+	private final MongoClient client;
+
+	// 追記先のスプール
+	private final WriteSpool spool;
+
+	SpoolingConnection(MongoClient client, WriteSpool spool) {
+		this.client = client;
+		this.spool = spool;
+	}
+
+	@Override
+	public int getChannelId() {
+		return -1;
+	}
+
+	@Override
+	public int getInFlightCount() {
+		return 0;
+	}
+
+	@Override
+	public SocketAddress getServerAddress() {
+		return null;
+	}
+
+	@Override
+	public MongoConfiguration getConfiguration() {
+		return client.getConfiguration();
+	}
+
+	/**
+	 * 自身のチャネルを持たないため、何もしません。
+	 * 送信先の接続とスプールは {@link MongoClient} が開閉します。
+	 */
+	@Override
+	public void open() throws MongoException {
+	}
+
+	@Override
+	public MongoFuture openAsync() throws MongoException {
+		return completed();
+	}
+
+	/**
+	 * 自身のチャネルを持たないため、何もしません。
+	 * 送信先の接続とスプールは {@link MongoClient} が開閉します。
+	 */
+	@Override
+	public void close() throws MongoException {
+	}
+
+	@Override
+	public MongoFuture closeAsync() throws MongoException {
+		return completed();
+	}
+
+	/**
+	 * 完了済みの {@link MongoFuture} を作成します。
+	 */
+	private static MongoFuture completed() {
+		MongoFuture future = new MongoFuture();
+		future.setSuccess(true);
+		return future;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return client.isOpen();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return client.isOpen();
+	}
+
+	@Override
+	public void insert(Insert insert) {
+		if (!spool.append(insert)) {
+			client.getLiveConnection().insert(insert);
+		}
+	}
+
+	@Override
+	public void update(Update update) {
+		if (!spool.append(update)) {
+			client.getLiveConnection().update(update);
+		}
+	}
+
+	@Override
+	public void delete(Delete delete) {
+		if (!spool.append(delete)) {
+			client.getLiveConnection().delete(delete);
+		}
+	}
+
+	@Override
+	public OperationFuture<Response> insertAsync(Insert insert) {
+		if (spool.append(insert)) {
+			return spooled();
+		}
+		return client.getLiveConnection().insertAsync(insert);
+	}
+
+	@Override
+	public OperationFuture<Response> updateAsync(Update update) {
+		if (spool.append(update)) {
+			return spooled();
+		}
+		return client.getLiveConnection().updateAsync(update);
+	}
+
+	@Override
+	public OperationFuture<Response> deleteAsync(Delete delete) {
+		if (spool.append(delete)) {
+			return spooled();
+		}
+		return client.getLiveConnection().deleteAsync(delete);
+	}
+
+	@Override
+	public OperationFuture<Response> writeAsync(RawRequest request) {
+		return client.getLiveConnection().writeAsync(request);
+	}
+
+	@Override
+	public Response query(Query query) {
+		return client.getLiveConnection().query(query);
+	}
+
+	@Override
+	public OperationFuture<Response> queryAsync(Query query) {
+		return client.getLiveConnection().queryAsync(query);
+	}
+
+	@Override
+	public Response getMore(GetMore getMore) {
+		return client.getLiveConnection().getMore(getMore);
+	}
+
+	@Override
+	public MongoCursor cursor(String databaseName, String collectionName) {
+		return client.getLiveConnection().cursor(databaseName, collectionName);
+	}
+
+	@Override
+	public MongoBulkLoader bulkLoader(String databaseName, String collectionName) {
+		return new MongoBulkLoader(this, databaseName, collectionName);
+	}
+
+	@Override
+	public int getMaxBsonObjectSize() {
+		return 4 * 1024 * 1024;
+	}
+
+	@Override
+	public int getMaxMessageSize() {
+		return getMaxBsonObjectSize();
+	}
+
+	@Override
+	public int getMaxWriteBatchSize() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void killCursors(KillCursors killCursors) {
+		client.getLiveConnection().killCursors(killCursors);
+	}
+
+	/**
+	 * スプールへの追記で完了した {@link OperationFuture} を作成します。
+	 * 返信はないため、結果は null となります。
+	 * @return
+	 */
+	private OperationFuture<Response> spooled() {
+		OperationFuture<Response> future = new OperationFuture<Response>();
+		future.setSuccess(null);
+		return future;
+	}
+}
@@ -0,0 +1,209 @@
+package jp.ameba.mongo;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BSONObject;
+
+/**
+ * isMaster の結果から、各サーバーのレプリカセット内の役割を管理するクラスです。
+ *
+ * isMaster の hosts および passives に含まれる未接続のメンバーは、
+ * サーバーとして追加します。
+ * レプリカセットでないサーバー（単体の mongod, mongos）はプライマリとして扱います。
+ *
+ * @author suguru
+ */
+final class Topology {
+
+	private static final Logger log = Logger.getLogger(Topology.class.getName());
+
+	/**
+	 * サーバーの役割
+	 */
+	enum Role {
+		PRIMARY,
+		SECONDARY,
+		// アービター、復旧中のメンバーなど
+		OTHER
+	}
+
+	// 使用するクライアント
+	private final MongoClient client;
+
+	// サーバーごとの役割
+	private final ConcurrentMap<SocketAddress, Role> roles = new ConcurrentHashMap<SocketAddress, Role>();
+
+	// 役割が変更されるたびに置き換える識別子
+	private volatile Object version = new Object();
+
+	// 追加済み、もしくは追加中のメンバー（ isMaster の host:port 表記）
+	private final Set<String> discovered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	Topology(MongoClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * いずれかのサーバーの役割を取得済みか確認します。
+	 * @return
+	 */
+	boolean isKnown() {
+		return !roles.isEmpty();
+	}
+
+	/**
+	 * サーバーの役割を取得します。
+	 * @param address
+	 * @return 取得していない場合は null
+	 */
+	Role getRole(SocketAddress address) {
+		return address == null ? null : roles.get(address);
+	}
+
+	/**
+	 * 役割が変更されるたびに置き換えられる識別子を取得します。
+	 * @return
+	 */
+	Object getVersion() {
+		return version;
+	}
+
+	/**
+	 * isMaster の結果をサーバーの役割に反映します。
+	 * @param address
+	 * @param isMaster
+	 */
+	void update(SocketAddress address, BSONObject isMaster) {
+		Role role;
+		if (isTrue(isMaster.get("ismaster"))) {
+			role = Role.PRIMARY;
+		} else if (isTrue(isMaster.get("secondary"))) {
+			role = Role.SECONDARY;
+		} else {
+			role = Role.OTHER;
+		}
+		if (roles.put(address, role) != role) {
+			log.info("Server " + address + " is " + role + ".");
+			version = new Object();
+		}
+		discover(isMaster);
+	}
+
+	/**
+	 * 応答しなかったサーバーの役割を破棄します。
+	 * @param address
+	 */
+	void remove(SocketAddress address) {
+		if (roles.remove(address) != null) {
+			version = new Object();
+		}
+	}
+
+	/**
+	 * isMaster に含まれる未接続のメンバーを追加します。
+	 * update は I/O スレッドから呼ばれるため、ここでは名前解決をせず host:port の表記で比較し、
+	 * 初めて現れたメンバーのみ、名前解決と接続をタスク用のスレッドで行います。
+	 */
+	private void discover(BSONObject isMaster) {
+		final List<String> members = new ArrayList<String>();
+		for (String field : new String[] { "hosts", "passives" }) {
+			Object hosts = isMaster.get(field);
+			if (!(hosts instanceof Iterable)) {
+				continue;
+			}
+			for (Object host : (Iterable<?>) hosts) {
+				String member = normalize(String.valueOf(host));
+				if (discovered.add(member)) {
+					members.add(member);
+				}
+			}
+		}
+		if (members.isEmpty()) {
+			return;
+		}
+		try {
+			client.getTaskExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					connect(members);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// クライアントのクローズ後は追加しない
+			discovered.removeAll(members);
+		}
+	}
+
+	/**
+	 * メンバーの名前を解決し、接続していないサーバーを追加します。
+	 * 解決や追加に失敗したメンバーは、次の isMaster で改めて追加します。
+	 * @param members host:port 形式のメンバー
+	 */
+	private void connect(List<String> members) {
+		Set<SocketAddress> current = new HashSet<SocketAddress>();
+		for (MongoConnection conn : client.getConnections()) {
+			current.add(conn.getServerAddress());
+		}
+		for (String member : members) {
+			InetSocketAddress address = parse(member);
+			if (address.isUnresolved()) {
+				log.warning("Failed to resolve replica set member " + member + ".");
+				discovered.remove(member);
+				continue;
+			}
+			if (!current.add(address)) {
+				continue;
+			}
+			log.info("Discovered replica set member " + address + ".");
+			try {
+				client.addServer(address);
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Failed to add server " + address, ex);
+				discovered.remove(member);
+			}
+		}
+	}
+
+	/**
+	 * ポートを省略したメンバーに既定のポートを補い、 host:port 形式にします。
+	 */
+	private static String normalize(String host) {
+		host = host.trim();
+		int i = host.lastIndexOf(':');
+		if (i < 0) {
+			return host + ":27017";
+		}
+		return host;
+	}
+
+	/**
+	 * host:port 形式の文字列をアドレスに変換します。
+	 * 名前解決を行うため、 I/O スレッドから呼び出してはいけません。
+	 */
+	private static InetSocketAddress parse(String host) {
+		int i = host.lastIndexOf(':');
+		int port = Integer.parseInt(host.substring(i + 1));
+		return new InetSocketAddress(host.substring(0, i), port);
+	}
+
+	private static boolean isTrue(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).intValue() == 1;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,216 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+
+/**
+ * 1つのチャネルに対する送信をまとめるためのキューです。
+ * 
+ * 送信スレッドはエンコード済みのバッファをキューに追加し、
+ * その時点で送信中のスレッドがいなければ、自身がキューの先頭を送信します。
+ * キューのバッファは、上限の範囲内で1つの連結バッファにまとめ、
+ * 1回の書き込みとして送信します。
+ * 
+ * 送信スレッドが書き込むのは上限分の1回のみで、残りは Executor に委譲します。
+ * 委譲した送信が実行されるまでの間に追加されたバッファは、次の1回にまとめられます。
+ * 
+ * @author suguru
+ */
+final class WriteBatcher {
+	
+	// 設定
+	private final MongoConfiguration config;
+	
+	// 残りの送信を委譲する Executor
+	private final Executor executor;
+	
+	// 送信待ちのバッファ
+	private final Queue<PendingWrite> queue = new ConcurrentLinkedQueue<PendingWrite>();
+	
+	// 送信中のスレッドが存在するか
+	private final AtomicBoolean flushing = new AtomicBoolean();
+	
+	// 複数のバッファをまとめて書き込んだ回数
+	private final AtomicLong batchCount = new AtomicLong();
+	
+	WriteBatcher(MongoConfiguration config, Executor executor) {
+		this.config = config;
+		this.executor = executor;
+	}
+	
+	/**
+	 * バッファを送信キューに追加し、可能であれば送信します。
+	 * 送信完了時には、指定の {@link ChannelFuture} が完了します。
+	 * @param ctx
+	 * @param future
+	 * @param buffer
+	 */
+	void write(ChannelHandlerContext ctx, ChannelFuture future, ChannelBuffer buffer) {
+		offer(future, buffer);
+		flush(ctx);
+	}
+	
+	/**
+	 * バッファを送信せずに送信キューに追加します。
+	 * 追加した順序で送信されるため、呼び出し側の同期の範囲内で送信順を決められます。
+	 * @param future
+	 * @param buffer
+	 */
+	void offer(ChannelFuture future, ChannelBuffer buffer) {
+		queue.offer(new PendingWrite(future, buffer));
+	}
+	
+	/**
+	 * 送信中のスレッドがいなければ、キューの先頭を上限分送信し、
+	 * 残りの送信を Executor に委譲します。
+	 * @param ctx
+	 */
+	void flush(ChannelHandlerContext ctx) {
+		if (queue.isEmpty() || !flushing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			writeBatch(ctx);
+		} catch (RuntimeException ex) {
+			flushing.set(false);
+			throw ex;
+		}
+		next(ctx);
+	}
+	
+	/**
+	 * 複数のバッファをまとめて書き込んだ回数を取得します。
+	 * @return
+	 */
+	long getBatchCount() {
+		return batchCount.get();
+	}
+	
+	/**
+	 * 送信中の状態を保ったまま、残りの送信を Executor に委譲します。
+	 * キューが空であれば解放し、解放した直後に追加された分があれば再度取得します。
+	 * @param ctx
+	 */
+	private void next(final ChannelHandlerContext ctx) {
+		while (true) {
+			if (queue.isEmpty()) {
+				flushing.set(false);
+				// 解放した直後に追加された分も取りこぼさない
+				if (queue.isEmpty() || !flushing.compareAndSet(false, true)) {
+					return;
+				}
+			}
+			if (executor != null) {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								writeBatch(ctx);
+							} finally {
+								next(ctx);
+							}
+						}
+					});
+					return;
+				} catch (RejectedExecutionException ex) {
+					// 停止済みの場合は、このスレッドで送信する
+				}
+			}
+			writeBatch(ctx);
+		}
+	}
+	
+	/**
+	 * キューの先頭から、上限の範囲内のバッファをまとめて1回送信します。
+	 * @param ctx
+	 */
+	private void writeBatch(ChannelHandlerContext ctx) {
+		PendingWrite first = queue.poll();
+		if (first == null) {
+			return;
+		}
+		PendingWrite next = queue.peek();
+		if (next == null || !config.isWriteBatching()) {
+			Channels.write(ctx, first.future, first.buffer);
+			return;
+		}
+		int maxBytes = config.getMaxWriteBatchBytes();
+		int maxCount = config.getMaxWriteBatchCount();
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		batch.add(first);
+		int bytes = first.buffer.readableBytes();
+		while (next != null
+				&& batch.size() < maxCount
+				&& bytes + next.buffer.readableBytes() <= maxBytes) {
+			// キューから取り出すのは送信中のスレッドのみのため、 peek した要素が返る
+			queue.poll();
+			batch.add(next);
+			bytes += next.buffer.readableBytes();
+			next = queue.peek();
+		}
+		if (batch.size() == 1) {
+			Channels.write(ctx, first.future, first.buffer);
+			return;
+		}
+		ChannelBuffer[] buffers = new ChannelBuffer[batch.size()];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = batch.get(i).buffer;
+		}
+		ChannelFuture batchFuture = Channels.future(ctx.getChannel());
+		batchFuture.addListener(new BatchCompletionListener(batch));
+		batchCount.incrementAndGet();
+		Channels.write(ctx, batchFuture, ChannelBuffers.wrappedBuffer(buffers));
+	}
+	
+	/**
+	 * 送信待ちのバッファ
+	 */
+	private static final class PendingWrite {
+		
+		private final ChannelFuture future;
+		
+		private final ChannelBuffer buffer;
+		
+		private PendingWrite(ChannelFuture future, ChannelBuffer buffer) {
+			this.future = future;
+			this.buffer = buffer;
+		}
+	}
+	
+	/**
+	 * まとめて送信した結果を、個々の {@link ChannelFuture} へ反映するリスナー
+	 */
+	private static final class BatchCompletionListener implements ChannelFutureListener {
+		
+		private final List<PendingWrite> batch;
+		
+		private BatchCompletionListener(List<PendingWrite> batch) {
+			this.batch = batch;
+		}
+		
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			for (PendingWrite write : batch) {
+				if (future.isSuccess()) {
+					write.future.setSuccess();
+				} else {
+					write.future.setFailure(future.getCause());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package jp.ameba.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.Delete;
+import jp.ameba.mongo.protocol.Response;
+import jp.ameba.mongo.protocol.Update;
+
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.ObjectId;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * _id を指定した更新と削除を、 $in を使用した1回の操作にまとめて送信するクラスです。
+ *
+ * 同じ更新内容の更新は {_id: {$in: [...]}} を条件とした複数更新に、
+ * 削除は同じ条件の削除にまとめます。
+ * まとめた操作は一定時間ごと、もしくは _id の数かバイト数が上限に達した時点で送信し、
+ * 呼び出し元にはそれぞれの {@link OperationFuture} で結果を通知します。
+ *
+ * 同じ _id に対する操作の順序を保つため、送信待ち、もしくは確認待ちの _id に
+ * 別の操作を追加する場合は、先の操作の確認を待ってから追加します。
+ * 更新内容のドキュメントは送信までの間、変更しないでください。
+ *
+ * @author suguru
+ */
+public class WriteCoalescer {
+
+	private static final Logger log = Logger.getLogger(WriteCoalescer.class.getName());
+
+	// 使用するクライアント
+	private MongoClient client;
+
+	// 対象のデータベース名
+	private String databaseName;
+
+	// 対象のコレクション名
+	private String collectionName;
+
+	// 送信に使用する一貫性レベル
+	private Consistency consistency;
+
+	// 送信間隔（ミリ秒）
+	private long flushInterval;
+
+	// 1回の操作にまとめる _id の最大数
+	private int maxBatchCount = 1000;
+
+	// 1回の操作にまとめる _id の最大バイト数
+	private int maxBatchBytes = 1024 * 1024;
+
+	// 更新内容ごとの送信待ちの更新
+	private final Map<BSONObject, Batch> updates = new HashMap<BSONObject, Batch>();
+
+	// 送信待ちの削除
+	private Batch deletes;
+
+	// 送信待ち、もしくは確認待ちの _id と操作
+	private final Map<Object, Batch> pendingIds = new HashMap<Object, Batch>();
+
+	// 確認待ちの操作数
+	private final AtomicInteger pending = new AtomicInteger();
+
+	// 定期送信のタイムアウト
+	private volatile Timeout timeout;
+
+	// 更新した _id のキャッシュを破棄する
+	private CacheInvalidator invalidator;
+
+	// クローズ済みか
+	private volatile boolean closed = false;
+
+	WriteCoalescer(
+			MongoClient client,
+			String databaseName,
+			String collectionName,
+			Consistency consistency,
+			long flushInterval,
+			CacheInvalidator invalidator) {
+		this.client = client;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.consistency = consistency;
+		this.flushInterval = flushInterval;
+		this.invalidator = invalidator;
+		schedule();
+	}
+
+	/**
+	 * 送信に使用する {@link Consistency} を設定します。
+	 * @param consistency
+	 * @return
+	 */
+	public WriteCoalescer consistency(Consistency consistency) {
+		this.consistency = consistency;
+		return this;
+	}
+
+	/**
+	 * 1回の操作にまとめる _id の最大数を設定します。
+	 * @param maxBatchCount
+	 * @return
+	 */
+	public WriteCoalescer maxBatchCount(int maxBatchCount) {
+		this.maxBatchCount = Math.max(1, maxBatchCount);
+		return this;
+	}
+
+	/**
+	 * 1回の操作にまとめる _id の最大バイト数（概算）を設定します。
+	 * @param maxBatchBytes
+	 * @return
+	 */
+	public WriteCoalescer maxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+
+	/**
+	 * 指定の _id のドキュメントを更新します。
+	 * 同じ更新内容の他の _id の更新とまとめて送信されます。
+	 * @param id
+	 * @param update $set などの更新演算子を含む更新内容
+	 * @return
+	 */
+	public OperationFuture<Void> update(Object id, BSONObject update) {
+		if (update == null) {
+			throw new IllegalArgumentException("update must not be null.");
+		}
+		return add(id, update);
+	}
+
+	/**
+	 * 指定の _id のドキュメントを削除します。
+	 * 他の _id の削除とまとめて送信されます。
+	 * @param id
+	 * @return
+	 */
+	public OperationFuture<Void> remove(Object id) {
+		return add(id, null);
+	}
+
+	/**
+	 * 送信待ちの操作を、確認を待たずに送信します。
+	 */
+	public void flush() {
+		List<Batch> sending;
+		synchronized (this) {
+			sending = new ArrayList<Batch>(updates.values());
+			if (deletes != null) {
+				sending.add(deletes);
+			}
+			updates.clear();
+			deletes = null;
+		}
+		for (Batch batch : sending) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * 送信待ちの操作をすべて送信し、確認まで待ってから定期送信を停止します。
+	 * @throws MongoException 操作タイムアウト時間内に確認が完了しない場合
+	 */
+	public void close() {
+		closed = true;
+		Timeout timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		flush();
+		long timeoutMillis = client.getConfiguration().getOperationTimeout();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (pending) {
+			while (pending.get() > 0) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new MongoException("Flushing coalesced writes timed out after " + timeoutMillis + " ms.");
+				}
+				try {
+					pending.wait(wait);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new MongoException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 操作を送信待ちに追加します。
+	 * @param id
+	 * @param update 削除の場合は null
+	 * @return
+	 */
+	private OperationFuture<Void> add(Object id, BSONObject update) {
+		OperationFuture<Void> future = new OperationFuture<Void>(
+				client.getConfiguration().getCallbackExecutor());
+		int size = estimateSize(id);
+		for (;;) {
+			Batch conflict = null;
+			Batch full = null;
+			boolean sendConflict = false;
+			synchronized (this) {
+				if (closed) {
+					throw new MongoException("WriteCoalescer is closed.");
+				}
+				Batch batch = pendingIds.get(id);
+				if (batch != null && !(batch.update == null && update == null && !batch.sent)) {
+					// 同じ _id の先の操作があれば、送信して確認を待つ
+					conflict = batch;
+					if (!batch.sent) {
+						detach(batch);
+						sendConflict = true;
+					}
+				} else {
+					if (batch == null) {
+						batch = update == null ? deletes : updates.get(update);
+						if (batch == null) {
+							batch = new Batch(update);
+							if (update == null) {
+								deletes = batch;
+							} else {
+								updates.put(update, batch);
+							}
+						}
+						batch.ids.add(id);
+						batch.bytes += size;
+						pendingIds.put(id, batch);
+					}
+					batch.futures.add(future);
+					if (batch.ids.size() >= maxBatchCount || batch.bytes >= maxBatchBytes) {
+						detach(batch);
+						full = batch;
+					}
+				}
+			}
+			if (full != null) {
+				send(full);
+			}
+			if (conflict == null) {
+				return future;
+			}
+			if (sendConflict) {
+				send(conflict);
+			}
+			conflict.await(client.getConfiguration().getOperationTimeout());
+		}
+	}
+
+	/**
+	 * 送信待ちの一覧から操作を取り除きます。
+	 * 確認までの間、 _id は確認待ちとして残します。
+	 */
+	private void detach(Batch batch) {
+		if (batch.update == null) {
+			if (deletes == batch) {
+				deletes = null;
+			}
+		} else if (updates.get(batch.update) == batch) {
+			updates.remove(batch.update);
+		}
+	}
+
+	/**
+	 * まとめた操作を送信します。
+	 */
+	private void send(final Batch batch) {
+		synchronized (this) {
+			if (batch.sent) {
+				return;
+			}
+			batch.sent = true;
+		}
+		pending.incrementAndGet();
+		// 1件のみの場合は $in を使用しない
+		BSONObject selector;
+		if (batch.ids.size() == 1) {
+			selector = new BasicBSONObject("_id", batch.ids.get(0));
+		} else {
+			selector = new BasicBSONObject("_id", new BasicBSONObject("$in", batch.ids));
+		}
+		OperationFuture<Response> future;
+		try {
+			MongoConnection conn = client.getConnection();
+			if (batch.update == null) {
+				future = conn.deleteAsync(new Delete(
+						databaseName,
+						collectionName,
+						selector
+				).consistency(consistency));
+			} else {
+				Update update = new Update(
+						databaseName,
+						collectionName,
+						selector,
+						batch.update
+				).consistency(consistency);
+				if (batch.ids.size() > 1) {
+					update.multiUpdate();
+				}
+				future = conn.updateAsync(update);
+			}
+		} catch (RuntimeException ex) {
+			complete(batch, ex);
+			return;
+		}
+		future.addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				Throwable cause = future.getCause();
+				if (cause == null) {
+					try {
+						MongoConnectionImpl.checkLastError(future.get());
+					} catch (Exception ex) {
+						cause = ex;
+					}
+				}
+				complete(batch, cause);
+			}
+		});
+	}
+
+	/**
+	 * 操作の完了を、まとめた呼び出し元へそれぞれ通知します。
+	 */
+	private void complete(Batch batch, Throwable cause) {
+		synchronized (this) {
+			for (Object id : batch.ids) {
+				if (pendingIds.get(id) == batch) {
+					pendingIds.remove(id);
+				}
+			}
+		}
+		if (invalidator != null) {
+			for (Object id : batch.ids) {
+				invalidator.invalidateId(id);
+			}
+		}
+		if (cause != null) {
+			log.log(Level.FINE, "Coalesced write of " + batch.ids.size() + " ids failed.", cause);
+		}
+		for (OperationFuture<Void> future : batch.futures) {
+			if (cause == null) {
+				future.setSuccess(null);
+			} else {
+				future.setFailure(cause);
+			}
+		}
+		batch.done();
+		if (pending.decrementAndGet() == 0) {
+			synchronized (pending) {
+				pending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * _id を $in の配列要素としてエンコードした場合のバイト数を概算します。
+	 */
+	private static int estimateSize(Object id) {
+		// 型(1) + 配列の添字(最大7) + 値
+		if (id instanceof ObjectId) {
+			return 8 + 12;
+		}
+		if (id instanceof Integer) {
+			return 8 + 4;
+		}
+		if (id instanceof Long || id instanceof Double) {
+			return 8 + 8;
+		}
+		if (id instanceof String) {
+			return 8 + 5 + ((String) id).length() * 3;
+		}
+		return 8 + new BSONEncoder().encode(new BasicBSONObject("", id)).length;
+	}
+
+	/**
+	 * 次の定期送信を設定します。
+	 */
+	private void schedule() {
+		Timer timer = client.getTimer();
+		if (closed || timer == null || flushInterval <= 0) {
+			return;
+		}
+		timeout = timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				if (timeout.isCancelled() || closed) {
+					return;
+				}
+				// 送信は接続の選択を待つ場合があるため、タイマースレッドでは行わない
+				try {
+					client.getTaskExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								flush();
+							} catch (Exception ex) {
+								log.log(Level.WARNING, "Failed to flush coalesced writes.", ex);
+							} finally {
+								schedule();
+							}
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					// クライアントのクローズ後は、定期送信を停止する
+				}
+			}
+		}, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 1回の操作にまとめる _id と呼び出し元の一覧
+	 */
+	private static class Batch {
+
+		// 更新内容（削除の場合は null）
+		private final BSONObject update;
+
+		// 対象の _id 一覧
+		private final List<Object> ids = new ArrayList<Object>();
+
+		// 呼び出し元の future 一覧
+		private final List<OperationFuture<Void>> futures = new ArrayList<OperationFuture<Void>>();
+
+		// _id のバイト数の概算
+		private int bytes;
+
+		// 送信済みか
+		private boolean sent;
+
+		// 確認済みか
+		private boolean done;
+
+		Batch(BSONObject update) {
+			this.update = update;
+		}
+
+		synchronized void done() {
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * 確認まで待ちます。
+		 * @throws MongoException タイムアウトした場合
+		 */
+		synchronized void await(long timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (!done) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new MongoException("Waiting coalesced write timed out after " + timeoutMillis + " ms.");
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new MongoException(ex);
+				}
+			}
+		}
+	}
+}
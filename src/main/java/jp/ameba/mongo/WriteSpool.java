@@ -0,0 +1,425 @@
+package jp.ameba.mongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.RawRequest;
+import jp.ameba.mongo.protocol.Request;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BasicBSONObject;
+
+/**
+ * 有効な接続がない間の更新を、ローカルファイルに保持するスプールです。
+ *
+ * 更新はチャネルへ送信する時と同じメッセージのバイト列として、
+ * メモリマップした固定サイズのセグメントファイルへ順に追記します。
+ * 各レコードはメッセージの長さと CRC32 、メッセージ本体からなり、
+ * 本体を書き込んでから長さを書き込みます。
+ * 開く際は長さか CRC32 が一致しないレコードを末尾とし、
+ * 追記の途中で中断したレコードは送信しません。
+ * セグメントが一杯になった場合は、次のセグメントファイルを作成します。
+ *
+ * 再接続後は、保持した更新を1つの接続で順に送信します。
+ * 送信を完了した位置はチェックポイントファイルに記録し、
+ * 再送を再開する場合はその位置から送信します。
+ * そのため、再送が中断した場合は、確認前の最大 {@value #MAX_REPLAY_BATCH} 件の更新が
+ * 重複して送信されます。
+ * 送信済みのセグメントファイルは削除します。
+ *
+ * スプールが有効な間は、接続が回復した後の更新もスプールに追記し、
+ * 保持した更新をすべて送信して確認した時点で、直接の送信に戻ります。
+ *
+ * @author suguru
+ */
+final class WriteSpool {
+
+	private static final Logger log = Logger.getLogger(WriteSpool.class.getName());
+
+	// セグメントファイル名の接頭辞
+	private static final String SEGMENT_PREFIX = "spool-";
+
+	// セグメントファイル名の接尾辞
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	// チェックポイントファイル名
+	private static final String CHECKPOINT = "spool.checkpoint";
+
+	// 再送時に getlasterror で確認するまでに送信するメッセージの最大数
+	private static final int MAX_REPLAY_BATCH = 100;
+
+	// レコードの長さと CRC32 のバイト数
+	private static final int RECORD_HEADER = 8;
+
+	// セグメントファイルのディレクトリ
+	private final File directory;
+
+	// セグメントファイルのサイズ
+	private final int segmentSize;
+
+	// 追記中のセグメント
+	private MappedByteBuffer writeBuffer;
+
+	// 追記中のセグメントの番号
+	private int writeSegment;
+
+	// 追記済みの位置
+	private volatile long written;
+
+	// チェックポイントファイル
+	private final MappedByteBuffer checkpointBuffer;
+
+	// 送信済みの位置
+	private volatile long checkpoint;
+
+	// 再送中に読み込んでいるセグメント
+	private MappedByteBuffer readBuffer;
+
+	// 再送中に読み込んでいるセグメントの番号
+	private int readSegment = -1;
+
+	// 更新をスプールに追記するか
+	private volatile boolean active;
+
+	// 再送中か
+	private final AtomicBoolean replaying = new AtomicBoolean();
+
+	/**
+	 * 指定のディレクトリのスプールを開きます。
+	 * 送信していない更新が残っている場合、スプールは有効な状態で開かれます。
+	 * @param config
+	 * @throws MongoException ファイルを開けない場合
+	 */
+	WriteSpool(MongoConfiguration config) {
+		this.directory = new File(config.getSpoolDirectory());
+		this.segmentSize = config.getSpoolSegmentSize();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new MongoException("Failed to create spool directory: " + directory);
+		}
+		try {
+			checkpointBuffer = map(new File(directory, CHECKPOINT), 8, MapMode.READ_WRITE);
+			checkpoint = checkpointBuffer.getLong(0);
+			int last = -1;
+			for (File file : directory.listFiles()) {
+				int segment = segmentNumber(file);
+				if (segment > last) {
+					last = segment;
+				}
+			}
+			if (last < 0) {
+				// 送信していない更新はないため、新しいセグメントから開始
+				writeSegment = segmentOf(checkpoint) + 1;
+				writeBuffer = mapSegment(writeSegment, MapMode.READ_WRITE);
+				setCheckpoint(position(writeSegment, 0));
+			} else {
+				writeSegment = last;
+				writeBuffer = mapSegment(writeSegment, MapMode.READ_WRITE);
+				// 追記済みの末尾を探す
+				int offset = 0;
+				while (offset + RECORD_HEADER <= segmentSize) {
+					int length = writeBuffer.getInt(offset);
+					if (length <= 0 || offset + RECORD_HEADER + length > segmentSize
+							|| writeBuffer.getInt(offset + 4) != checksum(get(writeBuffer, offset + RECORD_HEADER, length))) {
+						break;
+					}
+					offset += RECORD_HEADER + length;
+				}
+				writeBuffer.position(offset);
+			}
+			written = position(writeSegment, writeBuffer.position());
+			active = written > checkpoint;
+		} catch (IOException ex) {
+			throw new MongoException("Failed to open spool: " + directory, ex);
+		}
+	}
+
+	/**
+	 * 以降の更新をスプールに追記するよう切り替えます。
+	 */
+	void activate() {
+		active = true;
+	}
+
+	/**
+	 * 更新をスプールに追記する状態か確認します。
+	 * @return
+	 */
+	boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * リクエストをメッセージとしてエンコードし、スプールに追記します。
+	 * @param request
+	 * @return スプールが無効になっており、追記しなかった場合は false
+	 * @throws MongoException メッセージがセグメントより大きい場合
+	 */
+	boolean append(Request request) {
+		if (!active) {
+			return false;
+		}
+		byte[] message = MongoChannelHandler.encode(request);
+		int checksum = checksum(message);
+		if (message.length + RECORD_HEADER > segmentSize) {
+			throw new MongoException("Request too large for spool segment: " + message.length + " bytes");
+		}
+		synchronized (this) {
+			if (!active) {
+				return false;
+			}
+			if (writeBuffer.remaining() < message.length + RECORD_HEADER) {
+				try {
+					writeSegment++;
+					writeBuffer = mapSegment(writeSegment, MapMode.READ_WRITE);
+				} catch (IOException ex) {
+					writeSegment--;
+					throw new MongoException("Failed to create spool segment.", ex);
+				}
+			}
+			// 本体の書き込みが終わるまで、長さを 0 としてレコードを無効にしておく
+			int offset = writeBuffer.position();
+			writeBuffer.putInt(offset, 0);
+			writeBuffer.position(offset + RECORD_HEADER);
+			writeBuffer.put(message);
+			writeBuffer.putInt(offset + 4, checksum);
+			writeBuffer.putInt(offset, message.length);
+			written = position(writeSegment, writeBuffer.position());
+		}
+		return true;
+	}
+
+	/**
+	 * 再送を開始します。既に再送中の場合は何もしません。
+	 * @param client
+	 */
+	void startReplay(final MongoClient client) {
+		if (!replaying.compareAndSet(false, true)) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replay(client);
+				} catch (Exception ex) {
+					log.log(Level.WARNING, "Failed to replay spooled writes.", ex);
+				} finally {
+					replaying.set(false);
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.setName("mongo-spool-replay");
+		thread.start();
+	}
+
+	/**
+	 * セグメントファイルの内容をディスクへ書き出します。
+	 */
+	synchronized void close() {
+		writeBuffer.force();
+		checkpointBuffer.force();
+	}
+
+	/**
+	 * チェックポイントから順に、1つの接続で更新を再送します。
+	 * 一定数を送信するごとに getlasterror でサーバーでの処理を確認し、
+	 * 確認した位置をチェックポイントとして記録します。
+	 * 末尾まで確認した時点でその間に追記がなければ、スプールを無効にします。
+	 */
+	private void replay(MongoClient client) {
+		MongoConnection conn = client.getLiveConnection();
+		long position = checkpoint;
+		String databaseName = null;
+		int unconfirmed = 0;
+		for (;;) {
+			byte[] message = read(position);
+			if (message == null || unconfirmed >= MAX_REPLAY_BATCH) {
+				if (unconfirmed > 0) {
+					confirm(conn, databaseName);
+					unconfirmed = 0;
+				}
+				setCheckpoint(position);
+				if (message == null) {
+					if (deactivateIfDrained()) {
+						return;
+					}
+					continue;
+				}
+			}
+			RawRequest request = new RawRequest(message);
+			if (request.getDatabaseName() != null) {
+				databaseName = request.getDatabaseName();
+			}
+			conn.writeAsync(request);
+			unconfirmed++;
+			position = readPosition;
+		}
+	}
+
+	/**
+	 * 送信済みの更新がサーバーで処理されたことを確認します。
+	 * スプールした更新の結果は呼び出し元へ返せないため、
+	 * サーバーが返したエラーは記録のみ行い、再送を続けます。
+	 * @throws MongoException 確認できない場合
+	 */
+	private void confirm(MongoConnection conn, String databaseName) {
+		Response response = conn.query(new Query(
+				databaseName, "$cmd", 0, 1, new BasicBSONObject("getlasterror", 1), null));
+		try {
+			MongoConnectionImpl.checkLastError(response);
+		} catch (MongoException ex) {
+			log.log(Level.WARNING, "Spooled write failed on server.", ex);
+		}
+	}
+
+	// 直前に読み込んだメッセージの次の位置
+	private long readPosition;
+
+	/**
+	 * 指定の位置のメッセージを読み込みます。
+	 * 読み込んだ場合、次のメッセージの位置を {@link #readPosition} に設定します。
+	 * @param position
+	 * @return 追記済みの末尾に達している場合は null
+	 */
+	private byte[] read(long position) {
+		long end = written;
+		while (position < end) {
+			int segment = segmentOf(position);
+			int offset = offsetOf(position);
+			if (readSegment != segment) {
+				try {
+					readBuffer = mapSegment(segment, MapMode.READ_ONLY);
+				} catch (IOException ex) {
+					throw new MongoException("Failed to open spool segment " + segment, ex);
+				}
+				readSegment = segment;
+			}
+			int length = offset + RECORD_HEADER <= segmentSize ? readBuffer.getInt(offset) : 0;
+			if (length <= 0) {
+				// セグメントの末尾に達した場合は、次のセグメントへ
+				position = position(segment + 1, 0);
+				continue;
+			}
+			byte[] message = offset + RECORD_HEADER + length <= segmentSize
+					? get(readBuffer, offset + RECORD_HEADER, length) : null;
+			if (message == null || readBuffer.getInt(offset + 4) != checksum(message)) {
+				log.warning("Skipping corrupt spool record in segment " + segment + " at " + offset);
+				position = position(segment + 1, 0);
+				continue;
+			}
+			readPosition = position(segment, offset + RECORD_HEADER + length);
+			return message;
+		}
+		return null;
+	}
+
+	/**
+	 * 送信済みの位置が追記済みの末尾に達していれば、スプールを無効にします。
+	 * @return 無効にした場合は true
+	 */
+	private synchronized boolean deactivateIfDrained() {
+		if (checkpoint < written) {
+			return false;
+		}
+		active = false;
+		return true;
+	}
+
+	/**
+	 * 送信済みの位置を記録し、不要になったセグメントファイルを削除します。
+	 * @param position
+	 */
+	private synchronized void setCheckpoint(long position) {
+		if (position < checkpoint) {
+			return;
+		}
+		int previous = segmentOf(checkpoint);
+		checkpoint = position;
+		checkpointBuffer.putLong(0, position);
+		for (int segment = previous; segment < segmentOf(position); segment++) {
+			File file = segmentFile(segment);
+			if (file.exists() && !file.delete()) {
+				log.warning("Failed to delete spool segment: " + file);
+			}
+		}
+	}
+
+	private MappedByteBuffer mapSegment(int segment, MapMode mode) throws IOException {
+		return map(segmentFile(segment), segmentSize, mode);
+	}
+
+	private File segmentFile(int segment) {
+		return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * セグメントファイルの番号を取得します。
+	 * @return セグメントファイルでない場合は -1
+	 */
+	private static int segmentNumber(File file) {
+		String name = file.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(
+					SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static MappedByteBuffer map(File file, int size, MapMode mode) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, mode == MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			if (mode != MapMode.READ_ONLY && raf.length() < size) {
+				raf.setLength(size);
+			}
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(mode, 0, size);
+			// ファイルを閉じてもマップは有効
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] get(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return bytes;
+	}
+
+	private static int checksum(byte[] message) {
+		CRC32 crc = new CRC32();
+		crc.update(message, 0, message.length);
+		return (int) crc.getValue();
+	}
+
+	private static long position(int segment, int offset) {
+		return ((long) segment << 32) | (offset & 0xffffffffL);
+	}
+
+	private static int segmentOf(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private static int offsetOf(long position) {
+		return (int) position;
+	}
+}
@@ -41,6 +41,20 @@ public class BitWise {
 		return bits;
 	}
 	
+	/**
+	 * 指定の int の特定の番号のビットを設定、もしくは解除します。
+	 * @param bits
+	 * @param index
+	 * @param value
+	 * @return
+	 */
+	public static final int setBit(int bits, int index, boolean value) {
+		if (value) {
+			return addBit(bits, index);
+		}
+		return bits & ~(1 << index);
+	}
+	
 	/**
 	 * 指定の int の特定の番号ビットが 1 であるかチェックします。
 	 * @param bits
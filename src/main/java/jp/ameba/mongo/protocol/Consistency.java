@@ -8,7 +8,9 @@ public enum Consistency {
 	NONE(null),
 	SAFE(new BasicBSONObject("getlasterror", 1)),
 	FSYNC(new BasicBSONObject("getlasterror", 1).append("fsync", true)),
-	REPLICATION(new BasicBSONObject("getlasterror", 1).append("w", 2))
+	REPLICATION(new BasicBSONObject("getlasterror", 1).append("w", 2)),
+	// 複数の更新を確認なしで送信し、まとめて1回のエラー確認で完了させる
+	GROUP(null)
 	
 	;
 	
@@ -21,4 +23,12 @@ public enum Consistency {
 	public BSONObject getLastErrorQuery() {
 		return getLastError;
 	}
+	
+	/**
+	 * 送信後にサーバーでの処理結果を確認するかを取得します。
+	 * @return
+	 */
+	public boolean isAcknowledged() {
+		return getLastError != null || this == GROUP;
+	}
 }
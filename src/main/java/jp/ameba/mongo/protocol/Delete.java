@@ -54,6 +54,14 @@ public class Delete extends Request {
 		setConsistency(consistency);
 		return this;
 	}
+	
+	/**
+	 * 対象のセレクタを取得します。
+	 * @return
+	 */
+	public BSONObject getSelector() {
+		return selector;
+	}
 
 	@Override
 	public void encode(BSONEncoder encoder) {
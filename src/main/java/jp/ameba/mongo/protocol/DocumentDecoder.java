@@ -0,0 +1,127 @@
+package jp.ameba.mongo.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import jp.ameba.mongo.MongoException;
+
+import org.bson.BSONDecoder;
+import org.bson.BSONObject;
+import org.bson.BasicBSONCallback;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * {@link ChannelBuffer} 上の BSON ドキュメントをデコードします。
+ * {@link BSONDecoder} は作業用バッファを内部に持ちスレッドセーフではないため、
+ * スレッドごとにインスタンスを保持し、作業用バッファとともに再利用します。
+ *
+ * @author suguru
+ */
+final class DocumentDecoder {
+
+	// スレッドごとのデコーダー
+	private static final ThreadLocal<DocumentDecoder> decoders = new ThreadLocal<DocumentDecoder>() {
+		@Override
+		protected DocumentDecoder initialValue() {
+			return new DocumentDecoder();
+		}
+	};
+
+	// BSON デコーダー
+	private BSONDecoder decoder;
+
+	// デコード結果を組み立てるコールバック
+	private BasicBSONCallback callback;
+
+	// バッファを読み出すストリーム
+	private BufferInputStream input;
+
+	private DocumentDecoder() {
+		this.decoder = new BSONDecoder();
+		this.callback = new BasicBSONCallback();
+		this.input = new BufferInputStream();
+	}
+
+	/**
+	 * 現在のスレッドのデコーダーを取得します。
+	 * @return
+	 */
+	static DocumentDecoder get() {
+		return decoders.get();
+	}
+
+	/**
+	 * 指定位置のドキュメントをデコードします。
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	BSONObject decode(ChannelBuffer buffer, int offset, int length) {
+		input.reset(buffer, offset, length);
+		callback.reset();
+		try {
+			decoder.decode(input, callback);
+			return (BSONObject) callback.get();
+		} catch (IOException ex) {
+			throw new MongoException("Failed to decode document.", ex);
+		} finally {
+			// デコード後にバッファを保持し続けないようにする
+			input.reset(null, 0, 0);
+			callback.reset();
+		}
+	}
+
+	/**
+	 * {@link ChannelBuffer} の指定範囲を読み出す、再利用可能なストリーム
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private ChannelBuffer buffer;
+
+		private int index;
+
+		private int end;
+
+		void reset(ChannelBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.index = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() {
+			if (index >= end) {
+				return -1;
+			}
+			return buffer.getByte(index++) & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int available = end - index;
+			if (available <= 0) {
+				return -1;
+			}
+			len = Math.min(available, len);
+			buffer.getBytes(index, b, off, len);
+			index += len;
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return end - index;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.min(n, end - index);
+			index += skipped;
+			return skipped;
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package jp.ameba.mongo.protocol;
 
 import jp.ameba.mongo.MongoConnection;
+import jp.ameba.mongo.MongoException;
+import jp.ameba.mongo.OperationFuture;
+import jp.ameba.mongo.OperationListener;
 
 import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
@@ -120,6 +123,44 @@ public class FindAndModify {
 	 * @return
 	 */
 	public BSONObject execute() {
+		Response response = connection.query(toQuery());
+		return (BSONObject) response.getDocument().get("value");
+	}
+	
+	/**
+	 * findAndModify を非同期に実行します。
+	 * 結果は、更新前（ getnew 指定時は更新後）のドキュメントで完了します。
+	 * @return
+	 */
+	public OperationFuture<BSONObject> executeAsync() {
+		final OperationFuture<BSONObject> result = new OperationFuture<BSONObject>(
+				connection.getConfiguration().getCallbackExecutor());
+		connection.queryAsync(toQuery()).addListener(new OperationListener<Response>() {
+			@Override
+			public void operationComplete(OperationFuture<Response> future) {
+				if (!future.isSuccess()) {
+					result.setFailure(future.getCause());
+					return;
+				}
+				try {
+					Response response = future.get();
+					if (!response.isOk()) {
+						throw new MongoException("Query failure: " + response.getErrorMessage());
+					}
+					result.setSuccess((BSONObject) response.getDocument().get("value"));
+				} catch (Exception ex) {
+					result.setFailure(ex);
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * findAndModify コマンドのクエリを作成します。
+	 * @return
+	 */
+	private Query toQuery() {
 		BSONObject command = new BasicBSONObject("findAndModify", collectionName)
 				.append("query", query)
 				.append("update", update);
@@ -138,9 +179,6 @@ public class FindAndModify {
 		if (getnew) {
 			command.put("new", true);
 		}
-		Response response = connection.query(
-				new Query(databaseName, "$cmd", 0, 1, command)
-		);
-		return (BSONObject) response.getDocument().get("value");
+		return new Query(databaseName, "$cmd", 0, 1, command);
 	}
 }
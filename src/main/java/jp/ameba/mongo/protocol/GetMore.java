@@ -24,6 +24,11 @@ public class GetMore extends Request {
 		this.consistency = Consistency.NONE;
 	}
 
+	public GetMore lazy(boolean lazy) {
+		this.lazy = lazy;
+		return this;
+	}
+
 	@Override
 	public void encode(BSONEncoder encoder) {
 		// Body
@@ -1,6 +1,6 @@
 package jp.ameba.mongo.protocol;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.bson.BSONEncoder;
@@ -28,7 +28,7 @@ public class Insert extends Request {
 			String collectionName,
 			BSONObject document) {
 		super(OperationCode.OP_INSERT, databaseName, collectionName);
-		this.documents = new LinkedList<BSONObject>();
+		this.documents = new ArrayList<BSONObject>(1);
 		this.documents.add(document);
 		this.consistency = Consistency.SAFE;
 		if (!document.containsField("_id")) {
@@ -69,14 +69,22 @@ public class Insert extends Request {
 		setConsistency(consistency);
 		return this;
 	}
+	
+	/**
+	 * 挿入するドキュメントを取得します。
+	 * @return
+	 */
+	public List<BSONObject> getDocuments() {
+		return documents;
+	}
 
 	@Override
 	public void encode(BSONEncoder encoder) {
 		// Body
 		encoder.writeInt(0);
 		encoder.writeCString(fullCollectionName);
-		for (int i = 0; i < documents.size(); i++) {
-			encoder.putObject(documents.get(i));
+		for (BSONObject document : documents) {
+			encoder.putObject(document);
 		}
 	}
 }
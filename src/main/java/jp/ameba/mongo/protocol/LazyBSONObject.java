@@ -0,0 +1,427 @@
+package jp.ameba.mongo.protocol;
+
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import jp.ameba.mongo.MongoException;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.BasicBSONList;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.CodeWScope;
+import org.bson.types.ObjectId;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * 受信したドキュメントのバイト列を直接参照する {@link BSONObject} 実装です。
+ * フィールドの値は {@link #get(String)} で参照された時点でデコードされます。
+ * 参照回数が多いドキュメントでは、フィールド位置の索引を作成します。
+ *
+ * 値を変更した場合は、その時点でドキュメント全体をデコードし、
+ * 以降は {@link BasicBSONObject} として扱います。
+ *
+ * @author suguru
+ */
+public class LazyBSONObject implements BSONObject {
+
+	// 索引を作成するまでの参照回数
+	private static final int INDEX_THRESHOLD = 4;
+
+	// ドキュメント全体のバッファ
+	private final ChannelBuffer buffer;
+
+	// フィールド名と要素の開始位置の索引
+	private volatile Map<String, Integer> index;
+
+	// 索引を作成するまでの参照回数
+	private int lookups;
+
+	// 変更後のドキュメント
+	private BSONObject materialized;
+
+	/**
+	 * ドキュメント 1 件分のバッファから {@link LazyBSONObject} を構成します。
+	 * @param buffer
+	 */
+	public LazyBSONObject(ChannelBuffer buffer) {
+		if (buffer.order() != ByteOrder.LITTLE_ENDIAN) {
+			throw new IllegalArgumentException("ChannelBuffer must be little endian.");
+		}
+		this.buffer = buffer;
+	}
+
+	/**
+	 * ドキュメントのバイト列を取得します。
+	 * 値が変更されている場合は null を返却します。
+	 * @return
+	 */
+	public ChannelBuffer getBuffer() {
+		if (materialized != null) {
+			return null;
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * ドキュメントのバイト数を取得します。
+	 * @return
+	 */
+	public int getDocumentSize() {
+		return buffer.getInt(0);
+	}
+
+	@Override
+	public Object get(String key) {
+		if (materialized != null) {
+			return materialized.get(key);
+		}
+		int position = findElement(key);
+		if (position < 0) {
+			return null;
+		}
+		int valueStart = buffer.indexOf(position + 1, buffer.capacity(), (byte) 0) + 1;
+		return readValue(buffer.getByte(position), valueStart);
+	}
+
+	@Override
+	public boolean containsField(String key) {
+		if (materialized != null) {
+			return materialized.containsField(key);
+		}
+		return findElement(key) >= 0;
+	}
+
+	@Override
+	@Deprecated
+	public boolean containsKey(String key) {
+		return containsField(key);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		if (materialized != null) {
+			return materialized.keySet();
+		}
+		Set<String> keys = new LinkedHashSet<String>();
+		int position = 4;
+		byte type;
+		while ((type = buffer.getByte(position)) != 0) {
+			int nameEnd = buffer.indexOf(position + 1, buffer.capacity(), (byte) 0);
+			keys.add(readString(position + 1, nameEnd - position - 1));
+			position = skipValue(type, nameEnd + 1);
+		}
+		return keys;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Map toMap() {
+		if (materialized != null) {
+			return materialized.toMap();
+		}
+		return decodeAll().toMap();
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return materialize().put(key, value);
+	}
+
+	@Override
+	public void putAll(BSONObject o) {
+		materialize().putAll(o);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void putAll(Map m) {
+		materialize().putAll(m);
+	}
+
+	@Override
+	public Object removeField(String key) {
+		return materialize().removeField(key);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof BSONObject)) {
+			return false;
+		}
+		return toMap().equals(((BSONObject) o).toMap());
+	}
+
+	@Override
+	public int hashCode() {
+		return toMap().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+
+	/**
+	 * ドキュメント全体をデコードし、以降の操作の対象とします。
+	 * @return
+	 */
+	private BSONObject materialize() {
+		if (materialized == null) {
+			materialized = decodeAll();
+		}
+		return materialized;
+	}
+
+	/**
+	 * ドキュメント全体をデコードします。
+	 * @return
+	 */
+	private BSONObject decodeAll() {
+		return DocumentDecoder.get().decode(buffer, 0, buffer.getInt(0));
+	}
+
+	/**
+	 * 指定のフィールドの要素の開始位置を検索します。
+	 * @param key
+	 * @return 見つからない場合は -1
+	 */
+	private int findElement(String key) {
+		Map<String, Integer> index = this.index;
+		if (index != null) {
+			Integer offset = index.get(key);
+			return offset == null ? -1 : offset;
+		}
+		if (++lookups >= INDEX_THRESHOLD) {
+			index = buildIndex();
+			this.index = index;
+			Integer offset = index.get(key);
+			return offset == null ? -1 : offset;
+		}
+		int position = 4;
+		byte type;
+		while ((type = buffer.getByte(position)) != 0) {
+			int nameEnd = buffer.indexOf(position + 1, buffer.capacity(), (byte) 0);
+			if (nameEquals(key, position + 1, nameEnd)) {
+				return position;
+			}
+			position = skipValue(type, nameEnd + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * フィールド名と要素の開始位置の索引を作成します。
+	 * @return
+	 */
+	private Map<String, Integer> buildIndex() {
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		int position = 4;
+		byte type;
+		while ((type = buffer.getByte(position)) != 0) {
+			int nameEnd = buffer.indexOf(position + 1, buffer.capacity(), (byte) 0);
+			String name = readString(position + 1, nameEnd - position - 1);
+			if (!index.containsKey(name)) {
+				index.put(name, position);
+			}
+			position = skipValue(type, nameEnd + 1);
+		}
+		return index;
+	}
+
+	/**
+	 * バッファ上のフィールド名と指定のキーを、文字列を生成せずに比較します。
+	 */
+	private boolean nameEquals(String key, int start, int end) {
+		int length = key.length();
+		if (end - start < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c >= 0x80) {
+				return key.equals(readString(start, end - start));
+			}
+			if (buffer.getByte(start + i) != c) {
+				return false;
+			}
+		}
+		return end - start == length;
+	}
+
+	/**
+	 * 値を読み飛ばし、次の要素の開始位置を返却します。
+	 * @param type
+	 * @param position
+	 * @return
+	 */
+	private int skipValue(byte type, int position) {
+		switch (type) {
+		case BSON.EOO:
+		case BSON.UNDEFINED:
+		case BSON.NULL:
+		case BSON.MINKEY:
+		case BSON.MAXKEY:
+			return position;
+		case BSON.BOOLEAN:
+			return position + 1;
+		case BSON.NUMBER_INT:
+			return position + 4;
+		case BSON.NUMBER:
+		case BSON.DATE:
+		case BSON.TIMESTAMP:
+		case BSON.NUMBER_LONG:
+			return position + 8;
+		case BSON.OID:
+			return position + 12;
+		case BSON.STRING:
+		case BSON.CODE:
+		case BSON.SYMBOL:
+			return position + 4 + buffer.getInt(position);
+		case BSON.OBJECT:
+		case BSON.ARRAY:
+		case BSON.CODE_W_SCOPE:
+			return position + buffer.getInt(position);
+		case BSON.BINARY:
+			return position + 5 + buffer.getInt(position);
+		case BSON.REGEX:
+			position = buffer.indexOf(position, buffer.capacity(), (byte) 0) + 1;
+			return buffer.indexOf(position, buffer.capacity(), (byte) 0) + 1;
+		case BSON.REF:
+			return position + 4 + buffer.getInt(position) + 12;
+		default:
+			throw new MongoException("Unknown BSON type: " + type);
+		}
+	}
+
+	/**
+	 * 指定位置の値をデコードします。
+	 * 値の型は {@link org.bson.BasicBSONCallback} と同じものを返却します。
+	 * @param type
+	 * @param position
+	 * @return
+	 */
+	private Object readValue(byte type, int position) {
+		switch (type) {
+		case BSON.UNDEFINED:
+		case BSON.NULL:
+			return null;
+		case BSON.MINKEY:
+			return "MinKey";
+		case BSON.MAXKEY:
+			return "MaxKey";
+		case BSON.BOOLEAN:
+			return buffer.getByte(position) != 0;
+		case BSON.NUMBER_INT:
+			return buffer.getInt(position);
+		case BSON.NUMBER:
+			return Double.longBitsToDouble(buffer.getLong(position));
+		case BSON.NUMBER_LONG:
+			return buffer.getLong(position);
+		case BSON.DATE:
+			return new Date(buffer.getLong(position));
+		case BSON.TIMESTAMP:
+			return new BSONTimestamp(buffer.getInt(position + 4), buffer.getInt(position));
+		case BSON.OID:
+			return readObjectId(position);
+		case BSON.STRING:
+		case BSON.SYMBOL:
+			return readString(position + 4, buffer.getInt(position) - 1);
+		case BSON.CODE:
+			return new Code(readString(position + 4, buffer.getInt(position) - 1));
+		case BSON.OBJECT:
+			return new LazyBSONObject(buffer.slice(position, buffer.getInt(position)));
+		case BSON.ARRAY:
+			return readArray(position);
+		case BSON.CODE_W_SCOPE: {
+			int codeLength = buffer.getInt(position + 4);
+			String code = readString(position + 8, codeLength - 1);
+			int scope = position + 8 + codeLength;
+			return new CodeWScope(code, new LazyBSONObject(buffer.slice(scope, buffer.getInt(scope))));
+		}
+		case BSON.BINARY:
+			return readBinary(position);
+		case BSON.REGEX: {
+			int patternEnd = buffer.indexOf(position, buffer.capacity(), (byte) 0);
+			int flagsEnd = buffer.indexOf(patternEnd + 1, buffer.capacity(), (byte) 0);
+			String pattern = readString(position, patternEnd - position);
+			String flags = readString(patternEnd + 1, flagsEnd - patternEnd - 1);
+			return Pattern.compile(pattern, BSON.regexFlags(flags));
+		}
+		case BSON.REF: {
+			int length = buffer.getInt(position);
+			String ns = readString(position + 4, length - 1);
+			return new BasicBSONObject("$ns", ns).append("$id", readObjectId(position + 4 + length));
+		}
+		default:
+			throw new MongoException("Unknown BSON type: " + type);
+		}
+	}
+
+	/**
+	 * 配列をデコードします。
+	 * 要素のドキュメントは {@link LazyBSONObject} として返却します。
+	 */
+	private BasicBSONList readArray(int position) {
+		BasicBSONList list = new BasicBSONList();
+		position += 4;
+		byte type;
+		while ((type = buffer.getByte(position)) != 0) {
+			int valueStart = buffer.indexOf(position + 1, buffer.capacity(), (byte) 0) + 1;
+			list.add(readValue(type, valueStart));
+			position = skipValue(type, valueStart);
+		}
+		return list;
+	}
+
+	/**
+	 * バイナリ値をデコードします。
+	 */
+	private Object readBinary(int position) {
+		int length = buffer.getInt(position);
+		byte subType = buffer.getByte(position + 4);
+		int data = position + 5;
+		switch (subType) {
+		case BSON.B_GENERAL: {
+			byte[] bytes = new byte[length];
+			buffer.getBytes(data, bytes);
+			return bytes;
+		}
+		case BSON.B_BINARY: {
+			byte[] bytes = new byte[buffer.getInt(data)];
+			buffer.getBytes(data + 4, bytes);
+			return bytes;
+		}
+		case BSON.B_UUID:
+			return new UUID(buffer.getLong(data), buffer.getLong(data + 8));
+		default: {
+			byte[] bytes = new byte[length];
+			buffer.getBytes(data, bytes);
+			return new Binary(subType, bytes);
+		}
+		}
+	}
+
+	private ObjectId readObjectId(int position) {
+		byte[] bytes = new byte[12];
+		buffer.getBytes(position, bytes);
+		return new ObjectId(bytes);
+	}
+
+	private String readString(int position, int length) {
+		return buffer.toString(position, length, CharsetUtil.UTF_8);
+	}
+}
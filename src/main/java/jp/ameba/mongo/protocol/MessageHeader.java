@@ -1,7 +1,5 @@
 package jp.ameba.mongo.protocol;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 import org.bson.io.OutputBuffer;
 import org.jboss.netty.buffer.ChannelBuffer;
 
@@ -19,8 +17,6 @@ public class MessageHeader {
 
 	// ヘッダのバイト数
 	public static final int HEADER_SIZE = 16;
-	// リクエストID採番用
-	private static final AtomicInteger REQUSET_ID = new AtomicInteger();
 
 	// このヘッダが準備完了であるか（受信時に使われます）
 	private boolean ready;
@@ -55,14 +51,6 @@ public class MessageHeader {
 		return ready;
 	}
 	
-	/**
-	 * リクエストIDをアサインします。
-	 * @return
-	 */
-	public int assignRequestId() {
-		return requestId = REQUSET_ID.incrementAndGet();
-	}
-	
 	/**
 	 * バッファから読み出します。
 	 * @param buffer
@@ -0,0 +1,46 @@
+package jp.ameba.mongo.protocol;
+
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * エンコード済みのドキュメントをそのまま出力する {@link BSONEncoder} です。
+ * 変更されていない {@link LazyBSONObject} は、保持しているバイト列を
+ * 再エンコードせずに出力します。
+ * {@link RawRequest} のメッセージ本体も、このエンコーダーを通して出力します。
+ * 
+ * @author suguru
+ */
+public class MongoEncoder extends BSONEncoder {
+	
+	@Override
+	public int putObject(BSONObject o) {
+		if (o instanceof LazyBSONObject) {
+			LazyBSONObject lazy = (LazyBSONObject) o;
+			ChannelBuffer buffer = lazy.getBuffer();
+			if (buffer != null) {
+				int size = lazy.getDocumentSize();
+				if (buffer.hasArray()) {
+					_buf.write(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), size);
+				} else {
+					byte[] bytes = new byte[size];
+					buffer.getBytes(buffer.readerIndex(), bytes);
+					_buf.write(bytes);
+				}
+				return size;
+			}
+		}
+		return super.putObject(o);
+	}
+	
+	/**
+	 * エンコード済みのバイト列をそのまま出力します。
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	public void writeBytes(byte[] bytes, int offset, int length) {
+		_buf.write(bytes, offset, length);
+	}
+}
@@ -47,32 +47,37 @@ public class Query extends Request {
 	}
 	
 	public Query tailableCursor(boolean tailable) {
-		this.flags = BitWise.addBit(flags, 1);
+		this.flags = BitWise.setBit(flags, 1, tailable);
 		return this;
 	}
 	
 	public Query slaveOk(boolean slaveOk) {
-		this.flags = BitWise.addBit(flags, 2);
+		this.flags = BitWise.setBit(flags, 2, slaveOk);
 		return this;
 	}
 	
 	public Query oplogReplay(boolean oplogReplay) {
-		this.flags = BitWise.addBit(flags, 3);
+		this.flags = BitWise.setBit(flags, 3, oplogReplay);
 		return this;
 	}
 	
 	public Query noCursorTimeout(boolean noCursorTimeout) {
-		this.flags = BitWise.addBit(flags, 4);
+		this.flags = BitWise.setBit(flags, 4, noCursorTimeout);
 		return this;
 	}
 	
 	public Query awaitData(boolean awaitData) {
-		this.flags = BitWise.addBit(flags, 5);
+		this.flags = BitWise.setBit(flags, 5, awaitData);
 		return this;
 	}
 	
 	public Query exhaust(boolean exhaust) {
-		this.flags = BitWise.addBit(flags, 6);
+		this.flags = BitWise.setBit(flags, 6, exhaust);
+		return this;
+	}
+	
+	public Query lazy(boolean lazy) {
+		this.lazy = lazy;
 		return this;
 	}
 	
@@ -106,6 +111,18 @@ public class Query extends Request {
 	public int getNumberToSkip() {
 		return numberToSkip;
 	}
+	
+	public int getFlags() {
+		return flags;
+	}
+	
+	public boolean isTailableCursor() {
+		return BitWise.hasBit(flags, 1);
+	}
+	
+	public boolean isSlaveOk() {
+		return BitWise.hasBit(flags, 2);
+	}
 
 	@Override
 	public void encode(BSONEncoder encoder) {
@@ -0,0 +1,74 @@
+package jp.ameba.mongo.protocol;
+
+import java.io.UnsupportedEncodingException;
+
+import org.bson.BSONEncoder;
+
+/**
+ * エンコード済みのメッセージをそのまま送信するリクエストです。
+ * メッセージはヘッダを含む、送信時と同じバイト列で保持します。
+ * リクエストIDは送信するチャネルで採番し直されます。
+ * 
+ * 更新系のメッセージの場合は、メッセージから対象のコレクション名を読み取ります。
+ * 
+ * @author suguru
+ */
+public class RawRequest extends Request {
+	
+	// OP_INSERT, OP_UPDATE, OP_DELETE でコレクション名が始まる位置
+	private static final int COLLECTION_NAME_OFFSET = MessageHeader.HEADER_SIZE + 4;
+	
+	// ヘッダを含むメッセージ
+	private byte[] message;
+	
+	/**
+	 * エンコード済みのメッセージから {@link RawRequest} を構成します。
+	 * @param message
+	 */
+	public RawRequest(byte[] message) {
+		super(OperationCode.getOpCode(readInt(message, 12)), null, null);
+		this.message = message;
+		this.consistency = Consistency.NONE;
+		OperationCode opCode = header.getOpCode();
+		if (opCode == OperationCode.OP_INSERT
+				|| opCode == OperationCode.OP_UPDATE
+				|| opCode == OperationCode.OP_DELETE) {
+			int end = COLLECTION_NAME_OFFSET;
+			while (message[end] != 0) {
+				end++;
+			}
+			try {
+				fullCollectionName = new String(message, COLLECTION_NAME_OFFSET, end - COLLECTION_NAME_OFFSET, "UTF-8");
+			} catch (UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+			int dot = fullCollectionName.indexOf('.');
+			databaseName = fullCollectionName.substring(0, dot);
+			collectionName = fullCollectionName.substring(dot + 1);
+		}
+	}
+	
+	/**
+	 * ヘッダを含むメッセージを取得します。
+	 * @return
+	 */
+	public byte[] getMessage() {
+		return message;
+	}
+	
+	@Override
+	public void encode(BSONEncoder encoder) {
+		// ヘッダは送信時に出力されるため、本体のみ出力する
+		((MongoEncoder) encoder).writeBytes(
+				message,
+				MessageHeader.HEADER_SIZE,
+				message.length - MessageHeader.HEADER_SIZE);
+	}
+	
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff)
+				| ((bytes[offset + 1] & 0xff) << 8)
+				| ((bytes[offset + 2] & 0xff) << 16)
+				| ((bytes[offset + 3] & 0xff) << 24);
+	}
+}
@@ -21,6 +21,8 @@ public abstract class Request {
 	protected int waitingRequestId;
 	// リクエストの Safeレベル
 	protected Consistency consistency;
+	// 返却されたドキュメントを遅延デコードするか
+	protected boolean lazy;
 	// リクエストフューチャー情報
 	private RequestFuture future;
 	
@@ -46,14 +48,13 @@ public abstract class Request {
 	
 	/**
 	 * ヘッダーを初期化します。
+	 * リクエストIDは、送信するチャネルで採番されます。
 	 * @param opCode
 	 */
 	protected void initHeader(OperationCode opCode) {
 		header = new MessageHeader();
-		header.assignRequestId();
 		header.setOpCode(opCode);
 		header.setResponseTo(0);
-		header.assignRequestId();
 	}
 	
 	/**
@@ -132,6 +133,23 @@ public abstract class Request {
 		this.consistency = consistency;
 	}
 	
+	/**
+	 * 返却されたドキュメントを遅延デコードするか確認します。
+	 * @return
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+	
+	/**
+	 * 返却されたドキュメントを {@link LazyBSONObject} として
+	 * 遅延デコードするかを設定します。
+	 * @param lazy
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+	
 	/**
 	 * このリクエストに関連する {@link RequestFuture} を設定します。
 	 * @param future
@@ -1,31 +1,38 @@
 package jp.ameba.mongo.protocol;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Executor;
 
-import jp.ameba.mongo.MongoException;
+import jp.ameba.mongo.OperationFuture;
 
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.util.Timeout;
 
 /**
  * 任意のリクエスト送出後に、
+ * サーバーからの返信を受け取るための {@link OperationFuture} です。
+ * 返信のないリクエストは、送信完了時に null で完了します。
  * 
+ * @author suguru
  */
-public class RequestFuture implements Future<Response> {
+public class RequestFuture extends OperationFuture<Response> {
 	
 	private Request request;
 	
 	private Request getLastError;
 	
-	private Response response;
-	
 	private ChannelFuture channelFuture;
 	
-	private boolean done = false;
+	private Channel channel;
+	
+	private Timeout timeout;
 	
 	public RequestFuture(Request request) {
+		this(request, null);
+	}
+	
+	public RequestFuture(Request request, Executor executor) {
+		super(executor);
 		this.request = request;
 	}
 	
@@ -33,6 +40,10 @@ public class RequestFuture implements Future<Response> {
 		return request.getHeader().getRequestId();
 	}
 	
+	public Request getRequest() {
+		return request;
+	}
+	
 	public void setGetLastError(Request getLastError) {
 		this.getLastError = getLastError;
 	}
@@ -42,7 +53,7 @@ public class RequestFuture implements Future<Response> {
 	}
 	
 	public void setResponse(Response response) {
-		this.response = response;
+		setSuccess(response);
 	}
 	
 	public void setChannelFuture(ChannelFuture channelFuture) {
@@ -53,51 +64,37 @@ public class RequestFuture implements Future<Response> {
 		return channelFuture;
 	}
 	
-	public void setDone(boolean done) {
-		this.done = done;
+	/**
+	 * リクエストを送信したチャネルを設定します。
+	 * @param channel
+	 */
+	public void setChannel(Channel channel) {
+		this.channel = channel;
 	}
-
-	@Override
-	public boolean cancel(boolean mayInterruptIfRunning) {
-		throw new MongoException("Cancel is not available.");
+	
+	/**
+	 * リクエストを送信したチャネルを取得します。
+	 * @return
+	 */
+	public Channel getChannel() {
+		return channel;
 	}
-
-	@Override
-	public Response get() throws InterruptedException, ExecutionException {
-		if (response == null) {
-			synchronized (this) {
-				if (response == null) {
-					this.wait();
-				}
-			}
-		}
-		return response;
+	
+	/**
+	 * 返信待ちのタイムアウトを設定します。
+	 * @param timeout
+	 */
+	public void setTimeout(Timeout timeout) {
+		this.timeout = timeout;
 	}
-
-	@Override
-	public Response get(long timeout, TimeUnit unit)
-			throws InterruptedException, ExecutionException, TimeoutException {
-		if (response == null) {
-			synchronized (this) {
-				if (response == null) {
-					this.wait(unit.toMillis(timeout));
-				}
-			}
-		}
-		if (response == null) {
-			throw new TimeoutException("MongoDB operation has been timed out.");
+	
+	/**
+	 * 返信待ちのタイムアウトを取り消します。
+	 */
+	public void cancelTimeout() {
+		Timeout timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel();
 		}
-		return response;
 	}
-
-	@Override
-	public boolean isCancelled() {
-		return false;
-	}
-
-	@Override
-	public boolean isDone() {
-		return done;
-	}
-
 }
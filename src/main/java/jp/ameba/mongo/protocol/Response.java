@@ -1,14 +1,14 @@
 package jp.ameba.mongo.protocol;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 
-import org.bson.BSONDecoder;
 import org.bson.BSONObject;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
 
 /**
  * OP_REPLY に相当するメッセージ情報です。
@@ -27,10 +27,14 @@ public class Response {
 	private int startingFrom;
 	// 返却されているドキュメント数
 	private int numberReturned;
+	// 返却されたドキュメント部分のバッファ
+	private ChannelBuffer body;
+	// 各ドキュメントのバッファ内での開始位置
+	private int[] documentOffsets;
 	// 返却されたドキュメント内容
 	private List<BSONObject> documents;
-	
-	private static final BSONDecoder staticDecoder = new BSONDecoder();
+	// ドキュメントを遅延デコードするか
+	private boolean lazy;
 	
 	private static final List<BSONObject> emptyList = Collections.unmodifiableList(new ArrayList<BSONObject>(0));
 	
@@ -99,10 +103,10 @@ public class Response {
 		if (BitWise.hasBit(responseFlags, 1)) {
 			return false;
 		}
-    	if (documents.size() == 0) {
+    	if (numberReturned == 0) {
     		return true;
     	}
-    	BSONObject doc = documents.get(0);
+    	BSONObject doc = getDocuments().get(0);
         Object o = doc.get("ok");
         if (o == null) {
             return true;
@@ -130,19 +134,40 @@ public class Response {
      * @return
      */
     public String getErrorMessage(){
-    	if (documents.size() == 0) {
+    	if (numberReturned == 0) {
     		return null;
     	}
-    	BSONObject doc = documents.get(0);
+    	BSONObject doc = getDocuments().get(0);
         Object errorMessage = doc.get("errmsg");
         return errorMessage == null ? null : errorMessage.toString();
     }
     
+	/**
+	 * ドキュメントを {@link LazyBSONObject} として返却するか確認します。
+	 * @return
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+	
+	/**
+	 * ドキュメントを {@link LazyBSONObject} として返却するかを設定します。
+	 * ドキュメントを参照する前に設定する必要があります。
+	 * @param lazy
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+	
 	/**
 	 * 内包するドキュメント一覧を取得します。
+	 * 各ドキュメントは、最初に参照された時点でデコードされます。
 	 * @return
 	 */
 	public List<BSONObject> getDocuments() {
+		if (documents == null) {
+			documents = new DocumentList();
+		}
 		return documents;
 	}
 	
@@ -151,14 +176,36 @@ public class Response {
 	 * @return
 	 */
 	public BSONObject getDocument() {
-		if (documents.size() == 0) {
+		if (numberReturned == 0) {
 			return null;
 		}
-		return documents.get(0);
+		return getDocuments().get(0);
+	}
+	
+	/**
+	 * 同じバッファを参照し、デコードしたドキュメントを共有しないレスポンスを作成します。
+	 * 1つの返信を複数のスレッドで参照する場合は、スレッドごとに作成します。
+	 * @return
+	 */
+	public Response view() {
+		Response view = new Response(header);
+		view.responseFlags = responseFlags;
+		view.cursorId = cursorId;
+		view.startingFrom = startingFrom;
+		view.numberReturned = numberReturned;
+		view.body = body;
+		view.documentOffsets = documentOffsets;
+		view.lazy = lazy;
+		if (numberReturned == 0) {
+			view.documents = emptyList;
+		}
+		return view;
 	}
 	
 	/**
 	 * {@link ChannelBuffer} から内容を解析・取得します。
+	 * ドキュメント部分はコピーせずにスライスとして保持し、
+	 * 各ドキュメントの開始位置のみを記録します。
 	 * @param buffer
 	 * @throws IOException
 	 */
@@ -172,13 +219,59 @@ public class Response {
 		if (numberReturned == 0) {
 			documents = emptyList;
 		} else {
-			// 残りのバッファからドキュメントを読み出す
-			ChannelBufferInputStream input = new ChannelBufferInputStream(buffer);
-			documents = new ArrayList<BSONObject>(numberReturned);
+			// 残りのバッファからドキュメントの位置を読み出す
+			body = buffer.slice();
+			documentOffsets = new int[numberReturned];
+			int offset = 0;
 			for (int i = 0; i < numberReturned; i++) {
-				documents.add(staticDecoder.readObject(input));
+				if (offset + 4 > body.capacity()) {
+					throw new IOException("Response is shorter than numberReturned.");
+				}
+				int size = body.getInt(offset);
+				if (size < 5 || offset + size > body.capacity()) {
+					throw new IOException("Invalid document size: " + size);
+				}
+				documentOffsets[i] = offset;
+				offset += size;
 			}
 		}
 	}
 	
+	/**
+	 * 指定位置のドキュメントを、現在のスレッドのデコーダーでデコードします。
+	 * 遅延デコードの場合は、バッファを参照する {@link LazyBSONObject} を返却します。
+	 * @param index
+	 * @return
+	 */
+	private BSONObject decodeDocument(int index) {
+		int offset = documentOffsets[index];
+		if (lazy) {
+			return new LazyBSONObject(body.slice(offset, body.getInt(offset)));
+		}
+		return DocumentDecoder.get().decode(body, offset, body.getInt(offset));
+	}
+	
+	/**
+	 * 参照時にドキュメントをデコードするリスト
+	 */
+	private class DocumentList extends AbstractList<BSONObject> implements RandomAccess {
+		
+		// デコード済みのドキュメント
+		private BSONObject[] decoded = new BSONObject[numberReturned];
+		
+		@Override
+		public BSONObject get(int index) {
+			BSONObject document = decoded[index];
+			if (document == null) {
+				document = decodeDocument(index);
+				decoded[index] = document;
+			}
+			return document;
+		}
+		
+		@Override
+		public int size() {
+			return numberReturned;
+		}
+	}
 }
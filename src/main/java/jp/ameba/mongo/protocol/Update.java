@@ -98,6 +98,14 @@ public class Update extends Request {
 		setConsistency(consistency);
 		return this;
 	}
+	
+	/**
+	 * 対象のセレクタを取得します。
+	 * @return
+	 */
+	public BSONObject getSelector() {
+		return selector;
+	}
 
 	@Override
 	public void encode(BSONEncoder encoder) {
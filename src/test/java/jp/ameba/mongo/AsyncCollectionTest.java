@@ -0,0 +1,103 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncCollectionTest {
+
+	private MongoClient client;
+	
+	private ExecutorService executor;
+	
+	@Before
+	public void before() throws IOException {
+		executor = Executors.newFixedThreadPool(2);
+		client = new MongoClient();
+		client.getConfiguration().setCallbackExecutor(executor);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException, InterruptedException {
+		client.close();
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testPipelinedOperations() throws Exception {
+		
+		MongoAsyncCollection collection = client.getAsyncCollection("test", "async");
+		collection.remove(new BasicBSONObject()).get(10, TimeUnit.SECONDS);
+		
+		// 結果を待たずにすべての挿入を送信する
+		int size = 500;
+		List<OperationFuture<Void>> inserts = new ArrayList<OperationFuture<Void>>(size);
+		for (int i = 0; i < size; i++) {
+			inserts.add(collection.insert(new BasicBSONObject("_id", i).append("name", "name-" + i)));
+		}
+		for (OperationFuture<Void> future : inserts) {
+			future.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(future.isSuccess());
+		}
+		Assert.assertEquals(Long.valueOf(size), collection.count().get(10, TimeUnit.SECONDS));
+		
+		// 完了通知は指定の Executor で実行される
+		final CountDownLatch latch = new CountDownLatch(size);
+		final AtomicInteger matched = new AtomicInteger();
+		final Thread caller = Thread.currentThread();
+		for (int i = 0; i < size; i++) {
+			final int id = i;
+			collection.find(new BasicBSONObject("_id", id)).addListener(new OperationListener<BSONObject>() {
+				@Override
+				public void operationComplete(OperationFuture<BSONObject> future) {
+					try {
+						BSONObject document = future.get();
+						if (document != null
+								&& ("name-" + id).equals(document.get("name"))
+								&& Thread.currentThread() != caller) {
+							matched.incrementAndGet();
+						}
+					} catch (Exception ex) {
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(size, matched.get());
+	}
+	
+	@Test
+	public void testLastError() throws Exception {
+		
+		MongoAsyncCollection collection = client.getAsyncCollection("test", "async");
+		collection.upsert(new BasicBSONObject("_id", "dup"), new BasicBSONObject("_id", "dup")).get(10, TimeUnit.SECONDS);
+		
+		// 重複キーは getLastError のエラーとして失敗する
+		OperationFuture<Void> future = collection.insert(new BasicBSONObject("_id", "dup"));
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof MongoException);
+		}
+		Assert.assertFalse(future.isSuccess());
+	}
+}
@@ -0,0 +1,95 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferedCollectionTest {
+
+	private MongoClient client;
+	
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+	
+	@Test
+	public void testConcurrentInserts() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "buffered");
+		collection.remove(new BasicBSONObject());
+		
+		// キューの上限を小さくし、送信待ちを発生させる
+		final BufferedMongoCollection buffered = new BufferedMongoCollection(client, "test", "buffered")
+				.capacity(200)
+				.maxBatchCount(50);
+		final int threads = 4;
+		final int size = 2500;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < size; i++) {
+							buffered.insert(new BasicBSONObject("_id", thread * size + i));
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		
+		// close 時にキューの残りがすべて送信される
+		buffered.close();
+		Assert.assertEquals(0, buffered.getQueuedCount());
+		Assert.assertEquals(threads * size, collection.count());
+	}
+	
+	@Test
+	public void testFlush() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "buffered");
+		collection.remove(new BasicBSONObject());
+		
+		BufferedMongoCollection buffered = new BufferedMongoCollection(client, "test", "buffered")
+				.maxDelay(60000L);
+		OperationFuture<Void> first = null;
+		for (int i = 0; i < 10; i++) {
+			OperationFuture<Void> future = buffered.insert(new BasicBSONObject("_id", i));
+			if (first == null) {
+				first = future;
+			}
+		}
+		Assert.assertFalse(first.isDone());
+		buffered.flush().get(10, TimeUnit.SECONDS);
+		Assert.assertTrue(first.isSuccess());
+		Assert.assertEquals(10, collection.count());
+		
+		// 重複キーを含むメッセージは失敗する
+		OperationFuture<Void> duplicate = buffered.insert(new BasicBSONObject("_id", 0));
+		try {
+			buffered.close();
+			Assert.fail();
+		} catch (MongoException ex) {
+		}
+		Assert.assertFalse(duplicate.isSuccess());
+	}
+}
@@ -0,0 +1,91 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.ameba.mongo.protocol.Consistency;
+import jp.ameba.mongo.protocol.LazyBSONObject;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkLoaderTest {
+
+	private MongoClient client;
+	
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+	
+	@Test
+	public void testLoad() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "bulk");
+		collection.remove(new BasicBSONObject());
+		
+		// 小さな上限で複数のメッセージに分割し、パイプラインで送信する
+		int size = 5000;
+		List<BSONObject> documents = new ArrayList<BSONObject>(size);
+		for (int i = 0; i < size; i++) {
+			documents.add(new BasicBSONObject("_id", i).append("name", "name-" + i));
+		}
+		long loaded = collection.bulkLoader()
+				.maxBatchBytes(16 * 1024)
+				.maxBatchCount(300)
+				.maxInFlight(2)
+				.load(documents);
+		Assert.assertEquals(size, loaded);
+		Assert.assertEquals(size, collection.count());
+		Assert.assertEquals("name-4999", collection.find(new BasicBSONObject("_id", 4999)).get("name"));
+		
+		// 遅延デコードしたドキュメントは、再エンコードせずにそのまま挿入できる
+		MongoCollection copy = client.getCollection("test", "bulkcopy");
+		copy.remove(new BasicBSONObject());
+		List<BSONObject> lazyDocuments = new ArrayList<BSONObject>();
+		for (BSONObject document : client.getConnection().cursor("test", "bulk").lazy()) {
+			Assert.assertTrue(document instanceof LazyBSONObject);
+			lazyDocuments.add(document);
+			if (lazyDocuments.size() == 100) {
+				break;
+			}
+		}
+		copy.insert(lazyDocuments.toArray(new BSONObject[lazyDocuments.size()]));
+		Assert.assertEquals(100, copy.count());
+	}
+	
+	@Test
+	public void testFailure() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "bulk");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 50));
+		
+		List<BSONObject> documents = new ArrayList<BSONObject>();
+		for (int i = 0; i < 100; i++) {
+			documents.add(new BasicBSONObject("_id", i));
+		}
+		try {
+			collection.bulkLoader()
+					.consistency(Consistency.SAFE)
+					.maxBatchCount(10)
+					.load(documents);
+			Assert.fail();
+		} catch (MongoException ex) {
+			Assert.assertNotNull(ex.getMessage());
+		}
+	}
+}
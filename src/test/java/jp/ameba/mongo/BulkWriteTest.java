@@ -0,0 +1,80 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkWriteTest {
+
+	private MongoClient client;
+	
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+	
+	@Test
+	public void testUnordered() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "bulkwrite");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", -1));
+		collection.insert(new BasicBSONObject("_id", -2));
+		
+		BulkWrite bulk = collection.bulkWrite().maxInFlight(64);
+		for (int i = 0; i < 500; i++) {
+			bulk.insert(new BasicBSONObject("_id", i));
+		}
+		for (int i = 500; i < 1000; i++) {
+			bulk.upsert(new BasicBSONObject("_id", i), new BasicBSONObject("_id", i).append("upsert", true));
+		}
+		// 重複キーの挿入のみ失敗する
+		bulk.insert(new BasicBSONObject("_id", -1));
+		bulk.remove(new BasicBSONObject("_id", -2));
+		
+		BulkWriteResult result = bulk.execute();
+		Assert.assertEquals(1002, result.size());
+		Assert.assertFalse(result.isSuccess());
+		Map<Integer, MongoException> errors = result.getErrors();
+		Assert.assertEquals(1, errors.size());
+		Assert.assertTrue(errors.containsKey(1000));
+		Assert.assertEquals(11000, errors.get(1000).getCode());
+		Assert.assertTrue(result.isExecuted(1001));
+		Assert.assertEquals(1, result.getAffectedCount(1001));
+		Assert.assertEquals(1001, collection.count());
+	}
+	
+	@Test
+	public void testOrdered() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "bulkwrite");
+		collection.remove(new BasicBSONObject());
+		
+		// 最初のエラーで中断し、後続の操作は実行されない
+		BulkWriteResult result = collection.bulkWrite()
+				.ordered(true)
+				.insert(new BasicBSONObject("_id", 1))
+				.insert(new BasicBSONObject("_id", 2))
+				.insert(new BasicBSONObject("_id", 1))
+				.insert(new BasicBSONObject("_id", 3))
+				.execute();
+		Assert.assertFalse(result.isSuccess());
+		Assert.assertNull(result.getError(1));
+		Assert.assertNotNull(result.getError(2));
+		Assert.assertFalse(result.isExecuted(3));
+		Assert.assertEquals(2, collection.count());
+	}
+}
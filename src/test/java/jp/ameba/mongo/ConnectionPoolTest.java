@@ -0,0 +1,87 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.getConfiguration().setConnectionsPerServer(4);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testConnectionsPerServer() throws Exception {
+
+		// すべての接続が使用される
+		Map<Integer, MongoConnection> connections = new HashMap<Integer, MongoConnection>();
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (connections.size() < 4 && System.currentTimeMillis() < deadline) {
+			MongoConnection conn = client.getConnection();
+			connections.put(conn.getChannelId(), conn);
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(4, connections.size());
+
+		final MongoCollection collection = client.getCollection("test", "connectionPool");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+
+		final int threads = 16;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							if (!"first".equals(collection.find(new BasicBSONObject("_id", 1)).get("name"))) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		Assert.assertEquals(0, errors.get());
+
+		// 完了したリクエストは送信中の数に含まれない
+		Collection<MongoConnection> values = connections.values();
+		deadline = System.currentTimeMillis() + 5000L;
+		int inFlight;
+		do {
+			inFlight = 0;
+			for (MongoConnection conn : values) {
+				inFlight += conn.getInFlightCount();
+			}
+		} while (inFlight > 0 && System.currentTimeMillis() < deadline);
+		Assert.assertEquals(0, inFlight);
+	}
+}
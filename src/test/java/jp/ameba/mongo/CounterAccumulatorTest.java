@@ -0,0 +1,115 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CounterAccumulatorTest {
+
+	private MongoClient client;
+	
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+	
+	@Test
+	public void testConcurrentIncrements() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "counter");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 0).append("hits", 100));
+		
+		// 定期送信と上限による送信が、加算と並行して行われる
+		final CounterAccumulator counters = collection.counterAccumulator(5, 8);
+		final int threads = 8;
+		final int increments = 5000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < increments; i++) {
+							counters.increment(i % 10, "hits");
+							counters.increment(i % 10, "bytes", 10);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		counters.close();
+		Assert.assertEquals(0, counters.getFailureCount());
+		
+		// close 時にすべての値が送信されている
+		int perKey = threads * increments / 10;
+		for (int i = 0; i < 10; i++) {
+			BSONObject counter = collection.find(new BasicBSONObject("_id", i));
+			Assert.assertEquals((i == 0 ? 100 : 0) + perKey, ((Number) counter.get("hits")).intValue());
+			Assert.assertEquals(perKey * 10, ((Number) counter.get("bytes")).intValue());
+		}
+		
+		try {
+			counters.increment(0, "hits");
+			Assert.fail();
+		} catch (MongoException ex) {
+		}
+	}
+	
+	@Test
+	public void testCloseDuringIncrements() throws Exception {
+		
+		MongoCollection collection = client.getCollection("test", "counter");
+		collection.remove(new BasicBSONObject());
+		
+		// クローズと並行した加算は、成功したものがすべて送信される
+		final CounterAccumulator counters = collection.counterAccumulator(0, Integer.MAX_VALUE);
+		final int threads = 8;
+		final AtomicLong added = new AtomicLong();
+		final CountDownLatch started = new CountDownLatch(threads);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						for (;;) {
+							counters.increment(0, "hits");
+							added.incrementAndGet();
+						}
+					} catch (MongoException ex) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		started.await();
+		Thread.sleep(20);
+		counters.close();
+		done.await();
+		Assert.assertEquals(0, counters.getFailureCount());
+		
+		BSONObject counter = collection.find(new BasicBSONObject("_id", 0));
+		Assert.assertEquals(added.get(), ((Number) counter.get("hits")).longValue());
+	}
+}
@@ -0,0 +1,174 @@
+package jp.ameba.mongo;
+
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * サーバーへ接続せずに、 OP_REPLY のデコードを検証します。
+ */
+public class DecoderTest {
+
+	private Logger log = Logger.getLogger(DecoderTest.class.getName());
+
+	private static final int REPLIES = 200;
+
+	private static final int DOCUMENTS = 50;
+
+	@Test
+	public void testSplitFrames() throws Exception {
+		ChannelBuffer replies = createReplies(0);
+		for (int chunk = 1; chunk < 300; chunk += 37) {
+			DecoderEmbedder<Response> embedder = createEmbedder();
+			int index = replies.readerIndex();
+			while (index < replies.writerIndex()) {
+				int length = Math.min(chunk, replies.writerIndex() - index);
+				embedder.offer(replies.slice(index, length));
+				index += length;
+			}
+			verifyReplies(embedder, 0);
+		}
+	}
+
+	@Test
+	public void testConcurrentConnections() throws Exception {
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int workers = 1; workers <= processors * 2; workers *= 2) {
+			long elapsed = decodeConcurrently(workers);
+			long documents = (long) workers * REPLIES * DOCUMENTS;
+			log.info(workers + " connections decoded " + documents + " documents in " + elapsed + " ms");
+		}
+	}
+
+	@Test
+	public void testResponseView() throws Exception {
+		DecoderEmbedder<Response> embedder = createEmbedder();
+		embedder.offer(createReplies(0));
+		Response response = embedder.poll();
+
+		// 同じ返信を参照するが、デコードしたドキュメントは共有しない
+		Response view = response.view();
+		Assert.assertEquals(response.getNumberReturned(), view.getNumberReturned());
+		Assert.assertEquals(response.getCursorId(), view.getCursorId());
+		for (int i = 0; i < DOCUMENTS; i++) {
+			BSONObject document = response.getDocuments().get(i);
+			BSONObject viewed = view.getDocuments().get(i);
+			Assert.assertNotSame(document, viewed);
+			Assert.assertEquals(document.get("name"), viewed.get("name"));
+		}
+	}
+
+	/**
+	 * 指定数の接続で同時にデコードし、所要時間を返します。
+	 */
+	private long decodeConcurrently(int workers) throws Exception {
+		final ChannelBuffer[] replies = new ChannelBuffer[workers];
+		for (int i = 0; i < workers; i++) {
+			replies[i] = createReplies(i);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(workers);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int i = 0; i < workers; i++) {
+			final int connection = i;
+			new Thread("decoder-" + i) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						Random random = new Random(connection);
+						DecoderEmbedder<Response> embedder = createEmbedder();
+						ChannelBuffer buffer = replies[connection];
+						int index = buffer.readerIndex();
+						while (index < buffer.writerIndex()) {
+							int length = Math.min(1 + random.nextInt(4096), buffer.writerIndex() - index);
+							embedder.offer(buffer.slice(index, length));
+							index += length;
+						}
+						verifyReplies(embedder, connection);
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long started = System.currentTimeMillis();
+		start.countDown();
+		done.await();
+		long elapsed = System.currentTimeMillis() - started;
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		return elapsed;
+	}
+
+	private DecoderEmbedder<Response> createEmbedder() {
+		return new DecoderEmbedder<Response>(
+				HeapChannelBufferFactory.getInstance(ByteOrder.LITTLE_ENDIAN),
+				new MongoDecoder());
+	}
+
+	private void verifyReplies(DecoderEmbedder<Response> embedder, int connection) {
+		int count = 0;
+		Response response;
+		while ((response = embedder.poll()) != null) {
+			Assert.assertEquals(count, response.getHeader().getResponseTo());
+			List<BSONObject> documents = response.getDocuments();
+			Assert.assertEquals(DOCUMENTS, documents.size());
+			for (int i = 0; i < DOCUMENTS; i++) {
+				BSONObject document = documents.get(i);
+				Assert.assertEquals(i, document.get("_id"));
+				Assert.assertEquals(connection, document.get("connection"));
+				Assert.assertEquals("name-" + count + "-" + i, document.get("name"));
+			}
+			count++;
+		}
+		Assert.assertEquals(REPLIES, count);
+	}
+
+	/**
+	 * OP_REPLY メッセージの連続したバッファを作成します。
+	 */
+	private ChannelBuffer createReplies(int connection) {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(ByteOrder.LITTLE_ENDIAN, 1024 * 1024);
+		BSONEncoder encoder = new BSONEncoder();
+		for (int reply = 0; reply < REPLIES; reply++) {
+			int start = buffer.writerIndex();
+			// header
+			buffer.writeInt(0);
+			buffer.writeInt(reply + 1);
+			buffer.writeInt(reply);
+			buffer.writeInt(1);
+			// OP_REPLY
+			buffer.writeInt(0);
+			buffer.writeLong(0L);
+			buffer.writeInt(0);
+			buffer.writeInt(DOCUMENTS);
+			for (int i = 0; i < DOCUMENTS; i++) {
+				buffer.writeBytes(encoder.encode(new BasicBSONObject("_id", i)
+						.append("connection", connection)
+						.append("name", "name-" + reply + "-" + i)
+						.append("value", (double) i)));
+			}
+			buffer.setInt(start, buffer.writerIndex() - start);
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,271 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DocumentCacheTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testReadThrough() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "documentCache");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+		collection.insert(new BasicBSONObject("_id", 2).append("name", "second"));
+
+		DocumentCache cache = new DocumentCache(1024 * 1024, 4096);
+		collection.setDocumentCache(cache);
+
+		Assert.assertEquals("first", collection.find(new BasicBSONObject("_id", 1)).get("name"));
+		Assert.assertEquals(0, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+		Assert.assertEquals("first", collection.find(new BasicBSONObject("_id", 1)).get("name"));
+		Assert.assertEquals(1, cache.getHitCount());
+
+		// 取得フィールドが異なる場合は別のエントリ
+		BSONObject fields = new BasicBSONObject("name", 1);
+		Assert.assertEquals("first", collection.find(new BasicBSONObject("_id", 1), fields).get("name"));
+		Assert.assertEquals(2, cache.getMissCount());
+		Assert.assertEquals(2, cache.size());
+
+		// _id による更新で破棄される
+		collection.update(new BasicBSONObject("_id", 1), new BasicBSONObject("$set", new BasicBSONObject("name", "updated")));
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals("updated", collection.find(new BasicBSONObject("_id", 1)).get("name"));
+
+		// 他の条件で取得したドキュメントも、 _id で破棄される
+		Assert.assertEquals("second", collection.find(new BasicBSONObject("name", "second")).get("name"));
+		collection.remove(new BasicBSONObject("_id", new BasicBSONObject("$in", new Object[] { 2 })));
+		Assert.assertNull(collection.find(new BasicBSONObject("name", "second")));
+		Assert.assertEquals(1, cache.size());
+
+		// _id 以外の条件による更新では、すべて破棄される
+		collection.update(new BasicBSONObject("name", "updated"), new BasicBSONObject("$set", new BasicBSONObject("age", 1)));
+		Assert.assertEquals(0, cache.size());
+
+		// 遅延デコード
+		collection.setLazyDecoding(true);
+		collection.find(new BasicBSONObject("_id", 1));
+		BSONObject lazy = collection.find(new BasicBSONObject("_id", 1));
+		Assert.assertEquals("updated", lazy.get("name"));
+		Assert.assertEquals(1, ((Number) lazy.get("age")).intValue());
+	}
+
+	@Test
+	public void testOtherWritePaths() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "documentCacheWrites");
+		collection.remove(new BasicBSONObject());
+		for (int i = 1; i <= 6; i++) {
+			collection.insert(new BasicBSONObject("_id", i).append("count", 0));
+		}
+		DocumentCache cache = new DocumentCache(1024 * 1024, 4096);
+		collection.setDocumentCache(cache);
+		BSONObject inc = new BasicBSONObject("$inc", new BasicBSONObject("count", 1));
+
+		// findAndModify
+		assertCount(collection, 1, 0);
+		collection.findAndModify().query(new BasicBSONObject("_id", 1)).update(inc).execute();
+		assertCount(collection, 1, 1);
+
+		// bulkWrite
+		assertCount(collection, 2, 0);
+		collection.bulkWrite().update(new BasicBSONObject("_id", 2), inc).execute();
+		assertCount(collection, 2, 1);
+
+		// bulkLoader で再挿入したドキュメント
+		assertCount(collection, 3, 0);
+		collection.remove(new BasicBSONObject("_id", 3));
+		Assert.assertNull(collection.find(new BasicBSONObject("_id", 3)));
+		collection.bulkLoader().load(Arrays.asList(
+				(BSONObject) new BasicBSONObject("_id", 3).append("count", 1)));
+		assertCount(collection, 3, 1);
+
+		// counterAccumulator
+		assertCount(collection, 4, 0);
+		CounterAccumulator counters = collection.counterAccumulator(0, 100);
+		counters.increment(4, "count");
+		counters.close();
+		assertCount(collection, 4, 1);
+
+		// writeCoalescer
+		assertCount(collection, 5, 0);
+		WriteCoalescer coalescer = collection.writeCoalescer(0);
+		coalescer.update(5, inc);
+		coalescer.close();
+		assertCount(collection, 5, 1);
+
+		// 同じデータベースから取得した非同期コレクション
+		assertCount(collection, 6, 0);
+		client.getAsyncCollection("test", "documentCacheWrites")
+				.update(new BasicBSONObject("_id", 6), inc)
+				.get(5, TimeUnit.SECONDS);
+		assertCount(collection, 6, 1);
+	}
+
+	@Test
+	public void testProjectionWithoutId() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "documentCacheFields");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+		DocumentCache cache = new DocumentCache(1024 * 1024, 4096);
+		collection.setDocumentCache(cache);
+
+		// _id を除外したドキュメントは、 _id による更新で破棄できないためキャッシュしない
+		BSONObject selector = new BasicBSONObject("_id", 1);
+		BSONObject fields = new BasicBSONObject("_id", 0).append("name", 1);
+		Assert.assertEquals("first", collection.find(selector, fields).get("name"));
+		Assert.assertEquals(0, cache.size());
+		collection.update(selector, new BasicBSONObject("$set", new BasicBSONObject("name", "updated")));
+		Assert.assertEquals("updated", collection.find(selector, fields).get("name"));
+	}
+
+	@Test
+	public void testCursorRemove() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "documentCacheCursor");
+		collection.remove(new BasicBSONObject());
+		for (int i = 1; i <= 4; i++) {
+			collection.insert(new BasicBSONObject("_id", i));
+		}
+		DocumentCache cache = new DocumentCache(1024 * 1024, 4096);
+		collection.setDocumentCache(cache);
+		for (int i = 1; i <= 4; i++) {
+			Assert.assertNotNull(collection.find(new BasicBSONObject("_id", i)));
+		}
+
+		// 1件ずつ削除
+		MongoCursor cursor = collection.cursor();
+		cursor.next();
+		cursor.remove();
+		cursor.close();
+		Assert.assertNull(collection.find(new BasicBSONObject("_id", 1)));
+
+		// まとめて削除
+		cursor = collection.cursor().batchRemove();
+		while (cursor.hasNext()) {
+			cursor.next();
+			cursor.remove();
+		}
+		cursor.close();
+		for (int i = 2; i <= 4; i++) {
+			Assert.assertNull(collection.find(new BasicBSONObject("_id", i)));
+		}
+	}
+
+	private static void assertCount(MongoCollection collection, int id, int count) {
+		BSONObject document = collection.find(new BasicBSONObject("_id", id));
+		Assert.assertEquals(count, ((Number) document.get("count")).intValue());
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+
+		DocumentCache cache = new DocumentCache(1024 * 1024, 4096).ttl(50);
+		DocumentCache.Key key = cache.key("test.expiration", new BasicBSONObject("_id", 1), null);
+		cache.put(key, new BasicBSONObject("_id", 1), cache.stamp());
+		Assert.assertNotNull(cache.get(key, false));
+		Thread.sleep(100);
+		Assert.assertNull(cache.get(key, false));
+		Assert.assertEquals(1, cache.getExpirationCount());
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+
+		// 1ページのみ確保できる
+		DocumentCache cache = new DocumentCache(4096, 4096);
+		int slots = 4096 / 64;
+		for (int i = 0; i <= slots; i++) {
+			BSONObject document = new BasicBSONObject("_id", i);
+			cache.put(cache.key("test.eviction", document, null), document, cache.stamp());
+			if (i == 0) {
+				// 最初のエントリを参照し、次に破棄されないようにする
+				continue;
+			}
+			if (i == 1) {
+				Assert.assertNotNull(cache.get(cache.key("test.eviction", new BasicBSONObject("_id", 0), null), false));
+			}
+		}
+		Assert.assertEquals(slots, cache.size());
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertEquals(4096, cache.getAllocatedBytes());
+		Assert.assertNotNull(cache.get(cache.key("test.eviction", new BasicBSONObject("_id", 0), null), false));
+		Assert.assertNull(cache.get(cache.key("test.eviction", new BasicBSONObject("_id", 1), null), false));
+
+		// 検索中に破棄された _id は追加しない
+		BSONObject document = new BasicBSONObject("_id", "stale");
+		DocumentCache.Key key = cache.key("test.eviction", document, null);
+		long stamp = cache.stamp();
+		cache.invalidate("test.eviction", "stale");
+		cache.put(key, document, stamp);
+		Assert.assertNull(cache.get(key, false));
+	}
+
+	@Test
+	public void testMixedSizes() throws Exception {
+
+		char[] chars = new char[3000];
+		Arrays.fill(chars, 'x');
+		BSONObject small = new BasicBSONObject("_id", "small");
+		BSONObject large = new BasicBSONObject("_id", "large").append("data", new String(chars));
+
+		// 1ページのみの場合は、ページを他のサイズに分割し直して使用する
+		DocumentCache cache = new DocumentCache(4096, 4096);
+		DocumentCache.Key smallKey = cache.key("test.mixed", small, null);
+		DocumentCache.Key largeKey = cache.key("test.mixed", large, null);
+		cache.put(smallKey, small, cache.stamp());
+		Assert.assertNotNull(cache.get(smallKey, false));
+		cache.put(largeKey, large, cache.stamp());
+		Assert.assertEquals("large", cache.get(largeKey, false).get("_id"));
+		Assert.assertNull(cache.get(smallKey, false));
+		cache.put(smallKey, small, cache.stamp());
+		Assert.assertNotNull(cache.get(smallKey, false));
+		Assert.assertNull(cache.get(largeKey, false));
+		Assert.assertEquals(2, cache.getEvictionCount());
+		Assert.assertEquals(4096, cache.getAllocatedBytes());
+
+		// ページに余裕があれば、異なるサイズのドキュメントを同時に保持する
+		cache = new DocumentCache(3 * 4096, 4096);
+		for (int i = 0; i < 100; i++) {
+			BSONObject document = new BasicBSONObject("_id", i);
+			cache.put(cache.key("test.mixed", document, null), document, cache.stamp());
+		}
+		cache.put(largeKey, large, cache.stamp());
+		Assert.assertNotNull(cache.get(largeKey, false));
+		Assert.assertEquals(101, cache.size());
+
+		// 最も長く参照されていないエントリのページが取り上げられる
+		BSONObject medium = new BasicBSONObject("_id", "medium").append("data", new String(chars, 0, 1500));
+		DocumentCache.Key mediumKey = cache.key("test.mixed", medium, null);
+		cache.put(mediumKey, medium, cache.stamp());
+		Assert.assertNotNull(cache.get(mediumKey, false));
+		Assert.assertNotNull(cache.get(largeKey, false));
+		Assert.assertEquals(12 * 1024, cache.getAllocatedBytes());
+	}
+}
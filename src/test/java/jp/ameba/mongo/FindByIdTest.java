@@ -0,0 +1,91 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FindByIdTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testConcurrentLookups() throws Exception {
+
+		final MongoCollection collection = client.getCollection("test", "findById");
+		collection.remove(new BasicBSONObject());
+		final int size = 1000;
+		BSONObject[] documents = new BSONObject[size];
+		for (int i = 0; i < size; i++) {
+			documents[i] = new BasicBSONObject("_id", i).append("name", "name-" + i);
+		}
+		collection.insert(documents);
+
+		// 同時に実行された検索は、まとめて送信される
+		final int threads = 16;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							// 存在しない _id も含める
+							int id = random.nextInt(size + 100);
+							BSONObject document = collection.findById(id);
+							if (id < size ? !("name-" + id).equals(document.get("name")) : document != null) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		Assert.assertEquals(0, errors.get());
+
+		// 結果は _id と同じ順序で返却される
+		List<BSONObject> found = collection.findByIds(Arrays.asList(5, -1, 3, 5));
+		Assert.assertEquals(4, found.size());
+		Assert.assertEquals("name-5", found.get(0).get("name"));
+		Assert.assertNull(found.get(1));
+		Assert.assertEquals("name-3", found.get(2).get("name"));
+		Assert.assertEquals("name-5", found.get(3).get("name"));
+
+		MongoAsyncCollection async = client.getAsyncCollection("test", "findById");
+		Assert.assertEquals("name-10", async.findById(10).get(5, TimeUnit.SECONDS).get("name"));
+		List<BSONObject> asyncFound = async.findByIds(Arrays.asList(1, 2, size)).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals("name-1", asyncFound.get(0).get("name"));
+		Assert.assertEquals("name-2", asyncFound.get(1).get("name"));
+		Assert.assertNull(asyncFound.get(2));
+	}
+}
@@ -0,0 +1,185 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jp.ameba.mongo.protocol.Consistency;
+
+import org.bson.BasicBSONObject;
+import org.jboss.netty.channel.Channel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GroupCommitTest {
+
+	private MongoClient client;
+	
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.getConfiguration().setMaxGroupCommitSize(64);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+	
+	@Test
+	public void testGroupedInserts() throws Exception {
+		
+		MongoAsyncCollection collection = client.getAsyncCollection("test", "group");
+		collection.remove(new BasicBSONObject()).get(10, TimeUnit.SECONDS);
+		
+		// 確認を待たずに送信し、まとめて確認される
+		int size = 1000;
+		List<OperationFuture<Void>> inserts = new ArrayList<OperationFuture<Void>>(size);
+		for (int i = 0; i < size; i++) {
+			inserts.add(collection.insert(new BasicBSONObject("_id", i), Consistency.GROUP));
+		}
+		for (OperationFuture<Void> future : inserts) {
+			future.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(future.isSuccess());
+		}
+		Assert.assertEquals(Long.valueOf(size), collection.count().get(10, TimeUnit.SECONDS));
+		
+		// 同期 API でも確認まで待つ
+		MongoCollection sync = client.getCollection("test", "group");
+		sync.setDefaultConsistency(Consistency.GROUP);
+		sync.insert(new BasicBSONObject("_id", size));
+		Assert.assertEquals(size + 1, sync.count());
+	}
+	
+	@Test
+	public void testFailedWindow() throws Exception {
+		
+		MongoAsyncCollection collection = client.getAsyncCollection("test", "group");
+		collection.remove(new BasicBSONObject()).get(10, TimeUnit.SECONDS);
+		collection.insert(new BasicBSONObject("_id", 1)).get(10, TimeUnit.SECONDS);
+		
+		// 重複キーの挿入を含むウィンドウは失敗する
+		OperationFuture<Void> duplicate = collection.insert(new BasicBSONObject("_id", 1), Consistency.GROUP);
+		try {
+			duplicate.get(10, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof GroupCommitException);
+			GroupCommitException cause = (GroupCommitException) ex.getCause();
+			Assert.assertTrue(cause.getWindowId() > 0);
+			Assert.assertEquals(1, cause.getWindowSize());
+		}
+		
+		// エラー状態は消去され、次のウィンドウには影響しない
+		OperationFuture<Void> next = collection.insert(new BasicBSONObject("_id", 2), Consistency.GROUP);
+		next.get(10, TimeUnit.SECONDS);
+		Assert.assertTrue(next.isSuccess());
+	}
+	
+	@Test
+	public void testMixedConsistency() throws Exception {
+		
+		// 1つのチャネルで、一貫性レベルの異なる更新を混在させる
+		MongoClient single = new MongoClient();
+		single.getConfiguration().setConnectionsPerServer(1);
+		single.setHosts("127.0.0.1:27017");
+		single.awaitOpen();
+		try {
+			MongoAsyncCollection collection = single.getAsyncCollection("test", "group");
+			collection.remove(new BasicBSONObject()).get(10, TimeUnit.SECONDS);
+			collection.insert(new BasicBSONObject("_id", 1)).get(10, TimeUnit.SECONDS);
+			
+			// 確認しない更新のエラーは、次のウィンドウの確認に含まれない
+			collection.insert(new BasicBSONObject("_id", 1), Consistency.NONE).get(10, TimeUnit.SECONDS);
+			OperationFuture<Void> grouped = collection.insert(new BasicBSONObject("_id", 2), Consistency.GROUP);
+			grouped.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(grouped.isSuccess());
+			
+			// ウィンドウ内の更新のエラーは、後続の更新があっても検出される
+			OperationFuture<Void> duplicate = collection.insert(new BasicBSONObject("_id", 2), Consistency.GROUP);
+			collection.insert(new BasicBSONObject("_id", 3), Consistency.NONE);
+			try {
+				duplicate.get(10, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (ExecutionException ex) {
+				Assert.assertTrue(ex.getCause() instanceof GroupCommitException);
+			}
+			
+			// 確認する更新の後も同様
+			collection.insert(new BasicBSONObject("_id", 4)).get(10, TimeUnit.SECONDS);
+			grouped = collection.insert(new BasicBSONObject("_id", 5), Consistency.GROUP);
+			grouped.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(grouped.isSuccess());
+			Assert.assertEquals(Long.valueOf(5), collection.count().get(10, TimeUnit.SECONDS));
+		} finally {
+			single.close();
+		}
+	}
+	
+	@Test
+	public void testUngroupedWritesDoNotLock() throws Exception {
+		
+		MongoClient single = new MongoClient();
+		single.getConfiguration().setConnectionsPerServer(1);
+		single.getConfiguration().setWriteBatching(true);
+		single.setHosts("127.0.0.1:27017");
+		single.awaitOpen();
+		try {
+			final MongoAsyncCollection collection = single.getAsyncCollection("test", "group");
+			collection.remove(new BasicBSONObject()).get(10, TimeUnit.SECONDS);
+			Channel channel = ((MongoConnectionImpl) single.getConnection()).getChannel();
+			MongoChannelState state = (MongoChannelState)
+					channel.getPipeline().getContext(MongoChannelHandler.class).getAttachment();
+			GroupCommit group = state.getGroupCommit();
+			
+			// GROUP を使用していなければ、更新も同期しない
+			synchronized (group) {
+				Assert.assertTrue(send(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						return collection.insert(new BasicBSONObject("_id", 1)).get(10, TimeUnit.SECONDS);
+					}
+				}));
+			}
+			
+			// GROUP を使用した後も、クエリは同期しない
+			collection.insert(new BasicBSONObject("_id", 2), Consistency.GROUP).get(10, TimeUnit.SECONDS);
+			synchronized (group) {
+				Assert.assertTrue(send(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						return collection.count().get(10, TimeUnit.SECONDS);
+					}
+				}));
+			}
+		} finally {
+			single.close();
+		}
+	}
+	
+	/**
+	 * 別のスレッドで送信し、完了したかを返却します。
+	 */
+	private boolean send(Callable<Object> task) throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(task).get(5, TimeUnit.SECONDS);
+			return true;
+		} catch (TimeoutException ex) {
+			return false;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeartbeatTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.getConfiguration().setHeartbeatInterval(20L);
+		client.getConfiguration().setConnectionsPerServer(2);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testRoundTripTimes() throws Exception {
+
+		SocketAddress address = new InetSocketAddress("127.0.0.1", 27017);
+		long deadline = System.currentTimeMillis() + 5000L;
+		Map<SocketAddress, Long> times = client.getRoundTripTimes();
+		while (!times.containsKey(address) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			times = client.getRoundTripTimes();
+		}
+		Assert.assertTrue(times.containsKey(address));
+		Assert.assertTrue(times.get(address) >= 0);
+
+		// 計測中も通常どおり使用できる
+		MongoCollection collection = client.getCollection("test", "heartbeat");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1));
+		Assert.assertEquals(1, collection.count());
+		Assert.assertEquals(address, client.getConnection().getServerAddress());
+	}
+
+	@Test
+	public void testLatencyWindow() throws Exception {
+
+		ServerMonitor monitor = new ServerMonitor(client);
+		SocketAddress near = new InetSocketAddress("127.0.0.1", 27001);
+		SocketAddress far = new InetSocketAddress("127.0.0.1", 27002);
+		SocketAddress unknown = new InetSocketAddress("127.0.0.1", 27003);
+		List<SocketAddress> candidates = Arrays.asList(near, far, unknown);
+
+		monitor.record(near, TimeUnit.MILLISECONDS.toNanos(1));
+		monitor.record(far, TimeUnit.MILLISECONDS.toNanos(50));
+		Set<SocketAddress> nearest = monitor.nearest(candidates);
+		Assert.assertTrue(nearest.contains(near));
+		Assert.assertFalse(nearest.contains(far));
+		// 計測していないサーバーは使用する
+		Assert.assertTrue(nearest.contains(unknown));
+
+		// 応答しなくなったサーバーは除外される
+		monitor.record(near, -1L);
+		nearest = monitor.nearest(candidates);
+		Assert.assertFalse(nearest.contains(near));
+		Assert.assertTrue(nearest.contains(far));
+		Assert.assertFalse(monitor.getRoundTripTimes().containsKey(near));
+
+		// 移動平均により、一時的な遅延では除外されない
+		monitor.record(near, TimeUnit.MILLISECONDS.toNanos(1));
+		monitor.record(near, TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertEquals(10800L, monitor.getRoundTripTimes().get(near).longValue(), 1);
+		Assert.assertTrue(monitor.nearest(candidates).contains(near));
+
+		// 候補に含まれるサーバーのうち最も速いサーバーが基準となる
+		Assert.assertTrue(monitor.nearest(Arrays.asList(far)).contains(far));
+	}
+
+	@Test
+	public void testRoleKeptThroughFailures() throws Exception {
+
+		ServerMonitor monitor = new ServerMonitor(client);
+		Topology topology = client.getTopology();
+		SocketAddress address = new InetSocketAddress("127.0.0.1", 27004);
+		topology.update(address, new BasicBSONObject("ismaster", true));
+		monitor.record(address, TimeUnit.MILLISECONDS.toNanos(1));
+
+		// 一時的な失敗では選択対象から外さず、役割も破棄しない
+		monitor.failed(address);
+		monitor.failed(address);
+		Assert.assertEquals(Topology.Role.PRIMARY, topology.getRole(address));
+		Assert.assertTrue(monitor.nearest(Arrays.asList(address)).contains(address));
+
+		// 連続して失敗すると破棄する
+		monitor.failed(address);
+		Assert.assertNull(topology.getRole(address));
+		Assert.assertFalse(monitor.nearest(Arrays.asList(address)).contains(address));
+	}
+}
@@ -0,0 +1,98 @@
+package jp.ameba.mongo;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import jp.ameba.mongo.protocol.LazyBSONObject;
+
+import org.bson.BSONDecoder;
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Code;
+import org.bson.types.ObjectId;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * サーバーへ接続せずに、 {@link LazyBSONObject} のデコード結果を検証します。
+ */
+public class LazyBSONObjectTest {
+
+	@Test
+	public void testGet() {
+		ObjectId id = new ObjectId();
+		Date date = new Date();
+		UUID uuid = UUID.randomUUID();
+		BSONObject source = new BasicBSONObject("_id", id)
+				.append("int", 10)
+				.append("long", 20L)
+				.append("double", 1.5)
+				.append("bool", true)
+				.append("null", null)
+				.append("date", date)
+				.append("string", "文字列")
+				.append("日本語", "value")
+				.append("bytes", new byte[] { 1, 2, 3 })
+				.append("uuid", uuid)
+				.append("regex", Pattern.compile("^a.*", Pattern.CASE_INSENSITIVE))
+				.append("code", new Code("function() {}"))
+				.append("timestamp", new BSONTimestamp(100, 2))
+				.append("nested", new BasicBSONObject("a", 1).append("b", new BasicBSONObject("c", "d")))
+				.append("array", Arrays.asList(1, "two", new BasicBSONObject("three", 3)));
+
+		byte[] bytes = new BSONEncoder().encode(source);
+		LazyBSONObject lazy = new LazyBSONObject(
+				ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, bytes));
+		BSONObject expected = new BSONDecoder().readObject(bytes);
+
+		for (String key : expected.keySet()) {
+			Object value = expected.get(key);
+			if (value instanceof byte[]) {
+				Assert.assertArrayEquals((byte[]) value, (byte[]) lazy.get(key));
+			} else if (value instanceof Pattern) {
+				Assert.assertEquals(((Pattern) value).pattern(), ((Pattern) lazy.get(key)).pattern());
+				Assert.assertEquals(((Pattern) value).flags(), ((Pattern) lazy.get(key)).flags());
+			} else if (value instanceof BSONTimestamp) {
+				Assert.assertEquals(((BSONTimestamp) value).getTime(), ((BSONTimestamp) lazy.get(key)).getTime());
+				Assert.assertEquals(((BSONTimestamp) value).getInc(), ((BSONTimestamp) lazy.get(key)).getInc());
+			} else {
+				Assert.assertEquals(key, value, lazy.get(key));
+			}
+		}
+		Assert.assertEquals(expected.keySet(), lazy.keySet());
+		Assert.assertNull(lazy.get("unknown"));
+		Assert.assertFalse(lazy.containsField("unknown"));
+		Assert.assertTrue(lazy.containsField("日本語"));
+
+		BSONObject nested = (BSONObject) lazy.get("nested");
+		Assert.assertTrue(nested instanceof LazyBSONObject);
+		Assert.assertEquals("d", ((BSONObject) nested.get("b")).get("c"));
+
+		List<?> array = (List<?>) lazy.get("array");
+		Assert.assertEquals(3, array.size());
+		Assert.assertEquals("two", array.get(1));
+		Assert.assertEquals(3, ((BSONObject) array.get(2)).get("three"));
+	}
+
+	@Test
+	public void testPut() {
+		byte[] bytes = new BSONEncoder().encode(new BasicBSONObject("_id", 1).append("name", "a"));
+		LazyBSONObject lazy = new LazyBSONObject(
+				ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, bytes));
+		Assert.assertNotNull(lazy.getBuffer());
+
+		lazy.put("name", "b");
+		lazy.removeField("_id");
+		Assert.assertNull(lazy.getBuffer());
+		Assert.assertEquals("b", lazy.get("name"));
+		Assert.assertFalse(lazy.containsField("_id"));
+		Assert.assertEquals(lazy, new BasicBSONObject("name", "b"));
+	}
+}
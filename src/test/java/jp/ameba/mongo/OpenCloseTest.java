@@ -40,4 +40,34 @@ public class OpenCloseTest {
 		
 	}
 	
+	@Test
+	public void testClientClose() throws Exception {
+		
+		int before = countThreads();
+		MongoClient client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+		Assert.assertTrue(countThreads() > before);
+		
+		// タイマーと I/O スレッドも停止する
+		client.close();
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (countThreads() > before && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(before, countThreads());
+	}
+	
+	private static int countThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			// Netty は実行中の I/O スレッドの名前を変更する
+			String name = thread.getName();
+			if (thread.isAlive() && (name.startsWith("mongo-") || name.startsWith("New I/O"))) {
+				count++;
+			}
+		}
+		return count;
+	}
 }
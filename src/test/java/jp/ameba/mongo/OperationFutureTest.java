@@ -0,0 +1,141 @@
+package jp.ameba.mongo;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * サーバーへ接続せずに、 {@link OperationFuture} の完了通知を検証します。
+ */
+public class OperationFutureTest {
+
+	@Test
+	public void testTimeout() throws Exception {
+		OperationFuture<String> future = new OperationFuture<String>();
+		long start = System.nanoTime();
+		try {
+			future.get(50, TimeUnit.MILLISECONDS);
+			Assert.fail();
+		} catch (TimeoutException ex) {
+		}
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertFalse(future.isDone());
+		
+		Assert.assertTrue(future.setSuccess("done"));
+		Assert.assertFalse(future.setFailure(new MongoException("late")));
+		Assert.assertEquals("done", future.get(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testAbandonedWaitersAreUnlinked() throws Exception {
+		OperationFuture<String> future = new OperationFuture<String>();
+		final List<Integer> order = new ArrayList<Integer>();
+		future.addListener(new OperationListener<String>() {
+			@Override
+			public void operationComplete(OperationFuture<String> future) {
+				order.add(1);
+			}
+		});
+		for (int i = 0; i < 100; i++) {
+			try {
+				future.get(1, TimeUnit.MILLISECONDS);
+				Assert.fail();
+			} catch (TimeoutException ex) {
+			}
+			Thread.currentThread().interrupt();
+			try {
+				future.get();
+				Assert.fail();
+			} catch (InterruptedException ex) {
+			}
+		}
+		// タイムアウトや割り込みで待機を終えた Node は取り除かれ、リスナーのみ残る
+		Assert.assertEquals(1, stackSize(future));
+		
+		future.addListener(new OperationListener<String>() {
+			@Override
+			public void operationComplete(OperationFuture<String> future) {
+				order.add(2);
+			}
+		});
+		future.setSuccess("done");
+		Assert.assertEquals(Arrays.asList(1, 2), order);
+	}
+
+	private static int stackSize(OperationFuture<?> future) throws Exception {
+		Field state = OperationFuture.class.getDeclaredField("state");
+		state.setAccessible(true);
+		int size = 0;
+		for (Object node = state.get(future); node != null; size++) {
+			Field next = node.getClass().getDeclaredField("next");
+			next.setAccessible(true);
+			node = next.get(node);
+		}
+		return size;
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		OperationFuture<String> future = new OperationFuture<String>();
+		future.setFailure(new MongoException("failed"));
+		Assert.assertTrue(future.isDone());
+		Assert.assertFalse(future.isSuccess());
+		try {
+			future.get();
+			Assert.fail();
+		} catch (ExecutionException ex) {
+			Assert.assertEquals("failed", ex.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testConcurrentWaitersAndListeners() throws Exception {
+		for (int round = 0; round < 1000; round++) {
+			final OperationFuture<Integer> future = new OperationFuture<Integer>();
+			final AtomicInteger notified = new AtomicInteger();
+			final CountDownLatch finished = new CountDownLatch(8);
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < 8; i++) {
+				final boolean listen = i % 2 == 0;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							if (listen) {
+								future.addListener(new OperationListener<Integer>() {
+									@Override
+									public void operationComplete(OperationFuture<Integer> f) {
+										notified.incrementAndGet();
+										finished.countDown();
+									}
+								});
+							} else {
+								if (future.get(10, TimeUnit.SECONDS) == 1) {
+									notified.incrementAndGet();
+								}
+								finished.countDown();
+							}
+						} catch (Exception ex) {
+							finished.countDown();
+						}
+					}
+				});
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			future.setSuccess(1);
+			Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(8, notified.get());
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.ameba.mongo.protocol.Query;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OplogNearCacheTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "nearCache");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+		collection.insert(new BasicBSONObject("_id", 2).append("name", "second"));
+
+		OplogNearCache nearCache = new OplogNearCache(client, new DocumentCache(1024 * 1024, 4096));
+		DocumentCache cache = nearCache.getCache();
+		collection.setNearCache(nearCache);
+
+		// 追跡を開始するまでは使用しない
+		Assert.assertEquals(-1L, nearCache.getLag());
+		Assert.assertEquals("first", collection.findById(1).get("name"));
+		Assert.assertEquals(0, cache.size());
+
+		nearCache.setCoherent(true);
+		Assert.assertEquals("first", collection.findById(1).get("name"));
+		Assert.assertEquals("first", collection.findById(1).get("name"));
+		Assert.assertEquals(1, cache.getHitCount());
+		List<BSONObject> found = collection.findByIds(Arrays.asList(1, 2, 3));
+		Assert.assertEquals("first", found.get(0).get("name"));
+		Assert.assertEquals("second", found.get(1).get("name"));
+		Assert.assertNull(found.get(2));
+		Assert.assertEquals(2, cache.size());
+
+		// 他のクライアントによる更新
+		nearCache.apply(new BasicBSONObject("op", "u")
+			.append("ns", "test.nearCache")
+			.append("o2", new BasicBSONObject("_id", 1))
+			.append("o", new BasicBSONObject("$set", new BasicBSONObject("name", "updated"))));
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(1, nearCache.getInvalidationCount());
+		nearCache.apply(new BasicBSONObject("op", "d")
+			.append("ns", "test.other")
+			.append("o", new BasicBSONObject("_id", 2)));
+		Assert.assertEquals(1, cache.size());
+		nearCache.apply(new BasicBSONObject("op", "n").append("ns", "").append("o", new BasicBSONObject()));
+		Assert.assertEquals(1, cache.size());
+
+		// _id を特定できない操作では、すべて破棄される
+		nearCache.apply(new BasicBSONObject("op", "c")
+			.append("ns", "test.$cmd")
+			.append("o", new BasicBSONObject("drop", "nearCache")));
+		Assert.assertEquals(0, cache.size());
+
+		// このコレクションを通した更新
+		collection.findById(2);
+		collection.update(new BasicBSONObject("_id", 2), new BasicBSONObject("$set", new BasicBSONObject("name", "changed")));
+		Assert.assertEquals("changed", collection.findById(2).get("name"));
+
+		nearCache.setCoherent(false);
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(-1L, nearCache.getLag());
+	}
+
+	@Test
+	public void testWithoutOplog() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "nearCache");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+
+		// oplog がない場合は、キャッシュを使用せずに検索する
+		OplogNearCache nearCache = new OplogNearCache(client, new DocumentCache(1024 * 1024, 4096));
+		nearCache.start();
+		collection.setNearCache(nearCache);
+		Thread.sleep(200);
+		Assert.assertFalse(nearCache.isCoherent());
+		Assert.assertEquals("first", collection.findById(1).get("name"));
+		Assert.assertEquals(0, nearCache.getCache().size());
+		nearCache.close();
+	}
+
+	@Test
+	public void testPrivateConnection() throws Exception {
+
+		// 追跡用の専用の接続は、送信先として選択されない
+		MongoConnection conn = client.openPrivateConnection();
+		Assert.assertTrue(conn.isConnected());
+		Assert.assertFalse(client.getConnections().contains(conn));
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(client.getConnection().getChannelId() != conn.getChannelId());
+		}
+		Assert.assertNotNull(conn.query(new Query("test", "nearCache", 0, 1, new BasicBSONObject())));
+
+		// 専用の接続を閉じても、他の接続は使用できる
+		conn.close();
+		Assert.assertTrue(client.isOpen());
+		client.getCollection("test", "nearCache").count();
+	}
+
+	@Test
+	public void testCursorFlags() throws Exception {
+
+		Query query = new Query("test", "nearCache", 0, 1, new BasicBSONObject());
+		query.tailableCursor(true).awaitData(true).oplogReplay(true);
+		Assert.assertEquals(2 | 8 | 32, query.getFlags());
+		Assert.assertTrue(query.isTailableCursor());
+		query.tailableCursor(false).awaitData(false).oplogReplay(false);
+		Assert.assertEquals(0, query.getFlags());
+
+		// 検索前のカーソルにフラグと特殊フィールドを設定できる
+		MongoCursor cursor = client.getCollection("test", "nearCache").cursor()
+			.tailable()
+			.awaitData()
+			.oplogReplay()
+			.slaveOk()
+			.noCursorTimeout()
+			.hint("name")
+			.min("name", "a")
+			.max("name", "z");
+		Assert.assertNotNull(cursor);
+	}
+}
@@ -0,0 +1,78 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryDeduplicationTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.getConfiguration().setDeduplicateQueries(true);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testConcurrentFind() throws Exception {
+
+		final MongoCollection collection = client.getCollection("test", "dedup");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+		collection.insert(new BasicBSONObject("_id", 2).append("name", "second"));
+
+		// 同じ条件のクエリを多数のスレッドから同時に送信する
+		final int threads = 32;
+		final int size = 200;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < size; i++) {
+							int id = (thread + i) % 2 + 1;
+							BSONObject document = collection.find(new BasicBSONObject("_id", id));
+							if (!(id == 1 ? "first" : "second").equals(document.get("name"))) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+
+		Assert.assertEquals(0, errors.get());
+		Assert.assertTrue(client.getSharedQueryCount() > 0);
+		// 取得フィールドを指定したクエリは、別のクエリとして送信される
+		BSONObject fields = new BasicBSONObject("name", 1);
+		Assert.assertEquals("first", collection.find(new BasicBSONObject("_id", 1), fields).get("name"));
+		Assert.assertEquals(2, collection.count());
+	}
+}
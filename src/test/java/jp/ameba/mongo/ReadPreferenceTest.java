@@ -0,0 +1,105 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadPreferenceTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		// 計測による構成の更新を待たないよう、間隔を長くする
+		client.getConfiguration().setHeartbeatInterval(60000L);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testReadPreference() throws Exception {
+
+		SocketAddress address = new InetSocketAddress("127.0.0.1", 27017);
+		Topology topology = client.getTopology();
+		MongoCollection collection = client.getCollection("test", "readPreference");
+		collection.remove(new BasicBSONObject());
+
+		// 構成が不明な間は、すべてのサーバーをプライマリとして扱う
+		Assert.assertFalse(topology.isKnown());
+		Assert.assertEquals(address, client.getConnection().getServerAddress());
+		Assert.assertEquals(address, client.getConnection(ReadPreference.SECONDARY).getServerAddress());
+
+		// セカンダリのみの構成
+		topology.update(address, new BasicBSONObject("ismaster", false).append("secondary", true));
+		Assert.assertEquals(Topology.Role.SECONDARY, topology.getRole(address));
+		Assert.assertEquals(address, client.getConnection(ReadPreference.SECONDARY).getServerAddress());
+		Assert.assertEquals(address, client.getConnection(ReadPreference.PRIMARY_PREFERRED).getServerAddress());
+		Assert.assertEquals(address, client.getConnection(ReadPreference.NEAREST).getServerAddress());
+		try {
+			client.getConnection();
+			Assert.fail();
+		} catch (MongoException ex) {
+		}
+
+		// slaveOk を指定した検索はセカンダリに送信できる
+		collection.setReadPreference(ReadPreference.SECONDARY_PREFERRED);
+		Assert.assertEquals(0, collection.count());
+		Assert.assertNull(collection.find(new BasicBSONObject("_id", 1)));
+		Assert.assertTrue(collection.cursor().asList().isEmpty());
+
+		// プライマリに昇格
+		topology.update(address, new BasicBSONObject("ismaster", true)
+			.append("hosts", Arrays.asList("127.0.0.1:27017")));
+		Assert.assertEquals(Topology.Role.PRIMARY, topology.getRole(address));
+		Assert.assertEquals(address, client.getConnection().getServerAddress());
+		Assert.assertEquals(address, client.getConnection(ReadPreference.SECONDARY_PREFERRED).getServerAddress());
+		try {
+			client.getConnection(ReadPreference.SECONDARY);
+			Assert.fail();
+		} catch (MongoException ex) {
+		}
+
+		collection.setReadPreference(null);
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1));
+		collection.setReadPreference(ReadPreference.PRIMARY_PREFERRED);
+		Assert.assertEquals(1, collection.count());
+		Assert.assertEquals(1, collection.cursor().asList().size());
+
+		// 接続済みのメンバーは追加しない
+		Thread.sleep(100);
+		Assert.assertEquals(1, client.getConnections().size());
+
+		// 応答しなかったサーバーの役割は破棄される
+		topology.remove(address);
+		Assert.assertFalse(topology.isKnown());
+		Assert.assertEquals(address, client.getConnection().getServerAddress());
+	}
+
+	@Test
+	public void testDiscovery() throws Exception {
+
+		SocketAddress address = new InetSocketAddress("127.0.0.1", 27017);
+		int connections = client.getConnections().size();
+		client.getTopology().update(address, new BasicBSONObject("ismaster", true)
+			.append("hosts", Arrays.asList("localhost:27017", "localhost", "unknown-member.invalid:27017")));
+		Thread.sleep(500L);
+		// 接続済みのサーバーを別の表記で指定した場合や、名前を解決できない場合は追加しない
+		Assert.assertEquals(connections, client.getConnections().size());
+		Assert.assertEquals(address, client.getConnection().getServerAddress());
+	}
+}
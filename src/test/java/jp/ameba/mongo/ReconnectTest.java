@@ -0,0 +1,165 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jp.ameba.mongo.protocol.Query;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.getConfiguration().setConnectionsPerServer(2);
+		client.getConfiguration().setReconnectInterval(10L);
+		client.setHosts("127.0.0.1:27017");
+		awaitConnections(2);
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testReconnect() throws Exception {
+
+		MongoConnectionImpl conn = (MongoConnectionImpl) client.getConnection();
+		conn.getChannel().close().awaitUninterruptibly();
+
+		// 閉じた接続への送信はすぐに失敗する
+		try {
+			conn.query(new Query("test", "reconnect", 0, 1, new BasicBSONObject()));
+			Assert.fail();
+		} catch (MongoConnectionException ex) {
+			Assert.assertTrue(ex.getMessage().startsWith("Connection closed"));
+		}
+
+		// 切断された接続は新しい接続に置き換えられる
+		awaitConnections(2);
+		Assert.assertEquals(1L, client.getReconnectCount());
+		Assert.assertFalse(client.getConnections().contains(conn));
+
+		// close によって閉じた接続は再接続しない
+		MongoConnection closed = client.getConnection();
+		closed.close();
+		Thread.sleep(100L);
+		Assert.assertEquals(1L, client.getReconnectCount());
+		Assert.assertTrue(client.getConnections().contains(closed));
+	}
+
+	@Test
+	public void testRetryRead() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "reconnect");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+
+		// カーソルの作成時に選択した接続が、最初の検索の前に切断された場合
+		client.getConfiguration().setReconnectInterval(0L);
+		MongoConnectionImpl first = (MongoConnectionImpl) client.getConnection();
+		MongoCursor cursor = first.cursor("test", "reconnect").client(client);
+		first.getChannel().close().awaitUninterruptibly();
+		List<BSONObject> list = cursor.asList();
+		Assert.assertEquals(1, list.size());
+		Assert.assertEquals("first", list.get(0).get("name"));
+		Assert.assertEquals(1L, client.getRetryCount());
+
+		// 再送回数を超えた場合は失敗する
+		client.getConfiguration().setReadRetries(0);
+		try {
+			first.cursor("test", "reconnect").client(client).asList();
+			Assert.fail();
+		} catch (MongoConnectionException ex) {
+		}
+		Assert.assertEquals(1L, client.getRetryCount());
+	}
+
+	@Test
+	public void testRetryAsyncRead() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "reconnect");
+		collection.remove(new BasicBSONObject());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "first"));
+
+		// 完了通知の Executor を設定しなくても、送信中に切断されたクエリは再送される
+		Assert.assertNull(client.getConfiguration().getCallbackExecutor());
+		MongoAsyncCollection async = client.getAsyncCollection("test", "reconnect");
+		for (int i = 0; i < 100 && client.getRetryCount() == 0; i++) {
+			awaitConnections(2);
+			MongoConnectionImpl conn = (MongoConnectionImpl) client.getConnections().iterator().next();
+			OperationFuture<BSONObject> future = async.find(new BasicBSONObject("_id", 1));
+			conn.getChannel().close();
+			Assert.assertEquals("first", future.get(5, TimeUnit.SECONDS).get("name"));
+		}
+		Assert.assertTrue(client.getRetryCount() > 0);
+	}
+
+	@Test
+	public void testBackoff() throws Exception {
+
+		client.getConfiguration().setReconnectInterval(100L);
+		client.getConfiguration().setMaxReconnectInterval(1000L);
+		Reconnector reconnector = new Reconnector(client);
+		for (int i = 0; i < 100; i++) {
+			long delay = reconnector.backoff(0);
+			Assert.assertTrue(delay >= 50L && delay <= 100L);
+			delay = reconnector.backoff(2);
+			Assert.assertTrue(delay >= 200L && delay <= 400L);
+			// 上限を超えない
+			delay = reconnector.backoff(40);
+			Assert.assertTrue(delay >= 500L && delay <= 1000L);
+		}
+	}
+
+	@Test
+	public void testRetryBudget() throws Exception {
+
+		RetryBudget budget = new RetryBudget();
+		int retries = 0;
+		while (budget.tryAcquire()) {
+			retries++;
+		}
+		Assert.assertEquals(5, retries);
+
+		// 成功した読み込みにより、再び再送できるようになる
+		for (int i = 0; i < 10; i++) {
+			budget.refill();
+		}
+		Assert.assertTrue(budget.tryAcquire());
+		Assert.assertFalse(budget.tryAcquire());
+	}
+
+	private void awaitConnections(int count) throws IOException {
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (client.getConnections().size() != count || !allConnected()) {
+			if (System.currentTimeMillis() > deadline) {
+				Assert.fail("connections are not established.");
+			}
+			try {
+				Thread.sleep(10L);
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+		}
+	}
+
+	private boolean allConnected() {
+		for (MongoConnection conn : client.getConnections()) {
+			if (!conn.isConnected()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,66 @@
+package jp.ameba.mongo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Request;
+
+import org.bson.BasicBSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * {@link RequestTable} の登録・除去を {@link HashMap} と比較して検証します。
+ */
+public class RequestTableTest {
+
+	@Test
+	public void testRandomOperations() {
+		RequestTable table = new RequestTable();
+		Map<Integer, Request> expected = new HashMap<Integer, Request>();
+		Random random = new Random(0);
+		for (int i = 0; i < 200000; i++) {
+			// 連番に近いIDと、衝突しやすいIDを混在させる
+			int id = random.nextBoolean() ? random.nextInt(2048) : random.nextInt(64) * 1024;
+			if (random.nextInt(3) == 0) {
+				Assert.assertSame(expected.remove(id), table.remove(id));
+			} else {
+				Request request = new Query("test", "table", 0, 1, new BasicBSONObject());
+				expected.put(id, request);
+				table.put(id, request);
+			}
+			Assert.assertEquals(expected.size(), table.size());
+		}
+		for (Map.Entry<Integer, Request> entry : expected.entrySet()) {
+			Assert.assertTrue(table.contains(entry.getKey()));
+			Assert.assertFalse(table.remove(entry.getKey(), new Query("test", "table", 0, 1, null)));
+			Assert.assertTrue(table.remove(entry.getKey(), entry.getValue()));
+		}
+		Assert.assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testRemoveAll() {
+		RequestTable table = new RequestTable();
+		for (int i = 1; i <= 1000; i++) {
+			table.put(i, new Query("test", "table", 0, 1, null));
+		}
+		Assert.assertEquals(1000, table.removeAll().size());
+		Assert.assertEquals(0, table.size());
+		Assert.assertNull(table.remove(1));
+	}
+
+	@Test
+	public void testNextRequestId() {
+		RequestTable table = new RequestTable();
+		// 返信待ちのIDは採番しない
+		for (int i = 2; i <= 5; i++) {
+			table.put(i, new Query("test", "table", 0, 1, null));
+		}
+		Assert.assertEquals(1, table.nextRequestId());
+		Assert.assertEquals(6, table.nextRequestId());
+		Assert.assertEquals(7, table.nextRequestId());
+	}
+}
@@ -0,0 +1,74 @@
+package jp.ameba.mongo;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jp.ameba.mongo.protocol.Query;
+import jp.ameba.mongo.protocol.Response;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 返信しないサーバーに対して、返信待ちのリクエストが失敗することを検証します。
+ */
+public class RequestTimeoutTest {
+
+	private ServerSocket server;
+	
+	private MongoConnection connection;
+	
+	private Socket accepted;
+	
+	@Before
+	public void before() throws Exception {
+		server = new ServerSocket(0);
+		MongoDriver driver = new MongoDriver();
+		driver.getConfiguration().setOperationTimeout(200L);
+		connection = driver.createConnection(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+		connection.open();
+		accepted = server.accept();
+	}
+	
+	@After
+	public void after() throws Exception {
+		connection.closeAsync();
+		accepted.close();
+		server.close();
+	}
+	
+	@Test
+	public void testTimeout() throws Exception {
+		OperationFuture<Response> future = connection.queryAsync(
+				new Query("test", "timeout", 0, 1, new BasicBSONObject()));
+		long start = System.currentTimeMillis();
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof MongoException);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		Assert.assertTrue("elapsed " + elapsed, elapsed < 2000);
+	}
+	
+	@Test
+	public void testChannelClosed() throws Exception {
+		OperationFuture<Response> future = connection.queryAsync(
+				new Query("test", "timeout", 0, 1, new BasicBSONObject()));
+		Thread.sleep(50L);
+		accepted.close();
+		try {
+			future.get(150, TimeUnit.MILLISECONDS);
+			Assert.fail();
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause().getMessage().startsWith("Connection closed"));
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package jp.ameba.mongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import jp.ameba.mongo.protocol.Insert;
+
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpoolTest {
+
+	private File directory;
+
+	@Before
+	public void before() throws IOException {
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void after() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testReplayAfterOutage() throws Exception {
+
+		MongoClient client = createClient("127.0.0.1:27017");
+		client.getCollection("test", "spool").remove(new BasicBSONObject());
+		client.close();
+
+		// 接続できないサーバーを指定し、更新をスプールに追記する
+		client = createClient("127.0.0.1:27099");
+		MongoCollection collection = client.getCollection("test", "spool");
+		int size = 2000;
+		for (int i = 0; i < size; i++) {
+			collection.insert(new BasicBSONObject("_id", i).append("name", "name-" + i));
+		}
+		collection.update(new BasicBSONObject("_id", 0), new BasicBSONObject("$set", new BasicBSONObject("name", "updated")));
+		client.close();
+		// 小さいセグメントで、複数のファイルに分割される
+		Assert.assertTrue(directory.list().length > 2);
+
+		// 再接続後に、スプールした更新が順に送信される
+		client = createClient("127.0.0.1:27017");
+		client.awaitOpen();
+		collection = client.getCollection("test", "spool");
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (!(client.getConnection() instanceof MongoConnectionImpl)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50L);
+		}
+		Assert.assertTrue(client.getConnection() instanceof MongoConnectionImpl);
+		Assert.assertEquals(size, collection.count());
+		Assert.assertEquals("updated", collection.find(new BasicBSONObject("_id", 0)).get("name"));
+		// 送信済みのセグメントは削除される
+		Assert.assertTrue(directory.list().length <= 2);
+		collection.remove(new BasicBSONObject("_id", 1));
+		client.close();
+
+		// チェックポイントにより、同じ更新は再送されない
+		client = createClient("127.0.0.1:27017");
+		client.awaitOpen();
+		collection = client.getCollection("test", "spool");
+		Assert.assertTrue(client.getConnection() instanceof MongoConnectionImpl);
+		Assert.assertEquals(size - 1, collection.count());
+		client.close();
+	}
+
+	@Test
+	public void testPrimaryFailover() throws Exception {
+
+		MongoClient client = new MongoClient();
+		client.getConfiguration().setSpoolDirectory(directory.getPath());
+		client.getConfiguration().setHeartbeatInterval(60000L);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		MongoCollection collection = client.getCollection("test", "spool");
+		collection.remove(new BasicBSONObject());
+
+		// セカンダリへの接続のみ残っている場合も、更新はスプールに追記する
+		SocketAddress address = new InetSocketAddress("127.0.0.1", 27017);
+		client.getTopology().update(address, new BasicBSONObject("ismaster", false).append("secondary", true));
+		MongoConnection spooling = client.getConnection();
+		Assert.assertTrue(spooling instanceof SpoolingConnection);
+		// 接続として閉じても、クライアントの接続やスプールには影響しない
+		spooling.close();
+		Assert.assertTrue(spooling.closeAsync().isSuccess());
+		Assert.assertTrue(spooling.isOpen());
+		collection.insert(new BasicBSONObject("_id", 1).append("name", "spooled"));
+
+		// プライマリの回復後に送信される
+		client.getTopology().update(address, new BasicBSONObject("ismaster", true));
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (!(client.getConnection() instanceof MongoConnectionImpl)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50L);
+		}
+		Assert.assertTrue(client.getConnection() instanceof MongoConnectionImpl);
+		Assert.assertEquals("spooled", collection.find(new BasicBSONObject("_id", 1)).get("name"));
+		client.close();
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+
+		MongoClient client = createClient("127.0.0.1:27017");
+		client.awaitOpen();
+		client.getCollection("test", "spool").remove(new BasicBSONObject());
+		client.close();
+
+		MongoConfiguration config = new MongoConfiguration();
+		config.setSpoolDirectory(directory.getPath());
+		config.setSpoolSegmentSize(16 * 1024);
+		WriteSpool spool = new WriteSpool(config);
+		spool.activate();
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(spool.append(new Insert("test", "spool", new BasicBSONObject("_id", i))));
+		}
+		spool.close();
+
+		// 最後のレコードの本体を書き換え、追記の途中で停止した状態にする
+		File segment = null;
+		for (File file : directory.listFiles()) {
+			if (file.getName().endsWith(".log")) {
+				segment = file;
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			int offset = 0;
+			for (int i = 0; i < 2; i++) {
+				raf.seek(offset);
+				offset += 8 + Integer.reverseBytes(raf.readInt());
+			}
+			raf.seek(offset + 8 + 20);
+			raf.write(0xff);
+		} finally {
+			raf.close();
+		}
+
+		// CRC32 が一致しないレコードは送信しない
+		client = createClient("127.0.0.1:27017");
+		client.awaitOpen();
+		MongoCollection collection = client.getCollection("test", "spool");
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (!(client.getConnection() instanceof MongoConnectionImpl)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50L);
+		}
+		Assert.assertTrue(client.getConnection() instanceof MongoConnectionImpl);
+		Assert.assertEquals(2, collection.count());
+		Assert.assertNull(collection.find(new BasicBSONObject("_id", 2)));
+		client.close();
+	}
+
+	private MongoClient createClient(String hosts) {
+		MongoClient client = new MongoClient();
+		client.getConfiguration().setSpoolDirectory(directory.getPath());
+		client.getConfiguration().setSpoolSegmentSize(16 * 1024);
+		client.setHosts(hosts);
+		return client;
+	}
+}
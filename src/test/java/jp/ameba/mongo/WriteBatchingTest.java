@@ -0,0 +1,168 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.bson.BasicBSONObject;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBatchingTest {
+	
+	private Logger log = Logger.getLogger(WriteBatchingTest.class.getName());
+	
+	private MongoClient client;
+	
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.getConfiguration().setWriteBatching(true);
+		client.getConfiguration().setMaxWriteBatchCount(32);
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+	
+	@After
+	public void after() throws IOException, InterruptedException {
+		client.close();
+	}
+	
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		
+		final MongoAsyncCollection collection = client.getAsyncCollection("test", "batching");
+		collection.remove(new BasicBSONObject()).get(10, TimeUnit.SECONDS);
+		
+		final int threads = 8;
+		final int size = 500;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						List<OperationFuture<Void>> futures = new ArrayList<OperationFuture<Void>>(size);
+						for (int i = 0; i < size; i++) {
+							futures.add(collection.insert(new BasicBSONObject("_id", thread * size + i)));
+						}
+						for (OperationFuture<Void> future : futures) {
+							future.get(10, TimeUnit.SECONDS);
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		long start = System.currentTimeMillis();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		log.info(threads * size + " batched inserts in " + (System.currentTimeMillis() - start) + " ms");
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		Assert.assertEquals(Long.valueOf(threads * size), collection.count().get(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testBatchedWrite() throws Exception {
+		
+		MongoConfiguration config = new MongoConfiguration();
+		config.setWriteBatching(true);
+		config.setMaxWriteBatchCount(2);
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		WriteBatcher batcher = new WriteBatcher(config, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		});
+		List<MessageEvent> writes = new ArrayList<MessageEvent>();
+		ChannelHandlerContext ctx = context(writes);
+		
+		List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+		for (int i = 0; i < 5; i++) {
+			ChannelFuture future = Channels.future(ctx.getChannel());
+			futures.add(future);
+			batcher.offer(future, ChannelBuffers.wrappedBuffer(new byte[] { (byte) i }));
+		}
+		
+		// 送信スレッドは上限分を1回だけ書き込み、残りを委譲する
+		batcher.flush(ctx);
+		Assert.assertEquals(1, writes.size());
+		Assert.assertEquals(2, ((ChannelBuffer) writes.get(0).getMessage()).readableBytes());
+		Assert.assertEquals(1, tasks.size());
+		
+		// 委譲した書き込みまでに追加した分は、まとめて書き込まれる
+		ChannelFuture last = Channels.future(ctx.getChannel());
+		futures.add(last);
+		batcher.write(ctx, last, ChannelBuffers.wrappedBuffer(new byte[] { 5 }));
+		Assert.assertEquals(1, writes.size());
+		while (!tasks.isEmpty()) {
+			tasks.remove(0).run();
+		}
+		Assert.assertEquals(3, writes.size());
+		Assert.assertEquals(3, batcher.getBatchCount());
+		for (ChannelFuture future : futures) {
+			Assert.assertTrue(future.isSuccess());
+		}
+	}
+	
+	/**
+	 * 書き込みを記録し、そのまま完了させるコンテキストを作成します。
+	 */
+	private ChannelHandlerContext context(final List<MessageEvent> writes) {
+		final Channel channel = (Channel) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { Channel.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				}
+				return null;
+			}
+		});
+		return (ChannelHandlerContext) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { ChannelHandlerContext.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getChannel")) {
+					return channel;
+				}
+				if (method.getName().equals("sendDownstream")) {
+					MessageEvent event = (MessageEvent) args[0];
+					writes.add(event);
+					event.getFuture().setSuccess();
+				}
+				return null;
+			}
+		});
+	}
+}
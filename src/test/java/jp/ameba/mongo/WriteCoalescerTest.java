@@ -0,0 +1,117 @@
+package jp.ameba.mongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteCoalescerTest {
+
+	private MongoClient client;
+
+	@Before
+	public void before() throws IOException {
+		client = new MongoClient();
+		client.setHosts("127.0.0.1:27017");
+		client.awaitOpen();
+		Assert.assertTrue(client.isOpen());
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+	}
+
+	@Test
+	public void testUpdateAndRemove() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "coalescer");
+		collection.remove(new BasicBSONObject());
+		int size = 2500;
+		BSONObject[] documents = new BSONObject[size];
+		for (int i = 0; i < size; i++) {
+			documents[i] = new BasicBSONObject("_id", i).append("count", 0);
+		}
+		collection.insert(documents);
+
+		WriteCoalescer coalescer = collection.writeCoalescer(20L).maxBatchCount(1000);
+		BSONObject processed = new BasicBSONObject("$set", new BasicBSONObject("processed", true));
+		List<OperationFuture<Void>> futures = new ArrayList<OperationFuture<Void>>();
+		for (int i = 0; i < size; i++) {
+			futures.add(coalescer.update(i, processed));
+		}
+		for (int i = 0; i < 100; i++) {
+			futures.add(coalescer.remove(i));
+		}
+		// 同じ _id への $inc は、まとめずに順に送信される
+		BSONObject inc = new BasicBSONObject("$inc", new BasicBSONObject("count", 1));
+		for (int i = 0; i < 3; i++) {
+			futures.add(coalescer.update(size - 1, inc));
+		}
+		for (OperationFuture<Void> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(future.isSuccess());
+		}
+		coalescer.close();
+
+		Assert.assertEquals(size - 100, collection.count());
+		Assert.assertEquals(size - 100, collection.count(new BasicBSONObject("processed", true)));
+		Assert.assertEquals(3, collection.find(new BasicBSONObject("_id", size - 1)).get("count"));
+	}
+
+	@Test
+	public void testCursorBatchRemove() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "coalescer");
+		collection.remove(new BasicBSONObject());
+		int size = 50;
+		for (int i = 0; i < size; i++) {
+			collection.insert(new BasicBSONObject("_id", i).append("even", i % 2 == 0));
+		}
+
+		// 削除はクローズ時にまとめて送信される
+		MongoCursor cursor = collection.cursor().batchSize(size).batchRemove();
+		for (int i = 0; i < size; i++) {
+			BSONObject document = cursor.next();
+			if (Boolean.TRUE.equals(document.get("even"))) {
+				cursor.remove();
+			}
+		}
+		Assert.assertEquals(size, collection.count());
+		cursor.close();
+
+		Assert.assertEquals(size / 2, collection.count());
+		Assert.assertEquals(0, collection.count(new BasicBSONObject("even", true)));
+	}
+
+	@Test
+	public void testCursorBatchRemoveBatchSize() throws Exception {
+
+		MongoCollection collection = client.getCollection("test", "coalescer");
+		int size = 50;
+		// 負の取得件数は絶対値、 0 は既定の件数ごとに送信する
+		for (int batchSize : new int[] { -size, 0 }) {
+			collection.remove(new BasicBSONObject());
+			for (int i = 0; i < size; i++) {
+				collection.insert(new BasicBSONObject("_id", i).append("even", i % 2 == 0));
+			}
+			MongoCursor cursor = collection.cursor().batchSize(batchSize).batchRemove();
+			for (int i = 0; i < size; i++) {
+				BSONObject document = cursor.next();
+				if (Boolean.TRUE.equals(document.get("even"))) {
+					cursor.remove();
+				}
+			}
+			Assert.assertEquals(size, collection.count());
+			cursor.close();
+			Assert.assertEquals(size / 2, collection.count());
+		}
+	}
+}